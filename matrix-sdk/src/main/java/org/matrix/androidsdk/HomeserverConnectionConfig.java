@@ -7,6 +7,7 @@ import org.json.JSONException;
 import org.json.JSONObject;
 import org.matrix.androidsdk.rest.model.login.Credentials;
 import org.matrix.androidsdk.ssl.Fingerprint;
+import org.matrix.androidsdk.util.IdentifierPool;
 
 import java.util.ArrayList;
 
@@ -20,6 +21,9 @@ public class HomeserverConnectionConfig {
     private Credentials mCredentials;
     private boolean mPin;
 
+    // the identifiers pool of the session
+    private IdentifierPool mIdentifierPool = null;
+
     /**
      * @param hsUri The URI to use to connect to the homeserver
      */
@@ -60,6 +64,19 @@ public class HomeserverConnectionConfig {
     public void setCredentials(Credentials credentials) { this.mCredentials = credentials; }
 
 
+    /**
+     * Provides the identifiers pool of the session : the rest clients and the stores of the session
+     * share the user ids, the room ids or the event types they read.
+     * @return the identifiers pool
+     */
+    public synchronized IdentifierPool getIdentifierPool() {
+        if (null == mIdentifierPool) {
+            mIdentifierPool = new IdentifierPool();
+        }
+
+        return mIdentifierPool;
+    }
+
     /**
      * @return whether we should reject X509 certs that were issued by trusts CAs and only trust
      * certs with matching fingerprints.
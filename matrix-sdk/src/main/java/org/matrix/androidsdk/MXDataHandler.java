@@ -25,8 +25,10 @@ import org.matrix.androidsdk.data.RoomState;
 import org.matrix.androidsdk.data.RoomSummary;
 import org.matrix.androidsdk.db.MXMediasCache;
 import org.matrix.androidsdk.listeners.IMXEventListener;
+import org.matrix.androidsdk.listeners.IMXLiveEventsBatchListener;
 import org.matrix.androidsdk.rest.callback.SimpleApiCallback;
 import org.matrix.androidsdk.rest.model.Event;
+import org.matrix.androidsdk.rest.model.MatrixError;
 import org.matrix.androidsdk.rest.model.RoomMember;
 import org.matrix.androidsdk.rest.model.RoomResponse;
 import org.matrix.androidsdk.rest.model.User;
@@ -39,7 +41,12 @@ import org.matrix.androidsdk.util.JsonUtils;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * The data handler provides a layer to help manage matrix input and output.
@@ -49,7 +56,7 @@ import java.util.List;
  * <li>Provides the means for an app to get callbacks for data changes</li>
  * </ul>
  */
-public class MXDataHandler implements IMXEventListener {
+public class MXDataHandler implements IMXEventListener, IMXLiveEventsBatchListener {
     private static final String LOG_TAG = "MXData";
 
     private List<IMXEventListener> mEventListeners = new ArrayList<IMXEventListener>();
@@ -282,6 +289,47 @@ public class MXDataHandler implements IMXEventListener {
         }
     }
 
+    /**
+     * Retrieve the rooms whose stored data were corrupted with a room initial sync.
+     * The other rooms are kept : a corrupted room file does not trigger a global initial sync.
+     */
+    public void resyncCorruptedRooms() {
+        if (!isActive() || (null == mDataRetriever)) {
+            return;
+        }
+
+        Collection<String> roomIds = mStore.popCorruptedRoomIds();
+
+        for (final String roomId : roomIds) {
+            Log.d(LOG_TAG, "resyncCorruptedRooms : " + roomId);
+
+            mDataRetriever.getRoomsRestClient().initialSync(roomId, new SimpleApiCallback<RoomResponse>() {
+                @Override
+                public void onSuccess(RoomResponse roomResponse) {
+                    if (isActive()) {
+                        handleInitialRoomResponse(roomResponse, getRoom(roomId));
+                        mStore.commit();
+                    }
+                }
+
+                @Override
+                public void onNetworkError(Exception e) {
+                    Log.e(LOG_TAG, "resyncCorruptedRooms " + roomId + " failed : " + e.getMessage());
+                }
+
+                @Override
+                public void onMatrixError(MatrixError e) {
+                    Log.e(LOG_TAG, "resyncCorruptedRooms " + roomId + " failed : " + e.error);
+                }
+
+                @Override
+                public void onUnexpectedError(Exception e) {
+                    Log.e(LOG_TAG, "resyncCorruptedRooms " + roomId + " failed : " + e.getMessage());
+                }
+            });
+        }
+    }
+
     public String getUserId() {
         if (isActive()) {
             return mCredentials.userId;
@@ -315,7 +363,7 @@ public class MXDataHandler implements IMXEventListener {
         inviteEvent.userId = inviterUserId;
         inviteEvent.type = Event.EVENT_TYPE_STATE_ROOM_MEMBER;
         inviteEvent.setOriginServerTs(System.currentTimeMillis()); // This is where it's fake
-        inviteEvent.content = JsonUtils.toJson(member);
+        inviteEvent.setContent(JsonUtils.toJson(member));
 
         mStore.storeSummary(getUserId(), roomId, inviteEvent, null, mCredentials.userId);
 
@@ -350,7 +398,7 @@ public class MXDataHandler implements IMXEventListener {
             Log.e(LOG_TAG, "++ handleLiveEvents : got " + events.size() + " events.");
 
             for (Event event : events) {
-                handleLiveEvent(event);
+                handleLiveEvent(event, null);
             }
 
             Log.e(LOG_TAG, "-- handleLiveEvents : " + events.size() +" events are processed.");
@@ -359,6 +407,86 @@ public class MXDataHandler implements IMXEventListener {
 
             // check if an incoming call has been received
             mCallsManager.checkPendingIncomingCalls();
+
+            // a room loaded on demand could have been corrupted
+            resyncCorruptedRooms();
+        }
+    }
+
+    /**
+     * The rooms updated by a batch of live events.
+     */
+    private static class LiveEventsBatch {
+        // the latest stored event of each room
+        final Map<String, Event> mLatestEvents = new HashMap<String, Event>();
+        // the rooms whose live state has been copied in this batch
+        final Set<String> mCopiedStatesRoomIds = new HashSet<String>();
+        // the updated rooms, in the update order
+        final Set<String> mRoomIds = new LinkedHashSet<String>();
+        // the typing and receipt events are not stored : they are dispatched with onLiveEvent after the batch
+        final List<Event> mEphemeralEvents = new ArrayList<Event>();
+    }
+
+    /**
+     * Handle a batch of live events, e.g. the events missed while the application was offline.
+     * The events are stored in a single store batch and the summary of each room is updated once.
+     * The listeners are warned once with onLiveEventsBatchProcessed instead of onLiveEvent for each stored event.
+     * @param events the live events
+     */
+    public void handleLiveEventsBatch(List<Event> events) {
+        if (!isActive()) {
+            Log.e(LOG_TAG, "handleLiveEventsBatch : the session is not anymore active");
+            return;
+        }
+
+        // check if there is something to do
+        if (0 != events.size()) {
+            Log.d(LOG_TAG, "++ handleLiveEventsBatch : got " + events.size() + " events.");
+            long start = System.currentTimeMillis();
+
+            LiveEventsBatch batch = new LiveEventsBatch();
+
+            mStore.beginBatch();
+
+            try {
+                for (Event event : events) {
+                    handleLiveEvent(event, batch);
+                }
+
+                for (Map.Entry<String, Event> entry : batch.mLatestEvents.entrySet()) {
+                    Room room = mStore.getRoom(entry.getKey());
+
+                    if (null != room) {
+                        mStore.storeSummary(getUserId(), entry.getKey(), entry.getValue(), room.getLiveState(), mCredentials.userId);
+                    }
+                }
+            } finally {
+                mStore.endBatch();
+            }
+
+            Log.d(LOG_TAG, "-- handleLiveEventsBatch : " + events.size() + " events in " + batch.mRoomIds.size() + " rooms are processed in " + (System.currentTimeMillis() - start) + " ms");
+
+            if (batch.mRoomIds.size() > 0) {
+                onLiveEventsBatchProcessed(batch.mRoomIds);
+            }
+
+            for (Event event : batch.mEphemeralEvents) {
+                Room room = mStore.getRoom(event.roomId);
+
+                if (null != room) {
+                    onLiveEvent(event, room.getLiveState());
+                }
+            }
+
+            onLiveEventsChunkProcessed();
+
+            // check if an incoming call has been received
+            if (null != mCallsManager) {
+                mCallsManager.checkPendingIncomingCalls();
+            }
+
+            // a room loaded on demand could have been corrupted
+            resyncCorruptedRooms();
         }
     }
 
@@ -389,7 +517,7 @@ public class MXDataHandler implements IMXEventListener {
      */
     private Boolean shouldSelfJoin(final Event event, final RoomState roomState) {
         if (isActive()) {
-            RoomMember member = JsonUtils.toRoomMember(event.content);
+            RoomMember member = JsonUtils.toRoomMember(event.getContent());
 
             // join event ?
             if (RoomMember.MEMBERSHIP_JOIN.equals(member.membership)) {
@@ -434,8 +562,9 @@ public class MXDataHandler implements IMXEventListener {
     /**
      * Handle events coming down from the event stream.
      * @param event the live event
+     * @param batch the batch of the event, null if it is not in a batch.
      */
-    private void handleLiveEvent(Event event) {
+    private void handleLiveEvent(Event event, LiveEventsBatch batch) {
         if (!isActive()) {
             Log.e(LOG_TAG, "handleLiveEvent : the session is not anymore active");
             return;
@@ -448,7 +577,7 @@ public class MXDataHandler implements IMXEventListener {
 
         // Presence event
         if (Event.EVENT_TYPE_PRESENCE.equals(event.type)) {
-            User userPresence = JsonUtils.toUser(event.content);
+            User userPresence = JsonUtils.toUser(event.getContent());
             User user = mStore.getUser(userPresence.userId);
 
             if (user == null) {
@@ -488,7 +617,10 @@ public class MXDataHandler implements IMXEventListener {
                 Log.d(LOG_TAG, "handleLiveEvent : Process a state event");
 
                 // copy the live state before applying any update
-                room.setLiveState(room.getLiveState().deepCopy());
+                // in a batch, the listeners do not get the intermediate states : it is copied once.
+                if ((null == batch) || batch.mCopiedStatesRoomIds.add(event.roomId)) {
+                    room.setLiveState(room.getLiveState().deepCopy());
+                }
                 // check if the event has been processed
                 if (!room.processStateEvent(event, Room.EventDirection.FORWARDS)) {
                     // not processed -> do not warn the application
@@ -497,8 +629,19 @@ public class MXDataHandler implements IMXEventListener {
                 }
             }
 
-            storeLiveRoomEvent(event);
-            onLiveEvent(event, room.getLiveState());
+            if (null == batch) {
+                storeLiveRoomEvent(event);
+                onLiveEvent(event, room.getLiveState());
+            } else if (Event.EVENT_TYPE_TYPING.equals(event.type) || Event.EVENT_TYPE_RECEIPT.equals(event.type)) {
+                batch.mEphemeralEvents.add(event);
+            } else {
+                // the room summary is updated at the end of the batch
+                if (storeLiveRoomEvent(event, false)) {
+                    batch.mLatestEvents.put(event.roomId, event);
+                }
+
+                batch.mRoomIds.add(event.roomId);
+            }
 
             if (null != selfJoinRoomId) {
                 selfJoin(selfJoinRoomId);
@@ -507,8 +650,8 @@ public class MXDataHandler implements IMXEventListener {
             BingRule bingRule;
             boolean outOfTimeEvent = false;
 
-            if (event.content.has("lifetime")) {
-                long maxlifetime = event.content.get("lifetime").getAsLong();
+            if (event.getContent().has("lifetime")) {
+                long maxlifetime = event.getContent().get("lifetime").getAsLong();
                 long eventLifeTime = System.currentTimeMillis() - event.getOriginServerTs();
 
                 outOfTimeEvent = eventLifeTime > maxlifetime;
@@ -577,18 +720,30 @@ public class MXDataHandler implements IMXEventListener {
      * @param event The event to be stored.
      */
     public void storeLiveRoomEvent(Event event) {
+        storeLiveRoomEvent(event, true);
+    }
+
+    /**
+     * Store a live room event.
+     * @param event The event to be stored.
+     * @param withSummary true to update the room summary with the event.
+     * @return true if the event has been stored.
+     */
+    private boolean storeLiveRoomEvent(Event event, boolean withSummary) {
         if (!isActive()) {
             Log.e(LOG_TAG, "storeLiveRoomEvent : the session is not anymore active");
-            return;
+            return false;
         }
 
+        boolean isStored = false;
+
         Room room = getRoom(event.roomId);
 
         // sanity check
         if (null != room) {
             if (Event.EVENT_TYPE_REDACTION.equals(event.type)) {
                 if (event.redacts != null) {
-                    mStore.updateEventContent(event.roomId, event.redacts, event.content);
+                    mStore.updateEventContent(event.roomId, event.redacts, event.getContent());
                 }
             }  else if (!Event.EVENT_TYPE_TYPING.equals(event.type) && !Event.EVENT_TYPE_RECEIPT.equals(event.type)) {
                 // the candidate events are not stored.
@@ -598,7 +753,7 @@ public class MXDataHandler implements IMXEventListener {
                 // if the user leaves a room,
                 // the server scho could try to delete the room file
                 if (Event.EVENT_TYPE_STATE_ROOM_MEMBER.equals(event.type) && mCredentials.userId.equals(event.userId) && mCredentials.userId.equals(event.stateKey)) {
-                    String membership = event.content.getAsJsonPrimitive("membership").getAsString();
+                    String membership = event.getContent().getAsJsonPrimitive("membership").getAsString();
 
                     if (RoomMember.MEMBERSHIP_LEAVE.equals(membership) || RoomMember.MEMBERSHIP_BAN.equals(membership)) {
                         store = false;
@@ -611,10 +766,16 @@ public class MXDataHandler implements IMXEventListener {
 
                 if (store) {
                     mStore.storeLiveRoomEvent(event);
-                    mStore.storeSummary(getUserId(), event.roomId, event, room.getLiveState(), mCredentials.userId);
+                    isStored = true;
+
+                    if (withSummary) {
+                        mStore.storeSummary(getUserId(), event.roomId, event, room.getLiveState(), mCredentials.userId);
+                    }
                 }
             }
         }
+
+        return isStored;
     }
 
     /**
@@ -698,6 +859,20 @@ public class MXDataHandler implements IMXEventListener {
         }
     }
 
+    @Override
+    public void onLiveEventsBatchProcessed(Set<String> roomIds) {
+        List<IMXEventListener> eventListeners = getListenersSnapshot();
+
+        for (IMXEventListener listener : eventListeners) {
+            if (listener instanceof IMXLiveEventsBatchListener) {
+                try {
+                    ((IMXLiveEventsBatchListener) listener).onLiveEventsBatchProcessed(roomIds);
+                } catch (Exception e) {
+                }
+            }
+        }
+    }
+
     @Override
     public void onBackEvent(Event event, RoomState roomState) {
         List<IMXEventListener> eventListeners = getListenersSnapshot();
@@ -782,6 +957,8 @@ public class MXDataHandler implements IMXEventListener {
             } catch (Exception e) {
             }
         }
+
+        resyncCorruptedRooms();
     }
 
     @Override
@@ -50,6 +50,8 @@ import org.matrix.androidsdk.rest.model.login.Credentials;
 import org.matrix.androidsdk.sync.DefaultEventsThreadListener;
 import org.matrix.androidsdk.sync.EventsThread;
 import org.matrix.androidsdk.sync.EventsThreadListener;
+import org.matrix.androidsdk.sync.RetryBackoff;
+import org.matrix.androidsdk.sync.SyncProfile;
 import org.matrix.androidsdk.util.BingRulesManager;
 import org.matrix.androidsdk.util.ContentManager;
 import org.matrix.androidsdk.util.UnsentEventsManager;
@@ -67,6 +69,7 @@ public class MXSession {
     private DataRetriever mDataRetriever;
     private MXDataHandler mDataHandler;
     private EventsThread mEventsThread;
+    private SyncProfile mSyncProfile = SyncProfile.FOREGROUND;
     private Credentials mCredentials;
     private MyUser mMyUser;
 
@@ -398,6 +401,7 @@ public class MXSession {
 
         mEventsThread = new EventsThread(mEventsRestClient, eventsListener, initialToken);
         mEventsThread.setNetworkConnectivityReceiver(networkConnectivityReceiver);
+        mEventsThread.setSyncProfile(mSyncProfile);
 
         if (mFailureCallback != null) {
             mEventsThread.setFailureCallback(mFailureCallback);
@@ -449,6 +453,11 @@ public class MXSession {
         } else {
             Log.e(LOG_TAG, "pauseEventStream : mEventsThread is null");
         }
+
+        // the application could be killed in background : write the pending commit
+        // the writes are not waited : it is called from the UI thread.
+        mDataHandler.getStore().flush();
+        mMediasCache.flushCacheSize();
     }
 
     public void resumeEventStream() {
@@ -466,6 +475,37 @@ public class MXSession {
         }
     }
 
+    /**
+     * Update the event stream sync profile, e.g. when the application goes to background.
+     * @param syncProfile the sync profile
+     */
+    public void setSyncProfile(SyncProfile syncProfile) {
+        checkIfActive();
+
+        if (null != syncProfile) {
+            mSyncProfile = syncProfile;
+
+            if (null != mEventsThread) {
+                mEventsThread.setSyncProfile(syncProfile);
+            }
+        }
+    }
+
+    /**
+     * @return the event stream sync profile.
+     */
+    public SyncProfile getSyncProfile() {
+        return mSyncProfile;
+    }
+
+    /**
+     * @return the retries of the event stream failed requests, with their metrics. null if the event stream is not started.
+     */
+    public RetryBackoff getEventStreamRetryBackoff() {
+        EventsThread eventsThread = mEventsThread;
+        return (null != eventsThread) ? eventsThread.getRetryBackoff() : null;
+    }
+
     public void catchupEventStream() {
         checkIfActive();
 
@@ -18,6 +18,7 @@ package org.matrix.androidsdk;
 import com.google.gson.Gson;
 import com.squareup.okhttp.OkHttpClient;
 
+import org.matrix.androidsdk.network.CancellableOkClient;
 import org.matrix.androidsdk.rest.model.login.Credentials;
 import org.matrix.androidsdk.ssl.CertUtil;
 import org.matrix.androidsdk.ssl.Fingerprint;
@@ -69,13 +70,25 @@ public class RestClient<T> {
 
     protected UnsentEventsManager mUnsentEventsManager;
 
+    // the http client when the requests can be cancelled
+    private CancellableOkClient mCancellableClient = null;
+
     /**
      * Public constructor.
      * @param hsConfig The homeserver connection config.
      */
     public RestClient(HomeserverConnectionConfig hsConfig, Class<T> type, String uriPrefix, boolean withNullSerialization) {
+        this(hsConfig, type, uriPrefix, withNullSerialization, false);
+    }
+
+    /**
+     * Constructor.
+     * @param hsConfig The homeserver connection config.
+     * @param withCancellableRequests true if the running requests can be cancelled with {@link #cancelRequests(Thread)}.
+     */
+    protected RestClient(HomeserverConnectionConfig hsConfig, Class<T> type, String uriPrefix, boolean withNullSerialization, boolean withCancellableRequests) {
         // The JSON -> object mapper
-        gson = JsonUtils.getGson(withNullSerialization);
+        gson = JsonUtils.getGson(withNullSerialization, hsConfig.getIdentifierPool());
 
         mCredentials = hsConfig.getCredentials();
 
@@ -87,11 +100,20 @@ public class RestClient<T> {
         okHttpClient.setSslSocketFactory(CertUtil.newPinnedSSLSocketFactory(hsConfig));
         okHttpClient.setHostnameVerifier(CertUtil.newHostnameVerifier(hsConfig));
 
+        OkClient client;
+
+        if (withCancellableRequests) {
+            mCancellableClient = new CancellableOkClient(okHttpClient);
+            client = mCancellableClient;
+        } else {
+            client = new OkClient(okHttpClient);
+        }
+
         // Rest adapter for turning API interfaces into actual REST-calling objects
         RestAdapter restAdapter = new RestAdapter.Builder()
                 .setEndpoint(hsConfig.getHomeserverUri().toString() + uriPrefix)
                 .setConverter(new GsonConverter(gson))
-                .setClient(new OkClient(okHttpClient))
+                .setClient(client)
                 .setRequestInterceptor(new RequestInterceptor() {
                     @Override
                     public void intercept(RequestInterceptor.RequestFacade request) {
@@ -116,6 +138,17 @@ public class RestClient<T> {
         mUnsentEventsManager = unsentEventsManager;
     }
 
+    /**
+     * Cancel the running requests started by a thread : they fail with a network error.
+     * It has no effect if the requests of this client cannot be cancelled.
+     * @param thread the thread
+     */
+    public void cancelRequests(Thread thread) {
+        if (null != mCancellableClient) {
+            mCancellableClient.cancel(thread);
+        }
+    }
+
     /**
      * Get the user's credentials. Typically for saving them somewhere persistent.
      * @return the user credentials
@@ -63,7 +63,6 @@ import org.matrix.androidsdk.rest.model.VideoMessage;
 import org.matrix.androidsdk.util.ContentManager;
 import org.matrix.androidsdk.util.EventDisplay;
 import org.matrix.androidsdk.util.EventUtils;
-import org.matrix.androidsdk.util.JsonUtils;
 import org.matrix.androidsdk.view.PieFractionView;
 import org.w3c.dom.Text;
 
@@ -502,7 +501,7 @@ public abstract class MessagesAdapter extends ArrayAdapter<MessageRow> {
      */
     private int getItemViewType(Event event) {
         if (Event.EVENT_TYPE_MESSAGE.equals(event.type)) {
-            Message message = JsonUtils.toMessage(event.content);
+            Message message = event.getMessage();
 
             if (Message.MSGTYPE_TEXT.equals(message.msgtype)) {
                 return ROW_TYPE_TEXT;
@@ -782,8 +781,8 @@ public abstract class MessagesAdapter extends ArrayAdapter<MessageRow> {
                 String url = null;
 
                 // Check whether this avatar url is updated by the current event (This happens in case of new joined member)
-                if (msg.content.has("avatar_url")) {
-                    url = msg.content.get("avatar_url") == JsonNull.INSTANCE ? null : msg.content.get("avatar_url").getAsString();
+                if (msg.getContent().has("avatar_url")) {
+                    url = msg.getContent().get("avatar_url") == JsonNull.INSTANCE ? null : msg.getContent().get("avatar_url").getAsString();
                 }
 
                 if ((sender != null) && (null == url)) {
@@ -1180,7 +1179,7 @@ public abstract class MessagesAdapter extends ArrayAdapter<MessageRow> {
         MessageRow row = getItem(position);
         Event msg = row.getEvent();
 
-        final ImageMessage imageMessage = JsonUtils.toImageMessage(msg.content);
+        final ImageMessage imageMessage = (ImageMessage) msg.getMessage();
 
         // display a type watermark
         final ImageView imageTypeView = (ImageView) convertView.findViewById(R.id.messagesAdapter_image_type);
@@ -1374,7 +1373,7 @@ public abstract class MessagesAdapter extends ArrayAdapter<MessageRow> {
         MessageRow row = getItem(position);
         Event msg = row.getEvent();
 
-        final FileMessage fileMessage = JsonUtils.toFileMessage(msg.content);
+        final FileMessage fileMessage = (FileMessage) msg.getMessage();
 
         final TextView fileTextView = (TextView) convertView.findViewById(R.id.messagesAdapter_filename);
         fileTextView.setPaintFlags(fileTextView.getPaintFlags() | Paint.UNDERLINE_TEXT_FLAG);
@@ -1597,7 +1596,7 @@ public abstract class MessagesAdapter extends ArrayAdapter<MessageRow> {
         MessageRow row = getItem(position);
         Event msg = row.getEvent();
 
-        final VideoMessage videoMessage = JsonUtils.toVideoMessage(msg.content);
+        final VideoMessage videoMessage = (VideoMessage) msg.getMessage();
 
         // sanity check
         if (null == videoMessage) {
@@ -1627,7 +1626,7 @@ public abstract class MessagesAdapter extends ArrayAdapter<MessageRow> {
     protected boolean isDisplayableEvent(Event event, RoomState roomState) {
         if (Event.EVENT_TYPE_MESSAGE.equals(event.type)) {
             // A message is displayable as long as it has a body
-            Message message = JsonUtils.toMessage(event.content);
+            Message message = event.getMessage();
             return (message.body != null) && (!message.body.equals(""));
         }
         else if (Event.EVENT_TYPE_STATE_ROOM_TOPIC.equals(event.type)
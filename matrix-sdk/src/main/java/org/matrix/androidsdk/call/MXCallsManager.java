@@ -370,7 +370,7 @@ public class MXCallsManager {
                     String callId = null;
 
                     try {
-                        callId = event.content.getAsJsonPrimitive("call_id").getAsString();
+                        callId = event.getContent().getAsJsonPrimitive("call_id").getAsString();
                     } catch (Exception e) {
 
                     }
@@ -391,7 +391,7 @@ public class MXCallsManager {
                                     call.setRoom(room);
 
                                     if (!isMyEvent) {
-                                        call.prepareIncomingCall(event.content, callId);
+                                        call.prepareIncomingCall(event.getContent(), callId);
                                         call.setIsIncoming(true);
                                         mxPendingIncomingCallId.add(callId);
                                     } else {
@@ -226,7 +226,7 @@ public class MXChromeCall extends MXCall {
             mUIThreadHandler.post(new Runnable() {
                 @Override
                 public void run() {
-                    mWebView.loadUrl("javascript:receivedAnswer(" + event.content.toString() + ")");
+                    mWebView.loadUrl("javascript:receivedAnswer(" + event.getContent().toString() + ")");
                 }
             });
         }
@@ -241,7 +241,7 @@ public class MXChromeCall extends MXCall {
             mUIThreadHandler.post(new Runnable() {
                 @Override
                 public void run() {
-                    mWebView.loadUrl("javascript:onHangupReceived(" + event.content.toString() + ")");
+                    mWebView.loadUrl("javascript:onHangupReceived(" + event.getContent().toString() + ")");
 
                     mWebView.post(new Runnable() {
                         @Override
@@ -307,7 +307,7 @@ public class MXChromeCall extends MXCall {
                 if (Event.EVENT_TYPE_CALL_ANSWER.equals(event.type) && !mIsIncoming) {
                     onCallAnswer(event);
                 } else if (Event.EVENT_TYPE_CALL_CANDIDATES.equals(event.type)) {
-                    JsonArray candidates = event.content.getAsJsonArray("candidates");
+                    JsonArray candidates = event.getContent().getAsJsonArray("candidates");
                     addCandidates(candidates);
                 } else if (Event.EVENT_TYPE_CALL_HANGUP.equals(event.type)) {
                     onCallHangup(event);
@@ -586,7 +586,7 @@ public class MXChromeCall extends MXCall {
                                 Event lastEvent = mPendingEvents.get(mPendingEvents.size() - 1);
 
                                 if (lastEvent.type.equals(Event.EVENT_TYPE_CALL_CANDIDATES)) {
-                                    JsonObject lastContent = lastEvent.content;
+                                    JsonObject lastContent = lastEvent.getContent();
 
                                     JsonArray lastContentCandidates = lastContent.get("candidates").getAsJsonArray();
                                     JsonArray newContentCandidates = content.get("candidates").getAsJsonArray();
@@ -595,8 +595,8 @@ public class MXChromeCall extends MXCall {
 
                                     lastContentCandidates.addAll(newContentCandidates);
 
-                                    lastEvent.content.remove("candidates");
-                                    lastEvent.content.add("candidates", lastContentCandidates);
+                                    lastEvent.getContent().remove("candidates");
+                                    lastEvent.getContent().add("candidates", lastContentCandidates);
                                     addIt = false;
                                 }
                             } catch (Exception e) {
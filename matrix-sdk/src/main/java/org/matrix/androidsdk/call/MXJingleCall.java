@@ -446,7 +446,7 @@ public class MXJingleCall extends MXCall {
                                             Event lastEvent = mPendingEvents.get(mPendingEvents.size() - 1);
 
                                             if (lastEvent.type.equals(Event.EVENT_TYPE_CALL_CANDIDATES)) {
-                                                JsonObject lastContent = lastEvent.content;
+                                                JsonObject lastContent = lastEvent.getContent();
 
                                                 JsonArray lastContentCandidates = lastContent.get("candidates").getAsJsonArray();
                                                 JsonArray newContentCandidates = content.get("candidates").getAsJsonArray();
@@ -455,8 +455,8 @@ public class MXJingleCall extends MXCall {
 
                                                 lastContentCandidates.addAll(newContentCandidates);
 
-                                                lastEvent.content.remove("candidates");
-                                                lastEvent.content.add("candidates", lastContentCandidates);
+                                                lastEvent.getContent().remove("candidates");
+                                                lastEvent.getContent().add("candidates", lastContentCandidates);
                                                 addIt = false;
                                             }
                                         } catch (Exception e) {
@@ -877,8 +877,8 @@ public class MXJingleCall extends MXCall {
 
                     // extract the description
                     try {
-                        if (event.content.has("answer")) {
-                            JsonObject answer = event.content.getAsJsonObject("answer");
+                        if (event.getContent().has("answer")) {
+                            JsonObject answer = event.getContent().getAsJsonObject("answer");
                             String type = answer.get("type").getAsString();
                             String sdp = answer.get("sdp").getAsString();
 
@@ -1000,7 +1000,7 @@ public class MXJingleCall extends MXCall {
                 if (Event.EVENT_TYPE_CALL_ANSWER.equals(event.type) && !mIsIncoming) {
                     onCallAnswer(event);
                 } else if (Event.EVENT_TYPE_CALL_CANDIDATES.equals(event.type)) {
-                    JsonArray candidates = event.content.getAsJsonArray("candidates");
+                    JsonArray candidates = event.getContent().getAsJsonArray("candidates");
                     addCandidates(candidates);
                 } else if (Event.EVENT_TYPE_CALL_HANGUP.equals(event.type)) {
                     onCallHangup(event);
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2015 OpenMarket Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.matrix.androidsdk.data;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+/**
+ * Delay the commits of a permanent store (write-behind).
+ *
+ * A commit request is run on the store handler once no other request has been received
+ * for the debounce delay, or at the latest when the oldest pending request reaches the max latency.
+ * The commit requests received during a sync burst are collapsed into a single commit.
+ */
+public class CommitScheduler {
+
+    // the default delay without any commit request before committing
+    public static final long DEFAULT_DEBOUNCE_DELAY_MS = 500;
+
+    // the default maximum delay between a commit request and the commit
+    public static final long DEFAULT_MAX_LATENCY_MS = 2000;
+
+    // the commit operation
+    private final Runnable mCommit;
+
+    // the handler which runs the commits
+    private Handler mHandler = null;
+
+    private long mDebounceDelay = DEFAULT_DEBOUNCE_DELAY_MS;
+    private long mMaxLatency = DEFAULT_MAX_LATENCY_MS;
+
+    // the time of the oldest pending request (-1 when there is none)
+    private long mFirstRequestTime = -1;
+
+    private final Runnable mRunner = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (CommitScheduler.this) {
+                // cancelled in the meantime
+                if (mFirstRequestTime < 0) {
+                    return;
+                }
+
+                mFirstRequestTime = -1;
+            }
+
+            mCommit.run();
+        }
+    };
+
+    /**
+     * Constructor
+     * @param commit the commit operation, run on the handler thread.
+     */
+    public CommitScheduler(Runnable commit) {
+        mCommit = commit;
+    }
+
+    /**
+     * Set the handler which runs the commits.
+     * The requests received before are scheduled on it.
+     * @param handler the handler
+     */
+    public synchronized void setHandler(Handler handler) {
+        if (null != mHandler) {
+            mHandler.removeCallbacks(mRunner);
+        }
+
+        mHandler = handler;
+        reschedule();
+    }
+
+    /**
+     * Update the commit delays.
+     * @param debounceDelay the delay without any commit request before committing (in milliseconds).
+     * @param maxLatency the maximum delay between a commit request and the commit (in milliseconds).
+     */
+    public synchronized void setDelays(long debounceDelay, long maxLatency) {
+        mDebounceDelay = Math.max(debounceDelay, 0);
+        mMaxLatency = Math.max(maxLatency, mDebounceDelay);
+        reschedule();
+    }
+
+    public synchronized long getDebounceDelay() {
+        return mDebounceDelay;
+    }
+
+    public synchronized long getMaxLatency() {
+        return mMaxLatency;
+    }
+
+    /**
+     * @return true if a commit is scheduled.
+     */
+    public synchronized boolean hasPendingCommit() {
+        return mFirstRequestTime >= 0;
+    }
+
+    /**
+     * Request a commit.
+     */
+    public synchronized void schedule() {
+        if (mFirstRequestTime < 0) {
+            mFirstRequestTime = SystemClock.uptimeMillis();
+        }
+
+        reschedule();
+    }
+
+    /**
+     * Cancel the pending commit (e.g. the caller commits by itself).
+     * @return true if a commit was pending.
+     */
+    public synchronized boolean cancel() {
+        boolean isPending = mFirstRequestTime >= 0;
+
+        mFirstRequestTime = -1;
+
+        if (null != mHandler) {
+            mHandler.removeCallbacks(mRunner);
+        }
+
+        return isPending;
+    }
+
+    /**
+     * Post the pending commit at its deadline.
+     */
+    private void reschedule() {
+        if ((mFirstRequestTime < 0) || (null == mHandler)) {
+            return;
+        }
+
+        long now = SystemClock.uptimeMillis();
+        long deadline = Math.min(now + mDebounceDelay, mFirstRequestTime + mMaxLatency);
+
+        mHandler.removeCallbacks(mRunner);
+        mHandler.postDelayed(mRunner, Math.max(deadline - now, 0));
+    }
+}
@@ -67,50 +67,60 @@ public class DataRetriever {
      * @param token the token to go back from. Null to start from live.
      * @param callback the onComplete callback
      */
-    public void requestRoomHistory(final String roomId, String token, final ApiCallback<TokensChunkResponse<Event>> callback) {
-        final TokensChunkResponse<Event> storageResponse = mStore.getEarlierMessages(roomId, token, RoomsRestClient.DEFAULT_MESSAGES_PAGINATION_LIMIT);
-
-        if (storageResponse != null) {
-            final android.os.Handler handler = new android.os.Handler();
-
-            // call the callback with a delay (and on the UI thread).
-            // to reproduce the same behaviour as a network request. 
-            Runnable r = new Runnable() {
-                @Override
-                public void run() {
-                    handler.post(new Runnable() {
-                        public void run() {
+    public void requestRoomHistory(final String roomId, final String token, final ApiCallback<TokensChunkResponse<Event>> callback) {
+        final android.os.Handler handler = new android.os.Handler();
+
+        // the store is read in background (the room could have to be loaded from the disk)
+        // and the callback is called on the calling thread
+        // to reproduce the same behaviour as a network request.
+        Runnable r = new Runnable() {
+            @Override
+            public void run() {
+                final TokensChunkResponse<Event> storageResponse = mStore.getEarlierMessages(roomId, token, RoomsRestClient.DEFAULT_MESSAGES_PAGINATION_LIMIT);
+
+                handler.post(new Runnable() {
+                    public void run() {
+                        if (storageResponse != null) {
                             callback.onSuccess(storageResponse);
-                        }
-                    });
-                }
-            };
-
-            Thread t = new Thread(r);
-            t.start();
-        }
-        else {
-            mRestClient.getEarlierMessages(roomId, token, RoomsRestClient.DEFAULT_MESSAGES_PAGINATION_LIMIT, new SimpleApiCallback<TokensChunkResponse<Event>>(callback) {
-                @Override
-                public void onSuccess(TokensChunkResponse<Event> info) {
-                    // Watch for the one event overlap
-                    Event oldestEvent = mStore.getOldestEvent(roomId);
-
-                    if (info.chunk.size() != 0) {
-                        info.chunk.get(0).mToken = info.start;
-                        info.chunk.get(info.chunk.size()-1).mToken = info.end;
-
-                        Event firstReturnedEvent = info.chunk.get(0);
-                        if ((oldestEvent != null) && (firstReturnedEvent != null)
-                                && oldestEvent.eventId.equals(firstReturnedEvent.eventId)) {
-                            info.chunk.remove(0);
+                        } else {
+                            requestServerRoomHistory(roomId, token, callback);
                         }
                     }
+                });
+            }
+        };
 
-                    mStore.storeRoomEvents(roomId, info, Room.EventDirection.BACKWARDS);
-                    callback.onSuccess(info);
+        Thread t = new Thread(r);
+        t.start();
+    }
+
+    /**
+     * Request the server for the room history.
+     * @param roomId the room id
+     * @param token the pagination token
+     * @param callback the callback
+     */
+    private void requestServerRoomHistory(final String roomId, String token, final ApiCallback<TokensChunkResponse<Event>> callback) {
+        mRestClient.getEarlierMessages(roomId, token, RoomsRestClient.DEFAULT_MESSAGES_PAGINATION_LIMIT, new SimpleApiCallback<TokensChunkResponse<Event>>(callback) {
+            @Override
+            public void onSuccess(TokensChunkResponse<Event> info) {
+                // Watch for the one event overlap
+                Event oldestEvent = mStore.getOldestEvent(roomId);
+
+                if (info.chunk.size() != 0) {
+                    info.chunk.get(0).mToken = info.start;
+                    info.chunk.get(info.chunk.size()-1).mToken = info.end;
+
+                    Event firstReturnedEvent = info.chunk.get(0);
+                    if ((oldestEvent != null) && (firstReturnedEvent != null)
+                            && oldestEvent.eventId.equals(firstReturnedEvent.eventId)) {
+                        info.chunk.remove(0);
+                    }
                 }
-            });
-        }
+
+                mStore.storeRoomEvents(roomId, info, Room.EventDirection.BACKWARDS);
+                callback.onSuccess(info);
+            }
+        });
     }
 }
@@ -23,12 +23,28 @@ import org.matrix.androidsdk.rest.model.TokensChunkResponse;
 import org.matrix.androidsdk.rest.model.User;
 
 import java.util.Collection;
+import java.util.List;
 
 /**
  * An interface for storing and retrieving Matrix objects.
  */
 public interface IMXStore {
 
+    /**
+     * The phases of the store opening.
+     */
+    public enum OpenPhase {
+        /**
+         * The rooms summaries are loaded : the rooms list can be displayed.
+         */
+        SUMMARIES,
+
+        /**
+         * The rooms states and timelines are loaded.
+         */
+        ROOMS
+    }
+
     public interface MXStoreListener {
         /**
          * Called when the store is initialized
@@ -41,13 +57,54 @@ public interface IMXStore {
         public void onStoreCorrupted(String accountId);
     }
 
+    /**
+     * A store listener which is also informed of the opening phases.
+     * The stores only call it if the listener set with setMXStoreListener implements it.
+     */
+    public interface MXStoreOpenPhaseListener extends MXStoreListener {
+        /**
+         * Called when an opening phase is done.
+         * The summaries are loaded before onStoreReady is called.
+         * The rooms could be loaded on demand after onStoreReady.
+         * @param accountId the account id
+         * @param phase the done phase
+         */
+        public void onStoreOpenPhaseDone(String accountId, OpenPhase phase);
+    }
+
     /**
      * Save changes in the store.
      * If the store uses permanent storage like database or file, it is the optimised time
      * to commit the last changes.
+     * The permanent stores could delay the write to group it with the next commits.
      */
     public void commit();
 
+    /**
+     * Write the pending changes now.
+     * It does not wait until they are written : it can be called from the UI thread,
+     * e.g. when the application is paused.
+     */
+    public void flush();
+
+    /**
+     * Write the pending changes now and wait until they are written.
+     * It blocks the calling thread : it must not be called from the UI thread.
+     */
+    public void flushAndWait();
+
+    /**
+     * Start a batch of updates from the calling thread, e.g. many live events.
+     * The permanent stores can write the updates of the batch at once, when it ends.
+     * The batches are not nested.
+     */
+    public void beginBatch();
+
+    /**
+     * End the batch started by {@link #beginBatch()} from the same thread.
+     */
+    public void endBatch();
+
     /**
      * Open the store.
      */
@@ -55,7 +112,7 @@ public interface IMXStore {
 
     /**
      * Close the store.
-     * Any pending operation must be complete in this call.
+     * It does not block the calling thread : the pending changes are only kept if flushAndWait has been called before.
      */
     public void close();
 
@@ -78,12 +135,27 @@ public interface IMXStore {
      */
     public boolean isReady();
 
+    /**
+     * Provide the rooms whose stored data were corrupted.
+     * They have been removed from the store : they must be retrieved again with a room initial sync.
+     * The list is cleared by this call.
+     * @return the room ids.
+     */
+    public Collection<String> popCorruptedRoomIds();
+
     /**
      * Returns to disk usage size in bytes.
      * @return disk usage size
      */
     public long diskUsage();
 
+    /**
+     * Returns the disk usage of a room in bytes.
+     * @param roomId the room id
+     * @return disk usage size
+     */
+    public long diskUsage(String roomId);
+
     /**
      * Returns the latest known event stream token
      * @return the event stream token
@@ -96,6 +168,17 @@ public interface IMXStore {
      */
     public void setEventStreamToken(String token);
 
+    /**
+     * Define how much room history is kept in memory and on disk.
+     * @param policy the retention policy (null for an unlimited policy).
+     */
+    public void setRetentionPolicy(RetentionPolicy policy);
+
+    /**
+     * @return the retention policy.
+     */
+    public RetentionPolicy getRetentionPolicy();
+
     /**
      * Define a MXStore listener.
      * @param listener
@@ -183,6 +266,16 @@ public interface IMXStore {
      */
     public boolean updateEventContent(String roomId, String eventId, JsonObject newContent);
 
+    /**
+     * Search the stored messages which match a pattern.
+     * Each word of the pattern must start a word of the message body (case insensitive).
+     * @param pattern the pattern
+     * @param roomId the room id, null to search in all the rooms.
+     * @param limit the maximum number of results.
+     * @return the event ids, from the latest message to the oldest one.
+     */
+    public List<String> searchMessages(String pattern, String roomId, int limit);
+
     // Design note: This is part of the store interface so the concrete implementation can leverage
     //              how they are storing the data to do this in an efficient manner (e.g. SQL JOINs)
     //              compared to calling getRooms() then getRoomEvents(roomId, limit=1) for each room
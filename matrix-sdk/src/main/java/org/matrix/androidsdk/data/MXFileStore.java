@@ -17,7 +17,10 @@
 package org.matrix.androidsdk.data;
 
 import android.content.Context;
+import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.Looper;
+import android.text.TextUtils;
 import android.util.Log;
 
 import com.google.gson.JsonObject;
@@ -26,6 +29,7 @@ import org.matrix.androidsdk.HomeserverConnectionConfig;
 import org.matrix.androidsdk.rest.model.Event;
 import org.matrix.androidsdk.rest.model.TokensChunkResponse;
 import org.matrix.androidsdk.util.ContentUtils;
+import org.matrix.androidsdk.util.DiskUsageAccount;
 
 import java.io.File;
 import java.io.FileInputStream;
@@ -34,9 +38,21 @@ import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
 
 /**
  * An in-file IMXStore.
@@ -45,20 +61,49 @@ public class MXFileStore extends MXMemoryStore {
     private static final String LOG_TAG = "MXFileStore";
 
     // some constant values
-    final int MXFILE_VERSION = 1;
+    final int MXFILE_VERSION = 2;
+
+    // the version 1 files (java serialization) are converted to the codec format while loading them.
+    final int MXFILE_JAVA_SERIALIZATION_VERSION = 1;
 
     // ensure that there is enough messages to fill a tablet screen
-    final int MAX_STORED_MESSAGES_COUNT = 50;
+    final int DEFAULT_MAX_STORED_MESSAGES_COUNT = 50;
+
+    // the default estimated size of the timelines kept in memory
+    final long DEFAULT_MEMORY_BUDGET = 8 * 1024 * 1024;
+
+    // the maximum number of threads which load and save the rooms
+    final int MAX_ROOMS_WORKERS_COUNT = 4;
+
+    // the maximum delay to wait for the pending writes in flushAndWait()
+    final long FLUSH_TIMEOUT_MS = 2000;
+
+    // the maximum delay to wait for the legacy summaries files conversion
+    final long LOAD_SUMMARIES_TIMEOUT_MS = 60000;
 
     final String MXFILE_STORE_FOLDER = "MXFileStore";
     final String MXFILE_STORE_METADATA_FILE_NAME = "MXFileStore";
 
     final String MXFILE_STORE_ROOMS_MESSAGES_FOLDER = "messages";
     final String MXFILE_STORE_GZ_ROOMS_MESSAGES_FOLDER = "messages_gz";
+    final String MXFILE_STORE_ROOMS_MESSAGES_LOG_FOLDER = "messages_log";
     final String MXFILE_STORE_ROOMS_TOKENS_FOLDER = "tokens";
     final String MXFILE_STORE_ROOMS_STATE_FOLDER = "state";
     final String MXFILE_STORE_GZ_ROOMS_STATE_FOLDER = "state_gz";
+    final String MXFILE_STORE_ROOMS_STATE_DELTA_FOLDER = "state_delta";
     final String MXFILE_STORE_ROOMS_SUMMARY_FOLDER = "summary";
+    final String MXFILE_STORE_SUMMARIES_FILE_NAME = "summaries";
+    final String MXFILE_STORE_SUMMARIES_DELTA_FILE_NAME = "summaries_delta";
+    final String MXFILE_STORE_MESSAGES_INDEX_FILE_NAME = "messages_index";
+    final String MXFILE_STORE_MESSAGES_INDEX_DELTA_FILE_NAME = "messages_index_delta";
+    final String MXFILE_STORE_QUARANTINE_FOLDER = "quarantine";
+    final String MXFILE_STORE_DISK_USAGE_FILE_NAME = "disk_usage";
+
+    // the disk usage keys which are not rooms
+    final String DISK_USAGE_SUMMARIES_KEY = "summaries";
+    final String DISK_USAGE_METADATA_KEY = "metadata";
+    final String DISK_USAGE_MESSAGES_INDEX_KEY = "messages_index";
+    final String DISK_USAGE_OTHERS_KEY = "others";
 
     private Context mContext = null;
 
@@ -70,23 +115,88 @@ public class MXFileStore extends MXMemoryStore {
 
     private MXStoreListener mListener = null;
 
-    // List of rooms to save on [MXStore commit]
-    private ArrayList<String> mRoomsToCommitForMessages;
+    // The room log records to append on [MXStore commit]
+    private HashMap<String, ArrayList<MXFileStoreRoomLog.Record>> mRoomsRecordsToCommit;
+
+    // The room log records which are being appended by the rooms workers
+    private final HashMap<String, ArrayList<ArrayList<MXFileStoreRoomLog.Record>>> mRoomsRecordsBeingSaved = new HashMap<String, ArrayList<ArrayList<MXFileStoreRoomLog.Record>>>();
+
+    // The room logs (only used from the background thread)
+    private final HashMap<String, MXFileStoreRoomLog> mRoomLogs = new HashMap<String, MXFileStoreRoomLog>();
+
+    // The room states snapshots and deltas
+    private final HashMap<String, MXFileStoreRoomStateLog> mRoomStateLogs = new HashMap<String, MXFileStoreRoomStateLog>();
+
+    // the rooms whose states and timelines are not yet loaded
+    // they are loaded on demand or by the background warmer.
+    private final HashSet<String> mPendingRoomIds = new HashSet<String>();
+    // the rooms whose timelines have been released to fit the memory budget
+    // they are updated on disk and reloaded from their logs when they are read.
+    private final HashSet<String> mReleasedRoomIds = new HashSet<String>();
+    private volatile boolean mHasPendingRooms = false;
+
+    // the rooms quarantined since the store has been opened
+    private final Set<String> mQuarantinedRoomIds = Collections.synchronizedSet(new HashSet<String>());
+
+    /**
+     * A room which is being loaded.
+     */
+    private static class RoomLoading {
+        // the loading thread
+        final Thread mThread = Thread.currentThread();
+        // released when the room is loaded
+        final CountDownLatch mLatch = new CountDownLatch(1);
+    }
+
+    // the rooms which are being loaded
+    private final HashMap<String, RoomLoading> mLoadingRooms = new HashMap<String, RoomLoading>();
+
+    // the rooms whose live state has been read from the UI thread : they are loaded by their workers
+    private final HashSet<String> mRoomsLoadedInBackground = new HashSet<String>();
 
-    private ArrayList<String> mRoomsToCommitForStates;
-    private ArrayList<String> mRoomsToCommitForSummaries;
+    private final Handler mUiHandler = new Handler(Looper.getMainLooper());
+
+    // the rooms are loaded and saved in parallel by a bounded pool of workers.
+    // a room is always managed by the same worker so its operations are kept ordered.
+    private ExecutorService[] mRoomsWorkers = null;
+
+    // the rooms to commit are added by the events thread and taken by the commits : use their locks.
+    private final HashSet<String> mRoomsToCommitForStates = new HashSet<String>();
+    private final HashSet<String> mRoomsToCommitForSummaries = new HashSet<String>();
 
     // Flag to indicate metaData needs to be store
-    private boolean mMetaDataHasChanged = false;
+    private volatile boolean mMetaDataHasChanged = false;
+
+    // encode the rooms logs, states and summaries
+    private final MXFileStoreCodec mCodec = new MXFileStoreCodec();
 
     // The path of the MXFileStore folders
     private File mStoreFolderFile = null;
     private File mOldStoreRoomsMessagesFolderFile = null;
     private File mGzStoreRoomsMessagesFolderFile = null;
+    private File mStoreRoomsMessagesLogFolderFile = null;
     private File mStoreRoomsTokensFolderFile = null;
     private File mOldStoreRoomsStateFolderFile = null;
     private File mGzStoreRoomsStateFolderFile = null;
+    private File mStoreRoomsStateDeltaFolderFile = null;
     private File mStoreRoomsSummaryFolderFile = null;
+    private File mStoreQuarantineFolderFile = null;
+
+    // all the rooms summaries (only used from the background thread)
+    private MXFileStoreSummariesLog mSummariesLog = null;
+
+    // the summaries file was corrupted : the rooms without summary are retrieved again.
+    private boolean mSummariesAreLost = false;
+
+    // the messages index file (only used from the background thread)
+    private MXFileStoreMessagesIndexLog mMessagesIndexLog = null;
+
+    // the messages index file was missing or corrupted : the rooms messages are indexed when they are loaded.
+    private boolean mMessagesIndexIsLost = false;
+    private final Set<String> mReindexedRoomIds = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    // the bytes written by room, updated after each write (the rooms ids are the keys)
+    private final DiskUsageAccount mDiskUsage = new DiskUsageAccount();
 
     // the background thread
     private HandlerThread mHandlerThread = null;
@@ -96,6 +206,14 @@ public class MXFileStore extends MXMemoryStore {
 
     private Boolean mIsNewStorage = false;
 
+    // the commits are delayed and grouped : they are run on the UI thread like the direct commits.
+    private final CommitScheduler mCommitScheduler = new CommitScheduler(new Runnable() {
+        @Override
+        public void run() {
+            commitNow();
+        }
+    });
+
     /**
      * Create the file store dirtrees
      */
@@ -104,9 +222,9 @@ public class MXFileStore extends MXMemoryStore {
         // MXFileStore/userID/
         // MXFileStore/userID/MXFileStore
         // MXFileStore/userID/Messages/
-        // MXFileStore/userID/Tokens/
+        // MXFileStore/userID/messages_log/roomId/
         // MXFileStore/userID/States/
-        // MXFileStore/userID/Summaries/
+        // MXFileStore/userID/summaries
 
         // create the dirtree
         mStoreFolderFile = new File(new File(mContext.getApplicationContext().getFilesDir(), MXFILE_STORE_FOLDER), userId);
@@ -117,15 +235,16 @@ public class MXFileStore extends MXMemoryStore {
 
         mOldStoreRoomsMessagesFolderFile = new File(mStoreFolderFile, MXFILE_STORE_ROOMS_MESSAGES_FOLDER);
 
+        // legacy format : the messages are converted to the log format while loading them.
         mGzStoreRoomsMessagesFolderFile = new File(mStoreFolderFile, MXFILE_STORE_GZ_ROOMS_MESSAGES_FOLDER);
-        if (!mGzStoreRoomsMessagesFolderFile.exists()) {
-            mGzStoreRoomsMessagesFolderFile.mkdirs();
+
+        mStoreRoomsMessagesLogFolderFile = new File(mStoreFolderFile, MXFILE_STORE_ROOMS_MESSAGES_LOG_FOLDER);
+        if (!mStoreRoomsMessagesLogFolderFile.exists()) {
+            mStoreRoomsMessagesLogFolderFile.mkdirs();
         }
 
+        // legacy format : the tokens are now saved in the rooms logs.
         mStoreRoomsTokensFolderFile = new File(mStoreFolderFile, MXFILE_STORE_ROOMS_TOKENS_FOLDER);
-        if (!mStoreRoomsTokensFolderFile.exists()) {
-            mStoreRoomsTokensFolderFile.mkdirs();
-        }
 
         mOldStoreRoomsStateFolderFile = new File(mStoreFolderFile, MXFILE_STORE_ROOMS_STATE_FOLDER);
 
@@ -134,10 +253,25 @@ public class MXFileStore extends MXMemoryStore {
             mGzStoreRoomsStateFolderFile.mkdirs();
         }
 
+        // the updates of the rooms states since their latest snapshots
+        mStoreRoomsStateDeltaFolderFile = new File(mStoreFolderFile, MXFILE_STORE_ROOMS_STATE_DELTA_FOLDER);
+        if (!mStoreRoomsStateDeltaFolderFile.exists()) {
+            mStoreRoomsStateDeltaFolderFile.mkdirs();
+        }
+
         mStoreRoomsSummaryFolderFile = new File(mStoreFolderFile, MXFILE_STORE_ROOMS_SUMMARY_FOLDER);
         if (!mStoreRoomsSummaryFolderFile.exists()) {
             mStoreRoomsSummaryFolderFile.mkdirs();
         }
+
+        // the files of the corrupted rooms : they are kept until the next opening.
+        mStoreQuarantineFolderFile = new File(mStoreFolderFile, MXFILE_STORE_QUARANTINE_FOLDER);
+
+        // the summaries of all the rooms : the rooms list is read with a single file.
+        mSummariesLog = new MXFileStoreSummariesLog(new File(mStoreFolderFile, MXFILE_STORE_SUMMARIES_FILE_NAME), new File(mStoreFolderFile, MXFILE_STORE_SUMMARIES_DELTA_FILE_NAME), mCodec);
+
+        // the messages index of all the rooms
+        mMessagesIndexLog = new MXFileStoreMessagesIndexLog(new File(mStoreFolderFile, MXFILE_STORE_MESSAGES_INDEX_FILE_NAME), new File(mStoreFolderFile, MXFILE_STORE_MESSAGES_INDEX_DELTA_FILE_NAME), mCodec);
     }
 
     /**
@@ -149,21 +283,30 @@ public class MXFileStore extends MXMemoryStore {
         mContext = context;
         mIsReady = false;
         mCredentials = hsConfig.getCredentials();
+        mCodec.setIdentifierPool(hsConfig.getIdentifierPool());
 
         mHandlerThread = new HandlerThread("MXFileStoreBackgroundThread_" + mCredentials.userId, Thread.MIN_PRIORITY);
+        createRoomsWorkers();
 
         createDirTree(mCredentials.userId);
 
+        RetentionPolicy policy = new RetentionPolicy(DEFAULT_MAX_STORED_MESSAGES_COUNT);
+        policy.setMemoryBudget(DEFAULT_MEMORY_BUDGET);
+        setRetentionPolicy(policy);
+
         // updated data
-        mRoomsToCommitForMessages = new ArrayList<String>();
-        mRoomsToCommitForStates = new ArrayList<String>();
-        mRoomsToCommitForSummaries = new ArrayList<String>();
+        mRoomsRecordsToCommit = new HashMap<String, ArrayList<MXFileStoreRoomLog.Record>>();
+        mCommitScheduler.setHandler(mUiHandler);
+
+        // the index updates are saved at commit time
+        mMessagesIndex.trackChanges();
 
         // check if the metadata file exists and if it is valid
         loadMetaData();
+        mDiskUsage.load(new File(mStoreFolderFile, MXFILE_STORE_DISK_USAGE_FILE_NAME));
 
         if ( (null == mMetadata) ||
-                (mMetadata.mVersion != MXFILE_VERSION) ||
+                ((mMetadata.mVersion != MXFILE_VERSION) && (mMetadata.mVersion != MXFILE_JAVA_SERIALIZATION_VERSION)) ||
                 !mMetadata.mUserId.equals(mCredentials.userId) ||
                 !mMetadata.mAccessToken.equals(mCredentials.accessToken)) {
             deleteAllData(true);
@@ -214,13 +357,156 @@ public class MXFileStore extends MXMemoryStore {
         return isKilled;
     }
 
+    /**
+     * Create the rooms workers : one thread per core, up to MAX_ROOMS_WORKERS_COUNT.
+     */
+    private void createRoomsWorkers() {
+        int count = Math.max(1, Math.min(MAX_ROOMS_WORKERS_COUNT, Runtime.getRuntime().availableProcessors()));
+
+        mRoomsWorkers = new ExecutorService[count];
+
+        for (int index = 0; index < count; index++) {
+            final String threadName = "MXFileStoreRoomsWorker_" + index + "_" + mCredentials.userId;
+
+            mRoomsWorkers[index] = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, threadName);
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                }
+            });
+        }
+    }
+
+    /**
+     * Run an operation on a room in the room worker.
+     * The operations on a room are always run by the same worker so they are run in order.
+     * @param roomId the room id
+     * @param runnable the operation
+     * @return false if the operation is rejected because the store is closed.
+     */
+    boolean postToRoomWorker(String roomId, Runnable runnable) {
+        ExecutorService worker = mRoomsWorkers[(roomId.hashCode() & Integer.MAX_VALUE) % mRoomsWorkers.length];
+
+        try {
+            worker.execute(runnable);
+            return true;
+        } catch (RejectedExecutionException e) {
+            Log.e(LOG_TAG, "postToRoomWorker : the store is closed");
+            return false;
+        }
+    }
+
+    /**
+     * Log the duration of an operation dispatched to the rooms workers.
+     */
+    private static class WorkersBatch {
+        private final String mDescription;
+        private final int mCount;
+        private final AtomicInteger mRemainingCount;
+        private final long mStartTime = System.currentTimeMillis();
+
+        WorkersBatch(String description, int count) {
+            mDescription = description;
+            mCount = count;
+            mRemainingCount = new AtomicInteger(count);
+        }
+
+        /**
+         * Called when a room has been managed by its worker.
+         */
+        void onRoomDone() {
+            if (0 == mRemainingCount.decrementAndGet()) {
+                Log.d(LOG_TAG, mDescription + " : " + mCount + " rooms in " + (System.currentTimeMillis() - mStartTime) + " ms");
+            }
+        }
+    }
+
     /**
      * Save changes in the store.
-     * If the store uses permanent storage like database or file, it is the optimised time
-     * to commit the last changes.
+     * The write is delayed to group it with the next commits (see setCommitDelays).
      */
     @Override
     public void commit() {
+        if ((null != mMetadata) && !isKilled()) {
+            mCommitScheduler.schedule();
+        }
+    }
+
+    /**
+     * Update the delays of the write-behind commits.
+     * @param debounceDelay the delay without any commit before writing (in milliseconds).
+     * @param maxLatency the maximum delay between a commit and the write (in milliseconds).
+     */
+    public void setCommitDelays(long debounceDelay, long maxLatency) {
+        mCommitScheduler.setDelays(debounceDelay, maxLatency);
+    }
+
+    /**
+     * Write the pending changes now.
+     * The writes are posted to the background thread and to the rooms workers.
+     */
+    @Override
+    public void flush() {
+        mCommitScheduler.cancel();
+        commitNow();
+    }
+
+    /**
+     * Write the pending changes now and wait until they are written.
+     * It must not be called from the UI thread or from the rooms workers.
+     */
+    @Override
+    public void flushAndWait() {
+        flush();
+
+        if (isKilled()) {
+            return;
+        }
+
+        long start = System.currentTimeMillis();
+
+        // the background thread runs the metadata writes
+        Handler fileStoreHandler = mFileStoreHandler;
+        boolean waitHandler = (null != fileStoreHandler) && (Looper.myLooper() != fileStoreHandler.getLooper());
+
+        final CountDownLatch latch = new CountDownLatch(mRoomsWorkers.length + (waitHandler ? 1 : 0));
+
+        Runnable countDown = new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        };
+
+        if (waitHandler && !fileStoreHandler.post(countDown)) {
+            latch.countDown();
+        }
+
+        for (ExecutorService worker : mRoomsWorkers) {
+            try {
+                worker.execute(countDown);
+            } catch (RejectedExecutionException e) {
+                latch.countDown();
+            }
+        }
+
+        try {
+            if (!latch.await(FLUSH_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                Log.e(LOG_TAG, "flush : the pending writes are not done after " + FLUSH_TIMEOUT_MS + " ms");
+            }
+        } catch (InterruptedException e) {
+            Log.e(LOG_TAG, "flush interrupted");
+        }
+
+        Log.d(LOG_TAG, "flush : " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /**
+     * Write the pending changes : the rooms logs, states and summaries are written by the rooms workers.
+     */
+    private void commitNow() {
         // Save data only if metaData exists
         if ((null != mMetadata) && !isKilled()) {
             Log.d(LOG_TAG, "++ Commit");
@@ -228,10 +514,22 @@ public class MXFileStore extends MXMemoryStore {
             saveRoomStates();
             saveMetaData();
             saveSummaries();
+            saveMessagesIndex();
+            saveDiskUsage();
+            enforceMemoryBudget();
             Log.d(LOG_TAG, "-- Commit");
         }
     }
 
+    /**
+     * Update the compression level of the saved files.
+     * The files are re-encoded with this level when they are updated.
+     * @param level the compression level (Deflater.NO_COMPRESSION to Deflater.BEST_COMPRESSION).
+     */
+    public void setCompressionLevel(int level) {
+        mCodec.setCompressionLevel(level);
+    }
+
     /**
      * Open the store.
      */
@@ -268,31 +566,47 @@ public class MXFileStore extends MXMemoryStore {
 
                                 boolean succeed = true;
 
-                                succeed &= loadRoomsMessages();
+                                // the previous corrupted files are not useful anymore
+                                if (mStoreQuarantineFolderFile.exists()) {
+                                    ContentUtils.deleteDirectory(mStoreQuarantineFolderFile);
+                                }
+
+                                // the summaries are read and published first : the rooms list can be displayed
+                                succeed &= loadSummaries();
 
                                 if (!succeed) {
-                                    Log.e(LOG_TAG, "loadRoomsMessages fails");
+                                    Log.e(LOG_TAG, "loadSummaries fails");
                                 } else {
-                                    Log.e(LOG_TAG, "loadRoomsMessages succeeds");
+                                    Log.e(LOG_TAG, "loadSummaries succeeds");
+
+                                    dispatchOpenPhaseDone(OpenPhase.SUMMARIES);
+                                }
+
+                                if (succeed) {
+                                    // a lost index is rebuilt : it does not prevent opening the store
+                                    loadMessagesIndex();
                                 }
 
                                 if (succeed) {
-                                    succeed &= loadRoomsState();
+                                    succeed &= convertLegacyRoomsMessages();
 
                                     if (!succeed) {
-                                        Log.e(LOG_TAG, "loadRoomsState fails");
-                                    } else {
-                                        Log.e(LOG_TAG, "loadRoomsState succeeds");
+                                        Log.e(LOG_TAG, "convertLegacyRoomsMessages fails");
                                     }
                                 }
 
+                                // the rooms states and timelines are loaded on demand
                                 if (succeed) {
-                                    succeed &= loadSummaries();
+                                    succeed &= listRooms();
 
                                     if (!succeed) {
-                                        Log.e(LOG_TAG, "loadSummaries fails");
+                                        Log.e(LOG_TAG, "listRooms fails");
                                     } else {
-                                        Log.e(LOG_TAG, "loadSummaries succeeds");
+                                        Log.e(LOG_TAG, "listRooms succeeds");
+
+                                        if (mSummariesAreLost) {
+                                            quarantineRoomsWithoutSummary();
+                                        }
                                     }
                                 }
 
@@ -304,9 +618,24 @@ public class MXFileStore extends MXMemoryStore {
 
                                     deleteAllData(true);
 
-                                    mRoomsToCommitForMessages = new ArrayList<String>();
-                                    mRoomsToCommitForStates = new ArrayList<String>();
-                                    mRoomsToCommitForSummaries = new ArrayList<String>();
+                                    synchronized (mRoomsRecordsToCommit) {
+                                        mRoomsRecordsToCommit.clear();
+                                        mRoomsRecordsBeingSaved.clear();
+                                    }
+                                    synchronized (mRoomLogs) {
+                                        mRoomLogs.clear();
+                                    }
+                                    synchronized (mRoomStateLogs) {
+                                        mRoomStateLogs.clear();
+                                    }
+
+                                    synchronized (mPendingRoomIds) {
+                                        mPendingRoomIds.clear();
+                                        mReleasedRoomIds.clear();
+                                        mHasPendingRooms = false;
+                                    }
+                                    takeRoomIds(mRoomsToCommitForStates);
+                                    takeRoomIds(mRoomsToCommitForSummaries);
 
                                     mMetadata = new MXFileStoreMetaData();
                                     mMetadata.mUserId = mCredentials.userId;
@@ -332,6 +661,9 @@ public class MXFileStore extends MXMemoryStore {
                                         mListener.onStoreReady(mCredentials.userId);
                                     }
                                 }
+
+                                // load the rooms in background
+                                warmPendingRooms();
                             }
                         });
                     }
@@ -345,16 +677,24 @@ public class MXFileStore extends MXMemoryStore {
 
     /**
      * Close the store.
-     * Any pending operation must be complete in this call.
+     * It does not wait for the pending writes : it can be called from the UI thread.
+     * The delayed commits are cancelled, so flushAndWait must be called before to keep them.
      */
     @Override
     public void close() {
         Log.d(LOG_TAG, "Close the store");
 
-        super.close();
+        // the store is cleared after being closed (e.g. logout) : the pending commits are not written
+        mCommitScheduler.cancel();
         setIsKilled(true);
+
+        super.close();
         mHandlerThread.quit();
         mHandlerThread = null;
+
+        for (ExecutorService worker : mRoomsWorkers) {
+            worker.shutdown();
+        }
     }
 
     /**
@@ -386,6 +726,7 @@ public class MXFileStore extends MXMemoryStore {
         if (init) {
             initCommon();
         }
+        mDiskUsage.clear();
         mMetadata = null;
         mEventStreamToken = null;
     }
@@ -412,38 +753,104 @@ public class MXFileStore extends MXMemoryStore {
     }
 
     /**
-     * Delete a directory with its content
-     * @param directory the base directory
-     * @return
+     * Returns to disk usage size in bytes.
+     * The counters are updated after each write so the files are only listed to reconcile them.
+     * @return disk usage size
+     */
+    @Override
+    public long diskUsage() {
+        if (mDiskUsage.needsReconciliation()) {
+            reconcileDiskUsage();
+        }
+
+        return mDiskUsage.total();
+    }
+
+    /**
+     * Returns the disk usage of a room in bytes.
+     * @param roomId the room id
+     * @return disk usage size
+     */
+    @Override
+    public long diskUsage(String roomId) {
+        if (mDiskUsage.needsReconciliation()) {
+            reconcileDiskUsage();
+        }
+
+        return mDiskUsage.get(roomId);
+    }
+
+    /**
+     * Compute the disk usage counters from the files.
+     * It is done when the counters are unknown and once a week to fix the drift
+     * (e.g. the application was killed before saving them).
      */
-    private long directorySize(File directory) {
-        long directorySize = 0;
+    public void reconcileDiskUsage() {
+        long start = System.currentTimeMillis();
+        HashMap<String, Long> bytes = new HashMap<String, Long>();
+        long roomsSize = 0;
+
+        File[] roomFolders = mStoreRoomsMessagesLogFolderFile.listFiles();
 
-        if (directory.exists()) {
-            File[] files = directory.listFiles();
+        if (null != roomFolders) {
+            for (File roomFolder : roomFolders) {
+                long size = DiskUsageAccount.walk(roomFolder);
+                bytes.put(roomFolder.getName(), size);
+                roomsSize += size;
+            }
+        }
 
+        File[][] roomStatesFiles = new File[][] { mGzStoreRoomsStateFolderFile.listFiles(), mStoreRoomsStateDeltaFolderFile.listFiles() };
+
+        for (File[] files : roomStatesFiles) {
             if (null != files) {
-                for(int i=0; i<files.length; i++) {
-                    if(files[i].isDirectory()) {
-                        directorySize += directorySize(files[i]);
-                    }
-                    else {
-                        directorySize += files[i].length();
-                    }
+                for (File file : files) {
+                    Long size = bytes.get(file.getName());
+                    bytes.put(file.getName(), ((null != size) ? size : 0) + file.length());
+                    roomsSize += file.length();
                 }
             }
         }
 
-        return directorySize;
+        long summariesSize = mSummariesLog.getDiskUsage();
+        long metadataSize = new File(mStoreFolderFile, MXFILE_STORE_METADATA_FILE_NAME).length();
+        long messagesIndexSize = mMessagesIndexLog.getDiskUsage();
+
+        bytes.put(DISK_USAGE_SUMMARIES_KEY, summariesSize);
+        bytes.put(DISK_USAGE_METADATA_KEY, metadataSize);
+        bytes.put(DISK_USAGE_MESSAGES_INDEX_KEY, messagesIndexSize);
+
+        // the legacy and quarantined files, the temporary files...
+        bytes.put(DISK_USAGE_OTHERS_KEY, DiskUsageAccount.walk(mStoreFolderFile) - roomsSize - summariesSize - metadataSize - messagesIndexSize);
+
+        mDiskUsage.reconcile(bytes);
+
+        Log.d(LOG_TAG, "reconcileDiskUsage : " + mDiskUsage.total() + " bytes in " + (System.currentTimeMillis() - start) + " ms");
     }
 
     /**
-     * Returns to disk usage size in bytes.
-     * @return disk usage size
+     * Update the disk usage of a room from its log and its state files sizes.
+     * It must be called from the room worker.
+     * @param roomId the room id
      */
-    @Override
-    public long diskUsage() {
-        return directorySize(mStoreFolderFile);
+    private void updateRoomDiskUsage(String roomId) {
+        mDiskUsage.set(roomId, getRoomLog(roomId).getDiskUsage() + getRoomStateLog(roomId).getDiskUsage());
+    }
+
+    /**
+     * Save the disk usage counters if they have been updated.
+     */
+    private void saveDiskUsage() {
+        if (mDiskUsage.hasChanged() && (null != mFileStoreHandler)) {
+            mFileStoreHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (!isKilled()) {
+                        mDiskUsage.save(new File(mStoreFolderFile, MXFILE_STORE_DISK_USAGE_FILE_NAME));
+                    }
+                }
+            });
+        }
     }
 
     /**
@@ -453,22 +860,30 @@ public class MXFileStore extends MXMemoryStore {
     @Override
     public void setEventStreamToken(String token) {
         Log.d(LOG_TAG, "Set token to " + token);
+
+        // the metadata file is only rewritten when it is updated
+        boolean hasChanged = !TextUtils.equals(token, mEventStreamToken);
+
+        // the flag is set after the update so a commit cannot clear it before copying the update
         super.setEventStreamToken(token);
-        mMetaDataHasChanged = true;
+
+        if (hasChanged) {
+            mMetaDataHasChanged = true;
+        }
     }
 
     @Override
     public void setDisplayName(String displayName) {
         Log.d(LOG_TAG, "Set setDisplayName to " + displayName);
-        mMetaDataHasChanged = true;
         super.setDisplayName(displayName);
+        mMetaDataHasChanged = true;
     }
 
     @Override
     public void setAvatarURL(String avatarURL) {
         Log.d(LOG_TAG, "Set setAvatarURL to " + avatarURL);
-        mMetaDataHasChanged = true;
         super.setAvatarURL(avatarURL);
+        mMetaDataHasChanged = true;
     }
 
     /**
@@ -480,116 +895,698 @@ public class MXFileStore extends MXMemoryStore {
         mListener = listener;
     }
 
-    @Override
-    public void storeRoomEvents(String roomId, TokensChunkResponse<Event> eventsResponse, Room.EventDirection direction) {
-        Boolean canStore = true;
-
-        // do not flush the room messages file
-        // when the user reads the room history and the events list size reaches its max size.
-        if (direction == Room.EventDirection.BACKWARDS) {
-            LinkedHashMap<String, Event> events = mRoomEvents.get(roomId);
-
-            if (null != events) {
-                canStore = (events.size() < MAX_STORED_MESSAGES_COUNT);
-
-                if (!canStore) {
-                    Log.d(LOG_TAG, "storeRoomEvents : do not flush because reaching the max size");
-                }
-            }
+    /**
+     * Inform the listener that an opening phase is done.
+     * @param phase the done phase
+     */
+    private void dispatchOpenPhaseDone(OpenPhase phase) {
+        if (mListener instanceof MXStoreOpenPhaseListener) {
+            ((MXStoreOpenPhaseListener) mListener).onStoreOpenPhaseDone(mCredentials.userId, phase);
         }
+    }
 
-        super.storeRoomEvents(roomId, eventsResponse, direction);
+    /**
+     * @return the looper of the background thread.
+     */
+    Looper getStoreLooper() {
+        Handler fileStoreHandler = mFileStoreHandler;
+        return (null != fileStoreHandler) ? fileStoreHandler.getLooper() : null;
+    }
 
-        if (canStore && (mRoomsToCommitForMessages.indexOf(roomId) < 0)) {
-            mRoomsToCommitForMessages.add(roomId);
+    /**
+     * @param roomId the room id
+     * @return true if the room state and timeline are not loaded yet.
+     */
+    boolean isPendingRoom(String roomId) {
+        synchronized (mPendingRoomIds) {
+            return mPendingRoomIds.contains(roomId) || mLoadingRooms.containsKey(roomId);
         }
     }
 
     /**
-     * Store a live room event.
-     * @param event The event to be stored.
+     * Update the pending rooms flag.
+     * It must be called with the mPendingRoomIds lock.
      */
-    @Override
-    public void storeLiveRoomEvent(Event event) {
-        super.storeLiveRoomEvent(event);
+    private void updateHasPendingRooms() {
+        mHasPendingRooms = (mPendingRoomIds.size() > 0) || (mLoadingRooms.size() > 0) || (mReleasedRoomIds.size() > 0);
+    }
 
-        if (mRoomsToCommitForMessages.indexOf(event.roomId) < 0) {
-            mRoomsToCommitForMessages.add(event.roomId);
+    /**
+     * Load the state and the timeline of a room if they are not yet loaded.
+     * A released timeline is reloaded.
+     * @param roomId the room id
+     */
+    private void loadPendingRoom(String roomId) {
+        if (!mHasPendingRooms || (null == roomId)) {
+            return;
         }
-    }
 
-    @Override
-    public boolean updateEventContent(String roomId, String eventId, JsonObject newContent) {
-        Boolean isReplaced = super.updateEventContent(roomId, eventId, newContent);
+        RoomLoading loading;
+        boolean mustLoad = false;
+        // the records of a released room which could not be in its log yet
+        ArrayList<MXFileStoreRoomLog.Record> releasedRoomRecords = null;
 
-        if (isReplaced) {
-            if (mRoomsToCommitForMessages.indexOf(roomId) < 0) {
-                mRoomsToCommitForMessages.add(roomId);
+        synchronized (mRoomsRecordsToCommit) {
+            synchronized (mPendingRoomIds) {
+                loading = mLoadingRooms.get(roomId);
+
+                if (null == loading) {
+                    if (mReleasedRoomIds.remove(roomId)) {
+                        releasedRoomRecords = getUnsavedRoomRecords(roomId);
+                    } else if (!mPendingRoomIds.remove(roomId)) {
+                        return;
+                    }
+
+                    loading = new RoomLoading();
+                    mLoadingRooms.put(roomId, loading);
+                    mustLoad = true;
+                }
             }
         }
 
-        return isReplaced;
-    }
-
-    @Override
-    public void deleteEvent(Event event) {
-        super.deleteEvent(event);
+        if (!mustLoad) {
+            // the room is loaded by another thread
+            if (loading.mThread != Thread.currentThread()) {
+                try {
+                    loading.mLatch.await();
+                } catch (InterruptedException e) {
+                    Log.e(LOG_TAG, "loadPendingRoom " + roomId + " interrupted");
+                }
+            }
 
-        if (mRoomsToCommitForMessages.indexOf(event.roomId) < 0) {
-            mRoomsToCommitForMessages.add(event.roomId);
+            return;
         }
-    }
 
-    /**
-     * Delete the room messages and token files.
-     * @param roomId the room id.
-     */
-    private void deleteRoomMessagesFiles(String roomId) {
-        // messages list
-        File messagesListFile = new File(mOldStoreRoomsMessagesFolderFile, roomId);
+        long start = System.currentTimeMillis();
 
-        // remove the files
-        if (messagesListFile.exists()) {
-            try {
-                messagesListFile.delete();
-            } catch (Exception e) {
-            }
-        }
+        try {
+            boolean succeed;
 
-        messagesListFile = new File(mGzStoreRoomsMessagesFolderFile, roomId);
+            if (null != releasedRoomRecords) {
+                succeed = reloadRoomMessages(roomId, releasedRoomRecords);
+            } else {
+                succeed = loadRoomMessages(roomId);
 
-        // remove the files
-        if (messagesListFile.exists()) {
-            try {
-                messagesListFile.delete();
-            } catch (Exception e) {
+                // the room could have been deleted while loading its messages
+                if (succeed && (null != mRooms.get(roomId))) {
+                    succeed = loadRoomState(roomId);
+                }
             }
-        }
 
-        File tokenFile = new File(mStoreRoomsTokensFolderFile, roomId);
-        if (tokenFile.exists()) {
-            try {
-                tokenFile.delete();
-            } catch (Exception e) {
+            if (!succeed) {
+                // only this room is retrieved again
+                Log.e(LOG_TAG, "loadPendingRoom " + roomId + " failed : the room is quarantined");
+                quarantineRoom(roomId);
             }
+        } finally {
+            synchronized (mPendingRoomIds) {
+                mLoadingRooms.remove(roomId);
+                updateHasPendingRooms();
+            }
+
+            loading.mLatch.countDown();
         }
+
+        Log.d(LOG_TAG, "loadPendingRoom " + roomId + " in " + (System.currentTimeMillis() - start) + " ms");
     }
 
-    @Override
+    /**
+     * Tell if the current thread is the UI one.
+     * @return true if the current thread is the UI one
+     */
+    private static boolean isUiThread() {
+        return Looper.myLooper() == Looper.getMainLooper();
+    }
+
+    /**
+     * Load a room before reading it.
+     * The UI thread neither reads the disk nor waits for the other loading threads :
+     * the room is loaded by its worker and the room listeners are informed when it is done.
+     * @param roomId the room id
+     * @return true if the room is loaded, false if it is being loaded in background
+     */
+    private boolean loadPendingRoomToRead(String roomId) {
+        if (!mHasPendingRooms || (null == roomId)) {
+            return true;
+        }
+
+        if (!isUiThread()) {
+            loadPendingRoom(roomId);
+            return true;
+        }
+
+        synchronized (mPendingRoomIds) {
+            RoomLoading loading = mLoadingRooms.get(roomId);
+
+            if (null != loading) {
+                // the UI thread is loading it
+                if (loading.mThread == Thread.currentThread()) {
+                    return true;
+                }
+            } else if (!mPendingRoomIds.contains(roomId) && !mReleasedRoomIds.contains(roomId)) {
+                return true;
+            }
+        }
+
+        loadPendingRoomInBackground(roomId);
+        return false;
+    }
+
+    /**
+     * Load a room by its worker when it is read from the UI thread.
+     * The disk is not read and the other loading threads are not waited from the UI thread :
+     * a live state built from the summary is provided until the room is loaded, then the room listeners are informed.
+     * @param roomId the room id
+     */
+    private void loadPendingRoomInBackground(final String roomId) {
+        synchronized (mPendingRoomIds) {
+            if (!mRoomsLoadedInBackground.add(roomId)) {
+                return;
+            }
+        }
+
+        final Room room = mRooms.get(roomId);
+        RoomSummary summary = getSummary(roomId);
+
+        if ((null != room) && (null != summary)) {
+            RoomState placeholderState;
+
+            // the summaries read from the disk have no state
+            if (null != summary.getLatestRoomState()) {
+                placeholderState = summary.getLatestRoomState().deepCopy();
+            } else {
+                placeholderState = new RoomState();
+                placeholderState.roomId = roomId;
+                placeholderState.name = summary.getName();
+                placeholderState.topic = summary.getRoomTopic();
+            }
+
+            room.setPlaceholderLiveState(placeholderState);
+        }
+
+        Log.d(LOG_TAG, "loadPendingRoomInBackground " + roomId + " : the room is read from the UI thread");
+
+        postToRoomWorker(roomId, new Runnable() {
+            @Override
+            public void run() {
+                if (!isKilled()) {
+                    loadPendingRoom(roomId);
+                }
+
+                synchronized (mPendingRoomIds) {
+                    mRoomsLoadedInBackground.remove(roomId);
+                }
+
+                if ((null != room) && !isKilled()) {
+                    mUiHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            room.onRoomLoaded();
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    /**
+     * Load the pending rooms in background.
+     * Each room is loaded by its worker so the other rooms operations (e.g. commit) are interleaved.
+     */
+    private void warmPendingRooms() {
+        if (isKilled()) {
+            return;
+        }
+
+        final ArrayList<String> roomIds;
+
+        synchronized (mPendingRoomIds) {
+            roomIds = new ArrayList<String>(mPendingRoomIds);
+        }
+
+        final AtomicInteger remainingCount = new AtomicInteger(roomIds.size());
+
+        final Runnable onDone = new Runnable() {
+            @Override
+            public void run() {
+                Log.d(LOG_TAG, "warmPendingRooms : the rooms are loaded");
+
+                // every file has been converted to the codec format
+                if ((null != mMetadata) && (mMetadata.mVersion != MXFILE_VERSION)) {
+                    mMetadata.mVersion = MXFILE_VERSION;
+                    mMetaDataHasChanged = true;
+                    saveMetaData();
+                }
+
+                dispatchOpenPhaseDone(OpenPhase.ROOMS);
+            }
+        };
+
+        if (0 == roomIds.size()) {
+            onDone.run();
+            return;
+        }
+
+        for (final String roomId : roomIds) {
+            postToRoomWorker(roomId, new Runnable() {
+                @Override
+                public void run() {
+                    if (!isKilled()) {
+                        loadPendingRoom(roomId);
+
+                        if (0 == remainingCount.decrementAndGet()) {
+                            onDone.run();
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    // The getters do not block the UI thread : a room which is not yet loaded is loaded in background
+    // and is provided without its timeline (i.e. the messages getters return null and the listeners are informed when it is loaded).
+
+    @Override
+    public Room getRoom(String roomId) {
+        // its live state is loaded on its first access
+        loadPendingRoomToRead(roomId);
+        return super.getRoom(roomId);
+    }
+
+    @Override
+    public Collection<Event> getRoomMessages(final String roomId) {
+        loadPendingRoomToRead(roomId);
+        return super.getRoomMessages(roomId);
+    }
+
+    @Override
+    public TokensChunkResponse<Event> getEarlierMessages(final String roomId, final String fromToken, final int limit) {
+        loadPendingRoomToRead(roomId);
+        return super.getEarlierMessages(roomId, fromToken, limit);
+    }
+
+    @Override
+    public Event getOldestEvent(String roomId) {
+        loadPendingRoomToRead(roomId);
+        return super.getOldestEvent(roomId);
+    }
+
+    @Override
+    public Event getLatestEvent(String roomId) {
+        if (!loadPendingRoomToRead(roomId)) {
+            RoomSummary summary = getSummary(roomId);
+            return (null != summary) ? summary.getLatestEvent() : null;
+        }
+
+        return super.getLatestEvent(roomId);
+    }
+
+    @Override
+    public Collection<Event> getLatestUnsentEvents(String roomId) {
+        loadPendingRoomToRead(roomId);
+        return super.getLatestUnsentEvents(roomId);
+    }
+
+    /**
+     * Release a room timeline : it is reloaded from the room log when it is read.
+     * The timeline is only released when all its records are written in the log.
+     * @param roomId the room id
+     * @return the released size in bytes.
+     */
+    @Override
+    protected long releaseRoomTimeline(String roomId) {
+        RoomTimeline timeline = mRoomEvents.get(roomId);
+
+        if ((null == timeline) || isKilled()) {
+            return 0;
+        }
+
+        synchronized (mRoomsRecordsToCommit) {
+            if (mRoomsRecordsToCommit.containsKey(roomId) || mRoomsRecordsBeingSaved.containsKey(roomId)) {
+                return 0;
+            }
+
+            synchronized (mPendingRoomIds) {
+                if (mLoadingRooms.containsKey(roomId) || mPendingRoomIds.contains(roomId)) {
+                    return 0;
+                }
+
+                mRoomEvents.remove(roomId);
+                mReleasedRoomIds.add(roomId);
+                updateHasPendingRooms();
+            }
+        }
+
+        Log.d(LOG_TAG, "releaseRoomTimeline " + roomId + " : " + timeline.size() + " events");
+
+        return timeline.getSizeInBytes();
+    }
+
+    /**
+     * Provide the records of a room which could not be written in its log yet.
+     * It must be called with the mRoomsRecordsToCommit lock.
+     * @param roomId the room id
+     * @return the records, in the writing order.
+     */
+    private ArrayList<MXFileStoreRoomLog.Record> getUnsavedRoomRecords(String roomId) {
+        ArrayList<MXFileStoreRoomLog.Record> records = new ArrayList<MXFileStoreRoomLog.Record>();
+        ArrayList<ArrayList<MXFileStoreRoomLog.Record>> beingSaved = mRoomsRecordsBeingSaved.get(roomId);
+
+        if (null != beingSaved) {
+            for (ArrayList<MXFileStoreRoomLog.Record> list : beingSaved) {
+                records.addAll(list);
+            }
+        }
+
+        ArrayList<MXFileStoreRoomLog.Record> toCommit = mRoomsRecordsToCommit.get(roomId);
+
+        if (null != toCommit) {
+            records.addAll(toCommit);
+        }
+
+        return records;
+    }
+
+    /**
+     * Add records to a released room : its timeline is only updated on disk.
+     * @param roomId the room id
+     * @param records the records
+     * @return false if the room timeline is not released.
+     */
+    private boolean addReleasedRoomRecords(String roomId, ArrayList<MXFileStoreRoomLog.Record> records) {
+        if (!mHasPendingRooms || (null == roomId)) {
+            return false;
+        }
+
+        synchronized (mRoomsRecordsToCommit) {
+            synchronized (mPendingRoomIds) {
+                if (!mReleasedRoomIds.contains(roomId)) {
+                    return false;
+                }
+            }
+
+            addRoomRecords(roomId, records);
+        }
+
+        return true;
+    }
+
+    /**
+     * Add a record to a released room : its timeline is only updated on disk.
+     * @param roomId the room id
+     * @param record the record
+     * @return false if the room timeline is not released.
+     */
+    private boolean addReleasedRoomRecord(String roomId, MXFileStoreRoomLog.Record record) {
+        ArrayList<MXFileStoreRoomLog.Record> records = new ArrayList<MXFileStoreRoomLog.Record>();
+        records.add(record);
+        return addReleasedRoomRecords(roomId, records);
+    }
+
+    /**
+     * Add records to append to the room log at the next commit.
+     * @param roomId the room id
+     * @param records the records
+     */
+    private void addRoomRecords(String roomId, ArrayList<MXFileStoreRoomLog.Record> records) {
+        if ((null != roomId) && (records.size() > 0)) {
+            synchronized (mRoomsRecordsToCommit) {
+                ArrayList<MXFileStoreRoomLog.Record> roomRecords = mRoomsRecordsToCommit.get(roomId);
+
+                if (null == roomRecords) {
+                    mRoomsRecordsToCommit.put(roomId, records);
+                } else {
+                    roomRecords.addAll(records);
+                }
+            }
+        }
+    }
+
+    /**
+     * Add a record to append to the room log at the next commit.
+     * @param roomId the room id
+     * @param record the record
+     */
+    private void addRoomRecord(String roomId, MXFileStoreRoomLog.Record record) {
+        ArrayList<MXFileStoreRoomLog.Record> records = new ArrayList<MXFileStoreRoomLog.Record>();
+        records.add(record);
+        addRoomRecords(roomId, records);
+    }
+
+    @Override
+    public void storeRoomEvents(String roomId, TokensChunkResponse<Event> eventsResponse, Room.EventDirection direction) {
+        if (direction == Room.EventDirection.FORWARDS) {
+            ArrayList<MXFileStoreRoomLog.Record> records = new ArrayList<MXFileStoreRoomLog.Record>();
+
+            for (Event event : eventsResponse.chunk) {
+                records.add(MXFileStoreRoomLog.Record.append(event));
+            }
+
+            if (null != eventsResponse.start) {
+                records.add(MXFileStoreRoomLog.Record.token(eventsResponse.start));
+            }
+
+            if (addReleasedRoomRecords(roomId, records)) {
+                mMessagesIndex.indexEvents(eventsResponse.chunk);
+                return;
+            }
+        }
+
+        loadPendingRoom(roomId);
+
+        Boolean canStore = true;
+
+        // do not flush the room messages file
+        // when the user reads the room history and the events list size reaches the retention limits.
+        if (direction == Room.EventDirection.BACKWARDS) {
+            RoomTimeline timeline = mRoomEvents.get(roomId);
+
+            if (null != timeline) {
+                canStore = !mRetentionPolicy.isHistoryFull(roomId, timeline.size(), timeline.getSizeInBytes());
+
+                if (!canStore) {
+                    Log.d(LOG_TAG, "storeRoomEvents : do not flush because reaching the retention limits");
+                }
+            }
+        }
+
+        String token = mRoomTokens.get(roomId);
+
+        super.storeRoomEvents(roomId, eventsResponse, direction);
+
+        if (canStore && (null != roomId)) {
+            ArrayList<MXFileStoreRoomLog.Record> records = new ArrayList<MXFileStoreRoomLog.Record>();
+
+            if (direction == Room.EventDirection.FORWARDS) {
+                for (Event event : eventsResponse.chunk) {
+                    records.add(MXFileStoreRoomLog.Record.append(event));
+                }
+            } else {
+                for (Event event : eventsResponse.chunk) {
+                    records.add(MXFileStoreRoomLog.Record.prepend(event));
+                }
+            }
+
+            String newToken = mRoomTokens.get(roomId);
+
+            if ((null != newToken) && !newToken.equals(token)) {
+                records.add(MXFileStoreRoomLog.Record.token(newToken));
+            }
+
+            addRoomRecords(roomId, records);
+        }
+    }
+
+    /**
+     * Store a live room event.
+     * @param event The event to be stored.
+     */
+    @Override
+    public void storeLiveRoomEvent(Event event) {
+        if (null != event) {
+            if ((null != event.roomId) && addReleasedRoomRecord(event.roomId, MXFileStoreRoomLog.Record.append(event))) {
+                mMessagesIndex.indexEvent(event);
+                return;
+            }
+
+            loadPendingRoom(event.roomId);
+        }
+
+        super.storeLiveRoomEvent(event);
+
+        // the event is only stored if the room history is known
+        if ((null != event) && (null != event.roomId) && (null != mRoomEvents.get(event.roomId))) {
+            addRoomRecord(event.roomId, MXFileStoreRoomLog.Record.append(event));
+        }
+    }
+
+    @Override
+    public boolean updateEventContent(String roomId, String eventId, JsonObject newContent) {
+        // the update is applied when the timeline is reloaded
+        if ((null != eventId) && addReleasedRoomRecord(roomId, MXFileStoreRoomLog.Record.updateContent(eventId, newContent))) {
+            mMessagesIndex.updateContent(eventId, newContent);
+            return true;
+        }
+
+        loadPendingRoom(roomId);
+
+        Boolean isReplaced = super.updateEventContent(roomId, eventId, newContent);
+
+        if (isReplaced) {
+            addRoomRecord(roomId, MXFileStoreRoomLog.Record.updateContent(eventId, newContent));
+        }
+
+        return isReplaced;
+    }
+
+    @Override
+    public void deleteEvent(Event event) {
+        if (null != event) {
+            if ((null != event.eventId) && addReleasedRoomRecord(event.roomId, MXFileStoreRoomLog.Record.delete(event.eventId))) {
+                mMessagesIndex.removeEvent(event.eventId);
+                return;
+            }
+
+            loadPendingRoom(event.roomId);
+        }
+
+        super.deleteEvent(event);
+
+        if ((null != event) && (null != event.eventId)) {
+            addRoomRecord(event.roomId, MXFileStoreRoomLog.Record.delete(event.eventId));
+        }
+    }
+
+    /**
+     * Delete the room messages and token files.
+     * @param roomId the room id.
+     */
+    private void deleteRoomMessagesFiles(final String roomId) {
+        synchronized (mRoomsRecordsToCommit) {
+            mRoomsRecordsToCommit.remove(roomId);
+        }
+
+        deleteLegacyRoomMessagesFiles(roomId);
+
+        // the log is managed by the room worker
+        postToRoomWorker(roomId, new Runnable() {
+            @Override
+            public void run() {
+                getRoomLog(roomId).delete();
+
+                synchronized (mRoomLogs) {
+                    mRoomLogs.remove(roomId);
+                }
+            }
+        });
+    }
+
+    /**
+     * Delete the room messages and token files saved with the legacy format.
+     * @param roomId the room id.
+     */
+    private void deleteLegacyRoomMessagesFiles(String roomId) {
+        // messages list
+        File messagesListFile = new File(mOldStoreRoomsMessagesFolderFile, roomId);
+
+        // remove the files
+        if (messagesListFile.exists()) {
+            try {
+                messagesListFile.delete();
+            } catch (Exception e) {
+            }
+        }
+
+        messagesListFile = new File(mGzStoreRoomsMessagesFolderFile, roomId);
+
+        // remove the files
+        if (messagesListFile.exists()) {
+            try {
+                messagesListFile.delete();
+            } catch (Exception e) {
+            }
+        }
+
+        File tokenFile = new File(mStoreRoomsTokensFolderFile, roomId);
+        if (tokenFile.exists()) {
+            try {
+                tokenFile.delete();
+            } catch (Exception e) {
+            }
+        }
+    }
+
+    /**
+     * Remove a room whose files are corrupted : its files are moved to the quarantine folder
+     * and the room is flagged to be retrieved with a room initial sync (see popCorruptedRoomIds).
+     * @param roomId the room id
+     */
+    private void quarantineRoom(final String roomId) {
+        Log.e(LOG_TAG, "quarantineRoom " + roomId);
+
+        // the files are moved before being deleted by deleteRoom : the room worker runs them in order.
+        postToRoomWorker(roomId, new Runnable() {
+            @Override
+            public void run() {
+                File roomQuarantineFolder = new File(mStoreQuarantineFolderFile, roomId);
+
+                if (roomQuarantineFolder.exists()) {
+                    ContentUtils.deleteDirectory(roomQuarantineFolder);
+                }
+
+                roomQuarantineFolder.mkdirs();
+
+                File[] files = new File[] {
+                        new File(mStoreRoomsMessagesLogFolderFile, roomId),
+                        new File(mGzStoreRoomsStateFolderFile, roomId),
+                        new File(mStoreRoomsStateDeltaFolderFile, roomId),
+                        new File(mStoreRoomsSummaryFolderFile, roomId)
+                };
+
+                for (File file : files) {
+                    if (file.exists() && !file.renameTo(new File(roomQuarantineFolder, file.getParentFile().getName()))) {
+                        Log.e(LOG_TAG, "quarantineRoom : cannot move " + file.getPath());
+                    }
+                }
+            }
+        });
+
+        mQuarantinedRoomIds.add(roomId);
+        deleteRoom(roomId);
+        addCorruptedRoomId(roomId);
+    }
+
+    @Override
     public void deleteRoom(String roomId) {
         Log.d(LOG_TAG, "deleteRoom " + roomId);
 
+        // do not load a deleted room
+        synchronized (mPendingRoomIds) {
+            mPendingRoomIds.remove(roomId);
+            mReleasedRoomIds.remove(roomId);
+            updateHasPendingRooms();
+        }
+
         super.deleteRoom(roomId);
         deleteRoomMessagesFiles(roomId);
-        deleteRoomStateFile(roomId);
-        deleteRoomSummaryFile(roomId);
+
+        final String fRoomId = roomId;
+
+        postToRoomWorker(roomId, new Runnable() {
+            @Override
+            public void run() {
+                deleteRoomStateFile(fRoomId);
+                deleteRoomSummaryFile(fRoomId);
+                mDiskUsage.set(fRoomId, 0);
+            }
+        });
     }
 
     @Override
     public void storeLiveStateForRoom(String roomId) {
         super.storeLiveStateForRoom(roomId);
 
-        if (mRoomsToCommitForStates.indexOf(roomId) < 0) {
+        synchronized (mRoomsToCommitForStates) {
             mRoomsToCommitForStates.add(roomId);
         }
     }
@@ -598,8 +1595,13 @@ public class MXFileStore extends MXMemoryStore {
     public void flushSummary(RoomSummary summary) {
         super.flushSummary(summary);
 
-        if (mRoomsToCommitForSummaries.indexOf(summary.getRoomId()) < 0) {
-            mRoomsToCommitForSummaries.add(summary.getRoomId());
+        boolean added;
+
+        synchronized (mRoomsToCommitForSummaries) {
+            added = mRoomsToCommitForSummaries.add(summary.getRoomId());
+        }
+
+        if (added) {
             saveSummaries();
         }
     }
@@ -609,12 +1611,8 @@ public class MXFileStore extends MXMemoryStore {
         super.flushSummaries();
 
         // add any existing roomid to the list to save all
-        Collection<String> roomIds = mRoomSummaries.keySet();
-
-        for(String roomId : roomIds) {
-            if (mRoomsToCommitForSummaries.indexOf(roomId) < 0) {
-                mRoomsToCommitForSummaries.add(roomId);
-            }
+        synchronized (mRoomsToCommitForSummaries) {
+            mRoomsToCommitForSummaries.addAll(mRoomSummaries.keySet());
         }
 
         saveSummaries();
@@ -624,131 +1622,176 @@ public class MXFileStore extends MXMemoryStore {
     public void storeSummary(String matrixId, String roomId, Event event, RoomState roomState, String selfUserId) {
         super.storeSummary(matrixId, roomId, event, roomState, selfUserId);
 
-        if (mRoomsToCommitForSummaries.indexOf(roomId) < 0) {
+        synchronized (mRoomsToCommitForSummaries) {
             mRoomsToCommitForSummaries.add(roomId);
         }
     }
 
-    private void saveRoomMessages(String roomId) {
-        try {
-            deleteRoomMessagesFiles(roomId);
+    /**
+     * Provides the log of a room.
+     * It must be called from the background thread.
+     * @param roomId the room id
+     * @return the room log
+     */
+    private MXFileStoreRoomLog getRoomLog(String roomId) {
+        synchronized (mRoomLogs) {
+            MXFileStoreRoomLog roomLog = mRoomLogs.get(roomId);
 
-            // messages list
-            File messagesListFile = new File(mGzStoreRoomsMessagesFolderFile, roomId);
+            if (null == roomLog) {
+                roomLog = new MXFileStoreRoomLog(new File(mStoreRoomsMessagesLogFolderFile, roomId), mCodec);
+                mRoomLogs.put(roomId, roomLog);
+            }
 
-            File tokenFile = new File(mStoreRoomsTokensFolderFile, roomId);
+            return roomLog;
+        }
+    }
 
-            LinkedHashMap<String, Event> eventsHash = mRoomEvents.get(roomId);
-            String token = mRoomTokens.get(roomId);
+    /**
+     * Provides the state snapshot and delta of a room.
+     * @param roomId the room id
+     * @return the room state log
+     */
+    private MXFileStoreRoomStateLog getRoomStateLog(String roomId) {
+        synchronized (mRoomStateLogs) {
+            MXFileStoreRoomStateLog roomStateLog = mRoomStateLogs.get(roomId);
 
-            // the list exists ?
-            if ((null != eventsHash) && (null != token)) {
-                FileOutputStream fos = new FileOutputStream(messagesListFile);
-                GZIPOutputStream gz = new GZIPOutputStream(fos);
-                ObjectOutputStream out = new ObjectOutputStream(gz);
+            if (null == roomStateLog) {
+                roomStateLog = new MXFileStoreRoomStateLog(new File(mGzStoreRoomsStateFolderFile, roomId), new File(mStoreRoomsStateDeltaFolderFile, roomId), mCodec);
+                mRoomStateLogs.put(roomId, roomStateLog);
+            }
 
-                LinkedHashMap<String, Event> hashCopy = new LinkedHashMap<String, Event>();
-                ArrayList<Event> eventsList = new ArrayList<Event>(eventsHash.values());
+            return roomStateLog;
+        }
+    }
 
-                int startIndex = 0;
+    /**
+     * Append the pending records to a room log.
+     * @param roomId the room id
+     * @param records the records to append
+     */
+    private void saveRoomMessages(final String roomId, ArrayList<MXFileStoreRoomLog.Record> records) {
+        final MXFileStoreRoomLog roomLog = getRoomLog(roomId);
+        boolean isSaved = false;
 
-                // try to reduce the number of stored messages
-                // it does not make sense to keep the full history.
+        try {
+            roomLog.append(records);
+            isSaved = true;
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "saveRoomMessages (" + roomId + ") failed : " + e.getMessage());
+        }
 
-                // the method consists in saving messages until finding the oldest known token.
-                // At initial sync, it is not saved so keep the whole history.
-                // if the user back paginates, the token is stored in the event.
-                // if some messages are received, the token is stored in the event.
-                if (eventsList.size() > MAX_STORED_MESSAGES_COUNT) {
-                    startIndex = eventsList.size() - MAX_STORED_MESSAGES_COUNT;
+        updateRoomDiskUsage(roomId);
 
-                    // search backward the first known token
-                    for (; !eventsList.get(startIndex).hasToken() && (startIndex > 0); startIndex--)
-                        ;
+        boolean isDeleted;
 
-                    // avoid saving huge messages count
-                    // with a very verbosed room, the messages token
-                    if ((eventsList.size() - startIndex) > (2 * MAX_STORED_MESSAGES_COUNT)) {
-                        Log.d(LOG_TAG, "saveRoomsMessage (" + roomId + ") : too many messages, try reducing more");
+        synchronized (mRoomLogs) {
+            isDeleted = (roomLog != mRoomLogs.get(roomId));
+        }
 
-                        // start from 10 messages
-                        startIndex = eventsList.size() - 10;
+        synchronized (mRoomsRecordsToCommit) {
+            ArrayList<ArrayList<MXFileStoreRoomLog.Record>> beingSaved = mRoomsRecordsBeingSaved.get(roomId);
 
-                        // search backward the first known token
-                        for (; !eventsList.get(startIndex).hasToken() && (startIndex > 0); startIndex--)
-                            ;
-                    }
+            if (null != beingSaved) {
+                beingSaved.remove(records);
 
-                    if (startIndex > 0) {
-                        Log.d(LOG_TAG, "saveRoomsMessage (" + roomId + ") :  reduce the number of messages " + eventsList.size() + " -> " + (eventsList.size() - startIndex));
-                    }
+                if (0 == beingSaved.size()) {
+                    mRoomsRecordsBeingSaved.remove(roomId);
                 }
+            }
 
-                long t0 = System.currentTimeMillis();
+            // the log has been rolled back : the records are written by the next commit, before the newer ones.
+            if (!isSaved && !isDeleted) {
+                ArrayList<MXFileStoreRoomLog.Record> retryRecords = new ArrayList<MXFileStoreRoomLog.Record>(records);
+                ArrayList<MXFileStoreRoomLog.Record> newerRecords = mRoomsRecordsToCommit.get(roomId);
 
-                for (int index = startIndex; index < eventsList.size(); index++) {
-                    Event event = eventsList.get(index);
-                    event.prepareSerialization();
-                    hashCopy.put(event.eventId, event);
+                if (null != newerRecords) {
+                    retryRecords.addAll(newerRecords);
                 }
 
-                out.writeObject(hashCopy);
-                out.close();
+                mRoomsRecordsToCommit.put(roomId, retryRecords);
+            }
+        }
 
-                fos = new FileOutputStream(tokenFile);
-                out = new ObjectOutputStream(fos);
-                out.writeObject(token);
-                out.close();
+        // the retention limit is enforced by the compaction
+        if (roomLog.needsCompaction()) {
+            postToRoomWorker(roomId, new Runnable() {
+                @Override
+                public void run() {
+                    // the room could have been deleted in the meantime
+                    boolean isDeleted;
 
-                Log.d(LOG_TAG, "saveRoomsMessage (" + roomId + ") : " + eventsList.size() + " messages saved in " +  (System.currentTimeMillis() - t0) + " ms");
-            }
-        } catch (Exception e) {
+                    synchronized (mRoomLogs) {
+                        isDeleted = (roomLog != mRoomLogs.get(roomId));
+                    }
+
+                    if (!isKilled() && !isDeleted) {
+                        try {
+                            roomLog.compact(mRetentionPolicy, roomId);
+                        } catch (Exception e) {
+                            Log.e(LOG_TAG, "compact (" + roomId + ") failed : " + e.getMessage());
+                        }
+
+                        updateRoomDiskUsage(roomId);
+                    }
+                }
+            });
         }
     }
 
     /**
-     * Flush updates rooms messages list files.
+     * Flush the pending records in the rooms logs.
      */
     private void saveRoomsMessages() {
-        // some updated rooms ?
-        if  ((mRoomsToCommitForMessages.size() > 0) && (null != mFileStoreHandler)) {
+        final HashMap<String, ArrayList<MXFileStoreRoomLog.Record>> fRoomsRecordsToCommit;
+
+        synchronized (mRoomsRecordsToCommit) {
+            // some updated rooms ?
+            if ((mRoomsRecordsToCommit.size() == 0) || (null == mFileStoreHandler)) {
+                return;
+            }
+
             // get the list
-            final ArrayList<String> fRoomsToCommitForMessages = mRoomsToCommitForMessages;
-            mRoomsToCommitForMessages = new ArrayList<String>();
+            fRoomsRecordsToCommit = new HashMap<String, ArrayList<MXFileStoreRoomLog.Record>>(mRoomsRecordsToCommit);
+            mRoomsRecordsToCommit.clear();
+
+            // the released rooms are reloaded with the records which are not yet written
+            for (String roomId : fRoomsRecordsToCommit.keySet()) {
+                ArrayList<ArrayList<MXFileStoreRoomLog.Record>> beingSaved = mRoomsRecordsBeingSaved.get(roomId);
+
+                if (null == beingSaved) {
+                    beingSaved = new ArrayList<ArrayList<MXFileStoreRoomLog.Record>>();
+                    mRoomsRecordsBeingSaved.put(roomId, beingSaved);
+                }
+
+                beingSaved.add(fRoomsRecordsToCommit.get(roomId));
+            }
+        }
+
+        final WorkersBatch batch = new WorkersBatch("saveRoomsMessages", fRoomsRecordsToCommit.size());
 
-            Runnable r = new Runnable() {
+        for (final String roomId : fRoomsRecordsToCommit.keySet()) {
+            postToRoomWorker(roomId, new Runnable() {
                 @Override
                 public void run() {
-                    mFileStoreHandler.post(new Runnable() {
-                        public void run() {
-                            if (!isKilled()) {
-                                long start = System.currentTimeMillis();
-
-                                for (String roomId : fRoomsToCommitForMessages) {
-                                    saveRoomMessages(roomId);
-                                }
+                    if (!isKilled()) {
+                        saveRoomMessages(roomId, fRoomsRecordsToCommit.get(roomId));
+                    }
 
-                                Log.d(LOG_TAG, "saveRoomsMessages : " + fRoomsToCommitForMessages.size() + " rooms in " + (System.currentTimeMillis() - start) + " ms");
-                            }
-                        }
-                    });
+                    batch.onRoomDone();
                 }
-            };
-
-            Thread t = new Thread(r);
-            t.start();
+            });
         }
     }
 
     /**
-     * Load room messages from the filesystem.
+     * Load room messages saved with the legacy format and convert them to the log format.
      * @param roomId the room id.
      * @return true if succeed.
      */
-    private boolean loadRoomMessages(final String roomId) {
+    private boolean convertLegacyRoomMessages(final String roomId) {
         Boolean succeeded = true;
-        Boolean shouldSave = false;
         LinkedHashMap<String, Event> events = null;
+        String token = null;
 
         try {
             File messagesListFile = new File(mGzStoreRoomsMessagesFolderFile, roomId);
@@ -758,34 +1801,76 @@ public class MXFileStore extends MXMemoryStore {
                 GZIPInputStream gz = new GZIPInputStream(fis);
                 ObjectInputStream ois = new ObjectInputStream(gz);
                 events = (LinkedHashMap<String, Event>) ois.readObject();
+                ois.close();
+            } else {
+                messagesListFile = new File(mOldStoreRoomsMessagesFolderFile, roomId);
 
-                for (Event event : events.values()) {
-                    event.finalizeDeserialization();
+                if (messagesListFile.exists()) {
+                    FileInputStream fis = new FileInputStream(messagesListFile);
+                    ObjectInputStream ois = new ObjectInputStream(fis);
+                    events = (LinkedHashMap<String, Event>) ois.readObject();
+                    ois.close();
                 }
+            }
+
+            File tokenFile = new File(mStoreRoomsTokensFolderFile, roomId);
 
+            if (tokenFile.exists()) {
+                FileInputStream fis = new FileInputStream(tokenFile);
+                ObjectInputStream ois = new ObjectInputStream(fis);
+                token = (String) ois.readObject();
                 ois.close();
+            }
 
-                messagesListFile = new File(mOldStoreRoomsMessagesFolderFile, roomId);
-                if (messagesListFile.exists()) {
-                    messagesListFile.delete();
-                }
-            } else {
-                messagesListFile = new File(mOldStoreRoomsMessagesFolderFile, roomId);
+            if ((null != events) && (null != token)) {
+                getRoomLog(roomId).writeSnapshot(events, token);
+                updateRoomDiskUsage(roomId);
+            }
+        } catch (Exception e){
+            succeeded = false;
+            Log.e(LOG_TAG, "convertLegacyRoomMessages failed : " + e.getMessage());
+        }
 
-                if (messagesListFile.exists()) {
+        if (succeeded) {
+            deleteLegacyRoomMessagesFiles(roomId);
+        }
 
-                    FileInputStream fis = new FileInputStream(messagesListFile);
-                    ObjectInputStream ois = new ObjectInputStream(fis);
-                    events = (LinkedHashMap<String, Event>) ois.readObject();
+        return succeeded;
+    }
 
-                    for (Event event : events.values()) {
-                        event.finalizeDeserialization();
-                    }
+    /**
+     * Load room messages from the filesystem.
+     * @param roomId the room id.
+     * @return true if succeed.
+     */
+    private boolean loadRoomMessages(final String roomId) {
+        Boolean succeeded = true;
+        MXFileStoreRoomLog.Content content = null;
 
-                    ois.close();
+        try {
+            // the room is loaded from any thread : the log is read with its own instance
+            // because the shared one is only used by the room worker.
+            MXFileStoreRoomLog roomLog = new MXFileStoreRoomLog(new File(mStoreRoomsMessagesLogFolderFile, roomId), mCodec);
+            content = roomLog.replay();
+
+            // convert the java serialized segments
+            // it is posted before the room is marked as loaded so it is written before the room updates.
+            if (roomLog.hasLegacySegments()) {
+                final LinkedHashMap<String, Event> events = new LinkedHashMap<String, Event>(content.mEvents);
+                final String token = content.mToken;
+
+                postToRoomWorker(roomId, new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            getRoomLog(roomId).writeSnapshot(events, token);
+                        } catch (Exception e) {
+                            Log.e(LOG_TAG, "loadRoomMessages : the snapshot of " + roomId + " failed " + e.getMessage());
+                        }
 
-                    shouldSave = true;
-                }
+                        updateRoomDiskUsage(roomId);
+                    }
+                });
             }
         } catch (Exception e){
             succeeded = false;
@@ -793,122 +1878,171 @@ public class MXFileStore extends MXMemoryStore {
         }
 
         // succeeds to extract the message list
-        if (null != events) {
-            // create the room object
-            Room room = new Room();
-            room.setRoomId(roomId);
-            // do not wait that the live state update
-            room.setReadyState(true);
-            storeRoom(room);
-
-            mRoomEvents.put(roomId, events);
+        if (null != content) {
+            setRoomContent(roomId, content);
         }
 
-        if (shouldSave) {
-            saveRoomMessages(roomId);
+        return succeeded;
+    }
+
+    /**
+     * Reload a released room timeline.
+     * @param roomId the room id
+     * @param records the records which could not be written in the room log yet.
+     * @return true if succeed.
+     */
+    private boolean reloadRoomMessages(String roomId, ArrayList<MXFileStoreRoomLog.Record> records) {
+        MXFileStoreRoomLog.Content content;
+
+        try {
+            // the room worker could be appending records : the log is read with its own instance.
+            content = new MXFileStoreRoomLog(new File(mStoreRoomsMessagesLogFolderFile, roomId), mCodec).replay();
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "reloadRoomMessages failed : " + e.getMessage());
+            return false;
         }
 
-        return succeeded;
+        // the records are applied again if they have been written in the meantime
+        content.apply(records);
+        setRoomContent(roomId, content);
+
+        return true;
     }
 
     /**
-     * Load the room token from the file system.
-     * @param roomId the room id.
-     * @return true if it succeeds.
+     * Set a room timeline from its log content.
+     * @param roomId the room id
+     * @param content the replayed log
      */
-    private Boolean loadRoomToken(final String roomId) {
-        Boolean succeed = true;
+    private void setRoomContent(String roomId, MXFileStoreRoomLog.Content content) {
+        String token = content.mToken;
 
-        Room room = getRoom(roomId);
+        // check if the oldest event has a token.
+        if (content.mEvents.size() > 0) {
+            Event event = content.mEvents.values().iterator().next();
 
-        // should always be true
-        if (null != room) {
-            String token = null;
+            // the room history could have been reduced to save memory
+            // so, if the oldest messages has a token, use it instead of the stored token.
+            if (null != event.mToken) {
+                token = event.mToken;
+            }
+        }
 
-            try {
-                File messagesListFile = new File(mStoreRoomsTokensFolderFile, roomId);
+        if (null != token) {
+            setRoomEvents(roomId, content.mEvents.values());
+            mRoomTokens.put(roomId, token);
 
-                FileInputStream fis = new FileInputStream(messagesListFile);
-                ObjectInputStream ois = new ObjectInputStream(fis);
-                token = (String) ois.readObject();
+            // rebuild the lost index room by room
+            if (mMessagesIndexIsLost && mReindexedRoomIds.add(roomId)) {
+                mMessagesIndex.indexEvents(content.mEvents.values());
+            }
+        } else {
+            deleteRoom(roomId);
+        }
+    }
 
-                // check if the oldest event has a token.
-                LinkedHashMap<String, Event> eventsHash = mRoomEvents.get(roomId);
-                if ((null != eventsHash) && (eventsHash.size() > 0)) {
-                    Event event = eventsHash.values().iterator().next();
+    /**
+     * Convert the rooms messages saved with the legacy formats to the log format.
+     * @return  true if the operation succeeds.
+     */
+    private boolean convertLegacyRoomsMessages() {
+        Boolean succeed = true;
+
+        try {
+            long start = System.currentTimeMillis();
+
+            File[] legacyFolders = new File[] {mGzStoreRoomsMessagesFolderFile, mOldStoreRoomsMessagesFolderFile};
 
-                    // the room history could have been reduced to save memory
-                    // so, if the oldest messages has a token, use it instead of the stored token.
-                    if (null != event.mToken) {
-                        token = event.mToken;
+            for (File legacyFolder : legacyFolders) {
+                if (legacyFolder.exists()) {
+                    String[] filenames = legacyFolder.list();
+
+                    for (String roomId : filenames) {
+                        // a room which cannot be converted is retrieved again
+                        if (!convertLegacyRoomMessages(roomId)) {
+                            deleteLegacyRoomMessagesFiles(roomId);
+                            quarantineRoom(roomId);
+                        }
                     }
-                }
 
-                ois.close();
-            } catch (Exception e) {
-                succeed = false;
-                Log.e(LOG_TAG, "loadRoomToken failed : " + e.getMessage());
-            }
+                    ContentUtils.deleteDirectory(legacyFolder);
 
-            if (null != token) {
-                mRoomTokens.put(roomId, token);
-            } else {
-                deleteRoom(roomId);
+                    Log.d(LOG_TAG, "convertLegacyRoomsMessages : " + filenames.length + " rooms in " + (System.currentTimeMillis() - start) + " ms");
+                }
             }
-        } else {
-            try {
-                File messagesListFile = new File(mStoreRoomsTokensFolderFile, roomId);
-                messagesListFile.delete();
 
-            } catch (Exception e) {
+            if (mStoreRoomsTokensFolderFile.exists()) {
+                ContentUtils.deleteDirectory(mStoreRoomsTokensFolderFile);
             }
+        } catch (Exception e) {
+            succeed = false;
+            Log.e(LOG_TAG, "convertLegacyRoomsMessages failed : " + e.getMessage());
         }
 
         return succeed;
     }
 
     /**
-     * Load room messages from the filesystem.
+     * List the stored rooms.
+     * The rooms objects are created but their states and their timelines are loaded on demand.
      * @return  true if the operation succeeds.
      */
-    private boolean loadRoomsMessages() {
+    private boolean listRooms() {
         Boolean succeed = true;
 
         try {
-            // extract the messages list
-            String[] filenames = mGzStoreRoomsMessagesFolderFile.list();
-
             long start = System.currentTimeMillis();
 
-            for(int index = 0; succeed && (index < filenames.length); index++) {
-                succeed &= loadRoomMessages(filenames[index]);
-            }
+            String[] filenames = mStoreRoomsMessagesLogFolderFile.list();
+
+            synchronized (mPendingRoomIds) {
+                for (final String roomId : filenames) {
+                    // its files are being moved
+                    if (mQuarantinedRoomIds.contains(roomId)) {
+                        continue;
+                    }
 
-            // convert old format to the new one.
-            if (mOldStoreRoomsMessagesFolderFile.exists()) {
-                filenames = mOldStoreRoomsMessagesFolderFile.list();
+                    final Room room = new Room();
+                    room.setRoomId(roomId);
+                    // do not wait that the live state update
+                    room.setReadyState(true);
+                    room.setLiveStateLoader(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (isUiThread()) {
+                                loadPendingRoomInBackground(roomId);
+                            } else {
+                                loadPendingRoom(roomId);
+                            }
+                        }
+                    });
+                    storeRoom(room);
 
-                for(int index = 0; succeed && (index < filenames.length); index++) {
-                    succeed &= loadRoomMessages(filenames[index]);
+                    mPendingRoomIds.add(roomId);
                 }
-            }
 
-            Log.d(LOG_TAG, "loadRoomMessages : " + filenames.length + " rooms in " + (System.currentTimeMillis() - start) + " ms");
+                updateHasPendingRooms();
+            }
 
-            // extract the tokens list
-            filenames = mStoreRoomsTokensFolderFile.list();
+            // remove the states of the unknown rooms
+            File[] statesFolders = new File[] {mGzStoreRoomsStateFolderFile, mStoreRoomsStateDeltaFolderFile, mOldStoreRoomsStateFolderFile};
 
-            start = System.currentTimeMillis();
+            for (File statesFolder : statesFolders) {
+                String[] statesFilenames = statesFolder.list();
 
-            for(int index = 0; succeed && (index < filenames.length); index++) {
-                succeed &= loadRoomToken(filenames[index]);
+                if (null != statesFilenames) {
+                    for (String roomId : statesFilenames) {
+                        if (null == mRooms.get(roomId)) {
+                            new File(statesFolder, roomId).delete();
+                        }
+                    }
+                }
             }
 
-            Log.d(LOG_TAG, "loadRoomToken : " + filenames.length + " rooms in " + (System.currentTimeMillis() - start) + " ms");
-
+            Log.d(LOG_TAG, "listRooms : " + filenames.length + " rooms in " + (System.currentTimeMillis() - start) + " ms");
         } catch (Exception e) {
             succeed = false;
-            Log.e(LOG_TAG, "loadRoomToken failed : " + e.getMessage());
+            Log.e(LOG_TAG, "listRooms failed : " + e.getMessage());
         }
 
         return succeed;
@@ -929,15 +2063,11 @@ public class MXFileStore extends MXMemoryStore {
             }
         }
 
-        statesFile = new File(mGzStoreRoomsStateFolderFile, roomId);
+        getRoomStateLog(roomId).delete();
 
-        if (statesFile.exists()) {
-            try {
-                statesFile.delete();
-            } catch (Exception e) {
-            }
+        synchronized (mRoomStateLogs) {
+            mRoomStateLogs.remove(roomId);
         }
-
     }
 
     /**
@@ -946,20 +2076,26 @@ public class MXFileStore extends MXMemoryStore {
      */
     private void saveRoomState(String roomId) {
         try {
-            deleteRoomStateFile(roomId);
-
-            File roomStateFile = new File(mGzStoreRoomsStateFolderFile, roomId);
             Room room = mRooms.get(roomId);
 
             if (null != room) {
                 long start1 = System.currentTimeMillis();
-                FileOutputStream fos = new FileOutputStream(roomStateFile);
-                GZIPOutputStream gz = new GZIPOutputStream(fos);
-                ObjectOutputStream out = new ObjectOutputStream(gz);
+                RoomState liveState = room.getLiveState();
+
+                // only the updated members are appended to the delta
+                // when they are not tracked, a snapshot is written and the tracking starts.
+                Set<String> updatedMemberIds = liveState.popUpdatedMemberIds();
+
+                if (null == updatedMemberIds) {
+                    liveState.trackMembersUpdates();
+                }
 
-                out.writeObject(room.getLiveState());
-                out.close();
-                Log.d(LOG_TAG, "saveRoomsState " + room.getLiveState().getMembers().size() + " : " + (System.currentTimeMillis() - start1) + " ms");
+                getRoomStateLog(roomId).save(liveState, updatedMemberIds);
+                new File(mOldStoreRoomsStateFolderFile, roomId).delete();
+                updateRoomDiskUsage(roomId);
+                Log.d(LOG_TAG, "saveRoomsState " + ((null != updatedMemberIds) ? updatedMemberIds.size() : "all") + " members : " + (System.currentTimeMillis() - start1) + " ms");
+            } else {
+                deleteRoomStateFile(roomId);
             }
 
         } catch (Exception e) {
@@ -967,36 +2103,45 @@ public class MXFileStore extends MXMemoryStore {
         }
     }
 
+    /**
+     * Take the rooms ids to commit : the set is emptied with its lock.
+     * @param roomIds the rooms ids to commit
+     * @return the taken rooms ids
+     */
+    private static HashSet<String> takeRoomIds(HashSet<String> roomIds) {
+        synchronized (roomIds) {
+            HashSet<String> takenRoomIds = new HashSet<String>(roomIds);
+            roomIds.clear();
+            return takenRoomIds;
+        }
+    }
+
     /**
      * Flush the room state files.
      */
     private void saveRoomStates() {
-        if ((mRoomsToCommitForStates.size() > 0) && (null != mFileStoreHandler)) {
+        if (null != mFileStoreHandler) {
             // get the list
-            final ArrayList<String> fRoomsToCommitForStates = mRoomsToCommitForStates;
-            mRoomsToCommitForStates = new ArrayList<String>();
+            final HashSet<String> fRoomsToCommitForStates = takeRoomIds(mRoomsToCommitForStates);
 
-            Runnable r = new Runnable() {
-                @Override
-                public void run() {
-                    mFileStoreHandler.post(new Runnable() {
-                        public void run() {
-                            if (!isKilled()) {
-                                long start = System.currentTimeMillis();
+            if (0 == fRoomsToCommitForStates.size()) {
+                return;
+            }
 
-                                for (String roomId : fRoomsToCommitForStates) {
-                                    saveRoomState(roomId);
-                                }
+            final WorkersBatch batch = new WorkersBatch("saveRoomsState", fRoomsToCommitForStates.size());
 
-                                Log.d(LOG_TAG, "saveRoomsState : " + fRoomsToCommitForStates.size() + " rooms in " + (System.currentTimeMillis() - start) + " ms");
-                            }
+            for (final String roomId : fRoomsToCommitForStates) {
+                postToRoomWorker(roomId, new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!isKilled()) {
+                            saveRoomState(roomId);
                         }
-                    });
-                }
-            };
 
-            Thread t = new Thread(r);
-            t.start();
+                        batch.onRoomDone();
+                    }
+                });
+            }
         }
     }
 
@@ -1008,7 +2153,7 @@ public class MXFileStore extends MXMemoryStore {
     private boolean loadRoomState(final String roomId) {
         Boolean succeed = true;
 
-        Room room = getRoom(roomId);
+        Room room = mRooms.get(roomId);
 
         // should always be true
         if (null != room) {
@@ -1021,11 +2166,20 @@ public class MXFileStore extends MXMemoryStore {
 
                 // new format
                 if (messagesListFile.exists()) {
-                    FileInputStream fis = new FileInputStream(messagesListFile);
-                    GZIPInputStream gz = new GZIPInputStream(fis);
-                    ObjectInputStream ois = new ObjectInputStream(gz);
-                    liveState = (RoomState) ois.readObject();
-                    ois.close();
+                    if (MXFileStoreCodec.isEncodedFile(messagesListFile)) {
+                        liveState = getRoomStateLog(roomId).load();
+                        // the next saves only append the updated members
+                        liveState.trackMembersUpdates();
+                    } else {
+                        // java serialization : convert it
+                        FileInputStream fis = new FileInputStream(messagesListFile);
+                        GZIPInputStream gz = new GZIPInputStream(fis);
+                        ObjectInputStream ois = new ObjectInputStream(gz);
+                        liveState = (RoomState) ois.readObject();
+                        ois.close();
+
+                        shouldSave = true;
+                    }
 
                     // delete old file
                     messagesListFile = new File(mOldStoreRoomsStateFolderFile, roomId);
@@ -1055,7 +2209,8 @@ public class MXFileStore extends MXMemoryStore {
                     saveRoomState(roomId);
                 }
             } else {
-                deleteRoom(roomId);
+                // the caller quarantines the room
+                succeed = false;
             }
         } else {
             try {
@@ -1065,6 +2220,9 @@ public class MXFileStore extends MXMemoryStore {
                 messagesListFile = new File(mGzStoreRoomsStateFolderFile, roomId);
                 messagesListFile.delete();
 
+                messagesListFile = new File(mStoreRoomsStateDeltaFolderFile, roomId);
+                messagesListFile.delete();
+
             } catch (Exception e) {
                 Log.e(LOG_TAG, "loadRoomState failed to delete a file : " + e.getMessage());
             }
@@ -1074,113 +2232,87 @@ public class MXFileStore extends MXMemoryStore {
     }
 
     /**
-     * Load room state from the file system.
-     * @return true if the operation succeeds.
-     */
-    private boolean loadRoomsState() {
-        Boolean succeed = true;
-
-        try {
-            long start = System.currentTimeMillis();
-
-            String[] filenames = null;
-
-            filenames = mGzStoreRoomsStateFolderFile.list();
-
-            for(int index = 0; succeed && (index < filenames.length); index++) {
-                succeed &= loadRoomState(filenames[index]);
-            }
-
-            // convert old format to the new one.
-            if (mOldStoreRoomsStateFolderFile.exists()) {
-                filenames = mOldStoreRoomsStateFolderFile.list();
-
-                for(int index = 0; succeed && (index < filenames.length); index++) {
-                    succeed &= loadRoomState(filenames[index]);
-                }
-            }
-
-            Log.d(LOG_TAG, "loadRoomsState " + filenames.length + " rooms in " + (System.currentTimeMillis() - start) + " ms");
-
-        } catch (Exception e) {
-            succeed = false;
-            Log.e(LOG_TAG, "loadRoomsState failed : " + e.getMessage());
-        }
-
-        return succeed;
-    }
-
-    /**
-     * Delete the room summary file.
+     * Delete the room summary.
+     * It is removed from the summaries file by the background thread.
      * @param roomId the room id.
      */
-    private void deleteRoomSummaryFile(String roomId) {
-        // states list
-        File statesFile = new File(mStoreRoomsSummaryFolderFile, roomId);
+    private void deleteRoomSummaryFile(final String roomId) {
+        // legacy format
+        File summaryFile = new File(mStoreRoomsSummaryFolderFile, roomId);
 
         // remove the files
-        if (statesFile.exists()) {
+        if (summaryFile.exists()) {
             try {
-                statesFile.delete();
+                summaryFile.delete();
             } catch (Exception e) {
                 Log.e(LOG_TAG, "deleteRoomSummaryFile failed : " + e.getMessage());
             }
         }
+
+        if (null != mFileStoreHandler) {
+            mFileStoreHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (!isKilled()) {
+                        saveSummaries(Collections.singleton(roomId));
+                    }
+                }
+            });
+        }
     }
 
     /**
      * Flush the pending summaries.
      */
     private void saveSummaries() {
-        if ((mRoomsToCommitForSummaries.size() > 0) && (null != mFileStoreHandler)) {
+        if (null != mFileStoreHandler) {
             // get the list
-            final ArrayList<String> fRoomsToCommitForSummaries = mRoomsToCommitForSummaries;
-            mRoomsToCommitForSummaries = new ArrayList<String>();
+            final HashSet<String> fRoomsToCommitForSummaries = takeRoomIds(mRoomsToCommitForSummaries);
+
+            if (0 == fRoomsToCommitForSummaries.size()) {
+                return;
+            }
 
-            Runnable r = new Runnable() {
+            // the summaries are appended to a single file by the background thread
+            mFileStoreHandler.post(new Runnable() {
                 @Override
                 public void run() {
-                    mFileStoreHandler.post(new Runnable() {
-                        public void run() {
-                            if (!isKilled()) {
-                                long start = System.currentTimeMillis();
-
-                                for (String roomId : fRoomsToCommitForSummaries) {
-                                    try {
-                                        deleteRoomSummaryFile(roomId);
-
-                                        File roomSummaryFile = new File(mStoreRoomsSummaryFolderFile, roomId);
-                                        RoomSummary roomSummary = mRoomSummaries.get(roomId);
+                    if (!isKilled()) {
+                        saveSummaries(fRoomsToCommitForSummaries);
+                    }
+                }
+            });
+        }
+    }
 
-                                        if (null != roomSummary) {
-                                            roomSummary.getLatestEvent().prepareSerialization();
+    /**
+     * Save some room summaries in the summaries file.
+     * It must be called from the background thread.
+     * @param roomIds the ids of the updated or deleted rooms summaries.
+     */
+    private void saveSummaries(Collection<String> roomIds) {
+        long start = System.currentTimeMillis();
 
-                                            FileOutputStream fos = new FileOutputStream(roomSummaryFile);
-                                            ObjectOutputStream out = new ObjectOutputStream(fos);
+        // a missing summary has been deleted
+        HashMap<String, RoomSummary> updates = new HashMap<String, RoomSummary>();
 
-                                            out.writeObject(roomSummary);
-                                            out.close();
-                                        }
+        for (String roomId : roomIds) {
+            updates.put(roomId, mRoomSummaries.get(roomId));
+        }
 
-                                    } catch (Exception e) {
-                                        Log.e(LOG_TAG, "saveSummaries failed : " + e.getMessage());
-                                    }
-                                }
+        try {
+            mSummariesLog.save(updates, mRoomSummaries.values());
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "saveSummaries failed : " + e.getMessage());
+        }
 
-                                Log.d(LOG_TAG, "saveSummaries : " + fRoomsToCommitForSummaries.size() + " summaries in " + (System.currentTimeMillis() - start) + " ms");
-                            }
-                        }
-                    });
-                }
-            };
+        mDiskUsage.set(DISK_USAGE_SUMMARIES_KEY, mSummariesLog.getDiskUsage());
 
-            Thread t = new Thread(r);
-            t.start();
-        }
+        Log.d(LOG_TAG, "saveSummaries " + updates.size() + " summaries in " + (System.currentTimeMillis() - start) + " ms");
     }
 
     /**
-     * Load the room summary from the files system.
+     * Load a room summary saved in its own file (legacy format).
      * @param roomId the room id.
      * @return true if the operation succeeds;
      */
@@ -1194,40 +2326,103 @@ public class MXFileStore extends MXMemoryStore {
         try {
             File messagesListFile = new File(mStoreRoomsSummaryFolderFile, roomId);
 
-            FileInputStream fis = new FileInputStream(messagesListFile);
-            ObjectInputStream ois = new ObjectInputStream(fis);
+            if (MXFileStoreCodec.isEncodedFile(messagesListFile)) {
+                summary = mCodec.readRoomSummaryFile(messagesListFile);
+            } else {
+                // java serialization : convert it
+                FileInputStream fis = new FileInputStream(messagesListFile);
+                ObjectInputStream ois = new ObjectInputStream(fis);
 
-            summary = (RoomSummary) ois.readObject();
-            ois.close();
+                summary = (RoomSummary) ois.readObject();
+                ois.close();
+            }
         } catch (Exception e){
             succeed = false;
             Log.e(LOG_TAG, "loadSummary failed : " + e.getMessage());
         }
 
         if (null != summary) {
-            summary.getLatestEvent().finalizeDeserialization();
             mRoomSummaries.put(roomId, summary);
         }
 
         return succeed;
     }
+
     /**
      * Load room summaries from the file system.
+     * They are read from the summaries file. The summaries saved in one file per room (legacy format)
+     * are merged in the summaries file.
      * @return true if the operation succeeds.
      */
     private Boolean loadSummaries() {
         Boolean succeed = true;
         try {
-            // extract the room states
-            String[] filenames = mStoreRoomsSummaryFolderFile.list();
-
             long start = System.currentTimeMillis();
 
-            for(int index = 0; succeed && (index < filenames.length); index++) {
-                succeed &= loadSummary(filenames[index]);
+            mSummariesAreLost = false;
+
+            if (mSummariesLog.exists()) {
+                try {
+                    mRoomSummaries.putAll(mSummariesLog.load());
+                } catch (Exception e) {
+                    Log.e(LOG_TAG, "loadSummaries : the summaries file is corrupted " + e.getMessage());
+                    mSummariesLog.delete();
+                    mSummariesAreLost = true;
+                }
             }
 
-            Log.d(LOG_TAG, "loadSummaries " + filenames.length + " rooms in " + (System.currentTimeMillis() - start) + " ms");
+            Log.d(LOG_TAG, "loadSummaries " + mRoomSummaries.size() + " rooms in " + (System.currentTimeMillis() - start) + " ms");
+
+            // legacy format
+            String[] filenames = mStoreRoomsSummaryFolderFile.list();
+
+            if ((null != filenames) && (filenames.length > 0)) {
+                start = System.currentTimeMillis();
+
+                // the summaries are loaded in parallel by the rooms workers
+                final CountDownLatch latch = new CountDownLatch(filenames.length);
+
+                for (final String roomId : filenames) {
+                    boolean isPosted = postToRoomWorker(roomId, new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                if (roomId.endsWith(MXFileStoreCodec.TEMPORARY_FILE_SUFFIX)) {
+                                    // the application was killed while writing the summary
+                                    new File(mStoreRoomsSummaryFolderFile, roomId).delete();
+                                } else if (!loadSummary(roomId)) {
+                                    // only this room is retrieved again
+                                    quarantineRoom(roomId);
+                                }
+                            } finally {
+                                latch.countDown();
+                            }
+                        }
+                    });
+
+                    if (!isPosted) {
+                        latch.countDown();
+                    }
+                }
+
+                if (!latch.await(LOAD_SUMMARIES_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                    // the legacy files are kept : they are converted at the next launch
+                    Log.e(LOG_TAG, "loadSummaries : the summaries files are not loaded after " + LOAD_SUMMARIES_TIMEOUT_MS + " ms");
+                } else if (!isKilled()) {
+                    // the legacy files are useless once the summaries file is written
+                    mSummariesLog.writeSnapshot(mRoomSummaries.values());
+                    mDiskUsage.set(DISK_USAGE_SUMMARIES_KEY, mSummariesLog.getDiskUsage());
+
+                    for (String filename : filenames) {
+                        // the files of the quarantined rooms are moved by their workers
+                        if (!mQuarantinedRoomIds.contains(filename)) {
+                            new File(mStoreRoomsSummaryFolderFile, filename).delete();
+                        }
+                    }
+
+                    Log.d(LOG_TAG, "loadSummaries : convert " + filenames.length + " summaries files in " + (System.currentTimeMillis() - start) + " ms");
+                }
+            }
         }
         catch (Exception e) {
             succeed = false;
@@ -1237,6 +2432,76 @@ public class MXFileStore extends MXMemoryStore {
         return succeed;
     }
 
+    /**
+     * Load the messages index.
+     * If it cannot be loaded, it is rebuilt with the rooms messages when they are loaded.
+     */
+    private void loadMessagesIndex() {
+        long start = System.currentTimeMillis();
+
+        try {
+            if (mMessagesIndexLog.exists()) {
+                mMessagesIndexLog.load(mMessagesIndex);
+            } else {
+                mMessagesIndexIsLost = true;
+            }
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "loadMessagesIndex failed : " + e.getMessage());
+            mMessagesIndex.clear();
+            mMessagesIndexIsLost = true;
+        }
+
+        // the loaded messages are already saved
+        mMessagesIndex.popChanges();
+
+        Log.d(LOG_TAG, "loadMessagesIndex : " + mMessagesIndex.size() + " messages in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /**
+     * Save the messages index updates.
+     */
+    private void saveMessagesIndex() {
+        if (null == mFileStoreHandler) {
+            return;
+        }
+
+        final Map<String, MessagesIndex.Entry> fChanges = mMessagesIndex.popChanges();
+
+        if ((null != fChanges) && (fChanges.size() > 0)) {
+            mFileStoreHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (!isKilled()) {
+                        long start = System.currentTimeMillis();
+
+                        try {
+                            mMessagesIndexLog.save(fChanges, mMessagesIndex);
+                        } catch (Exception e) {
+                            Log.e(LOG_TAG, "saveMessagesIndex failed : " + e.getMessage());
+                        }
+
+                        mDiskUsage.set(DISK_USAGE_MESSAGES_INDEX_KEY, mMessagesIndexLog.getDiskUsage());
+
+                        Log.d(LOG_TAG, "saveMessagesIndex " + fChanges.size() + " messages in " + (System.currentTimeMillis() - start) + " ms");
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * The summaries file was corrupted : the rooms without summary are retrieved again.
+     */
+    private void quarantineRoomsWithoutSummary() {
+        mSummariesAreLost = false;
+
+        for (String roomId : new ArrayList<String>(mRooms.keySet())) {
+            if (null == mRoomSummaries.get(roomId)) {
+                quarantineRoom(roomId);
+            }
+        }
+    }
+
     /**
      * Load the metadata info from the file system.
      */
@@ -1283,39 +2548,39 @@ public class MXFileStore extends MXMemoryStore {
 
             final MXFileStoreMetaData fMetadata = mMetadata.deepCopy();
 
-            Runnable r = new Runnable() {
-                @Override
+            mFileStoreHandler.post(new Runnable() {
                 public void run() {
-                    mFileStoreHandler.post(new Runnable() {
-                        public void run() {
-                            if (!mIsKilled) {
-                                long start = System.currentTimeMillis();
-
-                                try {
-                                    File metaDataFile = new File(mStoreFolderFile, MXFILE_STORE_METADATA_FILE_NAME);
-
-                                    if (metaDataFile.exists()) {
-                                        metaDataFile.delete();
-                                    }
-
-                                    FileOutputStream fos = new FileOutputStream(metaDataFile);
-                                    ObjectOutputStream out = new ObjectOutputStream(fos);
+                    if (!mIsKilled) {
+                        long start = System.currentTimeMillis();
+
+                        File metaDataFile = new File(mStoreFolderFile, MXFILE_STORE_METADATA_FILE_NAME);
+                        // the previous metadata are kept until the new ones are completely written
+                        File tmpFile = new File(metaDataFile.getPath() + MXFileStoreCodec.TEMPORARY_FILE_SUFFIX);
+
+                        try {
+                            FileOutputStream fos = new FileOutputStream(tmpFile);
+
+                            try {
+                                ObjectOutputStream out = new ObjectOutputStream(fos);
+                                out.writeObject(fMetadata);
+                                out.flush();
+                                fos.getFD().sync();
+                            } finally {
+                                fos.close();
+                            }
 
-                                    out.writeObject(fMetadata);
-                                    out.close();
-                                } catch (Exception e) {
-                                    Log.e(LOG_TAG, "saveMetaData failed : " + e.getMessage());
-                                }
+                            MXFileStoreCodec.replaceFile(tmpFile, metaDataFile);
 
-                                Log.d(LOG_TAG, "saveMetaData : " + (System.currentTimeMillis() - start) + " ms");
-                            }
+                            mDiskUsage.set(DISK_USAGE_METADATA_KEY, metaDataFile.length());
+                        } catch (Exception e) {
+                            Log.e(LOG_TAG, "saveMetaData failed : " + e.getMessage());
+                            tmpFile.delete();
                         }
-                    });
-                }
-            };
 
-            Thread t = new Thread(r);
-            t.start();
+                        Log.d(LOG_TAG, "saveMetaData : " + (System.currentTimeMillis() - start) + " ms");
+                    }
+                }
+            });
         }
     }
 }
@@ -0,0 +1,1534 @@
+/*
+ * Copyright 2015 OpenMarket Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.matrix.androidsdk.data;
+
+import org.matrix.androidsdk.rest.model.Event;
+import org.matrix.androidsdk.rest.model.MatrixError;
+import org.matrix.androidsdk.rest.model.PowerLevels;
+import org.matrix.androidsdk.rest.model.RoomMember;
+import org.matrix.androidsdk.util.IdentifierPool;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Versioned binary codec used by the file store to save the events, the room states and the room summaries.
+ *
+ * The repeated strings (user ids, room ids, event types, memberships...) are stored in a string table :
+ * the first occurrence is defined inline, the next ones are written as an index in the table.
+ * The events contents are stored as raw UTF-8 JSON bytes.
+ *
+ * An encoded file or log segment starts with a header (magic, codec version, compression flag)
+ * so the files saved with the java serialization can be detected and converted.
+ *
+ * Since the version 2, a file ends with the CRC32 of the bytes following its header
+ * and it is written in a temporary file which replaces the previous one when it is complete.
+ */
+public class MXFileStoreCodec {
+
+    // the current codec version
+    public static final int CODEC_VERSION = 2;
+
+    // the first version with checksums
+    public static final int CHECKSUM_VERSION = 2;
+
+    // the suffix of the files being written
+    public static final String TEMPORARY_FILE_SUFFIX = ".tmp";
+
+    // the header : "MXC" + version + compression flag
+    private static final byte[] MAGIC = {'M', 'X', 'C'};
+    public static final int HEADER_LENGTH = MAGIC.length + 2;
+
+    private static final byte COMPRESSION_NONE = 0;
+    private static final byte COMPRESSION_DEFLATE = 1;
+
+    // the contents larger than this size are deflated when the stream is not compressed
+    private static final int CONTENT_COMPRESSION_THRESHOLD = 256;
+
+    // the content flags
+    private static final byte CONTENT_NULL = 0;
+    private static final byte CONTENT_RAW = 1;
+    private static final byte CONTENT_DEFLATED = 2;
+
+    // the string table references
+    private static final int SYMBOL_NULL = 0;
+    private static final int SYMBOL_DEFINITION = 1;
+    private static final int SYMBOL_INDEX_OFFSET = 2;
+
+    // the compression level (see java.util.zip.Deflater)
+    private volatile int mCompressionLevel = Deflater.BEST_SPEED;
+
+    // the pool of the read identifiers (null to not pool them)
+    private volatile IdentifierPool mIdentifierPool = null;
+
+    /**
+     * Update the compression level.
+     * @param level the compression level (Deflater.NO_COMPRESSION to Deflater.BEST_COMPRESSION).
+     */
+    public void setCompressionLevel(int level) {
+        if ((level < Deflater.DEFAULT_COMPRESSION) || (level > Deflater.BEST_COMPRESSION)) {
+            throw new IllegalArgumentException("Invalid compression level " + level);
+        }
+
+        mCompressionLevel = level;
+    }
+
+    /**
+     * @return the compression level.
+     */
+    public int getCompressionLevel() {
+        return mCompressionLevel;
+    }
+
+    /**
+     * Update the pool of the identifiers : the symbols and the identifiers read from the files are pooled.
+     * @param identifierPool the identifiers pool of the session, null to not pool them.
+     */
+    public void setIdentifierPool(IdentifierPool identifierPool) {
+        mIdentifierPool = identifierPool;
+    }
+
+    /**
+     * Create an input which pools the read identifiers.
+     * @param in the input stream
+     * @param strings the string table
+     * @param version the codec version of the stream.
+     * @return the input
+     */
+    public Input newInput(InputStream in, StringTable strings, int version) {
+        return new Input(in, strings, version, mIdentifierPool);
+    }
+
+    //==============================================================================================================
+    // String table
+    //==============================================================================================================
+
+    /**
+     * The strings defined in an encoded stream.
+     * The writer and the reader of a stream build the same table.
+     */
+    public static class StringTable {
+        private final ArrayList<String> mStrings = new ArrayList<String>();
+        private final HashMap<String, Integer> mIndexes = new HashMap<String, Integer>();
+
+        private Integer indexOf(String value) {
+            return mIndexes.get(value);
+        }
+
+        private void add(String value) {
+            mIndexes.put(value, mStrings.size());
+            mStrings.add(value);
+        }
+
+        private String get(int index) throws IOException {
+            if ((index < 0) || (index >= mStrings.size())) {
+                throw new IOException("Invalid string index " + index);
+            }
+
+            return mStrings.get(index);
+        }
+
+        /**
+         * @return the number of defined strings.
+         */
+        public int size() {
+            return mStrings.size();
+        }
+    }
+
+    //==============================================================================================================
+    // Output
+    //==============================================================================================================
+
+    /**
+     * An encoding session.
+     * The output must be released to free the compressor.
+     */
+    public static class Output {
+        private final DataOutputStream mOut;
+        private final StringTable mStrings;
+        // the contents compressor (null when the contents are not compressed)
+        private final Deflater mDeflater;
+        private byte[] mBuffer = null;
+
+        /**
+         * Constructor
+         * @param out the output stream
+         * @param strings the string table
+         * @param contentsCompressionLevel the compression level of the large contents (Deflater.NO_COMPRESSION to disable)
+         */
+        public Output(OutputStream out, StringTable strings, int contentsCompressionLevel) {
+            mOut = (out instanceof DataOutputStream) ? (DataOutputStream) out : new DataOutputStream(out);
+            mStrings = strings;
+            mDeflater = (Deflater.NO_COMPRESSION != contentsCompressionLevel) ? new Deflater(contentsCompressionLevel, true) : null;
+        }
+
+        public void writeByte(int value) throws IOException {
+            mOut.writeByte(value);
+        }
+
+        public void writeBoolean(boolean value) throws IOException {
+            mOut.writeBoolean(value);
+        }
+
+        /**
+         * Write an unsigned variable length integer.
+         * @param value the value
+         * @throws IOException
+         */
+        public void writeVarInt(int value) throws IOException {
+            while ((value & ~0x7F) != 0) {
+                mOut.writeByte((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            mOut.writeByte(value);
+        }
+
+        /**
+         * Write an unsigned variable length long.
+         * @param value the value
+         * @throws IOException
+         */
+        public void writeVarLong(long value) throws IOException {
+            while ((value & ~0x7FL) != 0) {
+                mOut.writeByte((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            mOut.writeByte((int) value);
+        }
+
+        /**
+         * Write a signed variable length integer (zigzag encoding).
+         * @param value the value
+         * @throws IOException
+         */
+        public void writeSignedVarInt(int value) throws IOException {
+            writeVarInt((value << 1) ^ (value >> 31));
+        }
+
+        /**
+         * Write a signed variable length long (zigzag encoding).
+         * @param value the value
+         * @throws IOException
+         */
+        public void writeSignedVarLong(long value) throws IOException {
+            writeVarLong((value << 1) ^ (value >> 63));
+        }
+
+        private void writeBytes(byte[] bytes) throws IOException {
+            writeVarInt(bytes.length);
+            mOut.write(bytes);
+        }
+
+        /**
+         * Write a string which is not shared (e.g. an event id, a token).
+         * @param value the string
+         * @throws IOException
+         */
+        public void writeString(String value) throws IOException {
+            if (null == value) {
+                writeVarInt(0);
+            } else {
+                byte[] bytes = value.getBytes("UTF-8");
+                writeVarInt(bytes.length + 1);
+                mOut.write(bytes);
+            }
+        }
+
+        /**
+         * Write a repeated string (e.g. an user id, an event type) through the string table.
+         * @param value the string
+         * @throws IOException
+         */
+        public void writeSymbol(String value) throws IOException {
+            if (null == value) {
+                writeVarInt(SYMBOL_NULL);
+                return;
+            }
+
+            Integer index = mStrings.indexOf(value);
+
+            if (null != index) {
+                writeVarInt(index + SYMBOL_INDEX_OFFSET);
+            } else {
+                writeVarInt(SYMBOL_DEFINITION);
+                writeBytes(value.getBytes("UTF-8"));
+                mStrings.add(value);
+            }
+        }
+
+        /**
+         * Write a JSON content as raw UTF-8 bytes.
+         * @param value the JSON string.
+         * @throws IOException
+         */
+        public void writeContent(String value) throws IOException {
+            if (null == value) {
+                mOut.writeByte(CONTENT_NULL);
+                return;
+            }
+
+            byte[] bytes = value.getBytes("UTF-8");
+
+            if ((null != mDeflater) && (bytes.length >= CONTENT_COMPRESSION_THRESHOLD)) {
+                if ((null == mBuffer) || (mBuffer.length < bytes.length)) {
+                    mBuffer = new byte[bytes.length];
+                }
+
+                mDeflater.reset();
+                mDeflater.setInput(bytes);
+                mDeflater.finish();
+                int compressedLength = mDeflater.deflate(mBuffer, 0, bytes.length);
+
+                // only keep the compressed bytes if they are smaller
+                if (mDeflater.finished() && (compressedLength < bytes.length)) {
+                    mOut.writeByte(CONTENT_DEFLATED);
+                    writeVarInt(bytes.length);
+                    writeVarInt(compressedLength);
+                    mOut.write(mBuffer, 0, compressedLength);
+                    return;
+                }
+            }
+
+            mOut.writeByte(CONTENT_RAW);
+            writeBytes(bytes);
+        }
+
+        /**
+         * Flush the underlying stream.
+         * @throws IOException
+         */
+        public void flush() throws IOException {
+            mOut.flush();
+        }
+
+        /**
+         * Release the compressor.
+         * The underlying stream is not closed.
+         */
+        public void release() {
+            if (null != mDeflater) {
+                mDeflater.end();
+            }
+        }
+    }
+
+    //==============================================================================================================
+    // Input
+    //==============================================================================================================
+
+    /**
+     * A decoding session.
+     * The input must be released to free the decompressor.
+     */
+    public static class Input {
+        private final DataInputStream mIn;
+        private final StringTable mStrings;
+        private final int mVersion;
+        // the pool of the read identifiers (null to not pool them)
+        private final IdentifierPool mIdentifierPool;
+        private Inflater mInflater = null;
+
+        /**
+         * Constructor
+         * @param in the input stream
+         * @param strings the string table
+         * @param version the codec version of the stream.
+         */
+        public Input(InputStream in, StringTable strings, int version) {
+            this(in, strings, version, null);
+        }
+
+        /**
+         * Constructor
+         * @param in the input stream
+         * @param strings the string table
+         * @param version the codec version of the stream.
+         * @param identifierPool the pool of the read symbols and identifiers, null to not pool them.
+         */
+        public Input(InputStream in, StringTable strings, int version, IdentifierPool identifierPool) {
+            mIn = (in instanceof DataInputStream) ? (DataInputStream) in : new DataInputStream(in);
+            mStrings = strings;
+            mVersion = version;
+            mIdentifierPool = identifierPool;
+        }
+
+        private String intern(String value) {
+            return (null != mIdentifierPool) ? mIdentifierPool.intern(value) : value;
+        }
+
+        /**
+         * @return the codec version of the stream.
+         */
+        public int getVersion() {
+            return mVersion;
+        }
+
+        public byte readByte() throws IOException {
+            return mIn.readByte();
+        }
+
+        public boolean readBoolean() throws IOException {
+            return mIn.readBoolean();
+        }
+
+        public int readVarInt() throws IOException {
+            int value = 0;
+            int shift = 0;
+            int b;
+
+            do {
+                if (shift > 28) {
+                    throw new IOException("Malformed variable length integer");
+                }
+
+                b = mIn.readUnsignedByte();
+                value |= (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+
+            return value;
+        }
+
+        public long readVarLong() throws IOException {
+            long value = 0;
+            int shift = 0;
+            int b;
+
+            do {
+                if (shift > 63) {
+                    throw new IOException("Malformed variable length long");
+                }
+
+                b = mIn.readUnsignedByte();
+                value |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+
+            return value;
+        }
+
+        public int readSignedVarInt() throws IOException {
+            int value = readVarInt();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        public long readSignedVarLong() throws IOException {
+            long value = readVarLong();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        private byte[] readBytes(int length) throws IOException {
+            if (length < 0) {
+                throw new IOException("Invalid length " + length);
+            }
+
+            byte[] bytes = new byte[length];
+            mIn.readFully(bytes);
+            return bytes;
+        }
+
+        public String readString() throws IOException {
+            int length = readVarInt();
+
+            if (0 == length) {
+                return null;
+            }
+
+            return new String(readBytes(length - 1), "UTF-8");
+        }
+
+        /**
+         * Read a string which is not a symbol but which is repeated (e.g. a display name).
+         * @return the pooled string
+         * @throws IOException
+         */
+        public String readIdentifier() throws IOException {
+            return intern(readString());
+        }
+
+        public String readSymbol() throws IOException {
+            int ref = readVarInt();
+
+            if (SYMBOL_NULL == ref) {
+                return null;
+            } else if (SYMBOL_DEFINITION == ref) {
+                String value = intern(new String(readBytes(readVarInt()), "UTF-8"));
+                mStrings.add(value);
+                return value;
+            }
+
+            return mStrings.get(ref - SYMBOL_INDEX_OFFSET);
+        }
+
+        public String readContent() throws IOException {
+            byte flag = mIn.readByte();
+
+            if (CONTENT_NULL == flag) {
+                return null;
+            } else if (CONTENT_RAW == flag) {
+                return new String(readBytes(readVarInt()), "UTF-8");
+            } else if (CONTENT_DEFLATED == flag) {
+                byte[] bytes = new byte[readVarInt()];
+                byte[] compressed = readBytes(readVarInt());
+
+                if (null == mInflater) {
+                    mInflater = new Inflater(true);
+                }
+
+                mInflater.reset();
+                mInflater.setInput(compressed);
+
+                try {
+                    int length = mInflater.inflate(bytes);
+
+                    if (length != bytes.length) {
+                        throw new IOException("Truncated content");
+                    }
+                } catch (DataFormatException e) {
+                    throw new IOException("Invalid compressed content : " + e.getMessage());
+                }
+
+                return new String(bytes, "UTF-8");
+            }
+
+            throw new IOException("Invalid content flag " + flag);
+        }
+
+        /**
+         * Release the decompressor.
+         * The underlying stream is not closed.
+         */
+        public void release() {
+            if (null != mInflater) {
+                mInflater.end();
+                mInflater = null;
+            }
+        }
+    }
+
+    //==============================================================================================================
+    // Header
+    //==============================================================================================================
+
+    /**
+     * Write an header.
+     * @param out the output stream.
+     * @param isCompressed true if the next bytes are deflated.
+     * @throws IOException
+     */
+    public static void writeHeader(OutputStream out, boolean isCompressed) throws IOException {
+        out.write(MAGIC);
+        out.write(CODEC_VERSION);
+        out.write(isCompressed ? COMPRESSION_DEFLATE : COMPRESSION_NONE);
+    }
+
+    /**
+     * Check if some bytes are an encoded header.
+     * @param header the first bytes of a file.
+     * @param length the number of bytes in header.
+     * @return true if they are an encoded header.
+     */
+    public static boolean isHeader(byte[] header, int length) {
+        if (length < HEADER_LENGTH) {
+            return false;
+        }
+
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (header[i] != MAGIC[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Extract the codec version from an header.
+     * @param header the header
+     * @return the codec version
+     * @throws IOException if the version is not supported.
+     */
+    public static int headerVersion(byte[] header) throws IOException {
+        int version = header[MAGIC.length] & 0xFF;
+
+        if ((version < 1) || (version > CODEC_VERSION)) {
+            throw new IOException("Unsupported codec version " + version);
+        }
+
+        return version;
+    }
+
+    /**
+     * @param header the header
+     * @return true if the next bytes are deflated.
+     */
+    private static boolean headerIsCompressed(byte[] header) {
+        return COMPRESSION_DEFLATE == header[MAGIC.length + 1];
+    }
+
+    /**
+     * Tell if a file has been saved with this codec.
+     * The other files have been saved with the java serialization.
+     * @param file the file
+     * @return true if the file starts with an encoded header.
+     */
+    public static boolean isEncodedFile(File file) {
+        byte[] header = new byte[HEADER_LENGTH];
+        int length = 0;
+
+        try {
+            FileInputStream fis = new FileInputStream(file);
+
+            try {
+                int read;
+
+                while ((length < HEADER_LENGTH) && ((read = fis.read(header, length, HEADER_LENGTH - length)) > 0)) {
+                    length += read;
+                }
+            } finally {
+                fis.close();
+            }
+        } catch (IOException e) {
+            return false;
+        }
+
+        return isHeader(header, length);
+    }
+
+    /**
+     * Compute the checksum of some bytes.
+     * @param bytes the bytes
+     * @param offset the offset of the first byte
+     * @param length the number of bytes
+     * @return the checksum
+     */
+    public static int checksum(byte[] bytes, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, offset, length);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Provides the checksum saved at the end of an encoded file.
+     * It identifies the file content without reading the whole file.
+     * @param file the file
+     * @return the checksum, null if the file has been saved without checksum.
+     * @throws IOException if the file cannot be read.
+     */
+    public static Integer fileChecksum(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+        try {
+            byte[] header = new byte[HEADER_LENGTH];
+
+            if ((raf.length() < (HEADER_LENGTH + 4)) || (raf.read(header) != HEADER_LENGTH) || !isHeader(header, HEADER_LENGTH)) {
+                return null;
+            }
+
+            if (headerVersion(header) < CHECKSUM_VERSION) {
+                return null;
+            }
+
+            raf.seek(raf.length() - 4);
+            return raf.readInt();
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Replace a file by its completely written temporary file.
+     * The previous file is kept until the rename so a crash never leaves a partial file.
+     * @param tmpFile the temporary file
+     * @param file the file
+     * @throws IOException if the file cannot be replaced.
+     */
+    public static void replaceFile(File tmpFile, File file) throws IOException {
+        if (!tmpFile.renameTo(file)) {
+            // some file systems do not replace an existing file
+            file.delete();
+
+            if (!tmpFile.renameTo(file)) {
+                tmpFile.delete();
+                throw new IOException("Cannot rename " + tmpFile.getName());
+            }
+        }
+    }
+
+    //==============================================================================================================
+    // Records
+    //==============================================================================================================
+
+    /**
+     * Write a record with its length and its checksum.
+     * @param out the output stream
+     * @param bytes the serialized record
+     * @return the written bytes count
+     * @throws IOException
+     */
+    public static long writeRecord(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+        out.writeInt(checksum(bytes, 0, bytes.length));
+
+        return bytes.length + 8;
+    }
+
+    /**
+     * Read a record written by writeRecord.
+     * @param in the input stream
+     * @param remainingLength the bytes count until the end of the file
+     * @return the serialized record, null at the end of the file.
+     * @throws EOFException if the record has been partially written at the end of the file.
+     * @throws IOException if the record is corrupted.
+     */
+    public static byte[] readRecord(DataInputStream in, long remainingLength) throws IOException {
+        if (0 == remainingLength) {
+            return null;
+        }
+
+        if (remainingLength < 8) {
+            throw new EOFException("Truncated record");
+        }
+
+        int length = in.readInt();
+
+        // the record length is partially written or corrupted
+        if ((length < 0) || ((8L + length) > remainingLength)) {
+            throw new EOFException("Truncated record");
+        }
+
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+
+        if (in.readInt() != checksum(bytes, 0, bytes.length)) {
+            // the latest record could have been partially written before a crash
+            if ((8L + length) == remainingLength) {
+                throw new EOFException("Truncated record");
+            }
+
+            throw new IOException("Invalid record checksum");
+        }
+
+        return bytes;
+    }
+
+    //==============================================================================================================
+    // Event
+    //==============================================================================================================
+
+    /**
+     * Encode an event.
+     * @param output the output
+     * @param event the event
+     * @throws IOException
+     */
+    public static void writeEvent(Output output, Event event) throws IOException {
+        output.writeSymbol(event.type);
+        output.writeSymbol(event.roomId);
+        output.writeSymbol(event.userId);
+        output.writeString(event.eventId);
+        output.writeVarLong(event.originServerTs);
+        output.writeSignedVarLong(event.age);
+        output.writeSymbol(event.stateKey);
+        output.writeString(event.redacts);
+        output.writeContent(event.getContentAsString());
+        output.writeContent(event.getPrevContentAsString());
+
+        output.writeByte((null != event.mSentState) ? event.mSentState.ordinal() : Event.SentState.SENT.ordinal());
+        output.writeString(event.mToken);
+        output.writeBoolean((null != event.mIsInternalPaginationToken) && event.mIsInternalPaginationToken);
+        output.writeSymbol(event.getMatrixId());
+
+        // the exception cannot be restored : only keep its description
+        if (null != event.unsentException) {
+            output.writeBoolean(true);
+            output.writeString(event.unsentException.getMessage());
+        } else {
+            output.writeBoolean(false);
+        }
+
+        if (null != event.unsentMatrixError) {
+            output.writeBoolean(true);
+            output.writeSymbol(event.unsentMatrixError.errcode);
+            output.writeString(event.unsentMatrixError.error);
+            output.writeVarInt((null != event.unsentMatrixError.retry_after_ms) ? (event.unsentMatrixError.retry_after_ms + 1) : 0);
+        } else {
+            output.writeBoolean(false);
+        }
+    }
+
+    /**
+     * Decode an event.
+     * @param input the input
+     * @return the event
+     * @throws IOException
+     */
+    public static Event readEvent(Input input) throws IOException {
+        Event event = new Event();
+
+        event.type = input.readSymbol();
+        event.roomId = input.readSymbol();
+        event.userId = input.readSymbol();
+        event.eventId = input.readString();
+        event.originServerTs = input.readVarLong();
+        event.age = input.readSignedVarLong();
+        event.stateKey = input.readSymbol();
+        event.redacts = input.readString();
+
+        String content = input.readContent();
+        String prevContent = input.readContent();
+        event.setContentsAsString(content, prevContent);
+
+        int sentState = input.readByte();
+        Event.SentState[] sentStates = Event.SentState.values();
+
+        if ((sentState < 0) || (sentState >= sentStates.length)) {
+            throw new IOException("Invalid sent state " + sentState);
+        }
+
+        event.mSentState = sentStates[sentState];
+        event.mToken = input.readString();
+        event.mIsInternalPaginationToken = input.readBoolean();
+        event.setMatrixId(input.readSymbol());
+
+        if (input.readBoolean()) {
+            event.unsentException = new Exception(input.readString());
+        }
+
+        if (input.readBoolean()) {
+            event.unsentMatrixError = new MatrixError();
+            event.unsentMatrixError.errcode = input.readSymbol();
+            event.unsentMatrixError.error = input.readString();
+
+            int retryAfterMs = input.readVarInt();
+            event.unsentMatrixError.retry_after_ms = (0 != retryAfterMs) ? (retryAfterMs - 1) : null;
+        }
+
+        return event;
+    }
+
+    //==============================================================================================================
+    // Room state
+    //==============================================================================================================
+
+    private static void writeIntegersMap(Output output, Map<String, Integer> map) throws IOException {
+        if (null == map) {
+            output.writeVarInt(0);
+            return;
+        }
+
+        int count = 0;
+
+        for (Map.Entry<String, Integer> entry : map.entrySet()) {
+            if ((null != entry.getKey()) && (null != entry.getValue())) {
+                count++;
+            }
+        }
+
+        output.writeVarInt(count);
+
+        for (Map.Entry<String, Integer> entry : map.entrySet()) {
+            if ((null != entry.getKey()) && (null != entry.getValue())) {
+                output.writeSymbol(entry.getKey());
+                output.writeSignedVarInt(entry.getValue());
+            }
+        }
+    }
+
+    private static void readIntegersMap(Input input, Map<String, Integer> map) throws IOException {
+        int count = input.readVarInt();
+
+        for (int i = 0; i < count; i++) {
+            String key = input.readSymbol();
+            map.put(key, input.readSignedVarInt());
+        }
+    }
+
+    /**
+     * Encode a room state.
+     * @param output the output
+     * @param state the room state
+     * @throws IOException
+     */
+    public static void writeRoomState(Output output, RoomState state) throws IOException {
+        writeRoomStateFields(output, state);
+
+        Collection<RoomMember> members = state.getMembers();
+        output.writeVarInt(members.size());
+
+        for (RoomMember member : members) {
+            writeRoomMember(output, member);
+        }
+
+        writePowerLevels(output, state.getPowerLevels());
+    }
+
+    /**
+     * Decode a room state.
+     * @param input the input
+     * @return the room state
+     * @throws IOException
+     */
+    public static RoomState readRoomState(Input input) throws IOException {
+        RoomState state = new RoomState();
+
+        readRoomStateFields(input, state);
+
+        int membersCount = input.readVarInt();
+
+        for (int i = 0; i < membersCount; i++) {
+            RoomMember member = readRoomMember(input);
+            state.setMember(member.getUserId(), member);
+        }
+
+        state.setPowerLevels(readPowerLevels(input));
+
+        return state;
+    }
+
+    /**
+     * Encode the room state fields which are not the members nor the power levels.
+     * @param output the output
+     * @param state the room state
+     * @throws IOException
+     */
+    public static void writeRoomStateFields(Output output, RoomState state) throws IOException {
+        output.writeSymbol(state.roomId);
+        output.writeString(state.name);
+        output.writeString(state.topic);
+        output.writeString(state.roomAliasName);
+        output.writeSymbol(state.visibility);
+        output.writeSymbol(state.creator);
+        output.writeSymbol(state.joinRule);
+
+        List<String> aliases = state.aliases;
+
+        if (null == aliases) {
+            output.writeVarInt(0);
+        } else {
+            output.writeVarInt(aliases.size() + 1);
+
+            for (String alias : aliases) {
+                output.writeString(alias);
+            }
+        }
+
+        output.writeString(state.getToken());
+    }
+
+    /**
+     * Decode the room state fields which are not the members nor the power levels.
+     * @param input the input
+     * @param state the room state to update
+     * @throws IOException
+     */
+    public static void readRoomStateFields(Input input, RoomState state) throws IOException {
+        state.roomId = input.readSymbol();
+        state.name = input.readString();
+        state.topic = input.readString();
+        state.roomAliasName = input.readString();
+        state.visibility = input.readSymbol();
+        state.creator = input.readSymbol();
+        state.joinRule = input.readSymbol();
+
+        int aliasesCount = input.readVarInt();
+
+        if (0 != aliasesCount) {
+            state.aliases = new ArrayList<String>(aliasesCount - 1);
+
+            for (int i = 0; i < (aliasesCount - 1); i++) {
+                state.aliases.add(input.readString());
+            }
+        } else {
+            state.aliases = null;
+        }
+
+        state.setToken(input.readString());
+    }
+
+    /**
+     * Encode a room member.
+     * @param output the output
+     * @param member the room member
+     * @throws IOException
+     */
+    public static void writeRoomMember(Output output, RoomMember member) throws IOException {
+        output.writeSymbol(member.getUserId());
+        output.writeString(member.displayname);
+        output.writeString(member.avatarUrl);
+        output.writeSymbol(member.membership);
+    }
+
+    /**
+     * Decode a room member.
+     * @param input the input
+     * @return the room member
+     * @throws IOException
+     */
+    public static RoomMember readRoomMember(Input input) throws IOException {
+        RoomMember member = new RoomMember();
+        member.setUserId(input.readSymbol());
+        member.displayname = input.readIdentifier();
+        member.avatarUrl = input.readIdentifier();
+        member.membership = input.readSymbol();
+        return member;
+    }
+
+    /**
+     * Encode some power levels.
+     * @param output the output
+     * @param powerLevels the power levels (can be null)
+     * @throws IOException
+     */
+    public static void writePowerLevels(Output output, PowerLevels powerLevels) throws IOException {
+        if (null == powerLevels) {
+            output.writeBoolean(false);
+        } else {
+            output.writeBoolean(true);
+            output.writeSignedVarInt(powerLevels.ban);
+            output.writeSignedVarInt(powerLevels.kick);
+            output.writeSignedVarInt(powerLevels.invite);
+            output.writeSignedVarInt(powerLevels.redact);
+            output.writeSignedVarInt(powerLevels.eventsDefault);
+            writeIntegersMap(output, powerLevels.events);
+            output.writeSignedVarInt(powerLevels.usersDefault);
+            writeIntegersMap(output, powerLevels.users);
+            output.writeSignedVarInt(powerLevels.stateDefault);
+        }
+    }
+
+    /**
+     * Decode some power levels.
+     * @param input the input
+     * @return the power levels (can be null)
+     * @throws IOException
+     */
+    public static PowerLevels readPowerLevels(Input input) throws IOException {
+        if (!input.readBoolean()) {
+            return null;
+        }
+
+        PowerLevels powerLevels = new PowerLevels();
+        powerLevels.ban = input.readSignedVarInt();
+        powerLevels.kick = input.readSignedVarInt();
+        powerLevels.invite = input.readSignedVarInt();
+        powerLevels.redact = input.readSignedVarInt();
+        powerLevels.eventsDefault = input.readSignedVarInt();
+        readIntegersMap(input, powerLevels.events);
+        powerLevels.usersDefault = input.readSignedVarInt();
+        readIntegersMap(input, powerLevels.users);
+        powerLevels.stateDefault = input.readSignedVarInt();
+        return powerLevels;
+    }
+
+    //==============================================================================================================
+    // Room summary
+    //==============================================================================================================
+
+    /**
+     * Encode a room summary.
+     * @param output the output
+     * @param summary the room summary
+     * @throws IOException
+     */
+    public static void writeRoomSummary(Output output, RoomSummary summary) throws IOException {
+        output.writeSymbol(summary.getRoomId());
+        output.writeString(summary.getName());
+        output.writeString(summary.getRoomTopic());
+
+        Event latestEvent = summary.getLatestEvent();
+
+        if (null != latestEvent) {
+            output.writeBoolean(true);
+            writeEvent(output, latestEvent);
+        } else {
+            output.writeBoolean(false);
+        }
+
+        output.writeSymbol(summary.getInviterUserId());
+        output.writeBoolean(summary.getIsInvited());
+        output.writeString(summary.getInviterName());
+        output.writeSymbol(summary.getMatrixId());
+        output.writeBoolean(summary.getIsHighlighted());
+        output.writeVarInt(summary.getUnreadMessagesCount());
+    }
+
+    /**
+     * Decode a room summary.
+     * @param input the input
+     * @return the room summary
+     * @throws IOException
+     */
+    public static RoomSummary readRoomSummary(Input input) throws IOException {
+        RoomSummary summary = new RoomSummary();
+
+        summary.setRoomId(input.readSymbol());
+        summary.setName(input.readString());
+        summary.setTopic(input.readString());
+
+        if (input.readBoolean()) {
+            summary.setLatestEvent(readEvent(input));
+        }
+
+        summary.setInviterUserId(input.readSymbol());
+        boolean isInvited = input.readBoolean();
+        summary.setInvitation(isInvited, input.readString());
+        summary.setMatrixId(input.readSymbol());
+        summary.setHighlighted(input.readBoolean());
+        summary.setUnreadMessagesCount(input.readVarInt());
+
+        return summary;
+    }
+
+    //==============================================================================================================
+    // Messages index
+    //==============================================================================================================
+
+    /**
+     * Encode an indexed message.
+     * @param output the output
+     * @param entry the indexed message
+     * @throws IOException
+     */
+    public static void writeMessagesIndexEntry(Output output, MessagesIndex.Entry entry) throws IOException {
+        output.writeString(entry.mEventId);
+        output.writeSymbol(entry.mRoomId);
+        output.writeVarLong(entry.mTimestamp);
+        output.writeVarInt(entry.mTokens.length);
+
+        // the common words are shared by the messages
+        for (String token : entry.mTokens) {
+            output.writeSymbol(token);
+        }
+    }
+
+    /**
+     * Decode an indexed message.
+     * @param input the input
+     * @return the indexed message
+     * @throws IOException
+     */
+    public static MessagesIndex.Entry readMessagesIndexEntry(Input input) throws IOException {
+        String eventId = input.readString();
+        String roomId = input.readSymbol();
+        long timestamp = input.readVarLong();
+        String[] tokens = new String[input.readVarInt()];
+
+        for (int i = 0; i < tokens.length; i++) {
+            tokens[i] = input.readSymbol();
+        }
+
+        return new MessagesIndex.Entry(eventId, roomId, timestamp, tokens);
+    }
+
+    //==============================================================================================================
+    // Files
+    //==============================================================================================================
+
+    /**
+     * Open an encoded file for writing.
+     * The file is deflated with the current compression level.
+     * The data are written in a temporary file : the file is only replaced by OutputHolder.commit.
+     * @param file the file
+     * @return the output
+     * @throws IOException
+     */
+    private OutputHolder openOutputFile(File file) throws IOException {
+        int level = mCompressionLevel;
+        boolean isCompressed = (Deflater.NO_COMPRESSION != level);
+
+        OutputHolder holder = new OutputHolder();
+        holder.mFile = file;
+        holder.mTmpFile = new File(file.getPath() + TEMPORARY_FILE_SUFFIX);
+        holder.mFileStream = new FileOutputStream(holder.mTmpFile);
+
+        try {
+            writeHeader(holder.mFileStream, isCompressed);
+        } catch (IOException e) {
+            holder.mFileStream.close();
+            holder.mTmpFile.delete();
+            throw e;
+        }
+
+        holder.mCheckedStream = new CheckedOutputStream(holder.mFileStream, new CRC32());
+        OutputStream stream = holder.mCheckedStream;
+
+        if (isCompressed) {
+            holder.mDeflater = new Deflater(level, true);
+            holder.mDeflaterStream = new DeflaterOutputStream(stream, holder.mDeflater, 8192);
+            stream = holder.mDeflaterStream;
+        }
+
+        holder.mStream = new DataOutputStream(new BufferedOutputStream(stream, 8192));
+        // the file is compressed as a whole : do not compress the contents twice
+        holder.mOutput = new Output(holder.mStream, new StringTable(), Deflater.NO_COMPRESSION);
+
+        return holder;
+    }
+
+    /**
+     * The streams of an output file.
+     */
+    private static class OutputHolder {
+        File mFile;
+        File mTmpFile;
+        FileOutputStream mFileStream;
+        CheckedOutputStream mCheckedStream;
+        DeflaterOutputStream mDeflaterStream;
+        DataOutputStream mStream;
+        Deflater mDeflater;
+        Output mOutput;
+        boolean mIsCommitted = false;
+
+        /**
+         * Append the checksum, sync the temporary file and replace the file.
+         * @throws IOException
+         */
+        void commit() throws IOException {
+            mStream.flush();
+
+            if (null != mDeflaterStream) {
+                mDeflaterStream.finish();
+            }
+
+            int checksum = (int) mCheckedStream.getChecksum().getValue();
+            DataOutputStream trailer = new DataOutputStream(mFileStream);
+            trailer.writeInt(checksum);
+            trailer.flush();
+
+            mFileStream.getFD().sync();
+            mFileStream.close();
+
+            replaceFile(mTmpFile, mFile);
+            mIsCommitted = true;
+        }
+
+        /**
+         * Release the streams. The temporary file is deleted if it has not been committed.
+         */
+        void close() throws IOException {
+            try {
+                if (!mIsCommitted) {
+                    mFileStream.close();
+                }
+            } finally {
+                mOutput.release();
+
+                if (null != mDeflater) {
+                    mDeflater.end();
+                }
+
+                if (!mIsCommitted) {
+                    mTmpFile.delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * The streams of an input file.
+     */
+    private static class InputHolder {
+        InputStream mStream;
+        Inflater mInflater;
+        Input mInput;
+
+        void close() throws IOException {
+            try {
+                mStream.close();
+            } finally {
+                mInput.release();
+
+                if (null != mInflater) {
+                    mInflater.end();
+                }
+            }
+        }
+    }
+
+    /**
+     * Open an encoded file for reading.
+     * The checksum of a version 2 file is checked before decoding it.
+     * @param file the file
+     * @return the input
+     * @throws IOException if the file is not an encoded file or if it is corrupted.
+     */
+    private InputHolder openInputFile(File file) throws IOException {
+        FileInputStream fis = new FileInputStream(file);
+        InputHolder holder = new InputHolder();
+
+        try {
+            byte[] header = new byte[HEADER_LENGTH];
+            new DataInputStream(fis).readFully(header);
+
+            if (!isHeader(header, header.length)) {
+                throw new IOException("Invalid header");
+            }
+
+            int version = headerVersion(header);
+            InputStream stream = fis;
+
+            if (version >= CHECKSUM_VERSION) {
+                long length = file.length() - HEADER_LENGTH - 4;
+
+                if ((length < 0) || (length > Integer.MAX_VALUE)) {
+                    throw new IOException("Invalid file length");
+                }
+
+                byte[] bytes = new byte[(int) length];
+                DataInputStream in = new DataInputStream(fis);
+                in.readFully(bytes);
+                int checksum = in.readInt();
+                fis.close();
+
+                if (checksum != checksum(bytes, 0, bytes.length)) {
+                    throw new IOException("Checksum mismatch in " + file.getName());
+                }
+
+                stream = new ByteArrayInputStream(bytes);
+            }
+
+            if (headerIsCompressed(header)) {
+                holder.mInflater = new Inflater(true);
+                stream = new InflaterInputStream(stream, holder.mInflater, 8192);
+            }
+
+            holder.mStream = new BufferedInputStream(stream, 8192);
+            holder.mInput = newInput(holder.mStream, new StringTable(), version);
+        } catch (IOException e) {
+            fis.close();
+
+            if (null != holder.mInflater) {
+                holder.mInflater.end();
+            }
+
+            throw e;
+        }
+
+        return holder;
+    }
+
+    /**
+     * Save a room state in a file.
+     * @param file the file
+     * @param state the room state
+     * @throws IOException
+     */
+    public void writeRoomStateFile(File file, RoomState state) throws IOException {
+        writeRoomStateFile(file, state, null);
+    }
+
+    /**
+     * Save a room state snapshot in a file.
+     * The snapshot id is written after the room state : it is ignored by readRoomStateFile
+     * but two snapshots of the same room state have different file checksums.
+     * @param file the file
+     * @param state the room state
+     * @param snapshotId the snapshot id (can be null)
+     * @throws IOException
+     */
+    public void writeRoomStateFile(File file, RoomState state, Long snapshotId) throws IOException {
+        OutputHolder holder = openOutputFile(file);
+
+        try {
+            writeRoomState(holder.mOutput, state);
+
+            if (null != snapshotId) {
+                holder.mOutput.writeVarLong(snapshotId);
+            }
+
+            holder.commit();
+        } finally {
+            holder.close();
+        }
+    }
+
+    /**
+     * Load a room state from a file.
+     * @param file the file
+     * @return the room state
+     * @throws IOException
+     */
+    public RoomState readRoomStateFile(File file) throws IOException {
+        InputHolder holder = openInputFile(file);
+
+        try {
+            return readRoomState(holder.mInput);
+        } finally {
+            holder.close();
+        }
+    }
+
+    /**
+     * Save a room summary in a file.
+     * @param file the file
+     * @param summary the room summary
+     * @throws IOException
+     */
+    public void writeRoomSummaryFile(File file, RoomSummary summary) throws IOException {
+        OutputHolder holder = openOutputFile(file);
+
+        try {
+            writeRoomSummary(holder.mOutput, summary);
+            holder.commit();
+        } finally {
+            holder.close();
+        }
+    }
+
+    /**
+     * Load a room summary from a file.
+     * @param file the file
+     * @return the room summary
+     * @throws IOException
+     */
+    public RoomSummary readRoomSummaryFile(File file) throws IOException {
+        InputHolder holder = openInputFile(file);
+
+        try {
+            return readRoomSummary(holder.mInput);
+        } finally {
+            holder.close();
+        }
+    }
+
+    /**
+     * Save some room summaries in a single file.
+     * The summaries share the string table of the file.
+     * @param file the file
+     * @param summaries the room summaries
+     * @param snapshotId the snapshot id written after the summaries (can be null)
+     * @throws IOException
+     */
+    public void writeRoomSummariesFile(File file, Collection<RoomSummary> summaries, Long snapshotId) throws IOException {
+        OutputHolder holder = openOutputFile(file);
+
+        try {
+            holder.mOutput.writeVarInt(summaries.size());
+
+            for (RoomSummary summary : summaries) {
+                writeRoomSummary(holder.mOutput, summary);
+            }
+
+            if (null != snapshotId) {
+                holder.mOutput.writeVarLong(snapshotId);
+            }
+
+            holder.commit();
+        } finally {
+            holder.close();
+        }
+    }
+
+    /**
+     * Load the room summaries saved with writeRoomSummariesFile.
+     * @param file the file
+     * @return the room summaries
+     * @throws IOException
+     */
+    public List<RoomSummary> readRoomSummariesFile(File file) throws IOException {
+        InputHolder holder = openInputFile(file);
+
+        try {
+            int count = holder.mInput.readVarInt();
+            ArrayList<RoomSummary> summaries = new ArrayList<RoomSummary>(count);
+
+            for (int i = 0; i < count; i++) {
+                summaries.add(readRoomSummary(holder.mInput));
+            }
+
+            return summaries;
+        } finally {
+            holder.close();
+        }
+    }
+
+    /**
+     * Save the indexed messages in a single file.
+     * @param file the file
+     * @param entries the indexed messages
+     * @param snapshotId the snapshot id written after the messages (can be null)
+     * @throws IOException
+     */
+    public void writeMessagesIndexFile(File file, Collection<MessagesIndex.Entry> entries, Long snapshotId) throws IOException {
+        OutputHolder holder = openOutputFile(file);
+
+        try {
+            holder.mOutput.writeVarInt(entries.size());
+
+            for (MessagesIndex.Entry entry : entries) {
+                writeMessagesIndexEntry(holder.mOutput, entry);
+            }
+
+            if (null != snapshotId) {
+                holder.mOutput.writeVarLong(snapshotId);
+            }
+
+            holder.commit();
+        } finally {
+            holder.close();
+        }
+    }
+
+    /**
+     * Load the indexed messages saved with writeMessagesIndexFile.
+     * @param file the file
+     * @return the indexed messages
+     * @throws IOException
+     */
+    public List<MessagesIndex.Entry> readMessagesIndexFile(File file) throws IOException {
+        InputHolder holder = openInputFile(file);
+
+        try {
+            int count = holder.mInput.readVarInt();
+            ArrayList<MessagesIndex.Entry> entries = new ArrayList<MessagesIndex.Entry>(count);
+
+            for (int i = 0; i < count; i++) {
+                entries.add(readMessagesIndexEntry(holder.mInput));
+            }
+
+            return entries;
+        } finally {
+            holder.close();
+        }
+    }
+}
@@ -0,0 +1,847 @@
+/*
+ * Copyright 2015 OpenMarket Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.matrix.androidsdk.data;
+
+import android.util.Log;
+
+import com.google.gson.JsonObject;
+
+import org.matrix.androidsdk.rest.model.Event;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Append-only segmented log of the events of a room.
+ *
+ * Each room owns a folder which contains numbered segment files.
+ * A segment is a sequence of length-prefixed records (new event, back paginated event, deletion,
+ * content update, pagination token). The records are only appended, so a commit costs the size
+ * of the new records, not the size of the room history.
+ *
+ * A segment starts with a codec header and its records share a string table (see MXFileStoreCodec).
+ * The segments written before the codec (without header) contain java serialized events :
+ * they are still replayed but the records are never appended to them.
+ * Since the codec version 2, each record is followed by its checksum. A partially written record
+ * at the end of the log is ignored (crash while appending) ; any other invalid record makes the replay fail.
+ *
+ * The room history is rebuilt by replaying the segments in order.
+ * The compaction replays the log, trims the history and writes it back as a single snapshot segment.
+ * The snapshot is written in a temporary file so a crash never leaves a partial snapshot.
+ * This class is not thread safe : it must be used from the file store background thread.
+ */
+public class MXFileStoreRoomLog {
+    private static final String LOG_TAG = "MXFileStoreRoomLog";
+
+    // a new segment is started when the current one reaches this size
+    private static final long SEGMENT_MAX_SIZE = 64 * 1024;
+
+    // the log is compacted when it contains more than this records count
+    private static final int COMPACTION_RECORDS_COUNT = 500;
+
+    // the log is compacted when it contains more than this segments count
+    private static final int COMPACTION_SEGMENTS_COUNT = 8;
+
+    private static final String SEGMENT_FILE_SUFFIX = ".log";
+
+    // the record types
+    private static final byte RECORD_APPEND = 1;
+    private static final byte RECORD_PREPEND = 2;
+    private static final byte RECORD_DELETE = 3;
+    private static final byte RECORD_UPDATE_CONTENT = 4;
+    private static final byte RECORD_TOKEN = 5;
+    // the history is cleared : the next records are a snapshot of the room history
+    private static final byte RECORD_RESET = 6;
+
+    /**
+     * A log record.
+     */
+    public static class Record {
+        private byte mType;
+        private String mKey;
+        private Event mEvent;
+        private String mValue;
+
+        private Record(byte type, String key, Event event, String value) {
+            mType = type;
+            mKey = key;
+            mEvent = event;
+            mValue = value;
+        }
+
+        /**
+         * @param event the event received from the events stream or from the initial sync.
+         * @return a record to add the event at the end of the history.
+         */
+        public static Record append(Event event) {
+            return new Record(RECORD_APPEND, event.eventId, event, null);
+        }
+
+        /**
+         * @param event a back paginated event.
+         * @return a record to add the event at the beginning of the history.
+         */
+        public static Record prepend(Event event) {
+            return new Record(RECORD_PREPEND, event.eventId, event, null);
+        }
+
+        /**
+         * @param eventId the id of the deleted event.
+         * @return a record to delete an event.
+         */
+        public static Record delete(String eventId) {
+            return new Record(RECORD_DELETE, eventId, null, null);
+        }
+
+        /**
+         * @param eventId the id of the updated event (e.g. redacted).
+         * @param content the new content
+         * @return a record to replace an event content
+         */
+        public static Record updateContent(String eventId, JsonObject content) {
+            return new Record(RECORD_UPDATE_CONTENT, eventId, null, (null != content) ? content.toString() : null);
+        }
+
+        /**
+         * @param token the new room pagination token.
+         * @return a record to update the room token.
+         */
+        public static Record token(String token) {
+            return new Record(RECORD_TOKEN, null, null, token);
+        }
+
+        private static Record reset() {
+            return new Record(RECORD_RESET, null, null, null);
+        }
+    }
+
+    /**
+     * The room history rebuilt from the log.
+     */
+    public static class Content {
+        public LinkedHashMap<String, Event> mEvents;
+        public String mToken;
+
+        /**
+         * Apply some records which are not yet in the log.
+         * The records can be applied again : an existing event keeps its position.
+         * @param records the records
+         */
+        public void apply(List<Record> records) {
+            for (Record record : records) {
+                switch (record.mType) {
+                    case RECORD_RESET:
+                        mEvents.clear();
+                        mToken = null;
+                        break;
+
+                    case RECORD_APPEND:
+                        mEvents.put(record.mKey, record.mEvent);
+                        break;
+
+                    case RECORD_PREPEND:
+                        if (mEvents.containsKey(record.mKey)) {
+                            mEvents.put(record.mKey, record.mEvent);
+                        } else {
+                            LinkedHashMap<String, Event> events = new LinkedHashMap<String, Event>();
+                            events.put(record.mKey, record.mEvent);
+                            events.putAll(mEvents);
+                            mEvents = events;
+                        }
+                        break;
+
+                    case RECORD_DELETE:
+                        mEvents.remove(record.mKey);
+                        break;
+
+                    case RECORD_UPDATE_CONTENT:
+                        Event event = mEvents.get(record.mKey);
+
+                        if (null != event) {
+                            event.setContentAsString(record.mValue);
+                        }
+                        break;
+
+                    case RECORD_TOKEN:
+                        mToken = record.mValue;
+                        break;
+                }
+            }
+        }
+    }
+
+    // the room log folder
+    private final File mFolder;
+
+    // the segment ids in ascending order
+    private ArrayList<Integer> mSegments = null;
+
+    // the size of the latest segment
+    private long mLatestSegmentSize = 0;
+
+    // the size of all the segments, -1 when it is unknown
+    private long mSize = -1;
+
+    // the number of records since the latest snapshot
+    private int mRecordsCount = 0;
+
+    // the codec
+    private final MXFileStoreCodec mCodec;
+
+    // the string table of the latest segment
+    // null when it is unknown (the segment has not been replayed or it has been written with a previous codec version) :
+    // the next records start a new segment.
+    private MXFileStoreCodec.StringTable mLatestSegmentStrings = null;
+
+    // true when some segments have been saved with the java serialization
+    private boolean mHasLegacySegments = false;
+
+    /**
+     * Constructor
+     * @param folder the room log folder.
+     * @param codec the codec
+     */
+    public MXFileStoreRoomLog(File folder, MXFileStoreCodec codec) {
+        mFolder = folder;
+        mCodec = codec;
+    }
+
+    /**
+     * List the segments of the room log.
+     */
+    private void listSegments() {
+        if (null == mSegments) {
+            mSegments = new ArrayList<Integer>();
+
+            String[] filenames = mFolder.list();
+
+            if (null != filenames) {
+                for (String filename : filenames) {
+                    if (filename.endsWith(MXFileStoreCodec.TEMPORARY_FILE_SUFFIX)) {
+                        // a snapshot which has not been completed
+                        new File(mFolder, filename).delete();
+                    } else if (filename.endsWith(SEGMENT_FILE_SUFFIX)) {
+                        try {
+                            mSegments.add(Integer.parseInt(filename.substring(0, filename.length() - SEGMENT_FILE_SUFFIX.length())));
+                        } catch (NumberFormatException e) {
+                            Log.e(LOG_TAG, "listSegments : invalid segment name " + filename);
+                        }
+                    }
+                }
+            }
+
+            Collections.sort(mSegments);
+
+            if (mSegments.size() > 0) {
+                mLatestSegmentSize = segmentFile(mSegments.get(mSegments.size() - 1)).length();
+            }
+        }
+    }
+
+    /**
+     * @param segment the segment id.
+     * @return the segment file.
+     */
+    private File segmentFile(int segment) {
+        return new File(mFolder, segment + SEGMENT_FILE_SUFFIX);
+    }
+
+    /**
+     * @return true if the log does not exist on the file system.
+     */
+    public boolean isEmpty() {
+        listSegments();
+        return mSegments.size() == 0;
+    }
+
+    /**
+     * Serialize a record.
+     * @param record the record
+     * @param strings the string table of the segment
+     * @param compressionLevel the events contents compression level
+     * @return the serialized record
+     * @throws IOException
+     */
+    private static byte[] serialize(Record record, MXFileStoreCodec.StringTable strings, int compressionLevel) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        MXFileStoreCodec.Output output = new MXFileStoreCodec.Output(bos, strings, compressionLevel);
+
+        try {
+            output.writeByte(record.mType);
+            output.writeString(record.mKey);
+            output.writeString(record.mValue);
+
+            if (null != record.mEvent) {
+                output.writeBoolean(true);
+                MXFileStoreCodec.writeEvent(output, record.mEvent);
+            } else {
+                output.writeBoolean(false);
+            }
+
+            output.flush();
+        } finally {
+            output.release();
+        }
+
+        return bos.toByteArray();
+    }
+
+    /**
+     * Deserialize a record.
+     * @param bytes the serialized record.
+     * @param strings the string table of the segment
+     * @param version the codec version of the segment
+     * @return the record
+     * @throws IOException
+     */
+    private Record deserialize(byte[] bytes, MXFileStoreCodec.StringTable strings, int version) throws IOException {
+        MXFileStoreCodec.Input input = mCodec.newInput(new ByteArrayInputStream(bytes), strings, version);
+
+        try {
+            byte type = input.readByte();
+            String key = input.readString();
+            String value = input.readString();
+            Event event = input.readBoolean() ? MXFileStoreCodec.readEvent(input) : null;
+
+            return new Record(type, key, event, value);
+        } finally {
+            input.release();
+        }
+    }
+
+    /**
+     * Deserialize a record saved before the codec.
+     * @param bytes the serialized record.
+     * @return the record
+     * @throws Exception
+     */
+    private static Record deserializeLegacy(byte[] bytes) throws Exception {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+
+        byte type = in.readByte();
+        String key = readLegacyString(in);
+        String value = readLegacyString(in);
+        Event event = null;
+
+        int eventLength = in.readInt();
+
+        if (eventLength >= 0) {
+            byte[] eventBytes = new byte[eventLength];
+            in.readFully(eventBytes);
+
+            ObjectInputStream eventIn = new ObjectInputStream(new ByteArrayInputStream(eventBytes));
+            event = (Event) eventIn.readObject();
+            eventIn.close();
+        }
+
+        return new Record(type, key, event, value);
+    }
+
+    private static String readLegacyString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+
+        if (length < 0) {
+            return null;
+        }
+
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    /**
+     * @return true if some segments have been saved before the codec.
+     * This flag is only valid after a replay.
+     */
+    public boolean hasLegacySegments() {
+        return mHasLegacySegments;
+    }
+
+    /**
+     * Append records to the log.
+     * @param records the records to append.
+     * @throws IOException
+     */
+    public void append(List<Record> records) throws IOException {
+        if ((null == records) || (0 == records.size())) {
+            return;
+        }
+
+        listSegments();
+
+        if (!mFolder.exists()) {
+            mFolder.mkdirs();
+        }
+
+        // start a new segment if the current one is full or if its string table is unknown
+        boolean isNewSegment = (0 == mSegments.size()) || (mLatestSegmentSize >= SEGMENT_MAX_SIZE) || (null == mLatestSegmentStrings);
+
+        int segment = isNewSegment ? ((0 == mSegments.size()) ? 0 : (mSegments.get(mSegments.size() - 1) + 1)) : mSegments.get(mSegments.size() - 1);
+        long previousSegmentSize = isNewSegment ? 0 : mLatestSegmentSize;
+        MXFileStoreCodec.StringTable strings = isNewSegment ? new MXFileStoreCodec.StringTable() : mLatestSegmentStrings;
+        long segmentSize = previousSegmentSize;
+
+        File segmentFile = segmentFile(segment);
+        FileOutputStream fos = new FileOutputStream(segmentFile, !isNewSegment);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+        boolean succeeded = false;
+
+        try {
+            if (isNewSegment) {
+                MXFileStoreCodec.writeHeader(out, false);
+                segmentSize += MXFileStoreCodec.HEADER_LENGTH;
+            }
+
+            segmentSize += writeRecords(out, records, strings);
+
+            out.flush();
+            fos.getFD().sync();
+            out.close();
+            succeeded = true;
+        } finally {
+            if (!succeeded) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "append : cannot close " + segmentFile.getName());
+                }
+
+                rollback(segmentFile, isNewSegment, previousSegmentSize);
+            }
+        }
+
+        if (isNewSegment) {
+            mSegments.add(segment);
+            mLatestSegmentStrings = strings;
+        }
+
+        mLatestSegmentSize = segmentSize;
+        mRecordsCount += records.size();
+
+        if (mSize >= 0) {
+            mSize += segmentSize - previousSegmentSize;
+        }
+    }
+
+    /**
+     * Remove the bytes written by a failed append, so that the segment does not end with a partial record.
+     * A partial record is only allowed at the end of the log : it would make the replay fail once the segment is not the latest one.
+     * @param segmentFile the segment file
+     * @param isNewSegment true if the segment has been created by the failed append.
+     * @param validLength the segment length before the failed append.
+     */
+    private void rollback(File segmentFile, boolean isNewSegment, long validLength) {
+        // the string table has been updated with the strings of the failed records : the next records start a new segment.
+        mLatestSegmentStrings = null;
+
+        if (isNewSegment) {
+            if (segmentFile.exists() && !segmentFile.delete()) {
+                Log.e(LOG_TAG, "append : cannot delete " + segmentFile.getName());
+                mSize = -1;
+            }
+        } else {
+            try {
+                RandomAccessFile raf = new RandomAccessFile(segmentFile, "rw");
+
+                try {
+                    raf.setLength(validLength);
+                    raf.getFD().sync();
+                } finally {
+                    raf.close();
+                }
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "append : cannot truncate " + segmentFile.getName() + " : " + e.getMessage());
+                mSize = -1;
+            }
+        }
+    }
+
+    /**
+     * Write some records with their checksums.
+     * @param out the segment output
+     * @param records the records
+     * @param strings the string table of the segment
+     * @return the written bytes count
+     * @throws IOException
+     */
+    private long writeRecords(DataOutputStream out, List<Record> records, MXFileStoreCodec.StringTable strings) throws IOException {
+        int compressionLevel = mCodec.getCompressionLevel();
+        long size = 0;
+
+        for (Record record : records) {
+            byte[] bytes = serialize(record, strings, compressionLevel);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+            out.writeInt(MXFileStoreCodec.checksum(bytes, 0, bytes.length));
+            size += bytes.length + 8;
+        }
+
+        return size;
+    }
+
+    /**
+     * @return true if the log should be compacted.
+     */
+    public boolean needsCompaction() {
+        listSegments();
+        return (mRecordsCount > COMPACTION_RECORDS_COUNT) || (mSegments.size() > COMPACTION_SEGMENTS_COUNT);
+    }
+
+    /**
+     * Rebuild the room history from the log segments.
+     * A truncated record at the end of the log (e.g. the application was killed while writing) ends the replay.
+     * @return the room history.
+     * @throws Exception if the log is corrupted.
+     */
+    public Content replay() throws Exception {
+        listSegments();
+
+        // the events are indexed by generation to manage the prepended events and the deletions
+        HashMap<String, Event> eventsByKey = new HashMap<String, Event>();
+        HashMap<String, Integer> generationsByKey = new HashMap<String, Integer>();
+        ArrayDeque<Object[]> order = new ArrayDeque<Object[]>();
+        int generation = 0;
+        String token = null;
+
+        mRecordsCount = 0;
+        mHasLegacySegments = false;
+        mLatestSegmentStrings = null;
+
+        for (int segmentIndex = 0; segmentIndex < mSegments.size(); segmentIndex++) {
+            File segmentFile = segmentFile(mSegments.get(segmentIndex));
+            boolean isLatestSegment = (segmentIndex == (mSegments.size() - 1));
+            long segmentLength = segmentFile.length();
+            long remainingLength = segmentLength;
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segmentFile)));
+
+            try {
+                // check if the segment starts with a codec header
+                byte[] header = new byte[MXFileStoreCodec.HEADER_LENGTH];
+                in.mark(header.length);
+                int headerLength = in.read(header);
+
+                MXFileStoreCodec.StringTable strings = null;
+                int version = 0;
+
+                if (MXFileStoreCodec.isHeader(header, headerLength)) {
+                    version = MXFileStoreCodec.headerVersion(header);
+                    strings = new MXFileStoreCodec.StringTable();
+                    remainingLength -= MXFileStoreCodec.HEADER_LENGTH;
+                } else {
+                    in.reset();
+                    mHasLegacySegments = true;
+                }
+
+                boolean hasChecksums = (version >= MXFileStoreCodec.CHECKSUM_VERSION);
+
+                // the records can be appended to the latest segment if it has the current format
+                if (isLatestSegment && (version == MXFileStoreCodec.CODEC_VERSION)) {
+                    mLatestSegmentStrings = strings;
+                }
+
+                while (true) {
+                    int length;
+
+                    try {
+                        length = in.readInt();
+                    } catch (EOFException e) {
+                        if (remainingLength > 0) {
+                            onTruncatedRecord(segmentFile, isLatestSegment, segmentLength - remainingLength);
+                        }
+                        break;
+                    }
+
+                    long recordLength = 4 + length + (hasChecksums ? 4 : 0);
+
+                    // the record length is partially written or corrupted
+                    if ((length < 0) || (recordLength > remainingLength)) {
+                        onTruncatedRecord(segmentFile, isLatestSegment, segmentLength - remainingLength);
+                        break;
+                    }
+
+                    remainingLength -= recordLength;
+
+                    byte[] bytes = new byte[length];
+                    in.readFully(bytes);
+
+                    if (hasChecksums && (in.readInt() != MXFileStoreCodec.checksum(bytes, 0, bytes.length))) {
+                        // the latest record could have been partially written before a crash
+                        if (isLatestSegment && (0 == remainingLength)) {
+                            onTruncatedRecord(segmentFile, true, segmentLength - recordLength);
+                            break;
+                        }
+
+                        throw new IOException("replay : invalid checksum in " + mFolder.getName() + "/" + segmentFile.getName());
+                    }
+
+                    Record record = (null != strings) ? deserialize(bytes, strings, version) : deserializeLegacy(bytes);
+                    mRecordsCount++;
+
+                    switch (record.mType) {
+                        case RECORD_RESET:
+                            eventsByKey.clear();
+                            generationsByKey.clear();
+                            order.clear();
+                            token = null;
+                            mRecordsCount = 1;
+                            break;
+
+                        case RECORD_APPEND:
+                        case RECORD_PREPEND:
+                            // an existing event keeps its position
+                            if (eventsByKey.containsKey(record.mKey)) {
+                                eventsByKey.put(record.mKey, record.mEvent);
+                            } else {
+                                generation++;
+                                eventsByKey.put(record.mKey, record.mEvent);
+                                generationsByKey.put(record.mKey, generation);
+
+                                if (RECORD_APPEND == record.mType) {
+                                    order.addLast(new Object[]{record.mKey, generation});
+                                } else {
+                                    order.addFirst(new Object[]{record.mKey, generation});
+                                }
+                            }
+                            break;
+
+                        case RECORD_DELETE:
+                            eventsByKey.remove(record.mKey);
+                            generationsByKey.remove(record.mKey);
+                            break;
+
+                        case RECORD_UPDATE_CONTENT:
+                            Event event = eventsByKey.get(record.mKey);
+
+                            if (null != event) {
+                                event.setContentAsString(record.mValue);
+                            }
+                            break;
+
+                        case RECORD_TOKEN:
+                            token = record.mValue;
+                            break;
+
+                        default:
+                            Log.e(LOG_TAG, "replay : unknown record type " + record.mType);
+                    }
+                }
+            } finally {
+                in.close();
+            }
+        }
+
+        Content content = new Content();
+        content.mToken = token;
+        content.mEvents = new LinkedHashMap<String, Event>();
+
+        for (Object[] entry : order) {
+            String key = (String) entry[0];
+            Integer entryGeneration = (Integer) entry[1];
+
+            // ignore the deleted events and the events which have been deleted then added again
+            if (entryGeneration.equals(generationsByKey.get(key))) {
+                content.mEvents.put(key, eventsByKey.get(key));
+            }
+        }
+
+        return content;
+    }
+
+    /**
+     * Manage a record which is not complete.
+     * The segment is truncated after its latest valid record : it stays valid when the next records start a new segment.
+     * @param segmentFile the segment file
+     * @param isLatestSegment true if the record is in the latest segment.
+     * @param validLength the length of the segment until the truncated record.
+     * @throws IOException if the record is not at the end of the log.
+     */
+    private void onTruncatedRecord(File segmentFile, boolean isLatestSegment, long validLength) throws IOException {
+        if (!isLatestSegment) {
+            throw new IOException("replay : truncated segment in " + mFolder.getName());
+        }
+
+        Log.e(LOG_TAG, "replay : truncated record in " + mFolder.getName());
+
+        try {
+            RandomAccessFile raf = new RandomAccessFile(segmentFile, "rw");
+
+            try {
+                raf.setLength(validLength);
+            } finally {
+                raf.close();
+            }
+
+            mSize = -1;
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "replay : cannot truncate " + segmentFile.getName() + " : " + e.getMessage());
+        }
+
+        // do not append the next records after the truncated one
+        mLatestSegmentSize = SEGMENT_MAX_SIZE;
+        mLatestSegmentStrings = null;
+    }
+
+    /**
+     * Write a snapshot of the room history in a new segment and delete the previous ones.
+     * The new segment is only visible when it is completely written.
+     * @param events the room history
+     * @param token the room token
+     * @throws IOException
+     */
+    public void writeSnapshot(LinkedHashMap<String, Event> events, String token) throws IOException {
+        listSegments();
+
+        ArrayList<Integer> previousSegments = new ArrayList<Integer>(mSegments);
+        ArrayList<Record> records = new ArrayList<Record>(events.size() + 2);
+
+        records.add(Record.reset());
+
+        for (Event event : events.values()) {
+            records.add(Record.append(event));
+        }
+
+        records.add(Record.token(token));
+
+        if (!mFolder.exists()) {
+            mFolder.mkdirs();
+        }
+
+        int snapshotSegment = (0 == mSegments.size()) ? 0 : (mSegments.get(mSegments.size() - 1) + 1);
+        File segmentFile = segmentFile(snapshotSegment);
+        File tmpFile = new File(segmentFile.getPath() + MXFileStoreCodec.TEMPORARY_FILE_SUFFIX);
+        MXFileStoreCodec.StringTable strings = new MXFileStoreCodec.StringTable();
+
+        FileOutputStream fos = new FileOutputStream(tmpFile);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+        long size;
+
+        try {
+            MXFileStoreCodec.writeHeader(out, false);
+            size = MXFileStoreCodec.HEADER_LENGTH + writeRecords(out, records, strings);
+
+            out.flush();
+            fos.getFD().sync();
+        } catch (IOException e) {
+            tmpFile.delete();
+            throw e;
+        } finally {
+            out.close();
+        }
+
+        MXFileStoreCodec.replaceFile(tmpFile, segmentFile);
+
+        mSegments.add(snapshotSegment);
+        mLatestSegmentSize = size;
+        mLatestSegmentStrings = strings;
+        mRecordsCount = records.size();
+
+        // the snapshot starts with a reset record
+        // so the previous segments are useless even if they cannot be deleted.
+        for (Integer segment : previousSegments) {
+            segmentFile(segment).delete();
+            mSegments.remove(segment);
+        }
+
+        mHasLegacySegments = false;
+        mSize = -1;
+    }
+
+    /**
+     * Provides the size of the log files.
+     * It is updated when the records are appended : the files are only listed the first time.
+     * @return the bytes count
+     */
+    public long getDiskUsage() {
+        listSegments();
+
+        if (mSize < 0) {
+            mSize = 0;
+
+            for (Integer segment : mSegments) {
+                mSize += segmentFile(segment).length();
+            }
+        }
+
+        return mSize;
+    }
+
+    /**
+     * Compact the log : the history is trimmed with the retention policy then it is written in a single segment.
+     * @param policy the retention policy
+     * @param roomId the room id
+     * @throws Exception
+     */
+    public void compact(RetentionPolicy policy, String roomId) throws Exception {
+        long t0 = System.currentTimeMillis();
+
+        Content content = replay();
+        int count = content.mEvents.size();
+
+        ArrayList<Event> eventsList = new ArrayList<Event>(content.mEvents.values());
+        int startIndex = policy.trimmedHistoryStartIndex(roomId, eventsList, System.currentTimeMillis());
+
+        LinkedHashMap<String, Event> trimmedEvents = new LinkedHashMap<String, Event>();
+        ArrayList<String> keys = new ArrayList<String>(content.mEvents.keySet());
+
+        for (int index = startIndex; index < keys.size(); index++) {
+            trimmedEvents.put(keys.get(index), eventsList.get(index));
+        }
+
+        writeSnapshot(trimmedEvents, content.mToken);
+
+        Log.d(LOG_TAG, "compact (" + mFolder.getName() + ") : " + count + " -> " + trimmedEvents.size() + " events in " + (System.currentTimeMillis() - t0) + " ms");
+    }
+
+    /**
+     * Delete the room log.
+     */
+    public void delete() {
+        String[] filenames = mFolder.list();
+
+        if (null != filenames) {
+            for (String filename : filenames) {
+                new File(mFolder, filename).delete();
+            }
+        }
+
+        mFolder.delete();
+
+        mSegments = null;
+        mLatestSegmentSize = 0;
+        mSize = -1;
+        mRecordsCount = 0;
+        mLatestSegmentStrings = null;
+        mHasLegacySegments = false;
+    }
+}
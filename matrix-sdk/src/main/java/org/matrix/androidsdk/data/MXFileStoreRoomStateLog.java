@@ -0,0 +1,401 @@
+/*
+ * Copyright 2015 OpenMarket Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.matrix.androidsdk.data;
+
+import android.util.Log;
+
+import org.matrix.androidsdk.rest.model.RoomMember;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.Set;
+import java.util.zip.Deflater;
+
+/**
+ * Persistence of a room state as a base snapshot and an append-only delta log.
+ *
+ * The snapshot is the room state file written by MXFileStoreCodec : the room fields followed by
+ * the members table. Between two snapshots, the updates are appended to the delta file :
+ * a record per added, updated or removed member and a record for the other fields when they change.
+ * So a membership event costs a member record instead of a rewrite of the whole members table.
+ *
+ * The delta file starts with the checksum of the snapshot it applies to : a delta left by a crash
+ * between a snapshot and the delta deletion is ignored. Each snapshot ends with a random id
+ * so the snapshots of the same room state have different checksums. A partially written record at the end
+ * of the delta is ignored ; any other invalid record makes the load fail.
+ * A new snapshot is written when the delta becomes large compared to the snapshot.
+ * The room state is saved by the room worker but it can be loaded by the thread which reads the room :
+ * the methods are synchronized.
+ */
+public class MXFileStoreRoomStateLog {
+    private static final String LOG_TAG = "MXFileStoreRoomStateLog";
+
+    // a snapshot is written when the delta is larger than this size and than half of the snapshot
+    private static final long DELTA_MIN_SNAPSHOT_SIZE = 16 * 1024;
+
+    // the record types
+    private static final byte RECORD_BASE = 1;
+    private static final byte RECORD_MEMBER = 2;
+    private static final byte RECORD_FIELDS = 3;
+
+    // the snapshots ids : a delta cannot match a new snapshot of the same room state
+    private static final Random sRandom = new Random();
+
+    // the snapshot file
+    private final File mSnapshotFile;
+
+    // the delta file
+    private final File mDeltaFile;
+
+    // the codec
+    private final MXFileStoreCodec mCodec;
+
+    // the checksum of the snapshot, null when it is unknown : the next save writes a snapshot.
+    private Integer mSnapshotChecksum = null;
+
+    // the snapshot size
+    private long mSnapshotSize = 0;
+
+    // the delta size, 0 when there is no delta file
+    private long mDeltaSize = 0;
+
+    // the string table of the delta, null when it is unknown : the next save writes a snapshot.
+    private MXFileStoreCodec.StringTable mDeltaStrings = null;
+
+    // the encoded fields of the latest saved room state
+    private byte[] mFieldsBytes = null;
+
+    // the record being serialized
+    private ByteArrayOutputStream mRecordBytes = null;
+
+    /**
+     * Constructor
+     * @param snapshotFile the snapshot file.
+     * @param deltaFile the delta file.
+     * @param codec the codec
+     */
+    public MXFileStoreRoomStateLog(File snapshotFile, File deltaFile, MXFileStoreCodec codec) {
+        mSnapshotFile = snapshotFile;
+        mDeltaFile = deltaFile;
+        mCodec = codec;
+    }
+
+    /**
+     * Encode the room state fields which are not saved in the members records.
+     * @param state the room state
+     * @return the encoded fields
+     * @throws IOException
+     */
+    private static byte[] encodeFields(RoomState state) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        MXFileStoreCodec.Output output = new MXFileStoreCodec.Output(bos, new MXFileStoreCodec.StringTable(), Deflater.NO_COMPRESSION);
+
+        try {
+            writeFields(output, state);
+            output.flush();
+        } finally {
+            output.release();
+        }
+
+        return bos.toByteArray();
+    }
+
+    private static void writeFields(MXFileStoreCodec.Output output, RoomState state) throws IOException {
+        MXFileStoreCodec.writeRoomStateFields(output, state);
+        MXFileStoreCodec.writePowerLevels(output, state.getPowerLevels());
+    }
+
+    /**
+     * Load the room state : the snapshot is read then the delta is applied.
+     * @return the room state
+     * @throws IOException if the files are corrupted.
+     */
+    public synchronized RoomState load() throws IOException {
+        RoomState state = mCodec.readRoomStateFile(mSnapshotFile);
+
+        mSnapshotChecksum = MXFileStoreCodec.fileChecksum(mSnapshotFile);
+        mSnapshotSize = mSnapshotFile.length();
+        mDeltaStrings = null;
+        mDeltaSize = 0;
+
+        if (mDeltaFile.exists()) {
+            replayDelta(state);
+        } else if (null != mSnapshotChecksum) {
+            mDeltaStrings = new MXFileStoreCodec.StringTable();
+        }
+
+        mFieldsBytes = encodeFields(state);
+
+        return state;
+    }
+
+    /**
+     * Apply the delta records to a room state.
+     * @param state the room state read from the snapshot.
+     * @throws IOException if the delta is corrupted.
+     */
+    private void replayDelta(RoomState state) throws IOException {
+        long remainingLength = mDeltaFile.length();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(mDeltaFile)));
+        boolean isStale = false;
+        boolean isTruncated = false;
+        int recordsCount = 0;
+        MXFileStoreCodec.StringTable strings = new MXFileStoreCodec.StringTable();
+
+        try {
+            byte[] header = new byte[MXFileStoreCodec.HEADER_LENGTH];
+            int headerLength = in.read(header);
+
+            if (!MXFileStoreCodec.isHeader(header, headerLength) || (MXFileStoreCodec.headerVersion(header) < MXFileStoreCodec.CHECKSUM_VERSION)) {
+                // the delta header has not been completely written
+                isStale = true;
+            } else {
+                remainingLength -= MXFileStoreCodec.HEADER_LENGTH;
+            }
+
+            while (!isStale) {
+                byte[] bytes;
+
+                try {
+                    bytes = MXFileStoreCodec.readRecord(in, remainingLength);
+                } catch (EOFException e) {
+                    isTruncated = true;
+                    break;
+                }
+
+                if (null == bytes) {
+                    break;
+                }
+
+                remainingLength -= 8 + bytes.length;
+
+                MXFileStoreCodec.Input input = mCodec.newInput(new ByteArrayInputStream(bytes), strings, MXFileStoreCodec.CODEC_VERSION);
+
+                try {
+                    byte type = input.readByte();
+
+                    if (0 == recordsCount) {
+                        // the delta has been written for a previous snapshot
+                        isStale = (RECORD_BASE != type) || (null == mSnapshotChecksum) || (input.readSignedVarInt() != mSnapshotChecksum);
+                    } else if (RECORD_MEMBER == type) {
+                        String userId = input.readSymbol();
+
+                        if (input.readBoolean()) {
+                            state.setMember(userId, MXFileStoreCodec.readRoomMember(input));
+                        } else {
+                            state.removeMember(userId);
+                        }
+                    } else if (RECORD_FIELDS == type) {
+                        MXFileStoreCodec.readRoomStateFields(input, state);
+                        state.setPowerLevels(MXFileStoreCodec.readPowerLevels(input));
+                    } else {
+                        Log.e(LOG_TAG, "replayDelta : unknown record type " + type);
+                    }
+                } finally {
+                    input.release();
+                }
+
+                recordsCount++;
+            }
+        } finally {
+            in.close();
+        }
+
+        if (isStale) {
+            Log.e(LOG_TAG, "replayDelta : ignore the stale delta " + mDeltaFile.getName());
+            mDeltaFile.delete();
+            mDeltaStrings = (null != mSnapshotChecksum) ? new MXFileStoreCodec.StringTable() : null;
+        } else if (isTruncated) {
+            // do not append the next records after the truncated one
+            Log.e(LOG_TAG, "replayDelta : truncated record in " + mDeltaFile.getName());
+        } else {
+            mDeltaStrings = strings;
+            mDeltaSize = mDeltaFile.length();
+        }
+    }
+
+    /**
+     * Save a room state.
+     * Only the updated members and the updated fields are appended to the delta
+     * unless a snapshot is required.
+     * @param state the room state
+     * @param updatedMemberIds the members updated since the latest save, null to write a snapshot.
+     * @throws IOException
+     */
+    public synchronized void save(RoomState state, Set<String> updatedMemberIds) throws IOException {
+        if ((null == updatedMemberIds) || (null == mSnapshotChecksum) || (null == mDeltaStrings) ||
+                (mDeltaSize > Math.max(DELTA_MIN_SNAPSHOT_SIZE, mSnapshotSize / 2))) {
+            writeSnapshot(state);
+            return;
+        }
+
+        byte[] fieldsBytes = encodeFields(state);
+        boolean fieldsChanged = !Arrays.equals(fieldsBytes, mFieldsBytes);
+
+        if ((0 == updatedMemberIds.size()) && !fieldsChanged) {
+            return;
+        }
+
+        boolean isNewDelta = (0 == mDeltaSize);
+        FileOutputStream fos = new FileOutputStream(mDeltaFile, !isNewDelta);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+        boolean succeeded = false;
+        long size = 0;
+
+        try {
+            if (isNewDelta) {
+                MXFileStoreCodec.writeHeader(out, false);
+                size += MXFileStoreCodec.HEADER_LENGTH;
+
+                MXFileStoreCodec.Output output = openRecord();
+                output.writeByte(RECORD_BASE);
+                output.writeSignedVarInt(mSnapshotChecksum);
+                size += closeRecord(out, output);
+            }
+
+            for (String userId : updatedMemberIds) {
+                RoomMember member = state.getMember(userId);
+
+                MXFileStoreCodec.Output output = openRecord();
+                output.writeByte(RECORD_MEMBER);
+                output.writeSymbol(userId);
+                output.writeBoolean(null != member);
+
+                if (null != member) {
+                    MXFileStoreCodec.writeRoomMember(output, member);
+                }
+
+                size += closeRecord(out, output);
+            }
+
+            if (fieldsChanged) {
+                MXFileStoreCodec.Output output = openRecord();
+                output.writeByte(RECORD_FIELDS);
+                writeFields(output, state);
+                size += closeRecord(out, output);
+            }
+
+            out.flush();
+            fos.getFD().sync();
+            out.close();
+
+            mDeltaSize += size;
+            mFieldsBytes = fieldsBytes;
+            succeeded = true;
+        } finally {
+            if (!succeeded) {
+                // the delta does not match the string table and the updates are lost : write a snapshot next time.
+                mSnapshotChecksum = null;
+                mDeltaStrings = null;
+
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "save : cannot close " + mDeltaFile.getName());
+                }
+            }
+        }
+    }
+
+    /**
+     * Start serializing a record.
+     * @return the record output.
+     */
+    private MXFileStoreCodec.Output openRecord() {
+        mRecordBytes = new ByteArrayOutputStream();
+        return new MXFileStoreCodec.Output(mRecordBytes, mDeltaStrings, Deflater.NO_COMPRESSION);
+    }
+
+    /**
+     * Write the serialized record with its length and its checksum.
+     * @param out the delta output
+     * @param output the record output
+     * @return the written bytes count
+     * @throws IOException
+     */
+    private long closeRecord(DataOutputStream out, MXFileStoreCodec.Output output) throws IOException {
+        try {
+            output.flush();
+        } finally {
+            output.release();
+        }
+
+        byte[] bytes = mRecordBytes.toByteArray();
+        mRecordBytes = null;
+
+        return MXFileStoreCodec.writeRecord(out, bytes);
+    }
+
+    /**
+     * Write a snapshot of the room state and delete the delta.
+     * @param state the room state
+     * @throws IOException
+     */
+    public synchronized void writeSnapshot(RoomState state) throws IOException {
+        // the delta is useless as soon as the snapshot is replaced
+        mSnapshotChecksum = null;
+        mDeltaStrings = null;
+
+        mCodec.writeRoomStateFile(mSnapshotFile, state, sRandom.nextLong());
+        mDeltaFile.delete();
+
+        mSnapshotChecksum = MXFileStoreCodec.fileChecksum(mSnapshotFile);
+        mSnapshotSize = mSnapshotFile.length();
+        mDeltaSize = 0;
+        mDeltaStrings = new MXFileStoreCodec.StringTable();
+        mFieldsBytes = encodeFields(state);
+    }
+
+    /**
+     * @return the delta size.
+     */
+    public synchronized long getDeltaSize() {
+        return mDeltaSize;
+    }
+
+    /**
+     * @return the size of the snapshot and of the delta.
+     */
+    public synchronized long getDiskUsage() {
+        return mSnapshotFile.length() + mDeltaFile.length();
+    }
+
+    /**
+     * Delete the snapshot and the delta.
+     */
+    public synchronized void delete() {
+        mSnapshotFile.delete();
+        mDeltaFile.delete();
+
+        mSnapshotChecksum = null;
+        mSnapshotSize = 0;
+        mDeltaSize = 0;
+        mDeltaStrings = null;
+        mFieldsBytes = null;
+    }
+}
@@ -0,0 +1,341 @@
+/*
+ * Copyright 2015 OpenMarket Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.matrix.androidsdk.data;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+/**
+ * Persistence of all the room summaries in a single snapshot file and an append-only delta.
+ *
+ * The snapshot contains every room summary (with its latest event and its display name)
+ * so the rooms list is read in a single pass when the store is opened.
+ * Between two snapshots, the updated summaries and the removed ones are appended to the delta.
+ *
+ * As the room states deltas (see MXFileStoreRoomStateLog), the delta starts with the checksum of
+ * its snapshot and its records are followed by their checksums. A partially written record at the end
+ * of the delta is ignored. A new snapshot is written when the delta becomes large compared to the snapshot.
+ * This class is not thread safe : it must be used from the file store background thread.
+ */
+public class MXFileStoreSummariesLog {
+    private static final String LOG_TAG = "MXFileStoreSummariesLog";
+
+    // a snapshot is written when the delta is larger than this size and than half of the snapshot
+    private static final long DELTA_MIN_SNAPSHOT_SIZE = 32 * 1024;
+
+    // the record types
+    private static final byte RECORD_BASE = 1;
+    private static final byte RECORD_SUMMARY = 2;
+
+    // the snapshots ids : a delta cannot match a new snapshot of the same summaries
+    private static final Random sRandom = new Random();
+
+    // the snapshot file
+    private final File mSnapshotFile;
+
+    // the delta file
+    private final File mDeltaFile;
+
+    // the codec
+    private final MXFileStoreCodec mCodec;
+
+    // the checksum of the snapshot, null when it is unknown : the next save writes a snapshot.
+    private Integer mSnapshotChecksum = null;
+
+    // the snapshot size
+    private long mSnapshotSize = 0;
+
+    // the delta size, 0 when there is no delta file
+    private long mDeltaSize = 0;
+
+    // the string table of the delta, null when it is unknown : the next save writes a snapshot.
+    private MXFileStoreCodec.StringTable mDeltaStrings = null;
+
+    /**
+     * Constructor
+     * @param snapshotFile the snapshot file.
+     * @param deltaFile the delta file.
+     * @param codec the codec
+     */
+    public MXFileStoreSummariesLog(File snapshotFile, File deltaFile, MXFileStoreCodec codec) {
+        mSnapshotFile = snapshotFile;
+        mDeltaFile = deltaFile;
+        mCodec = codec;
+    }
+
+    /**
+     * @return true if a snapshot has been saved.
+     */
+    public boolean exists() {
+        return mSnapshotFile.exists();
+    }
+
+    /**
+     * Load the room summaries : the snapshot is read then the delta is applied.
+     * @return the room summaries by room id.
+     * @throws IOException if the files are corrupted.
+     */
+    public Map<String, RoomSummary> load() throws IOException {
+        LinkedHashMap<String, RoomSummary> summaries = new LinkedHashMap<String, RoomSummary>();
+
+        for (RoomSummary summary : mCodec.readRoomSummariesFile(mSnapshotFile)) {
+            summaries.put(summary.getRoomId(), summary);
+        }
+
+        mSnapshotChecksum = MXFileStoreCodec.fileChecksum(mSnapshotFile);
+        mSnapshotSize = mSnapshotFile.length();
+        mDeltaStrings = null;
+        mDeltaSize = 0;
+
+        if (mDeltaFile.exists()) {
+            replayDelta(summaries);
+        } else if (null != mSnapshotChecksum) {
+            mDeltaStrings = new MXFileStoreCodec.StringTable();
+        }
+
+        return summaries;
+    }
+
+    /**
+     * Apply the delta records to the room summaries.
+     * @param summaries the room summaries read from the snapshot.
+     * @throws IOException if the delta is corrupted.
+     */
+    private void replayDelta(Map<String, RoomSummary> summaries) throws IOException {
+        long remainingLength = mDeltaFile.length();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(mDeltaFile)));
+        boolean isStale = false;
+        boolean isTruncated = false;
+        int recordsCount = 0;
+        MXFileStoreCodec.StringTable strings = new MXFileStoreCodec.StringTable();
+
+        try {
+            byte[] header = new byte[MXFileStoreCodec.HEADER_LENGTH];
+            int headerLength = in.read(header);
+
+            if (!MXFileStoreCodec.isHeader(header, headerLength) || (MXFileStoreCodec.headerVersion(header) < MXFileStoreCodec.CHECKSUM_VERSION)) {
+                // the delta header has not been completely written
+                isStale = true;
+            } else {
+                remainingLength -= MXFileStoreCodec.HEADER_LENGTH;
+            }
+
+            while (!isStale) {
+                byte[] bytes;
+
+                try {
+                    bytes = MXFileStoreCodec.readRecord(in, remainingLength);
+                } catch (EOFException e) {
+                    isTruncated = true;
+                    break;
+                }
+
+                if (null == bytes) {
+                    break;
+                }
+
+                remainingLength -= 8 + bytes.length;
+
+                MXFileStoreCodec.Input input = mCodec.newInput(new ByteArrayInputStream(bytes), strings, MXFileStoreCodec.CODEC_VERSION);
+
+                try {
+                    byte type = input.readByte();
+
+                    if (0 == recordsCount) {
+                        // the delta has been written for a previous snapshot
+                        isStale = (RECORD_BASE != type) || (null == mSnapshotChecksum) || (input.readSignedVarInt() != mSnapshotChecksum);
+                    } else if (RECORD_SUMMARY == type) {
+                        String roomId = input.readSymbol();
+
+                        if (input.readBoolean()) {
+                            summaries.put(roomId, MXFileStoreCodec.readRoomSummary(input));
+                        } else {
+                            summaries.remove(roomId);
+                        }
+                    } else {
+                        Log.e(LOG_TAG, "replayDelta : unknown record type " + type);
+                    }
+                } finally {
+                    input.release();
+                }
+
+                recordsCount++;
+            }
+        } finally {
+            in.close();
+        }
+
+        if (isStale) {
+            Log.e(LOG_TAG, "replayDelta : ignore the stale delta");
+            mDeltaFile.delete();
+            mDeltaStrings = (null != mSnapshotChecksum) ? new MXFileStoreCodec.StringTable() : null;
+        } else if (isTruncated) {
+            // do not append the next records after the truncated one
+            Log.e(LOG_TAG, "replayDelta : truncated record");
+        } else {
+            mDeltaStrings = strings;
+            mDeltaSize = mDeltaFile.length();
+        }
+    }
+
+    /**
+     * Save the updated room summaries.
+     * They are appended to the delta unless a snapshot is required.
+     * @param updates the updated summaries by room id, a null summary is a removed one.
+     * @param summaries all the room summaries, used when a snapshot is written.
+     * @throws IOException
+     */
+    public void save(Map<String, RoomSummary> updates, Collection<RoomSummary> summaries) throws IOException {
+        if (0 == updates.size()) {
+            return;
+        }
+
+        if ((null == mSnapshotChecksum) || (null == mDeltaStrings) ||
+                (mDeltaSize > Math.max(DELTA_MIN_SNAPSHOT_SIZE, mSnapshotSize / 2))) {
+            writeSnapshot(summaries);
+            return;
+        }
+
+        boolean isNewDelta = (0 == mDeltaSize);
+        FileOutputStream fos = new FileOutputStream(mDeltaFile, !isNewDelta);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+        boolean succeeded = false;
+        long size = 0;
+
+        try {
+            if (isNewDelta) {
+                MXFileStoreCodec.writeHeader(out, false);
+                size += MXFileStoreCodec.HEADER_LENGTH;
+
+                ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                MXFileStoreCodec.Output output = new MXFileStoreCodec.Output(bos, mDeltaStrings, Deflater.NO_COMPRESSION);
+
+                try {
+                    output.writeByte(RECORD_BASE);
+                    output.writeSignedVarInt(mSnapshotChecksum);
+                    output.flush();
+                } finally {
+                    output.release();
+                }
+
+                size += MXFileStoreCodec.writeRecord(out, bos.toByteArray());
+            }
+
+            for (Map.Entry<String, RoomSummary> entry : updates.entrySet()) {
+                ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                MXFileStoreCodec.Output output = new MXFileStoreCodec.Output(bos, mDeltaStrings, Deflater.NO_COMPRESSION);
+
+                try {
+                    output.writeByte(RECORD_SUMMARY);
+                    output.writeSymbol(entry.getKey());
+                    output.writeBoolean(null != entry.getValue());
+
+                    if (null != entry.getValue()) {
+                        MXFileStoreCodec.writeRoomSummary(output, entry.getValue());
+                    }
+
+                    output.flush();
+                } finally {
+                    output.release();
+                }
+
+                size += MXFileStoreCodec.writeRecord(out, bos.toByteArray());
+            }
+
+            out.flush();
+            fos.getFD().sync();
+            out.close();
+
+            mDeltaSize += size;
+            succeeded = true;
+        } finally {
+            if (!succeeded) {
+                // the delta does not match the string table and the updates are lost : write a snapshot next time.
+                mSnapshotChecksum = null;
+                mDeltaStrings = null;
+
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "save : cannot close the delta");
+                }
+            }
+        }
+    }
+
+    /**
+     * Write a snapshot of the room summaries and delete the delta.
+     * @param summaries the room summaries
+     * @throws IOException
+     */
+    public void writeSnapshot(Collection<RoomSummary> summaries) throws IOException {
+        // the delta is useless as soon as the snapshot is replaced
+        mSnapshotChecksum = null;
+        mDeltaStrings = null;
+
+        mCodec.writeRoomSummariesFile(mSnapshotFile, summaries, sRandom.nextLong());
+        mDeltaFile.delete();
+
+        mSnapshotChecksum = MXFileStoreCodec.fileChecksum(mSnapshotFile);
+        mSnapshotSize = mSnapshotFile.length();
+        mDeltaSize = 0;
+        mDeltaStrings = new MXFileStoreCodec.StringTable();
+    }
+
+    /**
+     * @return the delta size.
+     */
+    public long getDeltaSize() {
+        return mDeltaSize;
+    }
+
+    /**
+     * @return the size of the snapshot and of the delta.
+     */
+    public long getDiskUsage() {
+        return mSnapshotFile.length() + mDeltaFile.length();
+    }
+
+    /**
+     * Delete the snapshot and the delta.
+     */
+    public void delete() {
+        mSnapshotFile.delete();
+        mDeltaFile.delete();
+
+        mSnapshotChecksum = null;
+        mSnapshotSize = 0;
+        mDeltaSize = 0;
+        mDeltaStrings = null;
+    }
+}
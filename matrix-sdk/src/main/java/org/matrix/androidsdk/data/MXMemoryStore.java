@@ -29,10 +29,13 @@ import org.matrix.androidsdk.rest.model.login.Credentials;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.Iterator;
-import java.util.LinkedHashMap;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * An in-memory IMXStore.
@@ -43,12 +46,24 @@ public class MXMemoryStore implements IMXStore {
 
     protected Map<String, Room> mRooms;
     protected Map<String, User> mUsers;
-    // room id -> map of (event_id -> event) events for this room (linked so insertion order is preserved)
-    protected Map<String, LinkedHashMap<String, Event>> mRoomEvents;
+    // room id -> timeline of this room (the events are indexed by event id and by pagination token)
+    protected Map<String, RoomTimeline> mRoomEvents;
     protected Map<String, String> mRoomTokens;
 
+    // room id -> sequence number of the latest time its timeline has been viewed
+    protected Map<String, Long> mRoomsViewedSequences;
+    private final AtomicLong mViewSequence = new AtomicLong();
+
+    protected RetentionPolicy mRetentionPolicy = new RetentionPolicy();
+
+    // the rooms removed because their stored data were corrupted
+    private final HashSet<String> mCorruptedRoomIds = new HashSet<String>();
+
     protected Map<String, RoomSummary> mRoomSummaries;
 
+    // the messages bodies index of all the rooms
+    protected final MessagesIndex mMessagesIndex = new MessagesIndex();
+
     protected Credentials mCredentials;
 
     protected String mEventStreamToken = null;
@@ -60,9 +75,11 @@ public class MXMemoryStore implements IMXStore {
     protected void initCommon(){
         mRooms = new ConcurrentHashMap<String, Room>();
         mUsers = new ConcurrentHashMap<String, User>();
-        mRoomEvents = new ConcurrentHashMap<String, LinkedHashMap<String, Event>>();
+        mRoomEvents = new ConcurrentHashMap<String, RoomTimeline>();
         mRoomTokens = new ConcurrentHashMap<String, String>();
+        mRoomsViewedSequences = new ConcurrentHashMap<String, Long>();
         mRoomSummaries = new ConcurrentHashMap<String, RoomSummary>();
+        mMessagesIndex.clear();
 
         mEventStreamToken = null;
     }
@@ -89,6 +106,137 @@ public class MXMemoryStore implements IMXStore {
      */
     @Override
     public void commit() {
+        enforceMemoryBudget();
+    }
+
+    /**
+     * Write the pending changes now.
+     * Nothing is written by the memory store.
+     */
+    @Override
+    public void flush() {
+    }
+
+    /**
+     * Write the pending changes now and wait until they are written.
+     * Nothing is written by the memory store.
+     */
+    @Override
+    public void flushAndWait() {
+    }
+
+    /**
+     * Start a batch of updates.
+     * Nothing is written by the memory store.
+     */
+    @Override
+    public void beginBatch() {
+    }
+
+    /**
+     * End a batch of updates.
+     */
+    @Override
+    public void endBatch() {
+    }
+
+    @Override
+    public void setRetentionPolicy(RetentionPolicy policy) {
+        mRetentionPolicy = (null != policy) ? policy : new RetentionPolicy();
+    }
+
+    @Override
+    public RetentionPolicy getRetentionPolicy() {
+        return mRetentionPolicy;
+    }
+
+    /**
+     * Flag a room timeline as viewed : the least recently viewed timelines are released first.
+     * @param roomId the room id
+     */
+    protected void markRoomViewed(String roomId) {
+        if (null != roomId) {
+            mRoomsViewedSequences.put(roomId, mViewSequence.incrementAndGet());
+        }
+    }
+
+    /**
+     * Release the timelines of the least recently viewed rooms until the stored timelines fit the memory budget.
+     * The pinned rooms and the latest viewed room are never released.
+     */
+    protected void enforceMemoryBudget() {
+        RetentionPolicy policy = mRetentionPolicy;
+        long budget = policy.getMemoryBudget();
+
+        if (budget <= 0) {
+            return;
+        }
+
+        long size = 0;
+
+        for (RoomTimeline timeline : mRoomEvents.values()) {
+            size += timeline.getSizeInBytes();
+        }
+
+        if (size <= budget) {
+            return;
+        }
+
+        long start = System.currentTimeMillis();
+        long initialSize = size;
+
+        final HashMap<String, Long> sequences = new HashMap<String, Long>(mRoomsViewedSequences);
+        ArrayList<String> roomIds = new ArrayList<String>(mRoomEvents.keySet());
+
+        // the never viewed rooms first
+        Collections.sort(roomIds, new Comparator<String>() {
+            @Override
+            public int compare(String lhs, String rhs) {
+                Long lhsSequence = sequences.get(lhs);
+                Long rhsSequence = sequences.get(rhs);
+
+                return Long.valueOf((null != lhsSequence) ? lhsSequence : 0).compareTo((null != rhsSequence) ? rhsSequence : 0);
+            }
+        });
+
+        for (int index = 0; (index < (roomIds.size() - 1)) && (size > budget); index++) {
+            String roomId = roomIds.get(index);
+
+            if (!policy.isPinned(roomId)) {
+                size -= releaseRoomTimeline(roomId);
+            }
+        }
+
+        Log.d(LOG_TAG, "enforceMemoryBudget : " + initialSize + " -> " + size + " bytes in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /**
+     * Release the memory used by a room timeline.
+     * The memory store cannot reload a timeline : its history is trimmed to the retention limits.
+     * @param roomId the room id
+     * @return the released size in bytes.
+     */
+    protected long releaseRoomTimeline(String roomId) {
+        RoomTimeline timeline = mRoomEvents.get(roomId);
+
+        if (null == timeline) {
+            return 0;
+        }
+
+        long size = timeline.getSizeInBytes();
+        ArrayList<Event> events = timeline.getEvents();
+        int startIndex = mRetentionPolicy.trimmedHistoryStartIndex(roomId, events, System.currentTimeMillis());
+
+        if (startIndex > 0) {
+            Event oldestEvent = events.get(startIndex);
+
+            // the room history can be extended from the oldest event token
+            if ((timeline.removeEventsBefore(oldestEvent.eventId) > 0) && (null != oldestEvent.mToken)) {
+                mRoomTokens.put(roomId, oldestEvent.mToken);
+            }
+        }
+
+        return size - timeline.getSizeInBytes();
     }
 
     /**
@@ -114,6 +262,25 @@ public class MXMemoryStore implements IMXStore {
         initCommon();
     }
 
+    @Override
+    public Collection<String> popCorruptedRoomIds() {
+        synchronized (mCorruptedRoomIds) {
+            ArrayList<String> roomIds = new ArrayList<String>(mCorruptedRoomIds);
+            mCorruptedRoomIds.clear();
+            return roomIds;
+        }
+    }
+
+    /**
+     * Flag a room whose stored data were corrupted : it will be retrieved again.
+     * @param roomId the room id
+     */
+    protected void addCorruptedRoomId(String roomId) {
+        synchronized (mCorruptedRoomIds) {
+            mCorruptedRoomIds.add(roomId);
+        }
+    }
+
     /**
      * Indicate if the MXStore implementation stores data permanently.
      * Permanent storage allows the SDK to make less requests at the startup.
@@ -142,6 +309,16 @@ public class MXMemoryStore implements IMXStore {
         return 0;
     }
 
+    /**
+     * Returns the disk usage of a room in bytes.
+     * @param roomId the room id
+     * @return disk usage size
+     */
+    @Override
+    public long diskUsage(String roomId) {
+        return 0;
+    }
+
     /**
      * Returns the latest known event stream token
      * @return the event stream token
@@ -250,6 +427,15 @@ public class MXMemoryStore implements IMXStore {
         }
     }
 
+    /**
+     * Set the events of a room (e.g. loaded from a permanent storage).
+     * @param roomId the room id
+     * @param events the events, from the oldest to the latest.
+     */
+    protected void setRoomEvents(String roomId, Collection<Event> events) {
+        mRoomEvents.put(roomId, new RoomTimeline(events));
+    }
+
     @Override
     public void storeRoom(Room room) {
         if ((null != room) && (null != room.getRoomId())) {
@@ -260,13 +446,10 @@ public class MXMemoryStore implements IMXStore {
     @Override
     public Event getOldestEvent(String roomId) {
         if (null != roomId) {
-            LinkedHashMap<String, Event> events = mRoomEvents.get(roomId);
+            RoomTimeline timeline = mRoomEvents.get(roomId);
 
-            if (events != null) {
-                Iterator<Event> it = events.values().iterator();
-                if (it.hasNext()) {
-                    return it.next();
-                }
+            if (timeline != null) {
+                return timeline.getOldestEvent();
             }
         }
         return null;
@@ -279,19 +462,10 @@ public class MXMemoryStore implements IMXStore {
      */
     public Event getLatestEvent(String roomId) {
         if (null != roomId) {
-            LinkedHashMap<String, Event> events = mRoomEvents.get(roomId);
-
-            if (events != null) {
-                Iterator<Event> it = events.values().iterator();
-                if (it.hasNext()) {
-                    Event lastEvent = null;
-
-                    while (it.hasNext()) {
-                        lastEvent = it.next();
-                    }
+            RoomTimeline timeline = mRoomEvents.get(roomId);
 
-                    return lastEvent;
-                }
+            if (timeline != null) {
+                return timeline.getLatestEvent();
             }
         }
         return null;
@@ -300,11 +474,12 @@ public class MXMemoryStore implements IMXStore {
     @Override
     public void storeLiveRoomEvent(Event event) {
         if ((null != event) && (null != event.roomId)) {
-            LinkedHashMap<String, Event> events = mRoomEvents.get(event.roomId);
-            if (events != null) {
+            RoomTimeline timeline = mRoomEvents.get(event.roomId);
+            if (timeline != null) {
                 // If we don't have any information on this room - a pagination token, namely - we don't store the event but instead
                 // wait for the first pagination request to set things right
-                events.put(event.eventId, event);
+                timeline.append(event);
+                mMessagesIndex.indexEvent(event);
             }
         }
     }
@@ -312,10 +487,12 @@ public class MXMemoryStore implements IMXStore {
     @Override
     public void deleteEvent(Event event) {
         if ((null != event) && (null != event.roomId)) {
-            LinkedHashMap<String, Event> events = mRoomEvents.get(event.roomId);
-            if ((events != null) && (event.eventId != null)) {
-                events.remove(event.eventId);
+            RoomTimeline timeline = mRoomEvents.get(event.roomId);
+            if ((timeline != null) && (event.eventId != null)) {
+                timeline.remove(event.eventId);
             }
+
+            mMessagesIndex.removeEvent(event.eventId);
         }
     }
 
@@ -325,69 +502,49 @@ public class MXMemoryStore implements IMXStore {
         if (null != roomId) {
             mRooms.remove(roomId);
             mRoomEvents.remove(roomId);
+            mRoomsViewedSequences.remove(roomId);
             mRoomTokens.remove(roomId);
             mRoomSummaries.remove(roomId);
+            mMessagesIndex.removeRoom(roomId);
         }
     }
 
     @Override
     public void storeRoomEvents(String roomId, TokensChunkResponse<Event> eventsResponse, Room.EventDirection direction) {
         if (null != roomId) {
-            LinkedHashMap<String, Event> events = mRoomEvents.get(roomId);
-            if (events == null) {
-                events = new LinkedHashMap<String, Event>();
-                mRoomEvents.put(roomId, events);
+            RoomTimeline timeline = mRoomEvents.get(roomId);
+            if (timeline == null) {
+                timeline = new RoomTimeline();
+                mRoomEvents.put(roomId, timeline);
             }
 
             if (direction == Room.EventDirection.FORWARDS) {
                 mRoomTokens.put(roomId, eventsResponse.start);
-
-                for (Event event : eventsResponse.chunk) {
-                    events.put(event.eventId, event);
-                }
-
+                timeline.appendAll(eventsResponse.chunk);
             } else { // BACKWARD
-                Collection<Event> eventsList = events.values();
-
                 // no stored events
-                if (events.size() == 0) {
-                    // insert the catchup events in reverse order
-                    for (int index = eventsResponse.chunk.size() - 1; index >= 0; index--) {
-                        Event backEvent = eventsResponse.chunk.get(index);
-                        events.put(backEvent.eventId, backEvent);
-                    }
-
+                if (timeline.size() == 0) {
                     // define a token
                     mRoomTokens.put(roomId, eventsResponse.start);
-                } else {
-                    LinkedHashMap<String, Event> events2 = new LinkedHashMap<String, Event>();
-
-                    // insert the catchup events in reverse order
-                    for (int index = eventsResponse.chunk.size() - 1; index >= 0; index--) {
-                        Event backEvent = eventsResponse.chunk.get(index);
-                        events2.put(backEvent.eventId, backEvent);
-                    }
-
-                    // add the previous added Events
-                    for (Event event : eventsList) {
-                        events2.put(event.eventId, event);
-                    }
-
-                    // store the new list
-                    mRoomEvents.put(roomId, events2);
                 }
+
+                // the chunk is ordered from the latest to the oldest event
+                timeline.prependAll(eventsResponse.chunk);
             }
+
+            mMessagesIndex.indexEvents(eventsResponse.chunk);
         }
     }
 
     @Override
     public boolean updateEventContent(String roomId, String eventId, JsonObject newContent) {
         if (null != roomId) {
-            LinkedHashMap<String, Event> events = mRoomEvents.get(roomId);
-            if (events != null) {
-                Event event = events.get(eventId);
+            RoomTimeline timeline = mRoomEvents.get(roomId);
+            if (timeline != null) {
+                Event event = timeline.getEvent(eventId);
                 if (event != null) {
-                    event.content = newContent;
+                    event.setContent(newContent);
+                    mMessagesIndex.updateContent(eventId, newContent);
                     return true;
                 }
             }
@@ -440,14 +597,20 @@ public class MXMemoryStore implements IMXStore {
             return null;
         }
 
-        LinkedHashMap<String, Event> events = mRoomEvents.get(roomId);
+        RoomTimeline timeline = mRoomEvents.get(roomId);
 
         // unknown room ?
-        if (null == events) {
+        if (null == timeline) {
             return null;
         }
 
-        return new ArrayList<Event>(events.values());
+        markRoomViewed(roomId);
+        return timeline.getEvents();
+    }
+
+    @Override
+    public List<String> searchMessages(String pattern, String roomId, int limit) {
+        return mMessagesIndex.search(pattern, roomId, limit);
     }
 
     @Override
@@ -455,53 +618,22 @@ public class MXMemoryStore implements IMXStore {
         // For now, we return everything we have for the original null token request
         // For older requests (providing a token), returning null for now
         if (null != roomId) {
-            LinkedHashMap<String, Event> events = mRoomEvents.get(roomId);
-            if ((events == null) || (events.size() == 0)) {
+            RoomTimeline timeline = mRoomEvents.get(roomId);
+            if ((timeline == null) || (timeline.size() == 0)) {
                 return null;
             }
 
-            // check if the token is known in the sublist
-            ArrayList<Event> eventsList = new ArrayList<>(events.values());
-            ArrayList<Event> subEventsList = new ArrayList<>();
-
-            // search from the latest to the oldest events
-            Collections.reverse(eventsList);
-
-            TokensChunkResponse<Event> response = new TokensChunkResponse<Event>();
+            markRoomViewed(roomId);
 
-            // start the latest event and there is enough events to provide to the caller ?
-            if ((null == fromToken) && (eventsList.size() <= limit)) {
-                subEventsList = eventsList;
-            } else {
-                int index = 0;
-
-                if (null != fromToken) {
-                    // search if token is one of the stored events
-                    for (; (index < eventsList.size()) && (!fromToken.equals(eventsList.get(index).mToken)); index++)
-                        ;
-
-                    index++;
-                }
-
-                // found it ?
-                if (index < eventsList.size()) {
-                    for(;index < eventsList.size(); index++) {
-                        Event event = eventsList.get(index);
-                        subEventsList.add(event);
-
-                        // loop until to find an event with a token
-                        if ((subEventsList.size() >= limit) &&  (event.mToken != null)) {
-                            break;
-                        }
-                    }
-                }
-            }
+            // only the returned events are visited
+            ArrayList<Event> subEventsList = timeline.getEarlierEvents(fromToken, limit);
 
             // unknown token
-            if (subEventsList.size() == 0) {
+            if ((null == subEventsList) || (subEventsList.size() == 0)) {
                 return null;
             }
 
+            TokensChunkResponse<Event> response = new TokensChunkResponse<Event>();
             response.chunk = subEventsList;
 
             Event firstEvent = subEventsList.get(0);
@@ -543,16 +675,16 @@ public class MXMemoryStore implements IMXStore {
         }
 
         ArrayList<Event> unsentRoomEvents = new ArrayList<Event>();
-        LinkedHashMap<String, Event> events = mRoomEvents.get(roomId);
+        RoomTimeline timeline = mRoomEvents.get(roomId);
 
         // contain some events
-        if ((null != events) && (events.size() > 0)) {
-            ArrayList<Event>eventsList = new ArrayList(events.values());
+        if ((null != timeline) && (timeline.size() > 0)) {
+            RoomTimeline.Snapshot snapshot = timeline.snapshot();
 
-            for(int index = events.size()-1; index >= 0; index--) {
-                Event event = eventsList.get(index);
+            for (long position = snapshot.getTail(); position >= snapshot.getHead(); position--) {
+                Event event = snapshot.get(position);
 
-                if (event.mSentState == Event.SentState.WAITING_RETRY) {
+                if ((null != event) && (event.mSentState == Event.SentState.WAITING_RETRY)) {
                     unsentRoomEvents.add(event);
                 } else {
                     //break;
@@ -0,0 +1,1863 @@
+/*
+ * Copyright 2015 OpenMarket Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.matrix.androidsdk.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.google.gson.JsonObject;
+
+import org.matrix.androidsdk.HomeserverConnectionConfig;
+import org.matrix.androidsdk.rest.model.Event;
+import org.matrix.androidsdk.rest.model.RoomMember;
+import org.matrix.androidsdk.rest.model.TokensChunkResponse;
+import org.matrix.androidsdk.util.IdentifierPool;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An IMXStore backed by a SQLite database.
+ *
+ * The rooms timelines are saved in an indexed table : they are not loaded in memory when the store is opened,
+ * and the timeline requests (pagination, oldest / latest event...) are indexed queries.
+ * The timeline updates are written when they are stored.
+ * The rooms states, the summaries and the metadata are written by a background thread at commit.
+ */
+public class MXSQLiteStore extends MXMemoryStore {
+    private static final String LOG_TAG = "MXSQLiteStore";
+
+    // some constant values
+    private static final int DATABASE_VERSION = 2;
+    private static final int MXSQLITE_VERSION = 1;
+
+    private static final String DATABASE_NAME_PREFIX = "MXSQLiteStore_";
+
+    // the maximum delay to wait for the pending writes in flushAndWait()
+    private static final long FLUSH_TIMEOUT_MS = 2000;
+
+    private static final String TABLE_METADATA = "metadata";
+    private static final String TABLE_ROOMS = "rooms";
+    private static final String TABLE_EVENTS = "events";
+    private static final String TABLE_MEMBERS = "members";
+    private static final String TABLE_SUMMARIES = "summaries";
+    private static final String TABLE_MESSAGES_INDEX = "messages_index";
+
+    /**
+     * Create / upgrade the database schema.
+     */
+    private static class DatabaseHelper extends SQLiteOpenHelper {
+        public DatabaseHelper(Context context, String name) {
+            super(context, name, null, DATABASE_VERSION);
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE " + TABLE_METADATA + " (data BLOB)");
+
+            db.execSQL("CREATE TABLE " + TABLE_ROOMS + " (room_id TEXT PRIMARY KEY, token TEXT, state BLOB)");
+
+            // the events are ordered by seq in each room : the back paginated events get negative values.
+            db.execSQL("CREATE TABLE " + TABLE_EVENTS + " (room_id TEXT NOT NULL, seq INTEGER NOT NULL, event_id TEXT, token TEXT, sent_state INTEGER, data BLOB, PRIMARY KEY (room_id, seq))");
+            db.execSQL("CREATE INDEX events_event_id ON " + TABLE_EVENTS + " (room_id, event_id)");
+            db.execSQL("CREATE INDEX events_token ON " + TABLE_EVENTS + " (room_id, token)");
+            db.execSQL("CREATE INDEX events_sent_state ON " + TABLE_EVENTS + " (sent_state)");
+
+            db.execSQL("CREATE TABLE " + TABLE_MEMBERS + " (room_id TEXT NOT NULL, user_id TEXT NOT NULL, membership TEXT, displayname TEXT, avatar_url TEXT, PRIMARY KEY (room_id, user_id))");
+
+            db.execSQL("CREATE TABLE " + TABLE_SUMMARIES + " (room_id TEXT PRIMARY KEY, data BLOB)");
+
+            createMessagesIndexTable(db);
+        }
+
+        /**
+         * Create the messages index table : the tokens of a message are separated by spaces.
+         * @param db the database
+         */
+        private void createMessagesIndexTable(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE " + TABLE_MESSAGES_INDEX + " (event_id TEXT PRIMARY KEY, room_id TEXT NOT NULL, ts INTEGER, tokens TEXT)");
+        }
+
+        @Override
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            if (1 == oldVersion) {
+                // the index is built from the stored events when the store is opened
+                Log.d(LOG_TAG, "onUpgrade " + oldVersion + " -> " + newVersion + " : add the messages index");
+                createMessagesIndexTable(db);
+                return;
+            }
+
+            Log.d(LOG_TAG, "onUpgrade " + oldVersion + " -> " + newVersion + " : the data are cleared");
+
+            // the data are retrieved from the server with an initial sync
+            db.execSQL("DROP TABLE IF EXISTS " + TABLE_METADATA);
+            db.execSQL("DROP TABLE IF EXISTS " + TABLE_ROOMS);
+            db.execSQL("DROP TABLE IF EXISTS " + TABLE_EVENTS);
+            db.execSQL("DROP TABLE IF EXISTS " + TABLE_MEMBERS);
+            db.execSQL("DROP TABLE IF EXISTS " + TABLE_SUMMARIES);
+            db.execSQL("DROP TABLE IF EXISTS " + TABLE_MESSAGES_INDEX);
+            onCreate(db);
+        }
+    }
+
+    private Context mContext = null;
+
+    private String mDatabaseName = null;
+    private DatabaseHelper mDatabaseHelper = null;
+    private SQLiteDatabase mDatabase = null;
+    // the thread running a batch transaction, null if there is no batch
+    private volatile Thread mBatchThread = null;
+
+    // the background thread
+    private HandlerThread mHandlerThread = null;
+    private android.os.Handler mStoreHandler = null;
+
+    private boolean mIsReady = false;
+    private boolean mIsOpening = false;
+    private boolean mIsNewStorage = false;
+    private Boolean mIsKilled = false;
+
+    private MXStoreListener mListener = null;
+
+    // the identifiers pool of the session : the identifiers of the read events and members are pooled
+    private final IdentifierPool mIdentifierPool;
+
+    // the commits are delayed and grouped in a single transaction : they are run on the UI thread like the direct commits.
+    private final CommitScheduler mCommitScheduler = new CommitScheduler(new Runnable() {
+        @Override
+        public void run() {
+            commitNow();
+        }
+    });
+
+    // List of rooms to save on [MXStore commit]
+    // the rooms to commit are added by the events thread and taken by the commits : use their locks.
+    private final HashSet<String> mRoomsToCommitForStates = new HashSet<String>();
+    private final HashSet<String> mRoomsToCommitForSummaries = new HashSet<String>();
+
+    // Flag to indicate metaData needs to be store
+    private volatile boolean mMetaDataHasChanged = false;
+
+    // the timelines bounds : room id -> {oldest seq, latest seq}
+    // the timeline is empty when latest seq < oldest seq.
+    // a room has a known timeline when it has an entry.
+    private final HashMap<String, long[]> mRoomBounds = new HashMap<String, long[]>();
+
+    // the events which are not yet sent : room id -> (seq -> event)
+    // their sent states are updated by the room so they are kept in memory until they are sent.
+    private final HashMap<String, TreeMap<Long, Event>> mLocalEvents = new HashMap<String, TreeMap<Long, Event>>();
+
+    // the rooms whose timelines have grown since the latest commit : the retention policy is applied at commit.
+    private HashSet<String> mRoomsToTrim = new HashSet<String>();
+
+    /**
+     * Default constructor
+     * @param hsConfig the expected credentials
+     * @param context the context
+     */
+    public MXSQLiteStore(HomeserverConnectionConfig hsConfig, Context context) {
+        initCommon();
+        mContext = context;
+        mIsReady = false;
+        mCredentials = hsConfig.getCredentials();
+        mIdentifierPool = hsConfig.getIdentifierPool();
+
+        mHandlerThread = new HandlerThread("MXSQLiteStoreBackgroundThread_" + mCredentials.userId, Thread.MIN_PRIORITY);
+
+        mDatabaseName = DATABASE_NAME_PREFIX + mCredentials.userId;
+        mDatabaseHelper = new DatabaseHelper(mContext.getApplicationContext(), mDatabaseName);
+        mDatabase = mDatabaseHelper.getWritableDatabase();
+
+
+        mCommitScheduler.setHandler(new Handler(Looper.getMainLooper()));
+
+        // the index updates are saved at commit time
+        mMessagesIndex.trackChanges();
+
+        // check if the metadata exists and if it is valid
+        loadMetaData();
+
+        if ( (null == mMetadata) ||
+                (mMetadata.mVersion != MXSQLITE_VERSION) ||
+                !mMetadata.mUserId.equals(mCredentials.userId) ||
+                !mMetadata.mAccessToken.equals(mCredentials.accessToken)) {
+            deleteAllData(true);
+        }
+
+        // create the metadata if it does not exist
+        if (null == mMetadata) {
+            mIsNewStorage = true;
+            mIsOpening = true;
+            mHandlerThread.start();
+            mStoreHandler = new android.os.Handler(mHandlerThread.getLooper());
+
+            mMetadata = new MXFileStoreMetaData();
+            mMetadata.mUserId = mCredentials.userId;
+            mMetadata.mAccessToken = mCredentials.accessToken;
+            mMetadata.mVersion = MXSQLITE_VERSION;
+            mMetaDataHasChanged = true;
+            commitNow();
+
+            mEventStreamToken = null;
+
+            mIsOpening = false;
+            // nothing to load so ready to work
+            mIsReady = true;
+        }
+    }
+
+    /**
+     * @return the looper of the background thread, null if it is not started.
+     */
+    Looper getStoreLooper() {
+        Handler storeHandler = mStoreHandler;
+        return (null != storeHandler) ? storeHandler.getLooper() : null;
+    }
+
+    /**
+     * Killed the background thread.
+     * @param isKilled
+     */
+    private void setIsKilled(Boolean isKilled) {
+        synchronized (this) {
+            mIsKilled = isKilled;
+        }
+    }
+
+    /**
+     * @return true if the background thread is killed.
+     */
+    private Boolean isKilled() {
+        Boolean isKilled;
+
+        synchronized (this) {
+            isKilled = mIsKilled;
+        }
+
+        return isKilled;
+    }
+
+    /**
+     * Serialize an object.
+     * @param object the object
+     * @return the serialized object
+     * @throws IOException
+     */
+    private static byte[] serialize(Object object) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bos);
+        out.writeObject(object);
+        out.close();
+        return bos.toByteArray();
+    }
+
+    /**
+     * Deserialize an object.
+     * @param bytes the serialized object
+     * @return the object
+     * @throws Exception
+     */
+    private static Object deserialize(byte[] bytes) throws Exception {
+        ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes));
+        Object object = ois.readObject();
+        ois.close();
+        return object;
+    }
+
+    /**
+     * Build the row of an event.
+     * @param event the event
+     * @return the row values
+     * @throws IOException
+     */
+    private static ContentValues eventValues(Event event) throws IOException {
+        ContentValues values = new ContentValues();
+
+        event.prepareSerialization();
+
+        values.put("event_id", event.eventId);
+        values.put("token", event.mToken);
+        values.put("sent_state", event.mSentState.ordinal());
+        values.put("data", serialize(event));
+
+        return values;
+    }
+
+    /**
+     * Read an event from its serialized value.
+     * @param bytes the serialized event
+     * @return the event, with pooled identifiers.
+     * @throws Exception
+     */
+    private Event readEvent(byte[] bytes) throws Exception {
+        Event event = (Event) deserialize(bytes);
+        mIdentifierPool.internIdentifiers(event);
+        return event;
+    }
+
+    /**
+     * Save changes in the store.
+     * The write is delayed to group it with the next commits (see setCommitDelays).
+     */
+    @Override
+    public void commit() {
+        if ((null != mMetadata) && !isKilled()) {
+            mCommitScheduler.schedule();
+        }
+    }
+
+    /**
+     * Update the delays of the write-behind commits.
+     * @param debounceDelay the delay without any commit before writing (in milliseconds).
+     * @param maxLatency the maximum delay between a commit and the write (in milliseconds).
+     */
+    public void setCommitDelays(long debounceDelay, long maxLatency) {
+        mCommitScheduler.setDelays(debounceDelay, maxLatency);
+    }
+
+    /**
+     * Write the pending changes now.
+     * The transaction is posted to the background thread.
+     */
+    @Override
+    public void flush() {
+        mCommitScheduler.cancel();
+        commitNow();
+    }
+
+    /**
+     * Write the pending changes now and wait until they are written.
+     * It must not be called from the UI thread.
+     */
+    @Override
+    public void flushAndWait() {
+        flush();
+
+        Handler storeHandler = mStoreHandler;
+
+        // the background thread runs the transactions in order
+        if (!isKilled() && (null != storeHandler) && (Looper.myLooper() != storeHandler.getLooper())) {
+            long start = System.currentTimeMillis();
+            final CountDownLatch latch = new CountDownLatch(1);
+
+            boolean isPosted = storeHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    latch.countDown();
+                }
+            });
+
+            try {
+                if (isPosted && !latch.await(FLUSH_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                    Log.e(LOG_TAG, "flush : the pending writes are not done after " + FLUSH_TIMEOUT_MS + " ms");
+                }
+            } catch (InterruptedException e) {
+                Log.e(LOG_TAG, "flush interrupted");
+            }
+
+            Log.d(LOG_TAG, "flush : " + (System.currentTimeMillis() - start) + " ms");
+        }
+    }
+
+    /**
+     * Start a batch of updates : the events are written in a single transaction.
+     */
+    @Override
+    public void beginBatch() {
+        if (!isKilled() && (null != mDatabase) && (null == mBatchThread)) {
+            mDatabase.beginTransaction();
+            mBatchThread = Thread.currentThread();
+        }
+    }
+
+    /**
+     * End a batch of updates : its transaction is committed.
+     */
+    @Override
+    public void endBatch() {
+        if (Thread.currentThread() == mBatchThread) {
+            mBatchThread = null;
+
+            try {
+                mDatabase.setTransactionSuccessful();
+            } finally {
+                mDatabase.endTransaction();
+            }
+        }
+    }
+
+    /**
+     * Take the rooms ids to commit : the set is emptied with its lock.
+     * @param roomIds the rooms ids to commit
+     * @return the taken rooms ids
+     */
+    private static HashSet<String> takeRoomIds(HashSet<String> roomIds) {
+        synchronized (roomIds) {
+            HashSet<String> takenRoomIds = new HashSet<String>(roomIds);
+            roomIds.clear();
+            return takenRoomIds;
+        }
+    }
+
+    /**
+     * Write the pending changes.
+     * The timelines are already written : this method saves the rooms states, the summaries,
+     * the metadata and the local echoes in a single transaction.
+     */
+    private void commitNow() {
+        // Save data only if metaData exists
+        if ((null != mMetadata) && !isKilled() && (null != mStoreHandler)) {
+            Log.d(LOG_TAG, "++ Commit");
+
+            final HashSet<String> fRoomsToCommitForStates = takeRoomIds(mRoomsToCommitForStates);
+            final HashSet<String> fRoomsToCommitForSummaries = takeRoomIds(mRoomsToCommitForSummaries);
+
+            // the flag is cleared before the copy : an update done meanwhile sets it again
+            boolean metaDataHasChanged = mMetaDataHasChanged;
+            mMetaDataHasChanged = false;
+            final MXFileStoreMetaData fMetadata = metaDataHasChanged ? mMetadata.deepCopy() : null;
+
+            final Map<String, MessagesIndex.Entry> fIndexChanges = mMessagesIndex.popChanges();
+
+            final HashSet<String> fRoomsToTrim;
+
+            synchronized (mRoomBounds) {
+                fRoomsToTrim = mRoomsToTrim;
+                mRoomsToTrim = new HashSet<String>();
+            }
+
+            mStoreHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (!isKilled()) {
+                        long start = System.currentTimeMillis();
+
+                        mDatabase.beginTransaction();
+
+                        try {
+                            for (String roomId : fRoomsToCommitForStates) {
+                                saveRoomState(roomId);
+                            }
+
+                            for (String roomId : fRoomsToCommitForSummaries) {
+                                saveSummary(roomId);
+                            }
+
+                            if (null != fMetadata) {
+                                saveMetaData(fMetadata);
+                            }
+
+                            saveLocalEvents();
+                            saveMessagesIndex(fIndexChanges);
+
+                            mDatabase.setTransactionSuccessful();
+                        } catch (Exception e) {
+                            Log.e(LOG_TAG, "commit failed : " + e.getMessage());
+
+                            // the index updates are written with the next commit
+                            mMessagesIndex.restoreChanges(fIndexChanges);
+
+                            // the members updates have been rolled back : the next saves rewrite the whole members lists
+                            for (String roomId : fRoomsToCommitForStates) {
+                                Room room = mRooms.get(roomId);
+
+                                if (null != room) {
+                                    room.getLiveState().untrackMembersUpdates();
+                                }
+                            }
+                        } finally {
+                            mDatabase.endTransaction();
+                        }
+
+                        Log.d(LOG_TAG, "commit : " + fRoomsToCommitForStates.size() + " states " + fRoomsToCommitForSummaries.size() + " summaries in " + (System.currentTimeMillis() - start) + " ms");
+
+                        for (String roomId : fRoomsToTrim) {
+                            trimRoomEvents(roomId);
+                        }
+                    }
+                }
+            });
+
+            Log.d(LOG_TAG, "-- Commit");
+        }
+    }
+
+    /**
+     * Open the store.
+     */
+    @Override
+    public void open() {
+        super.open();
+
+        // avoid concurrency call.
+        synchronized (this) {
+            if (!mIsReady && !mIsOpening && (null != mMetadata) && (null != mHandlerThread)) {
+                mIsOpening = true;
+
+                Log.e(LOG_TAG, "Open the store.");
+
+                // creation the background handler.
+                if (null == mStoreHandler) {
+                    try {
+                        mHandlerThread.start();
+                    } catch (IllegalThreadStateException e) {
+                        Log.e(LOG_TAG, "mHandlerThread is already started.");
+                        // already started
+                        return;
+                    }
+                    mStoreHandler = new android.os.Handler(mHandlerThread.getLooper());
+                }
+
+                mStoreHandler.post(new Runnable() {
+                    public void run() {
+                        Log.e(LOG_TAG, "Open the store in the background thread.");
+
+                        // the summaries are published first : the rooms list can be displayed
+                        boolean succeed = loadSummaries();
+
+                        if (!succeed) {
+                            Log.e(LOG_TAG, "loadSummaries fails");
+                        } else {
+                            Log.e(LOG_TAG, "loadSummaries succeeds");
+
+                            dispatchOpenPhaseDone(OpenPhase.SUMMARIES);
+                        }
+
+                        if (succeed) {
+                            succeed &= loadRooms();
+
+                            if (succeed) {
+                                loadMessagesIndex();
+                            }
+
+                            if (!succeed) {
+                                Log.e(LOG_TAG, "loadRooms fails");
+                            } else {
+                                Log.e(LOG_TAG, "loadRooms succeeds");
+
+                                dispatchOpenPhaseDone(OpenPhase.ROOMS);
+                            }
+                        }
+
+                        // assume that something is corrupted
+                        if (!succeed) {
+                            Log.e(LOG_TAG, "Fail to open the store in background");
+
+                            deleteAllData(true);
+
+                            takeRoomIds(mRoomsToCommitForStates);
+                            takeRoomIds(mRoomsToCommitForSummaries);
+
+                            mMetadata = new MXFileStoreMetaData();
+                            mMetadata.mUserId = mCredentials.userId;
+                            mMetadata.mAccessToken = mCredentials.accessToken;
+                            mMetadata.mVersion = MXSQLITE_VERSION;
+
+                            try {
+                                saveMetaData(mMetadata);
+                            } catch (Exception e) {
+                                Log.e(LOG_TAG, "saveMetaData failed : " + e.getMessage());
+                            }
+
+                            mEventStreamToken = null;
+                        }
+
+                        synchronized (MXSQLiteStore.this) {
+                            mIsReady = true;
+                        }
+                        mIsOpening = false;
+
+                        if (null != mListener) {
+                            if (!succeed && !mIsNewStorage) {
+                                Log.e(LOG_TAG, "The store is corrupted.");
+                                mListener.onStoreCorrupted(mCredentials.userId);
+                            } else {
+                                Log.e(LOG_TAG, "The store is opened.");
+                                mListener.onStoreReady(mCredentials.userId);
+                            }
+                        }
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Close the store.
+     * Any pending operation must be complete in this call.
+     */
+    @Override
+    public void close() {
+        Log.d(LOG_TAG, "Close the store");
+
+        // the pending commit is written before closing the database
+        mCommitScheduler.cancel();
+        commitNow();
+
+        super.close();
+        setIsKilled(true);
+
+        if (null != mStoreHandler) {
+            // the pending operations are done before closing the database
+            mStoreHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mDatabaseHelper.close();
+                    mHandlerThread.quit();
+                }
+            });
+        } else {
+            mDatabaseHelper.close();
+            mHandlerThread.quit();
+        }
+    }
+
+    /**
+     * Clear the store.
+     * Any pending operation must be complete in this call.
+     */
+    @Override
+    public void clear() {
+        Log.d(LOG_TAG, "Clear the store");
+        super.close();
+        deleteAllData(false);
+    }
+
+    /**
+     * Delete the database.
+     * @param init true to create a new empty database
+     */
+    private void deleteAllData(boolean init) {
+        try {
+            mDatabaseHelper.close();
+            mContext.getApplicationContext().deleteDatabase(mDatabaseName);
+
+            if (init) {
+                mDatabase = mDatabaseHelper.getWritableDatabase();
+            }
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "deleteAllData failed : " + e.getMessage());
+        }
+
+        if (init) {
+            initCommon();
+
+            synchronized (mRoomBounds) {
+                mRoomBounds.clear();
+                mLocalEvents.clear();
+            }
+        }
+
+        mMetadata = null;
+        mEventStreamToken = null;
+    }
+
+    /**
+     * Indicate if the MXStore implementation stores data permanently.
+     * Permanent storage allows the SDK to make less requests at the startup.
+     * @return true if permanent.
+     */
+    @Override
+    public boolean isPermanent() {
+        return true;
+    }
+
+    /**
+     * Check if the initial load is performed.
+     * @return true if it is ready.
+     */
+    @Override
+    public boolean isReady() {
+        synchronized (this) {
+            return mIsReady;
+        }
+    }
+
+    /**
+     * Returns to disk usage size in bytes.
+     * @return disk usage size
+     */
+    @Override
+    public long diskUsage() {
+        File databaseFile = mContext.getApplicationContext().getDatabasePath(mDatabaseName);
+        File journalFile = new File(databaseFile.getPath() + "-journal");
+
+        return databaseFile.length() + journalFile.length();
+    }
+
+    /**
+     * Returns the disk usage of a room in bytes.
+     * It is the size of its saved events and of its saved state without the database overhead.
+     * @param roomId the room id
+     * @return disk usage size
+     */
+    @Override
+    public long diskUsage(String roomId) {
+        long size = 0;
+
+        if ((null == roomId) || isKilled() || (null == mDatabase)) {
+            return size;
+        }
+
+        String[] queries = new String[] {
+                "SELECT SUM(LENGTH(data)) FROM " + TABLE_EVENTS + " WHERE room_id = ?",
+                "SELECT SUM(LENGTH(state)) FROM " + TABLE_ROOMS + " WHERE room_id = ?",
+                "SELECT SUM(LENGTH(user_id) + IFNULL(LENGTH(membership), 0) + IFNULL(LENGTH(displayname), 0) + IFNULL(LENGTH(avatar_url), 0)) FROM " + TABLE_MEMBERS + " WHERE room_id = ?",
+                "SELECT SUM(LENGTH(data)) FROM " + TABLE_SUMMARIES + " WHERE room_id = ?"
+        };
+
+        for (String query : queries) {
+            Cursor cursor = mDatabase.rawQuery(query, new String[]{roomId});
+
+            try {
+                if (cursor.moveToFirst()) {
+                    size += cursor.getLong(0);
+                }
+            } catch (Exception e) {
+                Log.e(LOG_TAG, "diskUsage failed : " + e.getMessage());
+            } finally {
+                cursor.close();
+            }
+        }
+
+        return size;
+    }
+
+    /**
+     * Set the event stream token.
+     * @param token the event stream token
+     */
+    @Override
+    public void setEventStreamToken(String token) {
+        Log.d(LOG_TAG, "Set token to " + token);
+
+        // the metadata row is only rewritten when it is updated
+        boolean hasChanged = !TextUtils.equals(token, mEventStreamToken);
+
+        // the flag is set after the update so a commit cannot clear it before copying the update
+        super.setEventStreamToken(token);
+
+        if (hasChanged) {
+            mMetaDataHasChanged = true;
+        }
+    }
+
+    @Override
+    public void setDisplayName(String displayName) {
+        Log.d(LOG_TAG, "Set setDisplayName to " + displayName);
+        super.setDisplayName(displayName);
+        mMetaDataHasChanged = true;
+    }
+
+    @Override
+    public void setAvatarURL(String avatarURL) {
+        Log.d(LOG_TAG, "Set setAvatarURL to " + avatarURL);
+        super.setAvatarURL(avatarURL);
+        mMetaDataHasChanged = true;
+    }
+
+    /**
+     * Define a MXStore listener.
+     * @param listener
+     */
+    @Override
+    public void setMXStoreListener(MXStoreListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Inform the listener that an opening phase is done.
+     * @param phase the done phase
+     */
+    private void dispatchOpenPhaseDone(OpenPhase phase) {
+        if (mListener instanceof MXStoreOpenPhaseListener) {
+            ((MXStoreOpenPhaseListener) mListener).onStoreOpenPhaseDone(mCredentials.userId, phase);
+        }
+    }
+
+    //==============================================================================================================
+    // Timelines
+    //==============================================================================================================
+
+    /**
+     * Update the token of a room.
+     * @param roomId the room id
+     * @param token the new token
+     */
+    private void writeRoomToken(String roomId, String token) {
+        ContentValues values = new ContentValues();
+        values.put("token", token);
+
+        if (0 == mDatabase.update(TABLE_ROOMS, values, "room_id = ?", new String[]{roomId})) {
+            values.put("room_id", roomId);
+            mDatabase.insert(TABLE_ROOMS, null, values);
+        }
+    }
+
+    /**
+     * Provides the seq of a stored event.
+     * @param roomId the room id
+     * @param event the event
+     * @return the seq, null if the event is not stored
+     */
+    private Long findEventSeq(String roomId, Event event) {
+        // the local echoes could have been updated since they have been written
+        TreeMap<Long, Event> localEvents = mLocalEvents.get(roomId);
+
+        if (null != localEvents) {
+            for (Map.Entry<Long, Event> entry : localEvents.entrySet()) {
+                if ((entry.getValue() == event) || ((null != event.eventId) && event.eventId.equals(entry.getValue().eventId))) {
+                    return entry.getKey();
+                }
+            }
+        }
+
+        if (null != event.eventId) {
+            Cursor cursor = mDatabase.rawQuery("SELECT seq FROM " + TABLE_EVENTS + " WHERE room_id = ? AND event_id = ? LIMIT 1", new String[]{roomId, event.eventId});
+
+            try {
+                if (cursor.moveToFirst()) {
+                    return cursor.getLong(0);
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Write an event at the head or at the tail of a room timeline.
+     * An already stored event keeps its position.
+     * It must be called in a transaction.
+     * @param roomId the room id
+     * @param event the event
+     * @param bounds the room timeline bounds
+     * @param append true to add the event at the end of the timeline.
+     * @throws IOException
+     */
+    private void writeEvent(String roomId, Event event, long[] bounds, boolean append) throws IOException {
+        ContentValues values = eventValues(event);
+        Long seq = findEventSeq(roomId, event);
+
+        if (null != seq) {
+            mDatabase.update(TABLE_EVENTS, values, "room_id = ? AND seq = ?", new String[]{roomId, String.valueOf(seq)});
+        } else {
+            if (append) {
+                bounds[1]++;
+                seq = bounds[1];
+
+                // first event
+                if (bounds[1] < bounds[0]) {
+                    bounds[0] = bounds[1];
+                }
+            } else {
+                bounds[0]--;
+                seq = bounds[0];
+
+                // first event
+                if (bounds[1] < bounds[0]) {
+                    bounds[1] = bounds[0];
+                }
+            }
+
+            values.put("room_id", roomId);
+            values.put("seq", seq);
+            mDatabase.insert(TABLE_EVENTS, null, values);
+        }
+
+        mMessagesIndex.indexEvent(event);
+
+        // keep the local echoes in memory until they are sent
+        if (Event.SentState.SENT != event.mSentState) {
+            TreeMap<Long, Event> localEvents = mLocalEvents.get(roomId);
+
+            if (null == localEvents) {
+                localEvents = new TreeMap<Long, Event>();
+                mLocalEvents.put(roomId, localEvents);
+            }
+
+            localEvents.put(seq, event);
+        }
+    }
+
+    @Override
+    public void storeRoomEvents(String roomId, TokensChunkResponse<Event> eventsResponse, Room.EventDirection direction) {
+        if ((null == roomId) || isKilled()) {
+            return;
+        }
+
+        synchronized (mRoomBounds) {
+            long[] bounds = mRoomBounds.get(roomId);
+            boolean isEmpty = (null == bounds) || (bounds[1] < bounds[0]);
+
+            if (null == bounds) {
+                bounds = new long[]{0, -1};
+            }
+
+            long[] newBounds = new long[]{bounds[0], bounds[1]};
+
+            mDatabase.beginTransaction();
+
+            try {
+                if (direction == Room.EventDirection.FORWARDS) {
+                    writeRoomToken(roomId, eventsResponse.start);
+
+                    for (Event event : eventsResponse.chunk) {
+                        writeEvent(roomId, event, newBounds, true);
+                    }
+                } else {
+                    // the chunk is ordered from the latest event to the oldest one
+                    for (Event event : eventsResponse.chunk) {
+                        writeEvent(roomId, event, newBounds, false);
+                    }
+
+                    // define a token
+                    if (isEmpty) {
+                        writeRoomToken(roomId, eventsResponse.start);
+                    }
+                }
+
+                mDatabase.setTransactionSuccessful();
+
+                mRoomBounds.put(roomId, newBounds);
+                mRoomsToTrim.add(roomId);
+
+                if (((direction == Room.EventDirection.FORWARDS) || isEmpty) && (null != eventsResponse.start)) {
+                    mRoomTokens.put(roomId, eventsResponse.start);
+                }
+            } catch (Exception e) {
+                Log.e(LOG_TAG, "storeRoomEvents failed : " + e.getMessage());
+            } finally {
+                mDatabase.endTransaction();
+            }
+        }
+    }
+
+    /**
+     * Store a live room event.
+     * @param event The event to be stored.
+     */
+    @Override
+    public void storeLiveRoomEvent(Event event) {
+        if ((null == event) || (null == event.roomId) || isKilled()) {
+            return;
+        }
+
+        synchronized (mRoomBounds) {
+            long[] bounds = mRoomBounds.get(event.roomId);
+
+            // If we don't have any information on this room - a pagination token, namely - we don't store the event but instead
+            // wait for the first pagination request to set things right
+            if (null != bounds) {
+                try {
+                    writeEvent(event.roomId, event, bounds, true);
+                    mRoomsToTrim.add(event.roomId);
+                } catch (Exception e) {
+                    Log.e(LOG_TAG, "storeLiveRoomEvent failed : " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    @Override
+    public void deleteEvent(Event event) {
+        if ((null == event) || (null == event.roomId) || isKilled()) {
+            return;
+        }
+
+        synchronized (mRoomBounds) {
+            Long seq = findEventSeq(event.roomId, event);
+
+            mMessagesIndex.removeEvent(event.eventId);
+
+            if (null != seq) {
+                mDatabase.delete(TABLE_EVENTS, "room_id = ? AND seq = ?", new String[]{event.roomId, String.valueOf(seq)});
+
+                TreeMap<Long, Event> localEvents = mLocalEvents.get(event.roomId);
+
+                if (null != localEvents) {
+                    localEvents.remove(seq);
+                }
+            }
+        }
+    }
+
+    @Override
+    public boolean updateEventContent(String roomId, String eventId, JsonObject newContent) {
+        if ((null == roomId) || (null == eventId) || isKilled()) {
+            return false;
+        }
+
+        boolean isReplaced = false;
+
+        synchronized (mRoomBounds) {
+            Cursor cursor = mDatabase.rawQuery("SELECT seq, data FROM " + TABLE_EVENTS + " WHERE room_id = ? AND event_id = ? LIMIT 1", new String[]{roomId, eventId});
+
+            try {
+                if (cursor.moveToFirst()) {
+                    long seq = cursor.getLong(0);
+                    TreeMap<Long, Event> localEvents = mLocalEvents.get(roomId);
+                    Event event = (null != localEvents) ? localEvents.get(seq) : null;
+
+                    if (null == event) {
+                        event = readEvent(cursor.getBlob(1));
+                    }
+
+                    event.setContent(newContent);
+
+                    mDatabase.update(TABLE_EVENTS, eventValues(event), "room_id = ? AND seq = ?", new String[]{roomId, String.valueOf(seq)});
+                    mMessagesIndex.updateContent(eventId, newContent);
+                    isReplaced = true;
+                }
+            } catch (Exception e) {
+                Log.e(LOG_TAG, "updateEventContent failed : " + e.getMessage());
+            } finally {
+                cursor.close();
+            }
+        }
+
+        return isReplaced;
+    }
+
+    @Override
+    public void deleteRoom(String roomId) {
+        Log.d(LOG_TAG, "deleteRoom " + roomId);
+
+        super.deleteRoom(roomId);
+
+        if ((null == roomId) || isKilled()) {
+            return;
+        }
+
+        synchronized (mRoomBounds) {
+            mRoomBounds.remove(roomId);
+            mLocalEvents.remove(roomId);
+
+            String[] args = new String[]{roomId};
+
+            mDatabase.beginTransaction();
+
+            try {
+                mDatabase.delete(TABLE_EVENTS, "room_id = ?", args);
+                mDatabase.delete(TABLE_ROOMS, "room_id = ?", args);
+                mDatabase.delete(TABLE_MEMBERS, "room_id = ?", args);
+                mDatabase.delete(TABLE_SUMMARIES, "room_id = ?", args);
+                mDatabase.setTransactionSuccessful();
+            } finally {
+                mDatabase.endTransaction();
+            }
+        }
+    }
+
+    /**
+     * Apply the retention policy to a room timeline : the oldest events are deleted.
+     * The local echoes are never deleted.
+     * @param roomId the room id
+     */
+    private void trimRoomEvents(String roomId) {
+        RetentionPolicy policy = getRetentionPolicy();
+
+        if (policy.isPinned(roomId) || isKilled()) {
+            return;
+        }
+
+        synchronized (mRoomBounds) {
+            long[] bounds = mRoomBounds.get(roomId);
+
+            if ((null == bounds) || (bounds[1] < bounds[0])) {
+                return;
+            }
+
+            long now = System.currentTimeMillis();
+
+            // the events are only read if the size limit is defined or if the other limits are exceeded
+            if (0 == policy.getMaxBytes()) {
+                Event oldestEvent = readBoundEvent(roomId, "ASC");
+                int count = 0;
+                Cursor cursor = mDatabase.rawQuery("SELECT COUNT(*) FROM " + TABLE_EVENTS + " WHERE room_id = ?", new String[]{roomId});
+
+                try {
+                    if (cursor.moveToFirst()) {
+                        count = cursor.getInt(0);
+                    }
+                } finally {
+                    cursor.close();
+                }
+
+                if (!policy.exceeds(roomId, count, 0, (null != oldestEvent) ? oldestEvent.originServerTs : 0, now)) {
+                    return;
+                }
+            }
+
+            ArrayList<Long> seqs = new ArrayList<Long>();
+            ArrayList<Event> events = new ArrayList<Event>();
+            TreeMap<Long, Event> localEvents = mLocalEvents.get(roomId);
+            Cursor cursor = mDatabase.rawQuery("SELECT seq, data FROM " + TABLE_EVENTS + " WHERE room_id = ? ORDER BY seq ASC", new String[]{roomId});
+
+            try {
+                while (cursor.moveToNext()) {
+                    long seq = cursor.getLong(0);
+                    Event event = (null != localEvents) ? localEvents.get(seq) : null;
+
+                    if (null == event) {
+                        event = readEvent(cursor.getBlob(1));
+                    }
+
+                    seqs.add(seq);
+                    events.add(event);
+                }
+            } catch (Exception e) {
+                Log.e(LOG_TAG, "trimRoomEvents failed : " + e.getMessage());
+                return;
+            } finally {
+                cursor.close();
+            }
+
+            int startIndex = policy.trimmedHistoryStartIndex(roomId, events, now);
+
+            // keep the local echoes
+            if ((null != localEvents) && (localEvents.size() > 0)) {
+                startIndex = Math.min(startIndex, seqs.indexOf(localEvents.firstKey()));
+            }
+
+            if (startIndex <= 0) {
+                return;
+            }
+
+            long startSeq = seqs.get(startIndex);
+            String token = events.get(startIndex).mToken;
+
+            mDatabase.beginTransaction();
+
+            try {
+                mDatabase.delete(TABLE_EVENTS, "room_id = ? AND seq < ?", new String[]{roomId, String.valueOf(startSeq)});
+
+                // the room history can be extended from the oldest event token
+                if (null != token) {
+                    writeRoomToken(roomId, token);
+                }
+
+                mDatabase.setTransactionSuccessful();
+
+                bounds[0] = startSeq;
+
+                if (null != token) {
+                    mRoomTokens.put(roomId, token);
+                }
+            } finally {
+                mDatabase.endTransaction();
+            }
+
+            Log.d(LOG_TAG, "trimRoomEvents " + roomId + " : " + startIndex + " events are deleted");
+        }
+    }
+
+    /**
+     * Read the events of a room timeline.
+     * The local echoes are provided by their in-memory instances.
+     * @param roomId the room id
+     * @param cursor the cursor with the seq and data columns.
+     * @param maxCount the maximum number of events to read.
+     * @return the events list
+     * @throws Exception
+     */
+    private ArrayList<Event> readEvents(String roomId, Cursor cursor, int maxCount) throws Exception {
+        ArrayList<Event> events = new ArrayList<Event>();
+        TreeMap<Long, Event> localEvents = mLocalEvents.get(roomId);
+
+        while ((events.size() < maxCount) && cursor.moveToNext()) {
+            Event event = (null != localEvents) ? localEvents.get(cursor.getLong(0)) : null;
+
+            if (null == event) {
+                event = readEvent(cursor.getBlob(1));
+            }
+
+            events.add(event);
+        }
+
+        return events;
+    }
+
+    /**
+     * Read the first event returned by a timeline query.
+     * @param roomId the room id
+     * @param order the seq order.
+     * @return the event, null if the timeline is empty
+     */
+    private Event readBoundEvent(String roomId, String order) {
+        if ((null == roomId) || isKilled()) {
+            return null;
+        }
+
+        synchronized (mRoomBounds) {
+            if (!mRoomBounds.containsKey(roomId)) {
+                return null;
+            }
+
+            Cursor cursor = mDatabase.rawQuery("SELECT seq, data FROM " + TABLE_EVENTS + " WHERE room_id = ? ORDER BY seq " + order + " LIMIT 1", new String[]{roomId});
+
+            try {
+                ArrayList<Event> events = readEvents(roomId, cursor, 1);
+                return (events.size() > 0) ? events.get(0) : null;
+            } catch (Exception e) {
+                Log.e(LOG_TAG, "readBoundEvent failed : " + e.getMessage());
+            } finally {
+                cursor.close();
+            }
+        }
+
+        return null;
+    }
+
+    @Override
+    public Event getOldestEvent(String roomId) {
+        return readBoundEvent(roomId, "ASC");
+    }
+
+    /**
+     * Get the latest event from the given room (to update summary for example)
+     * @param roomId the room id
+     * @return the event
+     */
+    @Override
+    public Event getLatestEvent(String roomId) {
+        return readBoundEvent(roomId, "DESC");
+    }
+
+    /**
+     * Retrieve all non-state room events for this room.
+     * @param roomId The room ID
+     * @return A collection of events. null if there is no cached event.
+     */
+    @Override
+    public Collection<Event> getRoomMessages(final String roomId) {
+        // sanity check
+        if ((null == roomId) || isKilled()) {
+            return null;
+        }
+
+        synchronized (mRoomBounds) {
+            // unknown room ?
+            if (!mRoomBounds.containsKey(roomId)) {
+                return null;
+            }
+
+            Cursor cursor = mDatabase.rawQuery("SELECT seq, data FROM " + TABLE_EVENTS + " WHERE room_id = ? ORDER BY seq ASC", new String[]{roomId});
+
+            try {
+                return readEvents(roomId, cursor, Integer.MAX_VALUE);
+            } catch (Exception e) {
+                Log.e(LOG_TAG, "getRoomMessages failed : " + e.getMessage());
+            } finally {
+                cursor.close();
+            }
+        }
+
+        return null;
+    }
+
+    @Override
+    public TokensChunkResponse<Event> getEarlierMessages(final String roomId, final String fromToken, final int limit) {
+        if ((null == roomId) || isKilled()) {
+            return null;
+        }
+
+        synchronized (mRoomBounds) {
+            long[] bounds = mRoomBounds.get(roomId);
+
+            if ((null == bounds) || (bounds[1] < bounds[0])) {
+                return null;
+            }
+
+            // the events are provided from the latest to the oldest ones
+            long fromSeq = bounds[1] + 1;
+
+            if (null != fromToken) {
+                // search if token is one of the stored events
+                Cursor cursor = mDatabase.rawQuery("SELECT seq FROM " + TABLE_EVENTS + " WHERE room_id = ? AND token = ? ORDER BY seq DESC LIMIT 1", new String[]{roomId, fromToken});
+
+                try {
+                    // unknown token
+                    if (!cursor.moveToFirst()) {
+                        return null;
+                    }
+
+                    fromSeq = cursor.getLong(0);
+                } finally {
+                    cursor.close();
+                }
+            }
+
+            // provide at least limit events, until finding an event with a token
+            int count = 0;
+            Cursor cursor = mDatabase.rawQuery("SELECT token IS NOT NULL FROM " + TABLE_EVENTS + " WHERE room_id = ? AND seq < ? ORDER BY seq DESC", new String[]{roomId, String.valueOf(fromSeq)});
+
+            try {
+                while (cursor.moveToNext()) {
+                    count++;
+
+                    if ((count >= limit) && (0 != cursor.getInt(0))) {
+                        break;
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+
+            if (0 == count) {
+                return null;
+            }
+
+            ArrayList<Event> subEventsList = null;
+            cursor = mDatabase.rawQuery("SELECT seq, data FROM " + TABLE_EVENTS + " WHERE room_id = ? AND seq < ? ORDER BY seq DESC LIMIT " + count, new String[]{roomId, String.valueOf(fromSeq)});
+
+            try {
+                subEventsList = readEvents(roomId, cursor, count);
+            } catch (Exception e) {
+                Log.e(LOG_TAG, "getEarlierMessages failed : " + e.getMessage());
+            } finally {
+                cursor.close();
+            }
+
+            if ((null == subEventsList) || (0 == subEventsList.size())) {
+                return null;
+            }
+
+            TokensChunkResponse<Event> response = new TokensChunkResponse<Event>();
+            response.chunk = subEventsList;
+            response.start = subEventsList.get(0).mToken;
+            response.end = subEventsList.get(subEventsList.size() - 1).mToken;
+
+            // unknown last event token, use the latest known one
+            if (response.end == null) {
+                response.end = mRoomTokens.get(roomId);
+            }
+
+            return response;
+        }
+    }
+
+    /**
+     * Return the list of latest unsent events.
+     * The provided events are the unsent ones since the last sent one.
+     * They are ordered.
+     * @param roomId the room id
+     * @return list of unsent events
+     */
+    @Override
+    public Collection<Event> getLatestUnsentEvents(String roomId) {
+        if (null == roomId) {
+            return null;
+        }
+
+        ArrayList<Event> unsentRoomEvents = new ArrayList<Event>();
+
+        synchronized (mRoomBounds) {
+            TreeMap<Long, Event> localEvents = mLocalEvents.get(roomId);
+
+            if (null != localEvents) {
+                for (Event event : localEvents.values()) {
+                    if (event.mSentState == Event.SentState.WAITING_RETRY) {
+                        unsentRoomEvents.add(event);
+                    }
+                }
+            }
+        }
+
+        return unsentRoomEvents;
+    }
+
+    /**
+     * Write the local echoes which could have been updated since they have been stored.
+     * The sent ones are released.
+     * It must be called in a transaction.
+     * @throws IOException
+     */
+    private void saveLocalEvents() throws IOException {
+        synchronized (mRoomBounds) {
+            for (String roomId : new ArrayList<String>(mLocalEvents.keySet())) {
+                TreeMap<Long, Event> localEvents = mLocalEvents.get(roomId);
+
+                for (Long seq : new ArrayList<Long>(localEvents.keySet())) {
+                    Event event = localEvents.get(seq);
+
+                    mDatabase.update(TABLE_EVENTS, eventValues(event), "room_id = ? AND seq = ?", new String[]{roomId, String.valueOf(seq)});
+
+                    if (Event.SentState.SENT == event.mSentState) {
+                        localEvents.remove(seq);
+                    }
+                }
+
+                if (0 == localEvents.size()) {
+                    mLocalEvents.remove(roomId);
+                }
+            }
+        }
+    }
+
+    //==============================================================================================================
+    // Rooms states
+    //==============================================================================================================
+
+    @Override
+    public void storeLiveStateForRoom(String roomId) {
+        super.storeLiveStateForRoom(roomId);
+
+        synchronized (mRoomsToCommitForStates) {
+            mRoomsToCommitForStates.add(roomId);
+        }
+    }
+
+    /**
+     * Save a room state.
+     * The members are saved in their own table : only the members updated since the previous save
+     * are written when they are tracked by the room state.
+     * It must be called in a transaction.
+     * @param roomId the room id.
+     * @throws IOException
+     */
+    private void saveRoomState(String roomId) throws IOException {
+        Room room = mRooms.get(roomId);
+
+        if (null == room) {
+            return;
+        }
+
+        long start = System.currentTimeMillis();
+
+        RoomState liveState = room.getLiveState();
+        Set<String> updatedMemberIds = liveState.popUpdatedMemberIds();
+
+        if (null == updatedMemberIds) {
+            liveState.trackMembersUpdates();
+        }
+
+        RoomState state = liveState.deepCopyWithoutMembers();
+        Collection<RoomMember> members;
+
+        ContentValues values = new ContentValues();
+        values.put("state", serialize(state));
+
+        if (0 == mDatabase.update(TABLE_ROOMS, values, "room_id = ?", new String[]{roomId})) {
+            values.put("room_id", roomId);
+            mDatabase.insert(TABLE_ROOMS, null, values);
+        }
+
+        if (null == updatedMemberIds) {
+            mDatabase.delete(TABLE_MEMBERS, "room_id = ?", new String[]{roomId});
+            members = liveState.getMembers();
+        } else {
+            members = new ArrayList<RoomMember>(updatedMemberIds.size());
+
+            for (String userId : updatedMemberIds) {
+                RoomMember member = liveState.getMember(userId);
+
+                if (null != member) {
+                    members.add(member);
+                } else {
+                    mDatabase.delete(TABLE_MEMBERS, "room_id = ? AND user_id = ?", new String[]{roomId, userId});
+                }
+            }
+        }
+
+        SQLiteStatement statement = mDatabase.compileStatement("INSERT OR REPLACE INTO " + TABLE_MEMBERS + " (room_id, user_id, membership, displayname, avatar_url) VALUES (?, ?, ?, ?, ?)");
+
+        try {
+            for (RoomMember member : members) {
+                statement.clearBindings();
+                statement.bindString(1, roomId);
+                statement.bindString(2, member.getUserId());
+
+                if (null != member.membership) {
+                    statement.bindString(3, member.membership);
+                }
+
+                if (null != member.displayname) {
+                    statement.bindString(4, member.displayname);
+                }
+
+                if (null != member.avatarUrl) {
+                    statement.bindString(5, member.avatarUrl);
+                }
+
+                statement.executeInsert();
+            }
+        } finally {
+            statement.close();
+        }
+
+        Log.d(LOG_TAG, "saveRoomState " + members.size() + " : " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /**
+     * Load the rooms, their states and their timelines bounds.
+     * The timelines events are not loaded.
+     * @return true if the operation succeeds.
+     */
+    private boolean loadRooms() {
+        boolean succeed = true;
+
+        try {
+            long start = System.currentTimeMillis();
+
+            HashMap<String, RoomState> states = new HashMap<String, RoomState>();
+            ArrayList<String> roomIdsToDelete = new ArrayList<String>();
+
+            Cursor cursor = mDatabase.rawQuery("SELECT room_id, token, state FROM " + TABLE_ROOMS, null);
+
+            try {
+                while (cursor.moveToNext()) {
+                    String roomId = cursor.getString(0);
+                    String token = cursor.getString(1);
+                    byte[] state = cursor.getBlob(2);
+
+                    // the room timeline or state is unknown
+                    if ((null == token) || (null == state)) {
+                        roomIdsToDelete.add(roomId);
+                    } else {
+                        mRoomTokens.put(roomId, token);
+                        RoomState roomState = (RoomState) deserialize(state);
+                        roomState.roomId = mIdentifierPool.intern(roomState.roomId);
+                        states.put(roomId, roomState);
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+
+            // the members
+            cursor = mDatabase.rawQuery("SELECT room_id, user_id, membership, displayname, avatar_url FROM " + TABLE_MEMBERS, null);
+
+            try {
+                while (cursor.moveToNext()) {
+                    RoomState state = states.get(cursor.getString(0));
+
+                    if (null != state) {
+                        RoomMember member = new RoomMember();
+                        member.setUserId(cursor.getString(1));
+                        member.membership = cursor.getString(2);
+                        member.displayname = cursor.getString(3);
+                        member.avatarUrl = cursor.getString(4);
+                        mIdentifierPool.internIdentifiers(member);
+                        state.setMember(member.getUserId(), member);
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+
+            for (String roomId : states.keySet()) {
+                Room room = new Room();
+                room.setRoomId(roomId);
+                // do not wait that the live state update
+                room.setReadyState(true);
+                room.setLiveState(states.get(roomId));
+                // the next saves only write the updated members
+                states.get(roomId).trackMembersUpdates();
+                storeRoom(room);
+            }
+
+            synchronized (mRoomBounds) {
+                for (String roomId : states.keySet()) {
+                    mRoomBounds.put(roomId, new long[]{0, -1});
+                }
+
+                // the timelines bounds
+                cursor = mDatabase.rawQuery("SELECT room_id, MIN(seq), MAX(seq) FROM " + TABLE_EVENTS + " GROUP BY room_id", null);
+
+                try {
+                    while (cursor.moveToNext()) {
+                        String roomId = cursor.getString(0);
+
+                        if (mRoomBounds.containsKey(roomId)) {
+                            mRoomBounds.put(roomId, new long[]{cursor.getLong(1), cursor.getLong(2)});
+                        }
+                    }
+                } finally {
+                    cursor.close();
+                }
+
+                // the local echoes
+                cursor = mDatabase.rawQuery("SELECT room_id, seq, data FROM " + TABLE_EVENTS + " WHERE sent_state <> ?", new String[]{String.valueOf(Event.SentState.SENT.ordinal())});
+
+                try {
+                    while (cursor.moveToNext()) {
+                        String roomId = cursor.getString(0);
+
+                        if (mRoomBounds.containsKey(roomId)) {
+                            TreeMap<Long, Event> localEvents = mLocalEvents.get(roomId);
+
+                            if (null == localEvents) {
+                                localEvents = new TreeMap<Long, Event>();
+                                mLocalEvents.put(roomId, localEvents);
+                            }
+
+                            localEvents.put(cursor.getLong(1), readEvent(cursor.getBlob(2)));
+                        }
+                    }
+                } finally {
+                    cursor.close();
+                }
+            }
+
+            for (String roomId : roomIdsToDelete) {
+                deleteRoom(roomId);
+            }
+
+            Log.d(LOG_TAG, "loadRooms : " + states.size() + " rooms in " + (System.currentTimeMillis() - start) + " ms");
+        } catch (Exception e) {
+            succeed = false;
+            Log.e(LOG_TAG, "loadRooms failed : " + e.getMessage());
+        }
+
+        return succeed;
+    }
+
+    //==============================================================================================================
+    // Summaries
+    //==============================================================================================================
+
+    @Override
+    public void flushSummary(RoomSummary summary) {
+        super.flushSummary(summary);
+
+        boolean added;
+
+        synchronized (mRoomsToCommitForSummaries) {
+            added = mRoomsToCommitForSummaries.add(summary.getRoomId());
+        }
+
+        if (added) {
+            commitNow();
+        }
+    }
+
+    @Override
+    public void flushSummaries() {
+        super.flushSummaries();
+
+        // add any existing roomid to the list to save all
+        synchronized (mRoomsToCommitForSummaries) {
+            mRoomsToCommitForSummaries.addAll(mRoomSummaries.keySet());
+        }
+
+        commitNow();
+    }
+
+    @Override
+    public void storeSummary(String matrixId, String roomId, Event event, RoomState roomState, String selfUserId) {
+        super.storeSummary(matrixId, roomId, event, roomState, selfUserId);
+
+        synchronized (mRoomsToCommitForSummaries) {
+            mRoomsToCommitForSummaries.add(roomId);
+        }
+    }
+
+    /**
+     * Save a room summary.
+     * It must be called in a transaction.
+     * @param roomId the room id
+     * @throws IOException
+     */
+    private void saveSummary(String roomId) throws IOException {
+        RoomSummary roomSummary = mRoomSummaries.get(roomId);
+
+        if (null != roomSummary) {
+            roomSummary.getLatestEvent().prepareSerialization();
+
+            ContentValues values = new ContentValues();
+            values.put("room_id", roomId);
+            values.put("data", serialize(roomSummary));
+
+            mDatabase.insertWithOnConflict(TABLE_SUMMARIES, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+        } else {
+            mDatabase.delete(TABLE_SUMMARIES, "room_id = ?", new String[]{roomId});
+        }
+    }
+
+    /**
+     * Write the messages index updates.
+     * @param changes the updated messages by event id (null for a removed message).
+     */
+    private void saveMessagesIndex(Map<String, MessagesIndex.Entry> changes) {
+        if (null == changes) {
+            return;
+        }
+
+        for (Map.Entry<String, MessagesIndex.Entry> change : changes.entrySet()) {
+            MessagesIndex.Entry entry = change.getValue();
+
+            if (null != entry) {
+                ContentValues values = new ContentValues();
+                values.put("event_id", entry.mEventId);
+                values.put("room_id", entry.mRoomId);
+                values.put("ts", entry.mTimestamp);
+                values.put("tokens", TextUtils.join(" ", entry.mTokens));
+
+                mDatabase.insertWithOnConflict(TABLE_MESSAGES_INDEX, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+            } else {
+                mDatabase.delete(TABLE_MESSAGES_INDEX, "event_id = ?", new String[]{change.getKey()});
+            }
+        }
+    }
+
+    /**
+     * Load the messages index.
+     * When it is empty (e.g. the database has been upgraded), it is built from the stored events.
+     */
+    private void loadMessagesIndex() {
+        long start = System.currentTimeMillis();
+
+        try {
+            Cursor cursor = mDatabase.rawQuery("SELECT event_id, room_id, ts, tokens FROM " + TABLE_MESSAGES_INDEX, null);
+
+            try {
+                while (cursor.moveToNext()) {
+                    String tokens = cursor.getString(3);
+                    mMessagesIndex.addEntry(new MessagesIndex.Entry(cursor.getString(0), cursor.getString(1), cursor.getLong(2), TextUtils.isEmpty(tokens) ? new String[0] : tokens.split(" ")));
+                }
+            } finally {
+                cursor.close();
+            }
+
+            if (mMessagesIndex.size() > 0) {
+                // the loaded messages are already saved
+                mMessagesIndex.popChanges();
+            } else {
+                // the built index is saved at the next commit
+                cursor = mDatabase.rawQuery("SELECT data FROM " + TABLE_EVENTS, null);
+
+                try {
+                    while (cursor.moveToNext()) {
+                        mMessagesIndex.indexEvent(readEvent(cursor.getBlob(0)));
+                    }
+                } finally {
+                    cursor.close();
+                }
+            }
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "loadMessagesIndex failed : " + e.getMessage());
+        }
+
+        Log.d(LOG_TAG, "loadMessagesIndex : " + mMessagesIndex.size() + " messages in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /**
+     * Load the rooms summaries.
+     * @return true if the operation succeeds.
+     */
+    private boolean loadSummaries() {
+        boolean succeed = true;
+
+        try {
+            long start = System.currentTimeMillis();
+
+            Cursor cursor = mDatabase.rawQuery("SELECT room_id, data FROM " + TABLE_SUMMARIES, null);
+
+            try {
+                while (cursor.moveToNext()) {
+                    RoomSummary summary = (RoomSummary) deserialize(cursor.getBlob(1));
+                    mRoomSummaries.put(cursor.getString(0), summary);
+                }
+            } finally {
+                cursor.close();
+            }
+
+            Log.d(LOG_TAG, "loadSummaries " + mRoomSummaries.size() + " rooms in " + (System.currentTimeMillis() - start) + " ms");
+        } catch (Exception e) {
+            succeed = false;
+            Log.e(LOG_TAG, "loadSummaries failed : " + e.getMessage());
+        }
+
+        return succeed;
+    }
+
+    //==============================================================================================================
+    // Metadata
+    //==============================================================================================================
+
+    /**
+     * Load the metadata from the database.
+     */
+    private void loadMetaData() {
+        long start = System.currentTimeMillis();
+
+        // init members
+        mEventStreamToken = null;
+        mMetadata = null;
+
+        Cursor cursor = null;
+
+        try {
+            cursor = mDatabase.rawQuery("SELECT data FROM " + TABLE_METADATA + " LIMIT 1", null);
+
+            if (cursor.moveToFirst()) {
+                mMetadata = (MXFileStoreMetaData) deserialize(cursor.getBlob(0));
+
+                // extract the latest event stream token
+                mEventStreamToken = mMetadata.mEventStreamToken;
+            }
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "loadMetaData failed : " + e.getMessage());
+            mMetadata = null;
+            mEventStreamToken = null;
+        } finally {
+            if (null != cursor) {
+                cursor.close();
+            }
+        }
+
+        Log.d(LOG_TAG, "loadMetaData : " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /**
+     * Save the metadata.
+     * @param metadata the metadata
+     * @throws IOException
+     */
+    private void saveMetaData(MXFileStoreMetaData metadata) throws IOException {
+        ContentValues values = new ContentValues();
+        values.put("data", serialize(metadata));
+
+        mDatabase.delete(TABLE_METADATA, null, null);
+        mDatabase.insert(TABLE_METADATA, null, values);
+    }
+}
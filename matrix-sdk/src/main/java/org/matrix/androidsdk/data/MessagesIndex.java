@@ -0,0 +1,440 @@
+/*
+ * Copyright 2015 OpenMarket Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.matrix.androidsdk.data;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import org.matrix.androidsdk.rest.model.Event;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * An inverted index of the messages bodies of all the rooms of a session.
+ *
+ * The bodies are split in lower case tokens (the letters and digits sequences). A query matches
+ * the messages which contain a token starting with each query token, so "mat sdk" matches
+ * "The Matrix SDK". The matched event ids are sorted from the latest message to the oldest one.
+ *
+ * The index is updated by the stores when the events are stored, redacted or deleted.
+ * The permanent stores save it : the updates since the latest save are tracked (see popChanges).
+ * When the index is full, the oldest messages are removed.
+ * This class is thread safe.
+ */
+public class MessagesIndex {
+
+    // the default maximum number of indexed messages
+    public static final int DEFAULT_MAX_ENTRIES = 100000;
+
+    // the longer tokens are truncated
+    private static final int MAX_TOKEN_LENGTH = 32;
+
+    /**
+     * An indexed message.
+     */
+    public static class Entry {
+        public final String mEventId;
+        public final String mRoomId;
+        public final long mTimestamp;
+        public final String[] mTokens;
+
+        // the insertion order : it sorts the messages with the same timestamp
+        private long mSequence;
+
+        public Entry(String eventId, String roomId, long timestamp, String[] tokens) {
+            mEventId = eventId;
+            mRoomId = roomId;
+            mTimestamp = timestamp;
+            mTokens = tokens;
+        }
+    }
+
+    // from the oldest message to the latest one
+    private static final Comparator<Entry> sRecencyComparator = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry lhs, Entry rhs) {
+            if (lhs.mTimestamp != rhs.mTimestamp) {
+                return (lhs.mTimestamp < rhs.mTimestamp) ? -1 : 1;
+            }
+
+            return (lhs.mSequence < rhs.mSequence) ? -1 : ((lhs.mSequence == rhs.mSequence) ? 0 : 1);
+        }
+    };
+
+    // event id -> message
+    private final HashMap<String, Entry> mEntries = new HashMap<String, Entry>();
+
+    // the messages sorted by recency
+    private final TreeSet<Entry> mEntriesByRecency = new TreeSet<Entry>(sRecencyComparator);
+
+    // token -> messages : sorted to find the tokens with a prefix
+    private final TreeMap<String, HashSet<Entry>> mPostings = new TreeMap<String, HashSet<Entry>>();
+
+    // the updates since the latest popChanges call (null for a removed message), null when they are not tracked
+    private LinkedHashMap<String, Entry> mChanges = null;
+
+    private long mSequence = 0;
+
+    private int mMaxEntries = DEFAULT_MAX_ENTRIES;
+
+    /**
+     * Split a text in lower case tokens.
+     * @param text the text
+     * @return the distinct tokens, in their text order.
+     */
+    public static List<String> tokenize(String text) {
+        LinkedHashSet<String> tokens = new LinkedHashSet<String>();
+
+        if (null != text) {
+            String lowerCaseText = text.toLowerCase(Locale.ROOT);
+            int length = lowerCaseText.length();
+            int start = -1;
+
+            for (int i = 0; i <= length; i++) {
+                boolean isTokenChar = (i < length) && Character.isLetterOrDigit(lowerCaseText.charAt(i));
+
+                if (isTokenChar) {
+                    if (start < 0) {
+                        start = i;
+                    }
+                } else if (start >= 0) {
+                    tokens.add(lowerCaseText.substring(start, Math.min(i, start + MAX_TOKEN_LENGTH)));
+                    start = -1;
+                }
+            }
+        }
+
+        return new ArrayList<String>(tokens);
+    }
+
+    /**
+     * Provides the indexed text of a message content.
+     * @param content the event content
+     * @return the body, null if there is none.
+     */
+    private static String contentBody(JsonObject content) {
+        if (null != content) {
+            JsonElement body = content.get("body");
+
+            if ((null != body) && body.isJsonPrimitive()) {
+                return body.getAsString();
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Set the maximum number of indexed messages.
+     * @param maxEntries the messages count
+     */
+    public synchronized void setMaxEntries(int maxEntries) {
+        mMaxEntries = Math.max(maxEntries, 1);
+        trim();
+    }
+
+    /**
+     * @return the number of indexed messages.
+     */
+    public synchronized int size() {
+        return mEntries.size();
+    }
+
+    /**
+     * Index an event. The sent messages with a body are indexed, the other events are ignored.
+     * @param event the event
+     */
+    public synchronized void indexEvent(Event event) {
+        if ((null == event) || (null == event.eventId) || (null == event.roomId) ||
+                !Event.EVENT_TYPE_MESSAGE.equals(event.type) || (Event.SentState.SENT != event.mSentState)) {
+            return;
+        }
+
+        List<String> tokens = tokenize(contentBody(event.getContent()));
+
+        removeEntry(event.eventId);
+
+        if (tokens.size() > 0) {
+            putEntry(new Entry(event.eventId, event.roomId, event.originServerTs, tokens.toArray(new String[tokens.size()])));
+            trim();
+        }
+    }
+
+    /**
+     * Index some events.
+     * @param events the events
+     */
+    public synchronized void indexEvents(Collection<Event> events) {
+        if (null != events) {
+            for (Event event : events) {
+                indexEvent(event);
+            }
+        }
+    }
+
+    /**
+     * Update the indexed text of a message (e.g. it has been redacted).
+     * @param eventId the event id
+     * @param content the new event content
+     */
+    public synchronized void updateContent(String eventId, JsonObject content) {
+        Entry entry = (null != eventId) ? mEntries.get(eventId) : null;
+
+        if (null != entry) {
+            List<String> tokens = tokenize(contentBody(content));
+
+            removeEntry(eventId);
+
+            if (tokens.size() > 0) {
+                putEntry(new Entry(eventId, entry.mRoomId, entry.mTimestamp, tokens.toArray(new String[tokens.size()])));
+            }
+        }
+    }
+
+    /**
+     * Remove a message from the index.
+     * @param eventId the event id
+     */
+    public synchronized void removeEvent(String eventId) {
+        if (null != eventId) {
+            removeEntry(eventId);
+        }
+    }
+
+    /**
+     * Remove the messages of a room from the index.
+     * @param roomId the room id
+     */
+    public synchronized void removeRoom(String roomId) {
+        if (null == roomId) {
+            return;
+        }
+
+        ArrayList<String> eventIds = new ArrayList<String>();
+
+        for (Entry entry : mEntries.values()) {
+            if (roomId.equals(entry.mRoomId)) {
+                eventIds.add(entry.mEventId);
+            }
+        }
+
+        for (String eventId : eventIds) {
+            removeEntry(eventId);
+        }
+    }
+
+    /**
+     * Add a saved message (e.g. while loading the index).
+     * @param entry the message
+     */
+    public synchronized void addEntry(Entry entry) {
+        if ((null != entry) && (null != entry.mEventId)) {
+            removeEntry(entry.mEventId);
+            putEntry(entry);
+            trim();
+        }
+    }
+
+    /**
+     * @return the indexed messages, from the oldest to the latest one.
+     */
+    public synchronized List<Entry> getEntries() {
+        return new ArrayList<Entry>(mEntriesByRecency);
+    }
+
+    /**
+     * Remove all the messages.
+     */
+    public synchronized void clear() {
+        mEntries.clear();
+        mEntriesByRecency.clear();
+        mPostings.clear();
+
+        if (null != mChanges) {
+            mChanges.clear();
+        }
+    }
+
+    /**
+     * Start tracking the updates (see popChanges).
+     */
+    public synchronized void trackChanges() {
+        if (null == mChanges) {
+            mChanges = new LinkedHashMap<String, Entry>();
+        }
+    }
+
+    /**
+     * Provides the updates since the latest call.
+     * @return the updated messages by event id (null for a removed message), null if the updates are not tracked.
+     */
+    public synchronized Map<String, Entry> popChanges() {
+        Map<String, Entry> changes = mChanges;
+
+        if (null != mChanges) {
+            mChanges = new LinkedHashMap<String, Entry>();
+        }
+
+        return changes;
+    }
+
+    /**
+     * Restore the updates which could not be saved : they are saved with the next ones.
+     * @param changes the updates returned by popChanges.
+     */
+    public synchronized void restoreChanges(Map<String, Entry> changes) {
+        if ((null != changes) && (null != mChanges)) {
+            LinkedHashMap<String, Entry> allChanges = new LinkedHashMap<String, Entry>(changes);
+            allChanges.putAll(mChanges);
+            mChanges = allChanges;
+        }
+    }
+
+    /**
+     * Search the messages which match a query.
+     * @param query the query : each query token is a prefix of a message token.
+     * @param roomId the room id, null to search in all the rooms.
+     * @param limit the maximum number of results.
+     * @return the event ids, from the latest message to the oldest one.
+     */
+    public synchronized List<String> search(String query, String roomId, int limit) {
+        ArrayList<String> eventIds = new ArrayList<String>();
+        List<String> queryTokens = tokenize(query);
+
+        if ((0 == queryTokens.size()) || (limit <= 0)) {
+            return eventIds;
+        }
+
+        HashSet<Entry> matches = null;
+
+        for (String queryToken : queryTokens) {
+            HashSet<Entry> tokenMatches = new HashSet<Entry>();
+
+            for (HashSet<Entry> postings : mPostings.subMap(queryToken, true, queryToken + Character.MAX_VALUE, false).values()) {
+                if (null == matches) {
+                    tokenMatches.addAll(postings);
+                } else {
+                    // only keep the messages which matched the previous query tokens
+                    for (Entry entry : postings) {
+                        if (matches.contains(entry)) {
+                            tokenMatches.add(entry);
+                        }
+                    }
+                }
+            }
+
+            matches = tokenMatches;
+
+            if (0 == matches.size()) {
+                return eventIds;
+            }
+        }
+
+        ArrayList<Entry> entries = new ArrayList<Entry>(matches.size());
+
+        for (Entry entry : matches) {
+            if ((null == roomId) || roomId.equals(entry.mRoomId)) {
+                entries.add(entry);
+            }
+        }
+
+        Collections.sort(entries, Collections.reverseOrder(sRecencyComparator));
+
+        for (int i = 0; i < Math.min(limit, entries.size()); i++) {
+            eventIds.add(entries.get(i).mEventId);
+        }
+
+        return eventIds;
+    }
+
+    /**
+     * Add a message to the maps.
+     * @param entry the message
+     */
+    private void putEntry(Entry entry) {
+        entry.mSequence = mSequence++;
+
+        mEntries.put(entry.mEventId, entry);
+        mEntriesByRecency.add(entry);
+
+        for (String token : entry.mTokens) {
+            HashSet<Entry> postings = mPostings.get(token);
+
+            if (null == postings) {
+                postings = new HashSet<Entry>();
+                mPostings.put(token, postings);
+            }
+
+            postings.add(entry);
+        }
+
+        if (null != mChanges) {
+            mChanges.put(entry.mEventId, entry);
+        }
+    }
+
+    /**
+     * Remove a message from the maps.
+     * @param eventId the event id
+     */
+    private void removeEntry(String eventId) {
+        Entry entry = mEntries.remove(eventId);
+
+        if (null == entry) {
+            return;
+        }
+
+        mEntriesByRecency.remove(entry);
+
+        for (String token : entry.mTokens) {
+            HashSet<Entry> postings = mPostings.get(token);
+
+            if (null != postings) {
+                postings.remove(entry);
+
+                if (0 == postings.size()) {
+                    mPostings.remove(token);
+                }
+            }
+        }
+
+        if (null != mChanges) {
+            mChanges.put(eventId, null);
+        }
+    }
+
+    /**
+     * Remove the oldest messages when the index is full.
+     */
+    private void trim() {
+        while (mEntries.size() > mMaxEntries) {
+            removeEntry(mEntriesByRecency.first().mEventId);
+        }
+    }
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright 2015 OpenMarket Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.matrix.androidsdk.data;
+
+import org.matrix.androidsdk.rest.model.Event;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Define how much room history an IMXStore keeps.
+ *
+ * A room history is trimmed to its latest events which fit the limits (events count, size in bytes and age).
+ * The trimmed history always starts with an event which has a pagination token
+ * so it can be extended by a back pagination. The pinned rooms are never trimmed.
+ *
+ * The memory budget is store wide : when the stored timelines exceed it, the timelines of
+ * the least recently viewed rooms are released (saved on disk by the permanent stores).
+ *
+ * A zero limit means unlimited. Override trimmedHistoryStartIndex to customize the trimming.
+ */
+public class RetentionPolicy {
+
+    // the expected bytes count of an event without its strings
+    private static final int EVENT_OVERHEAD = 256;
+
+    // a JSON content is parsed in a tree : it is far larger than its string
+    private static final int CONTENT_CHAR_SIZE = 6;
+
+    private volatile int mMaxEvents = 0;
+    private volatile long mMaxBytes = 0;
+    private volatile long mMaxAge = 0;
+    private volatile long mMemoryBudget = 0;
+
+    private final Set<String> mPinnedRoomIds = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /**
+     * Create an unlimited policy.
+     */
+    public RetentionPolicy() {
+    }
+
+    /**
+     * Create a policy.
+     * @param maxEvents the maximum number of events to keep per room (0 for unlimited).
+     */
+    public RetentionPolicy(int maxEvents) {
+        mMaxEvents = maxEvents;
+    }
+
+    public int getMaxEvents() {
+        return mMaxEvents;
+    }
+
+    /**
+     * Set the maximum number of events to keep per room.
+     * @param maxEvents the events count (0 for unlimited).
+     */
+    public void setMaxEvents(int maxEvents) {
+        mMaxEvents = Math.max(maxEvents, 0);
+    }
+
+    public long getMaxBytes() {
+        return mMaxBytes;
+    }
+
+    /**
+     * Set the maximum estimated size of a room history.
+     * @param maxBytes the size in bytes (0 for unlimited).
+     */
+    public void setMaxBytes(long maxBytes) {
+        mMaxBytes = Math.max(maxBytes, 0);
+    }
+
+    public long getMaxAge() {
+        return mMaxAge;
+    }
+
+    /**
+     * Set the maximum age of the kept events.
+     * @param maxAge the age in milliseconds (0 for unlimited).
+     */
+    public void setMaxAge(long maxAge) {
+        mMaxAge = Math.max(maxAge, 0);
+    }
+
+    public long getMemoryBudget() {
+        return mMemoryBudget;
+    }
+
+    /**
+     * Set the estimated size of the timelines which can be kept in memory by the store.
+     * @param memoryBudget the size in bytes (0 for unlimited).
+     */
+    public void setMemoryBudget(long memoryBudget) {
+        mMemoryBudget = Math.max(memoryBudget, 0);
+    }
+
+    /**
+     * Pin a room : its history is never trimmed and its timeline is kept in memory.
+     * @param roomId the room id
+     */
+    public void pinRoom(String roomId) {
+        if (null != roomId) {
+            mPinnedRoomIds.add(roomId);
+        }
+    }
+
+    /**
+     * Unpin a room.
+     * @param roomId the room id
+     */
+    public void unpinRoom(String roomId) {
+        if (null != roomId) {
+            mPinnedRoomIds.remove(roomId);
+        }
+    }
+
+    /**
+     * @param roomId the room id
+     * @return true if the room is pinned.
+     */
+    public boolean isPinned(String roomId) {
+        return (null != roomId) && mPinnedRoomIds.contains(roomId);
+    }
+
+    /**
+     * Estimate the memory used by an event.
+     * @param event the event
+     * @return the size in bytes
+     */
+    public static long estimateSize(Event event) {
+        long chars = length(event.type) + length(event.eventId) + length(event.roomId) + length(event.userId)
+                + length(event.stateKey) + length(event.redacts) + length(event.mToken);
+
+        long contentChars = length(event.getContentAsString()) + length(event.getPrevContentAsString());
+
+        return EVENT_OVERHEAD + (2 * chars) + (CONTENT_CHAR_SIZE * contentChars);
+    }
+
+    private static int length(String value) {
+        return (null != value) ? value.length() : 0;
+    }
+
+    /**
+     * Tell if a room history has reached the limits, i.e. the back paginated events should not be kept.
+     * @param roomId the room id
+     * @param eventsCount the events count
+     * @param bytes the estimated history size
+     * @return true if the history is full.
+     */
+    public boolean isHistoryFull(String roomId, int eventsCount, long bytes) {
+        if (isPinned(roomId)) {
+            return false;
+        }
+
+        return ((mMaxEvents > 0) && (eventsCount >= mMaxEvents)) || ((mMaxBytes > 0) && (bytes >= mMaxBytes));
+    }
+
+    /**
+     * Tell if a room history exceeds the limits, i.e. it should be trimmed.
+     * @param roomId the room id
+     * @param eventsCount the events count
+     * @param bytes the estimated history size
+     * @param oldestTs the timestamp of the oldest event
+     * @param now the current time
+     * @return true if the history must be trimmed.
+     */
+    public boolean exceeds(String roomId, int eventsCount, long bytes, long oldestTs, long now) {
+        if (isPinned(roomId)) {
+            return false;
+        }
+
+        return ((mMaxEvents > 0) && (eventsCount > mMaxEvents))
+                || ((mMaxBytes > 0) && (bytes > mMaxBytes))
+                || ((mMaxAge > 0) && (oldestTs > 0) && ((now - oldestTs) > mMaxAge));
+    }
+
+    /**
+     * Compute the index of the first event to keep when a room history is trimmed.
+     *
+     * The latest events which fit the limits are kept (at least one).
+     * Then the history is extended backward to the first event with a pagination token.
+     * If this event is too far (the history would be twice larger than the limits),
+     * the history starts from the next event with a token instead.
+     *
+     * @param roomId the room id
+     * @param events the room history, from the oldest to the latest event.
+     * @param now the current time
+     * @return the index of the first event to keep.
+     */
+    public int trimmedHistoryStartIndex(String roomId, List<Event> events, long now) {
+        if (isPinned(roomId) || (events.size() == 0)) {
+            return 0;
+        }
+
+        int startIndex = events.size();
+        long bytes = 0;
+
+        while (startIndex > 0) {
+            Event event = events.get(startIndex - 1);
+            int count = events.size() - startIndex;
+
+            if (count > 0) {
+                if ((mMaxEvents > 0) && (count >= mMaxEvents)) {
+                    break;
+                }
+
+                if ((mMaxAge > 0) && (event.originServerTs > 0) && ((now - event.originServerTs) > mMaxAge)) {
+                    break;
+                }
+            }
+
+            long size = estimateSize(event);
+
+            if ((count > 0) && (mMaxBytes > 0) && ((bytes + size) > mMaxBytes)) {
+                break;
+            }
+
+            bytes += size;
+            startIndex--;
+        }
+
+        // the whole history fits
+        if (0 == startIndex) {
+            return 0;
+        }
+
+        // search backward the first known token
+        int tokenIndex = startIndex;
+        long extraBytes = 0;
+
+        for (; !events.get(tokenIndex).hasToken() && (tokenIndex > 0); tokenIndex--) {
+            if (mMaxBytes > 0) {
+                extraBytes += estimateSize(events.get(tokenIndex - 1));
+            }
+        }
+
+        int count = events.size() - tokenIndex;
+
+        // avoid keeping a huge history (e.g. a very verbose room)
+        if (((mMaxEvents > 0) && (count > (2 * mMaxEvents))) || ((mMaxBytes > 0) && ((bytes + extraBytes) > (2 * mMaxBytes)))) {
+            // search forward the next known token
+            for (int index = startIndex + 1; index < events.size(); index++) {
+                if (events.get(index).hasToken()) {
+                    return index;
+                }
+            }
+        }
+
+        return tokenIndex;
+    }
+}
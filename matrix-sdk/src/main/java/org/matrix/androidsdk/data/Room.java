@@ -25,6 +25,7 @@ import android.media.MediaPlayer;
 import android.media.MediaScannerConnection;
 import android.media.ThumbnailUtils;
 import android.net.Uri;
+import android.os.SystemClock;
 import android.provider.MediaStore;
 import android.text.TextUtils;
 import android.util.Log;
@@ -35,6 +36,7 @@ import com.google.gson.reflect.TypeToken;
 import org.matrix.androidsdk.MXDataHandler;
 import org.matrix.androidsdk.db.MXMediasCache;
 import org.matrix.androidsdk.listeners.IMXEventListener;
+import org.matrix.androidsdk.listeners.IMXLiveEventsBatchListener;
 import org.matrix.androidsdk.listeners.MXEventListener;
 import org.matrix.androidsdk.rest.callback.ApiCallback;
 import org.matrix.androidsdk.rest.callback.SimpleApiCallback;
@@ -64,9 +66,17 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Class representing a room and the interactions we have with it.
@@ -80,6 +90,11 @@ public class Room {
 
     private static final int MAX_EVENT_COUNT_PER_PAGINATION = 20;
 
+    // the messages search results are delivered by batches of this size
+    private static final int SEARCH_BATCH_SIZE = 20;
+    // or when the pending results are older than this delay
+    private static final long SEARCH_BATCH_DELAY_MS = 100;
+
     /**
      * The direction from which an incoming event is considered.
      * <ul>
@@ -111,12 +126,43 @@ public class Room {
         }
     }
 
+    /**
+     * Listener of a messages search (see searchMessages).
+     * The methods are called on the thread which started the search.
+     */
+    public interface MessagesSearchListener {
+        /**
+         * Some messages match the pattern.
+         * @param snapshotedEvents the matched events, from the latest to the oldest one.
+         *                         They are older than the events of the previous batches.
+         */
+        void onSearchResults(List<SnapshotedEvent> snapshotedEvents);
+
+        /**
+         * All the cached messages have been searched.
+         */
+        void onSearchComplete();
+    }
+
+    // the messages searches of all the rooms : a single thread so the searches do not compete with each other
+    private static ExecutorService sSearchExecutor = null;
+
+    // incremented by each started or cancelled search : the previous searches are stopped
+    private final AtomicInteger mSearchGeneration = new AtomicInteger();
+
+    // the running search
+    private Future<?> mSearchFuture = null;
+
     // avoid adding to many events
     // the room history request can provide more than exxpected event.
     private ArrayList<SnapshotedEvent> mSnapshotedEvents = new ArrayList<SnapshotedEvent>();
 
     private String mRoomId;
     private RoomState mLiveState = new RoomState();
+    // the live state is loaded by the store on its first access
+    private volatile Runnable mLiveStateLoader = null;
+    // the live state and its loader are updated together
+    private final Object mLiveStateLock = new Object();
     private RoomState mBackState = new RoomState();
     private RoomState mSearchBackState = new RoomState();
 
@@ -159,11 +205,65 @@ public class Room {
     }
 
     public RoomState getLiveState() {
+        Runnable loader = mLiveStateLoader;
+
+        if (null != loader) {
+            loader.run();
+        }
+
         return mLiveState;
     }
 
     public void setLiveState(RoomState liveState) {
-        mLiveState = liveState;
+        synchronized (mLiveStateLock) {
+            mLiveStateLoader = null;
+            mLiveState = liveState;
+        }
+
+        if (null != mDataHandler) {
+            liveState.setDataHandler(mDataHandler);
+        }
+    }
+
+    /**
+     * Defines how the live state is loaded on its first access.
+     * The loader must call setLiveState.
+     * If it cannot load the state in the calling thread, it sets a placeholder state
+     * with setPlaceholderLiveState and calls onRoomLoaded when the live state is set.
+     * @param loader the loader
+     */
+    void setLiveStateLoader(Runnable loader) {
+        mLiveStateLoader = loader;
+    }
+
+    /**
+     * Set the state which is provided until the live state is loaded.
+     * The loader is kept : the live state is still loaded by the next threads which need it.
+     * It is ignored if the live state is already loaded.
+     * @param placeholderState the placeholder state
+     */
+    void setPlaceholderLiveState(RoomState placeholderState) {
+        synchronized (mLiveStateLock) {
+            if (null == mLiveStateLoader) {
+                return;
+            }
+
+            mLiveState = placeholderState;
+        }
+
+        if (null != mDataHandler) {
+            placeholderState.setDataHandler(mDataHandler);
+        }
+    }
+
+    /**
+     * Called on the UI thread when the room has been loaded by the store
+     * after it has been read from the UI thread (e.g. a placeholder live state has been provided).
+     */
+    void onRoomLoaded() {
+        if (null != mDataHandler) {
+            mDataHandler.onRoomInternalUpdate(mRoomId);
+        }
     }
 
     public boolean isLeaving() {
@@ -171,11 +271,11 @@ public class Room {
     }
 
     public Collection<RoomMember> getMembers() {
-        return mLiveState.getMembers();
+        return getLiveState().getMembers();
     }
 
     public Collection<RoomMember> getActiveMembers() {
-        Collection<RoomMember> members = mLiveState.getMembers();
+        Collection<RoomMember> members = getLiveState().getMembers();
         ArrayList<RoomMember> activeMembers = new ArrayList<RoomMember>();
 
         for(RoomMember member : members) {
@@ -188,27 +288,27 @@ public class Room {
     }
 
     public void setMember(String userId, RoomMember member) {
-        mLiveState.setMember(userId, member);
+        getLiveState().setMember(userId, member);
     }
 
     public RoomMember getMember(String userId) {
-        return mLiveState.getMember(userId);
+        return getLiveState().getMember(userId);
     }
 
     public String getTopic() {
-        return this.mLiveState.topic;
+        return getLiveState().topic;
     }
 
     public String getName(String selfUserId) {
-        return mLiveState.getDisplayName(selfUserId);
+        return getLiveState().getDisplayName(selfUserId);
     }
 
     public String getVisibility() {
-        return mLiveState.visibility;
+        return getLiveState().visibility;
     }
 
     public void setVisibility(String visibility) {
-        mLiveState.visibility = visibility;
+        getLiveState().visibility = visibility;
     }
 
     public void setMyUserId(String userId) { mMyUserId = userId; }
@@ -263,11 +363,11 @@ public class Room {
                         // Typing notifications events are not room messages nor room state events
                         // They are just volatile information
 
-                        if (event.content.has("user_ids")) {
+                        if (event.getContent().has("user_ids")) {
                             mTypingUsers = null;
 
                             try {
-                                mTypingUsers =  (new Gson()).fromJson(event.content.get("user_ids"), new TypeToken<List<String>>(){}.getType());
+                                mTypingUsers =  (new Gson()).fromJson(event.getContent().get("user_ids"), new TypeToken<List<String>>(){}.getType());
                             } catch (Exception e) {
                                 Log.e(LOG_TAG, "onLiveEvent exception " + e.getMessage());
                             }
@@ -296,6 +396,18 @@ public class Room {
                 }
             }
 
+            @Override
+            public void onLiveEventsBatchProcessed(Set<String> roomIds) {
+                // Filter out the batches which have not updated this room
+                if (roomIds.contains(mRoomId) && mIsReady && (eventListener instanceof IMXLiveEventsBatchListener)) {
+                    try {
+                        ((IMXLiveEventsBatchListener) eventListener).onLiveEventsBatchProcessed(Collections.singleton(mRoomId));
+                    } catch (Exception e) {
+                        Log.e(LOG_TAG, "onLiveEventsBatchProcessed exception " + e.getMessage());
+                    }
+                }
+            }
+
             @Override
             public void onBackEvent(Event event, RoomState roomState) {
                 // Filter out events for other rooms
@@ -387,7 +499,7 @@ public class Room {
      * Must be called when opening a room if interested in history.
      */
     public void initHistory() {
-        mBackState = mLiveState.deepCopy();
+        mBackState = getLiveState().deepCopy();
         canStillPaginate = true;
     }
 
@@ -398,7 +510,7 @@ public class Room {
      * @return true if the event has been processed.
      */
     public boolean processStateEvent(Event event, EventDirection direction) {
-        RoomState affectedState = (direction == EventDirection.FORWARDS) ? mLiveState : mBackState;
+        RoomState affectedState = (direction == EventDirection.FORWARDS) ? getLiveState() : mBackState;
         Boolean isProcessed = affectedState.applyState(event, direction);
 
         if ((isProcessed) && (direction == EventDirection.FORWARDS)) {
@@ -496,9 +608,9 @@ public class Room {
         event.mSentState = Event.SentState.SENDING;
 
         if (Event.EVENT_TYPE_MESSAGE.equals(event.type)) {
-            mDataRetriever.getRoomsRestClient().sendMessage(event.originServerTs + "", mRoomId, JsonUtils.toMessage(event.content), localCB);
+            mDataRetriever.getRoomsRestClient().sendMessage(event.originServerTs + "", mRoomId, event.getMessage(), localCB);
         } else {
-            mDataRetriever.getRoomsRestClient().sendEvent(mRoomId, event.type, event.content, localCB);
+            mDataRetriever.getRoomsRestClient().sendEvent(mRoomId, event.type, event.getContent(), localCB);
         }
     }
 
@@ -537,83 +649,174 @@ public class Room {
     }
 
     /**
-     * Check if pattern is contained in string.
-     * @param string the string
-     * @param pattern the pattern to find.
-     * @return true if the pattern is found.
+     * Provides the messages search executor.
+     * @return the executor
      */
-    private static boolean contains(String string, String pattern) {
-        // empty pattern -> cannot match
-        if (TextUtils.isEmpty(string) || TextUtils.isEmpty(pattern) || TextUtils.isEmpty(pattern.trim())) {
-            return false;
+    private static synchronized ExecutorService getSearchExecutor() {
+        if (null == sSearchExecutor) {
+            sSearchExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "RoomMessagesSearch");
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                }
+            });
         }
 
-        return string.matches("(?i:.*" + pattern.trim() + ".*)");
+        return sSearchExecutor;
     }
 
     /**
-     * Search the room messages which contains the pattern pattern.
-     * @param pattern the pattern to search
-     * @param callback the matched events list in the chronological order.
+     * Search the cached room messages which contain a pattern.
+     * The messages are found with the store messages index : each word of the pattern must start a word of the message.
+     * The search runs in background and supersedes the running one : its results are not delivered anymore.
+     * The results are delivered by batches, from the latest message to the oldest one.
+     * This method must be called from a thread with a looper (e.g. the UI thread).
+     * @param pattern the pattern to search, null or empty to list all the cached messages.
+     * @param listener the results listener
      */
-    public void getMessagesWithPattern(final String pattern, final ApiCallback<ArrayList<SnapshotedEvent>> callback) {
-        final RoomState startState = mLiveState.deepCopy();
+    public void searchMessages(final String pattern, final MessagesSearchListener listener) {
+        final int generation = cancelMessagesSearch();
+        final RoomState startState = getLiveState().deepCopy();
         final android.os.Handler handler = new android.os.Handler();
-        final ArrayList<Event> eventsList = new ArrayList<Event>(mDataRetriever.getCachedRoomMessages(mRoomId));
+        final IMXStore store = mDataHandler.getStore();
 
-        // call the callback with a delay (and on the UI thread).
-        // to reproduce the same behaviour as a network request.
-        Runnable r = new Runnable() {
+        Runnable search = new Runnable() {
             @Override
             public void run() {
-                handler.post(new Runnable() {
-                    public void run() {
-                        ArrayList<SnapshotedEvent> matchedEventsList = new ArrayList<SnapshotedEvent>();
+                final boolean includeAll = TextUtils.isEmpty(pattern);
+                HashSet<String> matchedEventIds = includeAll ? null : new HashSet<String>(store.searchMessages(pattern, mRoomId, Integer.MAX_VALUE));
+                Collection<Event> cachedEvents = (includeAll || (matchedEventIds.size() > 0)) ? mDataRetriever.getCachedRoomMessages(mRoomId) : null;
+                ArrayList<Event> eventsList = (null != cachedEvents) ? new ArrayList<Event>(cachedEvents) : new ArrayList<Event>();
 
-                        if (null != eventsList) {
-                            Boolean includeAll = TextUtils.isEmpty(pattern);
-                            RoomState currentRoomState = startState;
-                            RoomState stateCopy = startState.deepCopy();
+                RoomState currentRoomState = startState;
 
-                            for (int index = (eventsList.size() - 1); index >= 0; index--) {
-                                Event event = eventsList.get(index);
-                                Boolean processedEvent = true;
+                // the copy of the current room state, null when it has been updated since the latest copy
+                RoomState stateCopy = null;
 
-                                if (event.stateKey != null) {
-                                    processedEvent = currentRoomState.applyState(event, EventDirection.BACKWARDS);
+                ArrayList<SnapshotedEvent> batch = new ArrayList<SnapshotedEvent>();
+                long batchStartTime = SystemClock.elapsedRealtime();
 
-                                    if (processedEvent) {
-                                        // new state event -> copy the room state
-                                        stateCopy = currentRoomState.deepCopy();
-                                    }
-                                }
+                for (int index = (eventsList.size() - 1); index >= 0; index--) {
+                    // a new search has been started
+                    if (generation != mSearchGeneration.get()) {
+                        return;
+                    }
 
-                                if (processedEvent) {
-                                    if (Event.EVENT_TYPE_MESSAGE.equals(event.type)) {
-                                        Message message = JsonUtils.toMessage(event.content);
+                    Event event = eventsList.get(index);
+                    boolean processedEvent = true;
 
-                                        if (includeAll || contains(message.body, pattern)) {
-                                            matchedEventsList.add(0, new SnapshotedEvent(event, stateCopy));
-                                        }
-                                    }
-                                }
+                    if (event.stateKey != null) {
+                        processedEvent = currentRoomState.applyState(event, EventDirection.BACKWARDS);
+
+                        if (processedEvent) {
+                            // new state event -> the room state is copied by the next matched message
+                            stateCopy = null;
+                        }
+                    }
+
+                    if (processedEvent && Event.EVENT_TYPE_MESSAGE.equals(event.type)) {
+                        if (includeAll || matchedEventIds.contains(event.eventId)) {
+                            if (null == stateCopy) {
+                                stateCopy = currentRoomState.deepCopy();
                             }
 
-                            mSearchBackState = stateCopy.deepCopy();
+                            batch.add(new SnapshotedEvent(event, stateCopy));
+                        }
+                    }
+
+                    if ((batch.size() >= SEARCH_BATCH_SIZE) || ((batch.size() > 0) && ((SystemClock.elapsedRealtime() - batchStartTime) > SEARCH_BATCH_DELAY_MS))) {
+                        postSearchResults(handler, generation, batch, listener);
+                        batch = new ArrayList<SnapshotedEvent>();
+                        batchStartTime = SystemClock.elapsedRealtime();
+                    }
+                }
+
+                if (batch.size() > 0) {
+                    postSearchResults(handler, generation, batch, listener);
+                }
+
+                final RoomState backState = currentRoomState;
+                final String backToken = (eventsList.size() > 0) ? eventsList.get(0).mToken : null;
+
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation == mSearchGeneration.get()) {
+                            mSearchBackState = backState;
                             mSearchBackState.setDataHandler(mDataHandler);
-                            if (eventsList.size() > 0) {
-                                mSearchBackState.setToken(eventsList.get(0).mToken);
+                            if (null != backToken) {
+                                mSearchBackState.setToken(backToken);
                             }
-                        }
 
-                        callback.onSuccess(matchedEventsList);
+                            listener.onSearchComplete();
+                        }
                     }
                 });
             }
         };
 
-        Thread t = new Thread(r);
-        t.start();
+        synchronized (mSearchGeneration) {
+            mSearchFuture = getSearchExecutor().submit(search);
+        }
+    }
+
+    /**
+     * Deliver a batch of search results if the search has not been superseded.
+     * @param handler the handler of the search thread
+     * @param generation the search generation
+     * @param batch the matched events
+     * @param listener the search listener
+     */
+    private void postSearchResults(android.os.Handler handler, final int generation, final List<SnapshotedEvent> batch, final MessagesSearchListener listener) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (generation == mSearchGeneration.get()) {
+                    listener.onSearchResults(batch);
+                }
+            }
+        });
+    }
+
+    /**
+     * Cancel the running messages search and the pending search history request : their results are not delivered.
+     * @return the new search generation.
+     */
+    public int cancelMessagesSearch() {
+        synchronized (mSearchGeneration) {
+            if (null != mSearchFuture) {
+                mSearchFuture.cancel(false);
+                mSearchFuture = null;
+            }
+
+            return mSearchGeneration.incrementAndGet();
+        }
+    }
+
+    /**
+     * Search the room messages which contains the pattern pattern.
+     * The search supersedes the running one (see searchMessages).
+     * @param pattern the pattern to search
+     * @param callback the matched events list in the chronological order.
+     */
+    public void getMessagesWithPattern(final String pattern, final ApiCallback<ArrayList<SnapshotedEvent>> callback) {
+        final ArrayList<SnapshotedEvent> matchedEventsList = new ArrayList<SnapshotedEvent>();
+
+        searchMessages(pattern, new MessagesSearchListener() {
+            @Override
+            public void onSearchResults(List<SnapshotedEvent> snapshotedEvents) {
+                matchedEventsList.addAll(snapshotedEvents);
+            }
+
+            @Override
+            public void onSearchComplete() {
+                // chronological order
+                Collections.reverse(matchedEventsList);
+                callback.onSuccess(matchedEventsList);
+            }
+        });
     }
 
     /**
@@ -626,6 +829,7 @@ public class Room {
     /**
      * Request older messages to perform a search on it.
      * @param pattern the pattern to search. null to list the cached messages.
+     * The request is cancelled by cancelMessagesSearch or by a new search : the callback is not called.
      * @param callback callback to send matched events stored in application cache.
      * @return true if request starts
      */
@@ -638,12 +842,13 @@ public class Room {
         isPaginating = true;
 
         final RoomState startState = mSearchBackState.deepCopy();
+        final int generation = mSearchGeneration.get();
 
         mDataRetriever.requestRoomHistory(mRoomId, startState.getToken(), new SimpleApiCallback<TokensChunkResponse<Event>>(callback) {
             @Override
             public void onSuccess(TokensChunkResponse<Event> response) {
-                // check if the state is the same as expected
-                if ((null != mSearchBackState) && TextUtils.equals(startState.getToken(), mSearchBackState.getToken())) {
+                // check if the state is the same as expected and if the search has not been cancelled
+                if ((generation == mSearchGeneration.get()) && (null != mSearchBackState) && TextUtils.equals(startState.getToken(), mSearchBackState.getToken())) {
                     getMessagesWithPattern(pattern, callback);
                 }
                 isPaginating = false;
@@ -1371,7 +1576,7 @@ public class Room {
                 mDataHandler.onResendingEvent(unsentEvent);
 
                 boolean hasPreviousTask = false;
-                final Message message = JsonUtils.toMessage(unsentEvent.content);
+                final Message message = JsonUtils.toMessage(unsentEvent.getContent());
 
                 if (message instanceof ImageMessage) {
                     final ImageMessage imageMessage = (ImageMessage) message;
@@ -1408,7 +1613,7 @@ public class Room {
 
                                     @Override
                                     public void onUploadComplete(final String anUploadId, final ContentResponse uploadResponse, final int serverResponseCode,  final String serverErrorMessage) {
-                                        ImageMessage uploadedMessage = (ImageMessage) JsonUtils.toMessage(newEvent.content);
+                                        ImageMessage uploadedMessage = (ImageMessage) JsonUtils.toMessage(newEvent.getContent());
 
                                         uploadedMessage.thumbnailUrl = imageMessage.thumbnailUrl;
 
@@ -1422,7 +1627,7 @@ public class Room {
                                         uploadedMessage.body = imageMessage.body;
 
                                         // update the content
-                                        newEvent.content = JsonUtils.toJson(uploadedMessage);
+                                        newEvent.setContent(JsonUtils.toJson(uploadedMessage));
 
                                         // send the body
                                         Room.this.resendEventsList(evensList, index, maxTime);
@@ -32,9 +32,11 @@ import org.matrix.androidsdk.util.JsonUtils;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * The state of a room.
@@ -58,6 +60,8 @@ public class RoomState implements java.io.Serializable {
     private PowerLevels powerLevels;
     // the unitary tests crash when MXDataHandler type is set.
     private transient Object mDataHandler = null;
+    // the members updated since the latest popUpdatedMemberIds call (null when they are not tracked)
+    private transient HashSet<String> mUpdatedMemberIds = null;
 
     public String getToken() {
         return token;
@@ -85,6 +89,10 @@ public class RoomState implements java.io.Serializable {
         }
         synchronized (this) {
             mMembers.put(userId, member);
+
+            if (null != mUpdatedMemberIds) {
+                mUpdatedMemberIds.add(userId);
+            }
         }
     }
 
@@ -101,9 +109,52 @@ public class RoomState implements java.io.Serializable {
     public void removeMember(String userId) {
         synchronized (this) {
             mMembers.remove(userId);
+
+            if (null != mUpdatedMemberIds) {
+                mUpdatedMemberIds.add(userId);
+            }
         }
     }
 
+    /**
+     * Start tracking the members updates.
+     * The stores use them to save only the updated members instead of the whole members list.
+     * The previously tracked updates are discarded.
+     */
+    public void trackMembersUpdates() {
+        synchronized (this) {
+            mUpdatedMemberIds = new HashSet<String>();
+        }
+    }
+
+    /**
+     * Stop tracking the members updates (e.g. they have not been saved) :
+     * the next save rewrites the whole members list.
+     */
+    public void untrackMembersUpdates() {
+        synchronized (this) {
+            mUpdatedMemberIds = null;
+        }
+    }
+
+    /**
+     * Provides the user ids of the members which have been added, updated or removed
+     * since the latest call and resets the list.
+     * @return the updated user ids, null if the members updates are not tracked.
+     */
+    public Set<String> popUpdatedMemberIds() {
+        Set<String> res = null;
+
+        synchronized (this) {
+            if (null != mUpdatedMemberIds) {
+                res = mUpdatedMemberIds;
+                mUpdatedMemberIds = new HashSet<String>();
+            }
+        }
+
+        return res;
+    }
+
     public PowerLevels getPowerLevels() {
         if (null != powerLevels) {
             return powerLevels.deepCopy();
@@ -125,6 +176,24 @@ public class RoomState implements java.io.Serializable {
      * @return the copy
      */
     public RoomState deepCopy() {
+        RoomState copy = deepCopyWithoutMembers();
+
+        synchronized (this) {
+            Iterator it = mMembers.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, RoomMember> pair = (Map.Entry<String, RoomMember>) it.next();
+                copy.setMember(pair.getKey(), pair.getValue().deepCopy());
+            }
+        }
+
+        return copy;
+    }
+
+    /**
+     * Make a deep copy of this room state object without its members.
+     * @return the copy
+     */
+    public RoomState deepCopyWithoutMembers() {
         RoomState copy = new RoomState();
         copy.roomId = roomId;
         copy.name = name;
@@ -136,15 +205,6 @@ public class RoomState implements java.io.Serializable {
         copy.mDataHandler = mDataHandler;
         copy.token = token;
         copy.aliases = (aliases == null) ? null : new ArrayList<String>(aliases);
-
-        synchronized (this) {
-            Iterator it = mMembers.entrySet().iterator();
-            while (it.hasNext()) {
-                Map.Entry<String, RoomMember> pair = (Map.Entry<String, RoomMember>) it.next();
-                copy.setMember(pair.getKey(), pair.getValue().deepCopy());
-            }
-        }
-
         copy.setPowerLevels((powerLevels == null) ? null : powerLevels.deepCopy());
 
         return copy;
@@ -259,7 +319,7 @@ public class RoomState implements java.io.Serializable {
             return false;
         }
 
-        JsonObject contentToConsider = (direction == Room.EventDirection.FORWARDS) ? event.content : event.prevContent;
+        JsonObject contentToConsider = (direction == Room.EventDirection.FORWARDS) ? event.getContent() : event.getPrevContent();
 
         if (Event.EVENT_TYPE_STATE_ROOM_NAME.equals(event.type)) {
             RoomState roomState = JsonUtils.toRoomState(contentToConsider);
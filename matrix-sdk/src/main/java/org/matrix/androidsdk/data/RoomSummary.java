@@ -260,4 +260,31 @@ public class RoomSummary implements java.io.Serializable {
         mInviterUserId = inviterUserId;
         return this;
     }
+
+    // the raw fields, saved by the file store codec
+
+    String getName() {
+        return mName;
+    }
+
+    boolean getIsInvited() {
+        return (null != mIsInvited) && mIsInvited;
+    }
+
+    String getInviterName() {
+        return mInviterName;
+    }
+
+    boolean getIsHighlighted() {
+        return mIsHighlighted;
+    }
+
+    void setInvitation(boolean isInvited, String inviterName) {
+        mIsInvited = isInvited;
+        mInviterName = inviterName;
+    }
+
+    void setUnreadMessagesCount(int count) {
+        mUnreadMessagesCount = count;
+    }
 }
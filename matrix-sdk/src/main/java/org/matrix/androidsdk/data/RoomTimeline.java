@@ -0,0 +1,620 @@
+/*
+ * Copyright 2015 OpenMarket Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.matrix.androidsdk.data;
+
+import org.matrix.androidsdk.rest.model.Event;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The events of a room timeline, from the oldest to the latest one.
+ *
+ * The events are stored in fixed size chunks and indexed by position : the appended events get
+ * increasing positions, the prepended ones get decreasing positions, so an event never moves.
+ * The oldest and the latest events are reached in constant time, appending or prepending
+ * a page only touches the chunks of the page. The events are also indexed by event id and
+ * by pagination token.
+ *
+ * The updates are serialized by the timeline lock. The readers never lock : they use the latest
+ * published snapshot. An event which is visible in a snapshot is never overwritten : its chunk is
+ * copied when it is replaced or deleted (a deleted event leaves an empty slot, a tombstone).
+ * The id and token indexes are shared by the snapshots : a deleted event keeps its id entry
+ * until the chunks are rebuilt, the lookups are always checked against the snapshot slots.
+ *
+ * The timeline also maintains the estimated memory size of its events (see RetentionPolicy).
+ */
+public class RoomTimeline {
+
+    // the number of events per chunk
+    private static final int CHUNK_SIZE = 64;
+
+    /**
+     * The position and the estimated size of an indexed event.
+     */
+    private static class Slot {
+        final long mPosition;
+        final long mSize;
+
+        Slot(long position, long size) {
+            mPosition = position;
+            mSize = size;
+        }
+    }
+
+    /**
+     * An immutable view of the timeline.
+     */
+    public static class Snapshot {
+        private final Event[][] mChunks;
+        private final long mFirstChunkId;
+        private final long mHead;
+        private final long mTail;
+        private final int mSize;
+        private final long mBytes;
+        private final ConcurrentHashMap<String, Slot> mSlotsByEventId;
+        private final ConcurrentHashMap<String, Long> mPositionsByToken;
+
+        private Snapshot(RoomTimeline timeline) {
+            mChunks = timeline.mChunks;
+            mFirstChunkId = timeline.mFirstChunkId;
+            mHead = timeline.mHead;
+            mTail = timeline.mTail;
+            mSize = timeline.mSize;
+            mBytes = timeline.mBytes;
+            mSlotsByEventId = timeline.mSlotsByEventId;
+            mPositionsByToken = timeline.mPositionsByToken;
+        }
+
+        /**
+         * @return the position of the oldest event.
+         */
+        public long getHead() {
+            return mHead;
+        }
+
+        /**
+         * @return the position of the latest event (lower than the head position when the timeline is empty).
+         */
+        public long getTail() {
+            return mTail;
+        }
+
+        /**
+         * @return the number of events.
+         */
+        public int size() {
+            return mSize;
+        }
+
+        /**
+         * @return the estimated memory size of the events.
+         */
+        public long getSizeInBytes() {
+            return mBytes;
+        }
+
+        /**
+         * Provide the event at a position.
+         * @param position the position
+         * @return the event, null if there is no event at this position.
+         */
+        public Event get(long position) {
+            if ((position < mHead) || (position > mTail)) {
+                return null;
+            }
+
+            long chunkId = chunkId(position);
+            Event[] chunk = mChunks[(int) (chunkId - mFirstChunkId)];
+
+            return chunk[(int) (position - (chunkId * CHUNK_SIZE))];
+        }
+
+        /**
+         * @return the oldest event, null if the timeline is empty.
+         */
+        public Event getOldestEvent() {
+            return get(mHead);
+        }
+
+        /**
+         * @return the latest event, null if the timeline is empty.
+         */
+        public Event getLatestEvent() {
+            return get(mTail);
+        }
+
+        /**
+         * @return the events, from the oldest to the latest one.
+         */
+        public ArrayList<Event> getEvents() {
+            ArrayList<Event> events = new ArrayList<Event>(mSize);
+
+            for (long position = mHead; position <= mTail; position++) {
+                Event event = get(position);
+
+                if (null != event) {
+                    events.add(event);
+                }
+            }
+
+            return events;
+        }
+
+        /**
+         * Find an event by its event id.
+         * @param eventId the event id
+         * @return the event, null if it is not in the snapshot.
+         */
+        public Event getEvent(String eventId) {
+            if (null == eventId) {
+                return null;
+            }
+
+            Slot slot = mSlotsByEventId.get(eventId);
+            Event event = (null != slot) ? get(slot.mPosition) : null;
+
+            // the index could be more recent than the snapshot
+            return ((null != event) && eventId.equals(event.eventId)) ? event : null;
+        }
+
+        /**
+         * Provide the events older than the event with the pagination token.
+         * The events are collected until there are at least limit events and the oldest one has a token.
+         * @param fromToken the pagination token (null to start from the latest event).
+         * @param limit the expected events count.
+         * @return the events from the latest to the oldest, null if the token is unknown.
+         */
+        public ArrayList<Event> getEarlierEvents(String fromToken, int limit) {
+            long position = mTail;
+
+            if (null != fromToken) {
+                Long tokenPosition = mPositionsByToken.get(fromToken);
+                Event tokenEvent = (null != tokenPosition) ? get(tokenPosition) : null;
+
+                if ((null == tokenEvent) || !fromToken.equals(tokenEvent.mToken)) {
+                    return null;
+                }
+
+                position = tokenPosition - 1;
+            }
+
+            ArrayList<Event> events = new ArrayList<Event>(Math.max(Math.min(limit, mSize), 0));
+
+            for (; position >= mHead; position--) {
+                Event event = get(position);
+
+                // tombstone
+                if (null == event) {
+                    continue;
+                }
+
+                events.add(event);
+
+                if ((events.size() >= limit) && (null != event.mToken)) {
+                    break;
+                }
+            }
+
+            return events;
+        }
+    }
+
+    // the chunks directory : the chunk ids from mFirstChunkId to mFirstChunkId + mChunks.length - 1
+    private Event[][] mChunks;
+    private long mFirstChunkId;
+
+    // true when the chunks directory is referenced by a published snapshot
+    private boolean mIsDirectoryShared;
+
+    // the range of the positions which have been published
+    // a slot in this range could be read by a snapshot : it must not be written in place.
+    private long mLowestPublishedPosition;
+    private long mHighestPublishedPosition;
+
+    // the oldest and the latest event positions (the timeline is empty when mHead > mTail)
+    private long mHead;
+    private long mTail;
+    private int mSize;
+    private long mBytes;
+
+    // the removed events since the latest rebuild (tombstones and stale index entries)
+    private int mRemovedCount;
+
+    private ConcurrentHashMap<String, Slot> mSlotsByEventId;
+    // the latest event position by pagination token
+    private ConcurrentHashMap<String, Long> mPositionsByToken;
+
+    // the latest published snapshot
+    private volatile Snapshot mSnapshot;
+
+    /**
+     * Create an empty timeline.
+     */
+    public RoomTimeline() {
+        this(null);
+    }
+
+    /**
+     * Create a timeline.
+     * @param events the events, from the oldest to the latest.
+     */
+    public RoomTimeline(Collection<Event> events) {
+        reset(events);
+    }
+
+    /**
+     * @param position a position
+     * @return the id of the chunk which contains the position.
+     */
+    private static long chunkId(long position) {
+        return (position >= 0) ? (position / CHUNK_SIZE) : (((position + 1) / CHUNK_SIZE) - 1);
+    }
+
+    /**
+     * Reset the timeline content.
+     * @param events the events, from the oldest to the latest.
+     */
+    private void reset(Collection<Event> events) {
+        mChunks = new Event[4][];
+        mFirstChunkId = -2;
+        mIsDirectoryShared = false;
+        mLowestPublishedPosition = Long.MAX_VALUE;
+        mHighestPublishedPosition = Long.MIN_VALUE;
+        mHead = 0;
+        mTail = -1;
+        mSize = 0;
+        mBytes = 0;
+        mRemovedCount = 0;
+        mSlotsByEventId = new ConcurrentHashMap<String, Slot>();
+        mPositionsByToken = new ConcurrentHashMap<String, Long>();
+
+        if (null != events) {
+            for (Event event : events) {
+                add(event, true);
+            }
+        }
+
+        publish();
+    }
+
+    private void publish() {
+        if (mHead <= mTail) {
+            mLowestPublishedPosition = Math.min(mLowestPublishedPosition, mHead);
+            mHighestPublishedPosition = Math.max(mHighestPublishedPosition, mTail);
+        }
+
+        mSnapshot = new Snapshot(this);
+        mIsDirectoryShared = true;
+    }
+
+    /**
+     * @return the latest snapshot.
+     */
+    public Snapshot snapshot() {
+        return mSnapshot;
+    }
+
+    /**
+     * Provide the chunk which contains a position, create it if it does not exist.
+     * @param chunkId the chunk id
+     * @return the chunk
+     */
+    private Event[] chunk(long chunkId) {
+        long lastChunkId = mFirstChunkId + mChunks.length - 1;
+
+        if ((chunkId < mFirstChunkId) || (chunkId > lastChunkId)) {
+            long first = Math.min(mFirstChunkId, chunkId);
+            long last = Math.max(lastChunkId, chunkId);
+            int capacity = (int) (last - first + 1) * 2;
+
+            // leave some free room on the growing side
+            long newFirstChunkId = (chunkId < mFirstChunkId) ? (last - capacity + 1) : first;
+
+            Event[][] chunks = new Event[capacity][];
+            System.arraycopy(mChunks, 0, chunks, (int) (mFirstChunkId - newFirstChunkId), mChunks.length);
+
+            mChunks = chunks;
+            mFirstChunkId = newFirstChunkId;
+            mIsDirectoryShared = false;
+        }
+
+        int index = (int) (chunkId - mFirstChunkId);
+
+        // a missing chunk has never been published : it can be added to a shared directory
+        if (null == mChunks[index]) {
+            mChunks[index] = new Event[CHUNK_SIZE];
+        }
+
+        return mChunks[index];
+    }
+
+    /**
+     * Write an event in a free slot.
+     * @param position the position
+     * @param event the event
+     */
+    private void write(long position, Event event) {
+        long chunkId = chunkId(position);
+        Event[] chunk = chunk(chunkId);
+
+        if ((position >= mLowestPublishedPosition) && (position <= mHighestPublishedPosition)) {
+            // a tombstone which could be visible in a snapshot
+            overwrite(position, event);
+        } else {
+            chunk[(int) (position - (chunkId * CHUNK_SIZE))] = event;
+        }
+    }
+
+    /**
+     * Overwrite a slot which could be visible in a snapshot : the chunk is copied.
+     * @param position the position
+     * @param event the event (null to leave a tombstone).
+     */
+    private void overwrite(long position, Event event) {
+        if (mIsDirectoryShared) {
+            mChunks = mChunks.clone();
+            mIsDirectoryShared = false;
+        }
+
+        long chunkId = chunkId(position);
+        int index = (int) (chunkId - mFirstChunkId);
+        Event[] chunk = mChunks[index].clone();
+        chunk[(int) (position - (chunkId * CHUNK_SIZE))] = event;
+        mChunks[index] = chunk;
+    }
+
+    /**
+     * Read a slot.
+     * @param position the position
+     * @return the event, null if the slot is empty.
+     */
+    private Event read(long position) {
+        if ((position < mHead) || (position > mTail)) {
+            return null;
+        }
+
+        long chunkId = chunkId(position);
+        return mChunks[(int) (chunkId - mFirstChunkId)][(int) (position - (chunkId * CHUNK_SIZE))];
+    }
+
+    private void indexToken(Event event, long position) {
+        if (null != event.mToken) {
+            Long tokenPosition = mPositionsByToken.get(event.mToken);
+
+            // the back pagination starts from the latest event with this token
+            if ((null == tokenPosition) || (tokenPosition < position) || (null == read(tokenPosition))) {
+                mPositionsByToken.put(event.mToken, position);
+            }
+        }
+    }
+
+    private void unindexToken(Event event, long position) {
+        if ((null != event.mToken) && Long.valueOf(position).equals(mPositionsByToken.get(event.mToken))) {
+            mPositionsByToken.remove(event.mToken);
+        }
+    }
+
+    /**
+     * Add an event without publishing it.
+     * An already stored event is replaced and keeps its position.
+     * @param event the event
+     * @param append true to add it at the end of the timeline.
+     */
+    private void add(Event event, boolean append) {
+        if (null == event) {
+            return;
+        }
+
+        Slot slot = (null != event.eventId) ? mSlotsByEventId.get(event.eventId) : null;
+        Event previous = (null != slot) ? read(slot.mPosition) : null;
+        long position;
+
+        if (null != previous) {
+            position = slot.mPosition;
+
+            if (previous != event) {
+                unindexToken(previous, position);
+                overwrite(position, event);
+
+                long size = RetentionPolicy.estimateSize(event);
+                mBytes += size - slot.mSize;
+                mSlotsByEventId.put(event.eventId, new Slot(position, size));
+            }
+        } else {
+            if (mHead > mTail) {
+                // empty timeline : restart from the current head
+                position = mHead;
+                mTail = mHead;
+            } else if (append) {
+                position = ++mTail;
+            } else {
+                position = --mHead;
+            }
+
+            write(position, event);
+            mSize++;
+
+            long size = RetentionPolicy.estimateSize(event);
+            mBytes += size;
+
+            if (null != event.eventId) {
+                mSlotsByEventId.put(event.eventId, new Slot(position, size));
+            }
+        }
+
+        indexToken(event, position);
+    }
+
+    /**
+     * Add an event at the end of the timeline.
+     * An already stored event is replaced and keeps its position.
+     * @param event the event
+     */
+    public synchronized void append(Event event) {
+        add(event, true);
+        publish();
+    }
+
+    /**
+     * Add some events at the end of the timeline.
+     * @param events the events, from the oldest to the latest.
+     */
+    public synchronized void appendAll(List<Event> events) {
+        for (Event event : events) {
+            add(event, true);
+        }
+
+        publish();
+    }
+
+    /**
+     * Add some events at the beginning of the timeline (e.g. a back pagination chunk).
+     * The already stored events are replaced and keep their positions.
+     * @param events the events, from the latest to the oldest.
+     */
+    public synchronized void prependAll(List<Event> events) {
+        for (Event event : events) {
+            add(event, false);
+        }
+
+        publish();
+    }
+
+    /**
+     * Remove an event.
+     * @param eventId the event id
+     * @return true if the event was in the timeline.
+     */
+    public synchronized boolean remove(String eventId) {
+        Slot slot = (null != eventId) ? mSlotsByEventId.get(eventId) : null;
+        Event event = (null != slot) ? read(slot.mPosition) : null;
+
+        if (null == event) {
+            return false;
+        }
+
+        // the id entry is kept for the published snapshots
+        unindexToken(event, slot.mPosition);
+        overwrite(slot.mPosition, null);
+        mSize--;
+        mBytes -= slot.mSize;
+        mRemovedCount++;
+
+        // keep the bounds on events
+        while ((mHead <= mTail) && (null == read(mTail))) {
+            mTail--;
+        }
+
+        while ((mHead <= mTail) && (null == read(mHead))) {
+            mHead++;
+        }
+
+        // too many tombstones or stale index entries : rebuild the chunks
+        if ((mRemovedCount > CHUNK_SIZE) && (mRemovedCount > mSize)) {
+            reset(new Snapshot(this).getEvents());
+        } else {
+            publish();
+        }
+
+        return true;
+    }
+
+    /**
+     * Remove the events older than an event.
+     * @param eventId the id of the oldest event to keep.
+     * @return the number of removed events.
+     */
+    public synchronized int removeEventsBefore(String eventId) {
+        Slot slot = (null != eventId) ? mSlotsByEventId.get(eventId) : null;
+
+        if ((null == slot) || (null == read(slot.mPosition)) || (slot.mPosition == mHead)) {
+            return 0;
+        }
+
+        ArrayList<Event> events = new ArrayList<Event>();
+
+        for (long position = slot.mPosition; position <= mTail; position++) {
+            Event event = read(position);
+
+            if (null != event) {
+                events.add(event);
+            }
+        }
+
+        int removedCount = mSize - events.size();
+        reset(events);
+
+        return removedCount;
+    }
+
+    /**
+     * @return the number of events.
+     */
+    public int size() {
+        return mSnapshot.size();
+    }
+
+    /**
+     * @return the estimated memory size of the events.
+     */
+    public long getSizeInBytes() {
+        return mSnapshot.getSizeInBytes();
+    }
+
+    /**
+     * @return the oldest event, null if the timeline is empty.
+     */
+    public Event getOldestEvent() {
+        return mSnapshot.getOldestEvent();
+    }
+
+    /**
+     * @return the latest event, null if the timeline is empty.
+     */
+    public Event getLatestEvent() {
+        return mSnapshot.getLatestEvent();
+    }
+
+    /**
+     * Find an event by its event id.
+     * @param eventId the event id
+     * @return the event, null if it is unknown.
+     */
+    public Event getEvent(String eventId) {
+        return mSnapshot.getEvent(eventId);
+    }
+
+    /**
+     * @return the events, from the oldest to the latest one.
+     */
+    public ArrayList<Event> getEvents() {
+        return mSnapshot.getEvents();
+    }
+
+    /**
+     * Provide the events older than the event with the pagination token.
+     * @param fromToken the pagination token (null to start from the latest event).
+     * @param limit the expected events count.
+     * @return the events from the latest to the oldest, null if the token is unknown.
+     */
+    public ArrayList<Event> getEarlierEvents(String fromToken, int limit) {
+        return mSnapshot.getEarlierEvents(fromToken, limit);
+    }
+}
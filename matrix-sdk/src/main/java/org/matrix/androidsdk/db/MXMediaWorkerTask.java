@@ -28,6 +28,7 @@ import android.widget.ImageView;
 
 import org.matrix.androidsdk.HomeserverConnectionConfig;
 import org.matrix.androidsdk.ssl.CertUtil;
+import org.matrix.androidsdk.util.DiskUsageAccount;
 import org.matrix.androidsdk.util.ImageUtils;
 
 import java.io.File;
@@ -63,6 +64,10 @@ class MXMediaWorkerTask extends AsyncTask<Integer, Integer, Bitmap> {
     private int mProgress = 0;
     private final HomeserverConnectionConfig mHsConfig;
 
+    // the disk usage account of the medias cache, null if the downloaded file is not counted.
+    private DiskUsageAccount mDiskUsage = null;
+    private String mDiskUsageCategory = null;
+
     public static void clearBitmapsCache() {
         // sMemoryCache can be null if no bitmap have been downloaded.
         if (null != sMemoryCache) {
@@ -338,6 +343,18 @@ class MXMediaWorkerTask extends AsyncTask<Integer, Integer, Bitmap> {
         mMimeType = task.mMimeType;
         mImageViewReferences = task.mImageViewReferences;
         mHsConfig = task.mHsConfig;
+        mDiskUsage = task.mDiskUsage;
+        mDiskUsageCategory = task.mDiskUsageCategory;
+    }
+
+    /**
+     * Set the account in which the downloaded file size is added.
+     * @param diskUsage the disk usage account
+     * @param category the media category
+     */
+    public void setDiskUsageAccount(DiskUsageAccount diskUsage, String category) {
+        mDiskUsage = diskUsage;
+        mDiskUsageCategory = category;
     }
 
     /**
@@ -461,11 +478,16 @@ class MXMediaWorkerTask extends AsyncTask<Integer, Integer, Bitmap> {
                     File originalFile = new File(mDirectoryFile, filename);
                     String newFileName = MXMediaWorkerTask.buildFileName(mUrl, mMimeType);
                     File newFile = new File(mDirectoryFile, newFileName);
+                    long previousLength = newFile.length();
                     if (newFile.exists()) {
                         // Or you could throw here.
                         mApplicationContext.deleteFile(newFileName);
                     }
                     originalFile.renameTo(newFile);
+
+                    if (null != mDiskUsage) {
+                        mDiskUsage.add(mDiskUsageCategory, newFile.length() - previousLength);
+                    }
                 } catch (Exception e) {
                 }
             }
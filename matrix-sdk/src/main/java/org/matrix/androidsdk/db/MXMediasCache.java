@@ -29,11 +29,13 @@ import android.widget.ImageView;
 import org.matrix.androidsdk.HomeserverConnectionConfig;
 import org.matrix.androidsdk.util.ContentManager;
 import org.matrix.androidsdk.util.ContentUtils;
+import org.matrix.androidsdk.util.DiskUsageAccount;
 
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.concurrent.RejectedExecutionException;
 
 public class MXMediasCache {
@@ -70,6 +72,11 @@ public class MXMediasCache {
     static String MXMEDIA_STORE_MEMBER_THUMBNAILS_FOLDER = "MXMemberThumbnailsStore";
     static String MXMEDIA_STORE_IMAGES_FOLDER = "Images";
     static String MXMEDIA_STORE_OTHERS_FOLDER = "Others";
+    static String MXMEDIA_STORE_DISK_USAGE_FILE_NAME = "disk_usage";
+
+    // the medias categories (see cacheSize(String))
+    public static final String MEDIA_CATEGORY_IMAGES = "Images";
+    public static final String MEDIA_CATEGORY_OTHERS = "Others";
 
     private ContentManager mContentmanager = null;
 
@@ -79,6 +86,10 @@ public class MXMediasCache {
     private File mOthersFolderFile = null;
     private File mThumbnailsFolderFile = null;
 
+    // the cached bytes by media category
+    // the thumbnails are not counted because they are shared by the sessions.
+    private final DiskUsageAccount mDiskUsage = new DiskUsageAccount();
+
     /**
      * Clear the former medias cache.
      * The dirtree has been updated.
@@ -124,6 +135,8 @@ public class MXMediasCache {
         mOthersFolderFile = new File(mMediasFolderFile, MXMEDIA_STORE_OTHERS_FOLDER);
 
         mThumbnailsFolderFile = new File(mediaBaseFolderFile, MXMEDIA_STORE_MEMBER_THUMBNAILS_FOLDER);
+
+        mDiskUsage.load(new File(mMediasFolderFile, MXMEDIA_STORE_DISK_USAGE_FILE_NAME));
     }
 
     /**
@@ -179,28 +192,31 @@ public class MXMediasCache {
     }
 
     /**
-     * Recursive method to compute a directory sie
-     * @param directory the directory.
-     * @return the directory size in bytes.
+     * Provides the media category of a cache folder.
+     * @param folderFile the folder file
+     * @return the category, null if the folder is not counted in the cache size.
      */
-    private long cacheSize(File directory) {
-        long size = 0;
+    private String categoryForFolder(File folderFile) {
+        if (mImagesFolderFile.equals(folderFile)) {
+            return MEDIA_CATEGORY_IMAGES;
+        } else if (mOthersFolderFile.equals(folderFile)) {
+            return MEDIA_CATEGORY_OTHERS;
+        }
 
-        File[] files = directory.listFiles();
+        return null;
+    }
 
-        if (null != files) {
-            for(int i=0; i<files.length; i++) {
-                File file = files[i];
+    /**
+     * Compute the medias cache sizes from the files.
+     * It is done when the sizes are unknown and once a week to fix the drift.
+     */
+    private void reconcileCacheSize() {
+        HashMap<String, Long> bytes = new HashMap<String, Long>();
 
-                if(!file.isDirectory()) {
-                    size += file.length();
-                } else {
-                    size += cacheSize(file);
-                }
-            }
-        }
+        bytes.put(MEDIA_CATEGORY_IMAGES, DiskUsageAccount.walk(mImagesFolderFile));
+        bytes.put(MEDIA_CATEGORY_OTHERS, DiskUsageAccount.walk(mOthersFolderFile));
 
-        return size;
+        mDiskUsage.reconcile(bytes);
     }
 
     /**
@@ -209,7 +225,35 @@ public class MXMediasCache {
      * @return the medias cache size in bytes
      */
     public long cacheSize() {
-        return cacheSize(getMediasFolderFile());
+        if (mDiskUsage.needsReconciliation()) {
+            reconcileCacheSize();
+        }
+
+        return mDiskUsage.total();
+    }
+
+    /**
+     * Compute the size of a medias category
+     *
+     * @param category the category (MEDIA_CATEGORY_IMAGES or MEDIA_CATEGORY_OTHERS)
+     * @return the category size in bytes
+     */
+    public long cacheSize(String category) {
+        if (mDiskUsage.needsReconciliation()) {
+            reconcileCacheSize();
+        }
+
+        return mDiskUsage.get(category);
+    }
+
+    /**
+     * Save the medias cache sizes if they have been updated.
+     * They are reconciled with the files if they are not saved before the application is killed.
+     */
+    public void flushCacheSize() {
+        if (mDiskUsage.hasChanged()) {
+            mDiskUsage.save(new File(getMediasFolderFile(), MXMEDIA_STORE_DISK_USAGE_FILE_NAME));
+        }
     }
 
     /**
@@ -217,6 +261,7 @@ public class MXMediasCache {
      */
     public void clearCache() {
         ContentUtils.deleteDirectory(getMediasFolderFile());
+        mDiskUsage.clear();
 
         // clear the media cache
         MXMediaWorkerTask.clearBitmapsCache();
@@ -327,6 +372,7 @@ public class MXMediasCache {
         try {
             if (null != defaultFileName) {
                 File file = new File(getFolderFile(null), defaultFileName);
+                mDiskUsage.add(MEDIA_CATEGORY_IMAGES, -file.length());
                 file.delete();
 
                 filename = Uri.fromFile(file).getLastPathSegment();
@@ -340,6 +386,8 @@ public class MXMediasCache {
             fos.flush();
             fos.close();
 
+            mDiskUsage.add(MEDIA_CATEGORY_IMAGES, file.length());
+
             cacheURL = Uri.fromFile(file).toString();
         } catch (Exception e) {
         }
@@ -375,6 +423,7 @@ public class MXMediasCache {
 
         try {
             File file = new File(getFolderFile(mimeType), filename);
+            long previousLength = file.length();
             FileOutputStream fos = new FileOutputStream(file.getPath());
 
             try {
@@ -391,6 +440,8 @@ public class MXMediasCache {
             fos.close();
             stream.close();
 
+            mDiskUsage.add(categoryForFolder(file.getParentFile()), file.length() - previousLength);
+
             cacheURL = Uri.fromFile(file).toString();
         } catch (Exception e) {
 
@@ -430,6 +481,7 @@ public class MXMediasCache {
 
             if (destFile.exists()) {
                 try {
+                    mDiskUsage.add(categoryForFolder(destFile.getParentFile()), -destFile.length());
                     destFile.delete();
                 } catch (Exception e) {
                 }
@@ -437,7 +489,13 @@ public class MXMediasCache {
 
             Uri uri = Uri.parse(fileUrl);
             File srcFile = new File(uri.getPath());
-            srcFile.renameTo(destFile);
+            long srcLength = srcFile.length();
+
+            if (srcFile.renameTo(destFile)) {
+                // the file could have been moved from another category
+                mDiskUsage.add(categoryForFolder(srcFile.getParentFile()), -srcLength);
+                mDiskUsage.add(categoryForFolder(destFile.getParentFile()), srcLength);
+            }
 
         } catch (Exception e) {
         }
@@ -549,6 +607,7 @@ public class MXMediasCache {
 
         // download it in background
         MXMediaWorkerTask task = new MXMediaWorkerTask(context, hsConfig, getFolderFile(mimeType), downloadableUrl, mimeType);
+        task.setDiskUsageAccount(mDiskUsage, categoryForFolder(getFolderFile(mimeType)));
 
         // avoid crash if there are too many running task
         try {
@@ -675,6 +734,7 @@ public class MXMediasCache {
             } else {
                 // download it in background
                 MXMediaWorkerTask task = new MXMediaWorkerTask(context, hsConfig, folderFile, downloadableUrl, rotationAngle, mimeType);
+                task.setDiskUsageAccount(mDiskUsage, categoryForFolder(folderFile));
 
                 if (null != imageView) {
                     task.addImageView(imageView);
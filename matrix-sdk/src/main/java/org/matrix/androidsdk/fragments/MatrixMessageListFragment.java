@@ -63,7 +63,9 @@ import org.matrix.androidsdk.util.JsonUtils;
 import java.io.File;
 import java.io.FileInputStream;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Timer;
 import java.util.TimerTask;
 
@@ -73,7 +75,7 @@ import retrofit.RetrofitError;
  * UI Fragment containing matrix messages for a given room.
  * Contains {@link MatrixMessagesFragment} as a nested fragment to do the work.
  */
-public class MatrixMessageListFragment extends Fragment implements MatrixMessagesFragment.MatrixMessagesListener, MessagesAdapter.MessagesAdapterEventsListener {
+public class MatrixMessageListFragment extends Fragment implements MatrixMessagesFragment.MatrixMessagesBatchListener, MessagesAdapter.MessagesAdapterEventsListener {
 
     protected static final String TAG_FRAGMENT_MESSAGE_OPTIONS = "org.matrix.androidsdk.RoomActivity.TAG_FRAGMENT_MESSAGE_OPTIONS";
     protected static final String TAG_FRAGMENT_MESSAGE_DETAILS = "org.matrix.androidsdk.RoomActivity.TAG_FRAGMENT_MESSAGE_DETAILS";
@@ -85,6 +87,9 @@ public class MatrixMessageListFragment extends Fragment implements MatrixMessage
     private static final String TAG_FRAGMENT_MATRIX_MESSAGES = "org.matrix.androidsdk.RoomActivity.TAG_FRAGMENT_MATRIX_MESSAGES";
     private static final String LOG_TAG = "ErrorListener";
 
+    // the delay before applying a live events batch, while the initial history request is running
+    private static final long BATCH_RETRY_DELAY_MS = 200;
+
     public static MatrixMessageListFragment newInstance(String matrixId, String roomId, int layoutResId) {
         MatrixMessageListFragment f = new MatrixMessageListFragment();
         Bundle args = new Bundle();
@@ -102,6 +107,8 @@ public class MatrixMessageListFragment extends Fragment implements MatrixMessage
     protected String mMatrixId;
     protected Room mRoom;
     protected String mPattern = null;
+    // true when a search history request is in progress
+    private boolean mIsSearchingHistory = false;
     private boolean mDisplayAllEvents = true;
     public boolean mCheckSlideToHide = false;
 
@@ -113,6 +120,85 @@ public class MatrixMessageListFragment extends Fragment implements MatrixMessage
 
     private HashMap<String, Timer> mPendingRelaunchTimersByEventId = new HashMap<String, Timer>();
 
+    // append the stored messages after a live events batch
+    private final Runnable mApplyLiveEventsBatchRunnable = new Runnable() {
+        @Override
+        public void run() {
+            // does nothing if the activity has been killed
+            if (null == getActivity()) {
+                return;
+            }
+
+            // the search results are built from the store
+            if (!TextUtils.isEmpty(mPattern)) {
+                refreshSearch();
+                return;
+            }
+
+            // the initial history request is running : apply the batch when it is done
+            if (mIsInitialSyncing) {
+                mUiHandler.postDelayed(this, BATCH_RETRY_DELAY_MS);
+                return;
+            }
+
+            if (!appendStoredMessages()) {
+                // the displayed messages are not followed by the stored ones : they are reloaded from the store
+                mIsInitialSyncing = true;
+                mAdapter.clear();
+                mMatrixMessagesFragment.reloadHistory();
+            }
+        }
+    };
+
+    /**
+     * Append the stored messages which follow the latest displayed one, e.g. after a live events batch.
+     * The scroll position, the paginated history and the local echoes are kept.
+     * @return false if the latest displayed message is not in the stored ones (the history has a gap).
+     */
+    private boolean appendStoredMessages() {
+        Collection<Event> storedEvents = getSession().getDataHandler().getStore().getRoomMessages(mRoom.getRoomId());
+
+        if (null == storedEvents) {
+            return false;
+        }
+
+        // the latest displayed event which has been received from the server
+        String latestEventId = null;
+
+        for (int index = mAdapter.getCount() - 1; (index >= 0) && (null == latestEventId); index--) {
+            Event event = mAdapter.getItem(index).getEvent();
+
+            if ((Event.SentState.SENT == event.mSentState) && (null != event.eventId)) {
+                latestEventId = event.eventId;
+            }
+        }
+
+        if (null == latestEventId) {
+            return false;
+        }
+
+        boolean isLatestEventFound = false;
+        RoomState roomState = mRoom.getLiveState();
+
+        for (Event event : storedEvents) {
+            if (isLatestEventFound) {
+                // the echoes of the local messages replace them (see MessagesAdapter.shouldSave)
+                if (canAddEvent(event)) {
+                    mAdapter.add(event, roomState);
+                }
+            } else {
+                isLatestEventFound = latestEventId.equals(event.eventId);
+            }
+        }
+
+        if (isLatestEventFound) {
+            // the redactions have updated the stored contents
+            mAdapter.notifyDataSetChanged();
+        }
+
+        return isLatestEventFound;
+    }
+
     public MXMediasCache getMXMediasCache() {
         return null;
     }
@@ -263,49 +349,58 @@ public class MatrixMessageListFragment extends Fragment implements MatrixMessage
             mPattern = pattern;
             mAdapter.setSearchPattern(mPattern);
 
+            // the previous search results are useless
+            mRoom.cancelMessagesSearch();
+
+            // a cancelled search history request is never completed
+            if (mIsSearchingHistory) {
+                mIsSearchingHistory = false;
+                mIsCatchingUp = false;
+                dismissLoadingProgress();
+            }
+
             // something to search
             if (!TextUtils.isEmpty(mPattern)) {
-                mRoom.getMessagesWithPattern(mPattern, new SimpleApiCallback<ArrayList<Room.SnapshotedEvent>>(getActivity()) {
-                    @Override
-                    public void onSuccess(final ArrayList<Room.SnapshotedEvent> snapshotedEvents) {
-                        MatrixMessageListFragment.this.getActivity().runOnUiThread(new Runnable() {
-                            @Override
-                            public void run() {
-                                // check that the pattern was not modified before the end of the search
-                                if (TextUtils.equals(mPattern, pattern)) {
-                                    ArrayList<MessageRow> messageRows = new ArrayList<MessageRow>(snapshotedEvents.size());
-
-                                    for(Room.SnapshotedEvent snapshotedEvent : snapshotedEvents) {
-                                        messageRows.add(new MessageRow(snapshotedEvent.mEvent, snapshotedEvent.mState));
-                                    }
+                mRoom.searchMessages(mPattern, new Room.MessagesSearchListener() {
+                    // the previous results are displayed until the first batch
+                    private boolean mIsFirstBatch = true;
 
-                                    mAdapter.clear();
-                                    mAdapter.addAll(messageRows);
-                                }
-                            }
-                        });
-                    }
-
-                    // the request will be auto restarted when a valid network will be found
                     @Override
-                    public void onNetworkError(Exception e) {
-                        Log.e(LOG_TAG, "Network error: " + e.getMessage());
-                    }
+                    public void onSearchResults(List<Room.SnapshotedEvent> snapshotedEvents) {
+                        if (mIsFirstBatch) {
+                            mIsFirstBatch = false;
+                            mAdapter.clear();
+                        }
 
-                    @Override
-                    public void onMatrixError(MatrixError e) {
-                        Log.e(LOG_TAG, "Matrix error" + " : " + e.errcode + " - " + e.getLocalizedMessage());
+                        addSearchResultsToFront(snapshotedEvents);
                     }
 
                     @Override
-                    public void onUnexpectedError(Exception e) {
-                        Log.e(LOG_TAG, "onUnexpectedError error" + e.getMessage());
+                    public void onSearchComplete() {
+                        // no match
+                        if (mIsFirstBatch) {
+                            mAdapter.clear();
+                        }
                     }
                 });
             }
         }
     }
 
+    /**
+     * Insert a batch of search results at the top of the list.
+     * @param snapshotedEvents the matched events, from the latest to the oldest one.
+     */
+    private void addSearchResultsToFront(List<Room.SnapshotedEvent> snapshotedEvents) {
+        mAdapter.setNotifyOnChange(false);
+
+        for (Room.SnapshotedEvent snapshotedEvent : snapshotedEvents) {
+            mAdapter.insert(new MessageRow(snapshotedEvent.mEvent, snapshotedEvent.mState), 0);
+        }
+
+        mAdapter.notifyDataSetChanged();
+    }
+
     /**
      * Refresh the search results list
      */
@@ -396,6 +491,14 @@ public class MatrixMessageListFragment extends Fragment implements MatrixMessage
             mPendingRelaunchTimersByEventId = null;
         }
 
+        if (null != mRoom) {
+            mRoom.cancelMessagesSearch();
+        }
+
+        if (null != mUiHandler) {
+            mUiHandler.removeCallbacks(mApplyLiveEventsBatchRunnable);
+        }
+
         super.onDestroy();
     }
 
@@ -533,7 +636,7 @@ public class MatrixMessageListFragment extends Fragment implements MatrixMessage
                             message.url = uploadResponse.contentUri;
 
                             // update the event content with the new message info
-                            messageRow.getEvent().content = JsonUtils.toJson(message);
+                            messageRow.getEvent().setContent(JsonUtils.toJson(message));
 
                             Log.d(LOG_TAG, "Uploaded to " + uploadResponse.contentUri);
                         }
@@ -574,7 +677,8 @@ public class MatrixMessageListFragment extends Fragment implements MatrixMessage
      */
     public void uploadVideoContent(final VideoMessage sourceVideoMessage, final MessageRow aVideoRow, final String thumbnailUrl, final String thumbnailMimeType, final String videoUrl, final String body, final String videoMimeType) {
         // create a tmp row
-        VideoMessage tmpVideoMessage = sourceVideoMessage;
+        // the source message could be the event one, which is shared (see Event.getMessage) : it is updated when the thumbnail is uploaded.
+        VideoMessage tmpVideoMessage = (null != sourceVideoMessage) ? sourceVideoMessage.deepCopy() : null;
         Uri uri = null;
         Uri thumbUri = null;
 
@@ -660,7 +764,7 @@ public class MatrixMessageListFragment extends Fragment implements MatrixMessage
                                 message.url = uploadResponse.contentUri;
 
                                 // update the event content with the new message info
-                                videoRow.getEvent().content = JsonUtils.toJson(message);
+                                videoRow.getEvent().setContent(JsonUtils.toJson(message));
 
                                 Log.d(LOG_TAG, "Uploaded to " + uploadResponse.contentUri);
                             } else {
@@ -750,7 +854,7 @@ public class MatrixMessageListFragment extends Fragment implements MatrixMessage
                             }
 
                             // update the event content with the new message info
-                            imageRow.getEvent().content = JsonUtils.toJson(message);
+                            imageRow.getEvent().setContent(JsonUtils.toJson(message));
 
                             Log.d(LOG_TAG, "Uploaded to " + uploadResponse.contentUri);
                         }
@@ -823,7 +927,7 @@ public class MatrixMessageListFragment extends Fragment implements MatrixMessage
                             message.thumbnail_url = uploadResponse.contentUri;
 
                             // update the event content with the new message info
-                            locationRow.getEvent().content = JsonUtils.toJson(message);
+                            locationRow.getEvent().setContent(JsonUtils.toJson(message));
 
                             Log.d(LOG_TAG, "Uploaded to " + uploadResponse.contentUri);
                         }
@@ -850,7 +954,7 @@ public class MatrixMessageListFragment extends Fragment implements MatrixMessage
         mPendingRelaunchTimersByEventId.remove(event.eventId);
 
         // send it again
-        final Message message = JsonUtils.toMessage(event.content);
+        final Message message = event.getMessage();
 
         // resend an image ?
         if (message instanceof ImageMessage) {
@@ -1026,6 +1130,7 @@ public class MatrixMessageListFragment extends Fragment implements MatrixMessage
             public void run() {
                 MatrixMessageListFragment.this.dismissLoadingProgress();
                 mIsCatchingUp = false;
+                mIsSearchingHistory = false;
             }
         });
     }
@@ -1048,6 +1153,8 @@ public class MatrixMessageListFragment extends Fragment implements MatrixMessage
                 MatrixMessageListFragment.this.getActivity().runOnUiThread(new Runnable() {
                     @Override
                     public void run() {
+                        mIsSearchingHistory = false;
+
                         // check that the pattern was not modified before the end of the search
                         if (TextUtils.equals(mPattern, fPattern)) {
                             ArrayList<MessageRow> messageRows = new ArrayList<MessageRow>(fsnapshotedEvents.size());
@@ -1085,6 +1192,8 @@ public class MatrixMessageListFragment extends Fragment implements MatrixMessage
             }
         });
 
+        mIsSearchingHistory = isStarted;
+
         if (isStarted && (null != getActivity())) {
             displayLoadingProgress();
         }
@@ -1191,6 +1300,13 @@ public class MatrixMessageListFragment extends Fragment implements MatrixMessage
        // NOP
     }
 
+    @Override
+    public void onLiveEventsBatchProcessed() {
+        // the consecutive batches are applied together
+        mUiHandler.removeCallbacks(mApplyLiveEventsBatchRunnable);
+        mUiHandler.post(mApplyLiveEventsBatchRunnable);
+    }
+
     @Override
     public void onBackEvent(final Event event, final RoomState roomState) {
         mUiHandler.post(new Runnable() {
@@ -37,6 +37,7 @@ import org.matrix.androidsdk.rest.model.MatrixError;
 import org.matrix.androidsdk.rest.model.RoomMember;
 
 import java.util.List;
+import java.util.Set;
 
 /**
  * A non-UI fragment containing logic for extracting messages from a room, including handling
@@ -93,6 +94,18 @@ public class MatrixMessagesFragment extends Fragment {
         public void logout();
     }
 
+    /**
+     * A listener which is also informed of the batches of live events (e.g. the events missed while the application was offline).
+     */
+    public static interface MatrixMessagesBatchListener extends MatrixMessagesListener {
+        /**
+         * A batch of live events has been processed in the room.
+         * onLiveEvent is not called for its events : the new messages should be read from the store,
+         * or reloaded with {@link MatrixMessagesFragment#reloadHistory()} if the displayed ones are not in the store anymore.
+         */
+        public void onLiveEventsBatchProcessed();
+    }
+
     // The listener to send messages back
     private MatrixMessagesListener mMatrixMessagesListener;
     // The adapted listener to register to the SDK
@@ -166,6 +179,15 @@ public class MatrixMessagesFragment extends Fragment {
                 mMatrixMessagesListener.onLiveEventsChunkProcessed();
             }
 
+            @Override
+            public void onLiveEventsBatchProcessed(Set<String> roomIds) {
+                if (mMatrixMessagesListener instanceof MatrixMessagesBatchListener) {
+                    ((MatrixMessagesBatchListener) mMatrixMessagesListener).onLiveEventsBatchProcessed();
+                } else {
+                    Log.e(LOG_TAG, "onLiveEventsBatchProcessed : the listener does not reload the messages");
+                }
+            }
+
             @Override
             public void onBackEvent(Event event, RoomState roomState) {
                 mMatrixMessagesListener.onBackEvent(event, roomState);
@@ -333,6 +355,16 @@ public class MatrixMessagesFragment extends Fragment {
         return mRoom.requestHistory(callback);
     }
 
+    /**
+     * Reload the messages of this room from the store, as upon entering.
+     * They come down the onBackEvent callback, then onInitialMessagesLoaded is called.
+     * The listener should clear its messages before, and no history request should be running.
+     */
+    public void reloadHistory() {
+        mRoom.initHistory();
+        requestInitialHistory();
+    }
+
     public void sendEvent(Event event, ApiCallback<Void> callback) {
         mRoom.sendEvent(event, callback);
     }
@@ -0,0 +1,33 @@
+/*
+ * Copyright 2015 OpenMarket Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrix.androidsdk.listeners;
+
+import java.util.Set;
+
+/**
+ * Optional interface of the event listeners which are informed of the batches of live events.
+ * {@link MXEventListener} implements it as a no-op.
+ */
+public interface IMXLiveEventsBatchListener {
+
+    /**
+     * A batch of live events has been processed, e.g. the events missed while the application was offline.
+     * onLiveEvent is not called for the stored events of a batch : the updated rooms should be refreshed from the store.
+     * It is followed by onLiveEventsChunkProcessed.
+     * @param roomIds the ids of the updated rooms
+     */
+    public void onLiveEventsBatchProcessed(Set<String> roomIds);
+}
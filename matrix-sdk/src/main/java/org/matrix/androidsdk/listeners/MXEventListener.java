@@ -21,11 +21,13 @@ import org.matrix.androidsdk.rest.model.Event;
 import org.matrix.androidsdk.rest.model.User;
 import org.matrix.androidsdk.rest.model.bingrules.BingRule;
 
+import java.util.Set;
+
 /**
- * A no-op class implementing {@link IMXEventListener} so listeners can just implement the methods
+ * A no-op class implementing {@link IMXEventListener} and {@link IMXLiveEventsBatchListener} so listeners can just implement the methods
  * that they require.
  */
-public class MXEventListener implements IMXEventListener {
+public class MXEventListener implements IMXEventListener, IMXLiveEventsBatchListener {
 
     @Override
     public void onPresenceUpdate(Event event, User user) {
@@ -42,6 +44,11 @@ public class MXEventListener implements IMXEventListener {
 
     }
 
+    @Override
+    public void onLiveEventsBatchProcessed(Set<String> roomIds) {
+
+    }
+
     @Override
     public void onBackEvent(Event event, RoomState roomState) {
 
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2015 OpenMarket Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrix.androidsdk.network;
+
+import android.util.Log;
+
+import com.squareup.okhttp.OkHttpClient;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import retrofit.client.OkClient;
+import retrofit.client.Request;
+import retrofit.client.Response;
+import retrofit.mime.TypedInput;
+
+/**
+ * OkHttp client whose running requests can be cancelled from another thread.
+ * A request is running until its response body is closed : a cancelled request fails with an IOException,
+ * even if it is blocked while waiting for the response (e.g. a long poll).
+ */
+public class CancellableOkClient extends OkClient {
+    private static final String LOG_TAG = "CancellableOkClient";
+
+    // the running connections, with the thread which has started them
+    private final Map<HttpURLConnection, Thread> mConnections = new HashMap<HttpURLConnection, Thread>();
+
+    public CancellableOkClient(OkHttpClient client) {
+        super(client);
+    }
+
+    @Override
+    protected HttpURLConnection openConnection(Request request) throws IOException {
+        HttpURLConnection connection = super.openConnection(request);
+
+        synchronized (mConnections) {
+            mConnections.put(connection, Thread.currentThread());
+        }
+
+        return connection;
+    }
+
+    @Override
+    public Response execute(Request request) throws IOException {
+        Response response;
+
+        try {
+            response = super.execute(request);
+        } catch (IOException e) {
+            releaseConnections(Thread.currentThread());
+            throw e;
+        } catch (RuntimeException e) {
+            releaseConnections(Thread.currentThread());
+            throw e;
+        }
+
+        final TypedInput body = response.getBody();
+        final Thread thread = Thread.currentThread();
+
+        if (null == body) {
+            releaseConnections(thread);
+            return response;
+        }
+
+        // the connection is released when its body is closed
+        TypedInput trackedBody = new TypedInput() {
+            @Override
+            public String mimeType() {
+                return body.mimeType();
+            }
+
+            @Override
+            public long length() {
+                return body.length();
+            }
+
+            @Override
+            public InputStream in() throws IOException {
+                return new FilterInputStream(body.in()) {
+                    @Override
+                    public void close() throws IOException {
+                        releaseConnections(thread);
+                        super.close();
+                    }
+                };
+            }
+        };
+
+        return new Response(response.getUrl(), response.getStatus(), response.getReason(), response.getHeaders(), trackedBody);
+    }
+
+    /**
+     * Cancel the running requests started by a thread.
+     * @param thread the thread
+     */
+    public void cancel(Thread thread) {
+        for (HttpURLConnection connection : releaseConnections(thread)) {
+            Log.d(LOG_TAG, "Cancel the request to " + connection.getURL().getPath());
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Stop tracking the connections started by a thread.
+     * @param thread the thread
+     * @return the released connections
+     */
+    private List<HttpURLConnection> releaseConnections(Thread thread) {
+        List<HttpURLConnection> connections = new ArrayList<HttpURLConnection>();
+
+        synchronized (mConnections) {
+            for (Map.Entry<HttpURLConnection, Thread> entry : mConnections.entrySet()) {
+                if (entry.getValue() == thread) {
+                    connections.add(entry.getKey());
+                }
+            }
+
+            for (HttpURLConnection connection : connections) {
+                mConnections.remove(connection);
+            }
+        }
+
+        return connections;
+    }
+}
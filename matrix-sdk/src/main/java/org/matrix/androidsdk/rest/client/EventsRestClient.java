@@ -25,12 +25,17 @@ import org.matrix.androidsdk.network.NetworkConnectivityReceiver;
 import org.matrix.androidsdk.rest.api.EventsApi;
 import org.matrix.androidsdk.rest.callback.ApiCallback;
 import org.matrix.androidsdk.rest.callback.RestAdapterCallback;
+import org.matrix.androidsdk.rest.json.InitialSyncReader;
 import org.matrix.androidsdk.rest.model.Event;
 import org.matrix.androidsdk.rest.model.InitialSyncResponse;
 import org.matrix.androidsdk.rest.model.PublicRoom;
 import org.matrix.androidsdk.rest.model.TokensChunkResponse;
 import org.matrix.androidsdk.rest.model.login.Credentials;
+import org.matrix.androidsdk.util.JsonUtils;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.util.List;
 
 import retrofit.RestAdapter;
@@ -47,7 +52,8 @@ public class EventsRestClient extends RestClient<EventsApi> {
      * {@inheritDoc}
      */
     public EventsRestClient(HomeserverConnectionConfig hsConfig) {
-        super(hsConfig, EventsApi.class, RestClient.URI_API_PREFIX, false);
+        // the event stream requests are cancelled when the stream is paused
+        super(hsConfig, EventsApi.class, RestClient.URI_API_PREFIX, false, true);
     }
 
     protected EventsRestClient(EventsApi api) {
@@ -98,6 +104,27 @@ public class EventsRestClient extends RestClient<EventsApi> {
         }));
     }
 
+    /**
+     * Perform an initial sync and read its response as a stream : the rooms and the presences are
+     * provided to the listener while the response is read, so the whole response is never in memory.
+     * The request is synchronous : it must not be called from the UI thread.
+     * @param limit the number of messages per room
+     * @param listener the listener of the read rooms and presences
+     * @return the end token of the initial sync
+     * @throws IOException if the response cannot be read.
+     * @throws retrofit.RetrofitError if the request fails.
+     */
+    public String initialSyncStream(int limit, InitialSyncReader.Listener listener) throws IOException {
+        Response response = mApi.initialSyncStream(limit);
+        InputStream in = response.getBody().in();
+
+        try {
+            return new InitialSyncReader((null != gson) ? gson : JsonUtils.getGson(false)).read(new InputStreamReader(in, "UTF-8"), listener);
+        } finally {
+            in.close();
+        }
+    }
+
     /**
      * {@link #events(String, int)} with a default timeout.
      * @param fromToken the token provided by the previous call's response
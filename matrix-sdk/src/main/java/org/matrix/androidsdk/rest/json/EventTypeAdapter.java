@@ -0,0 +1,156 @@
+/*
+ * Copyright 2015 OpenMarket Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrix.androidsdk.rest.json;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import org.matrix.androidsdk.rest.model.Event;
+import org.matrix.androidsdk.rest.model.MatrixError;
+import org.matrix.androidsdk.util.IdentifierPool;
+
+import java.io.IOException;
+
+/**
+ * Streaming adapter of the events.
+ * The unsent exception is not serialized : it is a local error which is never sent.
+ * With an identifiers pool, the identifiers and the string values of the state and presence contents are pooled.
+ */
+public class EventTypeAdapter extends ModelTypeAdapter<Event> {
+
+    private final TypeAdapter<JsonElement> mJsonElementAdapter;
+    private final TypeAdapter<MatrixError> mMatrixErrorAdapter;
+
+    /**
+     * Constructor
+     * @param gson the gson instance providing the adapters of the fields.
+     * @param identifierPool the pool of the read identifiers, null to not pool them.
+     */
+    public EventTypeAdapter(Gson gson, IdentifierPool identifierPool) {
+        super(identifierPool);
+        mJsonElementAdapter = gson.getAdapter(JsonElement.class);
+        mMatrixErrorAdapter = gson.getAdapter(MatrixError.class);
+    }
+
+    @Override
+    protected Event newInstance() {
+        return new Event();
+    }
+
+    /**
+     * Read an event content.
+     * @param in the reader
+     * @return the content, null if it is not a JSON object.
+     * @throws IOException
+     */
+    private JsonObject readContent(JsonReader in) throws IOException {
+        JsonElement element = mJsonElementAdapter.read(in);
+        return ((null != element) && element.isJsonObject()) ? element.getAsJsonObject() : null;
+    }
+
+    @Override
+    public Event read(JsonReader in) throws IOException {
+        Event event = super.read(in);
+
+        // the state contents (e.g. the members) and the presences are repeated in each room and in each sync
+        if ((null != event) && (null != mIdentifierPool) && ((null != event.stateKey) || Event.EVENT_TYPE_PRESENCE.equals(event.type))) {
+            mIdentifierPool.internContent(event.getContent());
+            mIdentifierPool.internContent(event.getPrevContent());
+        }
+
+        return event;
+    }
+
+    @Override
+    protected boolean readField(JsonReader in, String name, Event event) throws IOException {
+        if ("type".equals(name)) {
+            event.type = readIdentifier(in);
+        } else if ("content".equals(name)) {
+            event.setContent(readContent(in));
+        } else if ("event_id".equals(name)) {
+            event.eventId = readString(in);
+        } else if ("room_id".equals(name)) {
+            event.roomId = readIdentifier(in);
+        } else if ("user_id".equals(name)) {
+            event.userId = readIdentifier(in);
+        } else if ("origin_server_ts".equals(name)) {
+            Long originServerTs = readLong(in);
+            if (null != originServerTs) {
+                event.originServerTs = originServerTs;
+            }
+        } else if ("age".equals(name)) {
+            Long age = readLong(in);
+            if (null != age) {
+                event.age = age;
+            }
+        } else if ("state_key".equals(name)) {
+            event.stateKey = readIdentifier(in);
+        } else if ("prev_content".equals(name)) {
+            event.setPrevContent(readContent(in));
+        } else if ("redacts".equals(name)) {
+            event.redacts = readString(in);
+        } else if ("unsent_matrix_error".equals(name)) {
+            event.unsentMatrixError = mMatrixErrorAdapter.read(in);
+        } else if ("m_sent_state".equals(name)) {
+            String sentState = readString(in);
+
+            try {
+                event.mSentState = (null != sentState) ? Event.SentState.valueOf(sentState) : null;
+            } catch (IllegalArgumentException e) {
+                event.mSentState = null;
+            }
+        } else if ("m_token".equals(name)) {
+            event.mToken = readString(in);
+        } else if ("m_is_internal_pagination_token".equals(name)) {
+            event.mIsInternalPaginationToken = readBoolean(in);
+        } else {
+            return false;
+        }
+
+        return true;
+    }
+
+    @Override
+    protected void writeFields(JsonWriter out, Event event) throws IOException {
+        writeString(out, "type", event.type);
+
+        out.name("content");
+        mJsonElementAdapter.write(out, event.getContent());
+
+        writeString(out, "event_id", event.eventId);
+        writeString(out, "room_id", event.roomId);
+        writeString(out, "user_id", event.userId);
+        writeNumber(out, "origin_server_ts", event.originServerTs);
+        writeNumber(out, "age", event.age);
+        writeString(out, "state_key", event.stateKey);
+
+        out.name("prev_content");
+        mJsonElementAdapter.write(out, event.getPrevContent());
+
+        writeString(out, "redacts", event.redacts);
+
+        out.name("unsent_matrix_error");
+        mMatrixErrorAdapter.write(out, event.unsentMatrixError);
+
+        writeString(out, "m_sent_state", (null != event.mSentState) ? event.mSentState.name() : null);
+        writeString(out, "m_token", event.mToken);
+        writeBoolean(out, "m_is_internal_pagination_token", event.mIsInternalPaginationToken);
+    }
+}
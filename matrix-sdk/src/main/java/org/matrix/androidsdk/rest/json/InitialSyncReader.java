@@ -0,0 +1,157 @@
+/*
+ * Copyright 2015 OpenMarket Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrix.androidsdk.rest.json;
+
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import org.matrix.androidsdk.rest.model.Event;
+import org.matrix.androidsdk.rest.model.RoomResponse;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Streaming reader of an initial sync response.
+ * Each room is provided as soon as it is read, the presences are provided by batches :
+ * the whole response is never in memory, only the room or the presences batch being read.
+ */
+public class InitialSyncReader {
+
+    // the number of presences provided at once
+    public static final int PRESENCES_BATCH_SIZE = 100;
+
+    /**
+     * The parts of the initial sync response, in the response order.
+     */
+    public interface Listener {
+        /**
+         * Called for each batch of read presences.
+         * @param presences the presence events
+         */
+        void onPresences(List<Event> presences);
+
+        /**
+         * Called for each read room.
+         * @param roomResponse the room
+         */
+        void onRoomResponse(RoomResponse roomResponse);
+    }
+
+    private final TypeAdapter<Event> mEventAdapter;
+    private final TypeAdapter<RoomResponse> mRoomResponseAdapter;
+
+    /**
+     * Constructor
+     * @param gson the gson instance providing the adapters of the rooms and the events.
+     */
+    public InitialSyncReader(Gson gson) {
+        mEventAdapter = gson.getAdapter(Event.class);
+        mRoomResponseAdapter = gson.getAdapter(RoomResponse.class);
+    }
+
+    /**
+     * Read an initial sync response.
+     * @param reader the response reader
+     * @param listener the listener of the read rooms and presences
+     * @return the end token of the response
+     * @throws IOException if the response cannot be read or if it is malformed.
+     */
+    public String read(Reader reader, Listener listener) throws IOException {
+        JsonReader in = new JsonReader(reader);
+        // as gson does
+        in.setLenient(true);
+
+        String end = null;
+
+        in.beginObject();
+
+        while (in.hasNext()) {
+            String name = in.nextName();
+
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+            } else if ("end".equals(name)) {
+                end = ModelTypeAdapter.readString(in);
+            } else if ("presence".equals(name)) {
+                readPresences(in, listener);
+            } else if ("rooms".equals(name)) {
+                readRooms(in, listener);
+            } else {
+                in.skipValue();
+            }
+        }
+
+        in.endObject();
+
+        return end;
+    }
+
+    /**
+     * Read the presences array.
+     * @param in the reader, positioned on the array.
+     * @param listener the listener
+     * @throws IOException
+     */
+    private void readPresences(JsonReader in, Listener listener) throws IOException {
+        ArrayList<Event> presences = new ArrayList<Event>();
+
+        in.beginArray();
+
+        while (in.hasNext()) {
+            Event event = mEventAdapter.read(in);
+
+            if (null != event) {
+                presences.add(event);
+            }
+
+            if (presences.size() >= PRESENCES_BATCH_SIZE) {
+                listener.onPresences(presences);
+                presences = new ArrayList<Event>();
+            }
+        }
+
+        in.endArray();
+
+        if (presences.size() > 0) {
+            listener.onPresences(presences);
+        }
+    }
+
+    /**
+     * Read the rooms array.
+     * @param in the reader, positioned on the array.
+     * @param listener the listener
+     * @throws IOException
+     */
+    private void readRooms(JsonReader in, Listener listener) throws IOException {
+        in.beginArray();
+
+        while (in.hasNext()) {
+            RoomResponse roomResponse = mRoomResponseAdapter.read(in);
+
+            if (null != roomResponse) {
+                listener.onRoomResponse(roomResponse);
+            }
+        }
+
+        in.endArray();
+    }
+}
@@ -0,0 +1,247 @@
+/*
+ * Copyright 2015 OpenMarket Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrix.androidsdk.rest.json;
+
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import org.matrix.androidsdk.rest.model.FileInfo;
+import org.matrix.androidsdk.rest.model.FileMessage;
+import org.matrix.androidsdk.rest.model.ImageInfo;
+import org.matrix.androidsdk.rest.model.ImageMessage;
+import org.matrix.androidsdk.rest.model.LocationMessage;
+import org.matrix.androidsdk.rest.model.Message;
+import org.matrix.androidsdk.rest.model.ThumbnailInfo;
+import org.matrix.androidsdk.rest.model.VideoInfo;
+import org.matrix.androidsdk.rest.model.VideoMessage;
+
+import java.io.IOException;
+
+/**
+ * Streaming adapters of the messages : this class manages the Message fields,
+ * the nested classes manage the fields of each Message class.
+ * The media infos are managed by the gson adapters.
+ * @param <T> the message class
+ */
+public abstract class MessageTypeAdapter<T extends Message> extends ModelTypeAdapter<T> {
+
+    /**
+     * Read a field of the message subclass.
+     * @param in the reader, positioned on the value.
+     * @param name the field name
+     * @param message the read message
+     * @return true if the value has been read, false to skip it.
+     * @throws IOException
+     */
+    protected boolean readMessageField(JsonReader in, String name, T message) throws IOException {
+        return false;
+    }
+
+    /**
+     * Write the fields of the message subclass.
+     * @param out the writer
+     * @param message the message
+     * @throws IOException
+     */
+    protected void writeMessageFields(JsonWriter out, T message) throws IOException {
+    }
+
+    @Override
+    protected final boolean readField(JsonReader in, String name, T message) throws IOException {
+        if ("msgtype".equals(name)) {
+            message.msgtype = readString(in);
+        } else if ("body".equals(name)) {
+            message.body = readString(in);
+        } else {
+            return readMessageField(in, name, message);
+        }
+
+        return true;
+    }
+
+    @Override
+    protected final void writeFields(JsonWriter out, T message) throws IOException {
+        writeString(out, "msgtype", message.msgtype);
+        writeString(out, "body", message.body);
+        writeMessageFields(out, message);
+    }
+
+    /**
+     * Streaming adapter of the generic messages (e.g. the text messages).
+     */
+    public static class Text extends MessageTypeAdapter<Message> {
+        @Override
+        protected Message newInstance() {
+            return new Message();
+        }
+    }
+
+    /**
+     * Streaming adapter of the image messages.
+     */
+    public static class Image extends MessageTypeAdapter<ImageMessage> {
+        private final TypeAdapter<ImageInfo> mImageInfoAdapter;
+
+        public Image(Gson gson) {
+            mImageInfoAdapter = gson.getAdapter(ImageInfo.class);
+        }
+
+        @Override
+        protected ImageMessage newInstance() {
+            return new ImageMessage();
+        }
+
+        @Override
+        protected boolean readMessageField(JsonReader in, String name, ImageMessage message) throws IOException {
+            if ("info".equals(name)) {
+                message.info = mImageInfoAdapter.read(in);
+            } else if ("thumbnail_info".equals(name)) {
+                message.thumbnailInfo = mImageInfoAdapter.read(in);
+            } else if ("url".equals(name)) {
+                message.url = readString(in);
+            } else if ("thumbnail_url".equals(name)) {
+                message.thumbnailUrl = readString(in);
+            } else {
+                return false;
+            }
+
+            return true;
+        }
+
+        @Override
+        protected void writeMessageFields(JsonWriter out, ImageMessage message) throws IOException {
+            out.name("info");
+            mImageInfoAdapter.write(out, message.info);
+            out.name("thumbnail_info");
+            mImageInfoAdapter.write(out, message.thumbnailInfo);
+            writeString(out, "url", message.url);
+            writeString(out, "thumbnail_url", message.thumbnailUrl);
+        }
+    }
+
+    /**
+     * Streaming adapter of the file messages.
+     */
+    public static class File extends MessageTypeAdapter<FileMessage> {
+        private final TypeAdapter<FileInfo> mFileInfoAdapter;
+
+        public File(Gson gson) {
+            mFileInfoAdapter = gson.getAdapter(FileInfo.class);
+        }
+
+        @Override
+        protected FileMessage newInstance() {
+            return new FileMessage();
+        }
+
+        @Override
+        protected boolean readMessageField(JsonReader in, String name, FileMessage message) throws IOException {
+            if ("info".equals(name)) {
+                message.info = mFileInfoAdapter.read(in);
+            } else if ("url".equals(name)) {
+                message.url = readString(in);
+            } else {
+                return false;
+            }
+
+            return true;
+        }
+
+        @Override
+        protected void writeMessageFields(JsonWriter out, FileMessage message) throws IOException {
+            out.name("info");
+            mFileInfoAdapter.write(out, message.info);
+            writeString(out, "url", message.url);
+        }
+    }
+
+    /**
+     * Streaming adapter of the video messages.
+     */
+    public static class Video extends MessageTypeAdapter<VideoMessage> {
+        private final TypeAdapter<VideoInfo> mVideoInfoAdapter;
+
+        public Video(Gson gson) {
+            mVideoInfoAdapter = gson.getAdapter(VideoInfo.class);
+        }
+
+        @Override
+        protected VideoMessage newInstance() {
+            return new VideoMessage();
+        }
+
+        @Override
+        protected boolean readMessageField(JsonReader in, String name, VideoMessage message) throws IOException {
+            if ("info".equals(name)) {
+                message.info = mVideoInfoAdapter.read(in);
+            } else if ("url".equals(name)) {
+                message.url = readString(in);
+            } else {
+                return false;
+            }
+
+            return true;
+        }
+
+        @Override
+        protected void writeMessageFields(JsonWriter out, VideoMessage message) throws IOException {
+            out.name("info");
+            mVideoInfoAdapter.write(out, message.info);
+            writeString(out, "url", message.url);
+        }
+    }
+
+    /**
+     * Streaming adapter of the location messages.
+     */
+    public static class Location extends MessageTypeAdapter<LocationMessage> {
+        private final TypeAdapter<ThumbnailInfo> mThumbnailInfoAdapter;
+
+        public Location(Gson gson) {
+            mThumbnailInfoAdapter = gson.getAdapter(ThumbnailInfo.class);
+        }
+
+        @Override
+        protected LocationMessage newInstance() {
+            return new LocationMessage();
+        }
+
+        @Override
+        protected boolean readMessageField(JsonReader in, String name, LocationMessage message) throws IOException {
+            if ("thumbnail_info".equals(name)) {
+                message.thumbnail_info = mThumbnailInfoAdapter.read(in);
+            } else if ("geo_uri".equals(name)) {
+                message.geo_uri = readString(in);
+            } else if ("thumbnail_url".equals(name)) {
+                message.thumbnail_url = readString(in);
+            } else {
+                return false;
+            }
+
+            return true;
+        }
+
+        @Override
+        protected void writeMessageFields(JsonWriter out, LocationMessage message) throws IOException {
+            out.name("thumbnail_info");
+            mThumbnailInfoAdapter.write(out, message.thumbnail_info);
+            writeString(out, "geo_uri", message.geo_uri);
+            writeString(out, "thumbnail_url", message.thumbnail_url);
+        }
+    }
+}
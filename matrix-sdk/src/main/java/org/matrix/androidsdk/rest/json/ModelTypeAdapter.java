@@ -0,0 +1,371 @@
+/*
+ * Copyright 2015 OpenMarket Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrix.androidsdk.rest.json;
+
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import org.matrix.androidsdk.util.IdentifierPool;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Base class of the streaming adapters of the model classes.
+ *
+ * The adapters read and write the same JSON as the reflection based adapters of JsonUtils
+ * (the public fields with their lower case with underscores names) without reflection.
+ * An unknown field is skipped, a null value sets a null field but never updates a primitive field.
+ * The null fields are written only if the writer serializes the nulls.
+ * The identifiers are replaced by their pooled instances when a pool is defined.
+ * @param <T> the model class
+ */
+public abstract class ModelTypeAdapter<T> extends TypeAdapter<T> {
+
+    // the pool of the read identifiers (null to not pool them)
+    protected final IdentifierPool mIdentifierPool;
+
+    protected ModelTypeAdapter() {
+        this(null);
+    }
+
+    /**
+     * Constructor
+     * @param identifierPool the pool of the read identifiers, null to not pool them.
+     */
+    protected ModelTypeAdapter(IdentifierPool identifierPool) {
+        mIdentifierPool = identifierPool;
+    }
+
+    /**
+     * @return a new instance, with the default values of the class.
+     */
+    protected abstract T newInstance();
+
+    /**
+     * Read a field value.
+     * @param in the reader, positioned on the value.
+     * @param name the field name
+     * @param value the read instance
+     * @return true if the value has been read, false to skip it.
+     * @throws IOException
+     */
+    protected abstract boolean readField(JsonReader in, String name, T value) throws IOException;
+
+    /**
+     * Write the fields of an instance.
+     * @param out the writer, inside the object.
+     * @param value the instance
+     * @throws IOException
+     */
+    protected abstract void writeFields(JsonWriter out, T value) throws IOException;
+
+    @Override
+    public T read(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+
+        T value = newInstance();
+
+        in.beginObject();
+
+        while (in.hasNext()) {
+            if (!readField(in, in.nextName(), value)) {
+                in.skipValue();
+            }
+        }
+
+        in.endObject();
+
+        return value;
+    }
+
+    @Override
+    public void write(JsonWriter out, T value) throws IOException {
+        if (null == value) {
+            out.nullValue();
+            return;
+        }
+
+        out.beginObject();
+        writeFields(out, value);
+        out.endObject();
+    }
+
+    //==============================================================================================================
+    // Readers
+    //==============================================================================================================
+
+    /**
+     * Read a string value : the numbers and the booleans are converted to strings.
+     * @param in the reader
+     * @return the string, null for a null value.
+     * @throws IOException
+     */
+    public static String readString(JsonReader in) throws IOException {
+        JsonToken token = in.peek();
+
+        if (token == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+
+        if (token == JsonToken.BOOLEAN) {
+            return Boolean.toString(in.nextBoolean());
+        }
+
+        return in.nextString();
+    }
+
+    /**
+     * Read an identifier (e.g. a user id) : the read string is replaced by its pooled instance.
+     * @param in the reader
+     * @return the identifier, null for a null value.
+     * @throws IOException
+     */
+    protected String readIdentifier(JsonReader in) throws IOException {
+        String value = readString(in);
+        return (null != mIdentifierPool) ? mIdentifierPool.intern(value) : value;
+    }
+
+    /**
+     * Read an integer value.
+     * @param in the reader
+     * @return the integer, null for a null value.
+     * @throws IOException
+     */
+    public static Integer readInteger(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+
+        return in.nextInt();
+    }
+
+    /**
+     * Read an int value.
+     * @param in the reader
+     * @param defaultValue the value returned for a null value.
+     * @return the int value
+     * @throws IOException
+     */
+    public static int readInt(JsonReader in, int defaultValue) throws IOException {
+        Integer value = readInteger(in);
+        return (null != value) ? value : defaultValue;
+    }
+
+    /**
+     * Read a long value.
+     * @param in the reader
+     * @return the long, null for a null value.
+     * @throws IOException
+     */
+    public static Long readLong(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+
+        return in.nextLong();
+    }
+
+    /**
+     * Read a boolean value.
+     * @param in the reader
+     * @return the boolean, null for a null value.
+     * @throws IOException
+     */
+    public static Boolean readBoolean(JsonReader in) throws IOException {
+        JsonToken token = in.peek();
+
+        if (token == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+
+        if (token == JsonToken.STRING) {
+            return Boolean.parseBoolean(in.nextString());
+        }
+
+        return in.nextBoolean();
+    }
+
+    /**
+     * Read a strings list.
+     * @param in the reader
+     * @return the list, null for a null value.
+     * @throws IOException
+     */
+    public static List<String> readStringList(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+
+        ArrayList<String> list = new ArrayList<String>();
+
+        in.beginArray();
+
+        while (in.hasNext()) {
+            list.add(readString(in));
+        }
+
+        in.endArray();
+
+        return list;
+    }
+
+    /**
+     * Read a map of integers.
+     * @param in the reader
+     * @return the map, null for a null value.
+     * @throws IOException
+     */
+    public static Map<String, Integer> readIntegerMap(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+
+        HashMap<String, Integer> map = new HashMap<String, Integer>();
+
+        in.beginObject();
+
+        while (in.hasNext()) {
+            String key = in.nextName();
+            map.put(key, readInteger(in));
+        }
+
+        in.endObject();
+
+        return map;
+    }
+
+    //==============================================================================================================
+    // Writers
+    //==============================================================================================================
+
+    /**
+     * Write a string field.
+     * @param out the writer
+     * @param name the field name
+     * @param value the value
+     * @throws IOException
+     */
+    public static void writeString(JsonWriter out, String name, String value) throws IOException {
+        out.name(name);
+
+        if (null == value) {
+            out.nullValue();
+        } else {
+            out.value(value);
+        }
+    }
+
+    /**
+     * Write a number field.
+     * @param out the writer
+     * @param name the field name
+     * @param value the value
+     * @throws IOException
+     */
+    public static void writeNumber(JsonWriter out, String name, Number value) throws IOException {
+        out.name(name);
+
+        if (null == value) {
+            out.nullValue();
+        } else {
+            out.value(value);
+        }
+    }
+
+    /**
+     * Write a boolean field.
+     * @param out the writer
+     * @param name the field name
+     * @param value the value
+     * @throws IOException
+     */
+    public static void writeBoolean(JsonWriter out, String name, Boolean value) throws IOException {
+        out.name(name);
+
+        if (null == value) {
+            out.nullValue();
+        } else {
+            out.value(value);
+        }
+    }
+
+    /**
+     * Write a strings list field.
+     * @param out the writer
+     * @param name the field name
+     * @param list the list
+     * @throws IOException
+     */
+    public static void writeStringList(JsonWriter out, String name, List<String> list) throws IOException {
+        out.name(name);
+
+        if (null == list) {
+            out.nullValue();
+            return;
+        }
+
+        out.beginArray();
+
+        for (String value : list) {
+            if (null == value) {
+                out.nullValue();
+            } else {
+                out.value(value);
+            }
+        }
+
+        out.endArray();
+    }
+
+    /**
+     * Write a map of integers field.
+     * @param out the writer
+     * @param name the field name
+     * @param map the map
+     * @throws IOException
+     */
+    public static void writeIntegerMap(JsonWriter out, String name, Map<String, Integer> map) throws IOException {
+        out.name(name);
+
+        if (null == map) {
+            out.nullValue();
+            return;
+        }
+
+        out.beginObject();
+
+        for (Map.Entry<String, Integer> entry : map.entrySet()) {
+            writeNumber(out, entry.getKey(), entry.getValue());
+        }
+
+        out.endObject();
+    }
+}
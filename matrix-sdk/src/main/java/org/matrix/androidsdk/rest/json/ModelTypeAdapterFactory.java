@@ -0,0 +1,88 @@
+/*
+ * Copyright 2015 OpenMarket Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrix.androidsdk.rest.json;
+
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.google.gson.TypeAdapterFactory;
+import com.google.gson.reflect.TypeToken;
+
+import org.matrix.androidsdk.data.RoomState;
+import org.matrix.androidsdk.rest.model.Event;
+import org.matrix.androidsdk.rest.model.FileMessage;
+import org.matrix.androidsdk.rest.model.ImageMessage;
+import org.matrix.androidsdk.rest.model.LocationMessage;
+import org.matrix.androidsdk.rest.model.Message;
+import org.matrix.androidsdk.rest.model.PowerLevels;
+import org.matrix.androidsdk.rest.model.RoomMember;
+import org.matrix.androidsdk.rest.model.User;
+import org.matrix.androidsdk.rest.model.VideoMessage;
+import org.matrix.androidsdk.util.IdentifierPool;
+
+/**
+ * Provides the streaming adapters of the model classes which are parsed for each server response :
+ * the events, the messages, the room members, the room states, the users and the power levels.
+ * The subclasses of these classes (e.g. MyUser) keep the reflection based adapters.
+ * A Message is read as the Message subclass of its msgtype (see {@link PolymorphicMessageTypeAdapter}).
+ * The identifiers are pooled when the factory is created with the pool of a session.
+ */
+public class ModelTypeAdapterFactory implements TypeAdapterFactory {
+
+    private final IdentifierPool mIdentifierPool;
+
+    public ModelTypeAdapterFactory() {
+        this(null);
+    }
+
+    /**
+     * Constructor
+     * @param identifierPool the pool of the read identifiers, null to not pool them.
+     */
+    public ModelTypeAdapterFactory(IdentifierPool identifierPool) {
+        mIdentifierPool = identifierPool;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public <T> TypeAdapter<T> create(Gson gson, TypeToken<T> type) {
+        Class<? super T> rawType = type.getRawType();
+        TypeAdapter<?> adapter = null;
+
+        if (Event.class == rawType) {
+            adapter = new EventTypeAdapter(gson, mIdentifierPool);
+        } else if (Message.class == rawType) {
+            adapter = new PolymorphicMessageTypeAdapter(gson);
+        } else if (ImageMessage.class == rawType) {
+            adapter = new MessageTypeAdapter.Image(gson);
+        } else if (FileMessage.class == rawType) {
+            adapter = new MessageTypeAdapter.File(gson);
+        } else if (VideoMessage.class == rawType) {
+            adapter = new MessageTypeAdapter.Video(gson);
+        } else if (LocationMessage.class == rawType) {
+            adapter = new MessageTypeAdapter.Location(gson);
+        } else if (RoomMember.class == rawType) {
+            adapter = new RoomMemberTypeAdapter(mIdentifierPool);
+        } else if (RoomState.class == rawType) {
+            adapter = new RoomStateTypeAdapter();
+        } else if (User.class == rawType) {
+            adapter = new UserTypeAdapter(mIdentifierPool);
+        } else if (PowerLevels.class == rawType) {
+            adapter = new PowerLevelsTypeAdapter();
+        }
+
+        return (TypeAdapter<T>) adapter;
+    }
+}
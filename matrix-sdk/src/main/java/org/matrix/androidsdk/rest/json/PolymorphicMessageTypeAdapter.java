@@ -0,0 +1,185 @@
+/*
+ * Copyright 2015 OpenMarket Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrix.androidsdk.rest.json;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import org.matrix.androidsdk.rest.model.FileMessage;
+import org.matrix.androidsdk.rest.model.ImageMessage;
+import org.matrix.androidsdk.rest.model.LocationMessage;
+import org.matrix.androidsdk.rest.model.Message;
+import org.matrix.androidsdk.rest.model.VideoMessage;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Adapter of the Message class : a message is read as the Message subclass of its msgtype in a single pass.
+ *
+ * The fields which precede the msgtype are kept as JSON elements until the msgtype is known,
+ * the next fields are read directly into the message. The servers and the clients usually send
+ * the msgtype first so the messages are rarely buffered.
+ *
+ * The unknown msgtypes (e.g. m.text, m.emote or m.notice) are read as Message.
+ * An application can read its own msgtypes as its own Message subclasses with {@link #registerMessageClass(String, Class)}.
+ */
+public class PolymorphicMessageTypeAdapter extends TypeAdapter<Message> {
+
+    // the Message subclass of each msgtype
+    private static final Map<String, Class<? extends Message>> mMessageClasses = new ConcurrentHashMap<String, Class<? extends Message>>();
+
+    static {
+        mMessageClasses.put(Message.MSGTYPE_IMAGE, ImageMessage.class);
+        mMessageClasses.put(Message.MSGTYPE_FILE, FileMessage.class);
+        mMessageClasses.put(Message.MSGTYPE_VIDEO, VideoMessage.class);
+        mMessageClasses.put(Message.MSGTYPE_LOCATION, LocationMessage.class);
+    }
+
+    /**
+     * Read the messages with a msgtype as a Message subclass.
+     * The subclass is read with the gson adapters : its public fields are named with lower case and underscores.
+     * @param msgtype the msgtype
+     * @param messageClass the Message subclass, null to read the messages as Message.
+     */
+    public static void registerMessageClass(String msgtype, Class<? extends Message> messageClass) {
+        if (null != msgtype) {
+            if (null != messageClass) {
+                mMessageClasses.put(msgtype, messageClass);
+            } else {
+                mMessageClasses.remove(msgtype);
+            }
+        }
+    }
+
+    private final Gson mGson;
+    private final TypeAdapter<JsonElement> mJsonElementAdapter;
+    private final MessageTypeAdapter.Text mTextAdapter = new MessageTypeAdapter.Text();
+
+    /**
+     * Constructor
+     * @param gson the gson instance providing the adapters of the Message subclasses.
+     */
+    public PolymorphicMessageTypeAdapter(Gson gson) {
+        mGson = gson;
+        mJsonElementAdapter = gson.getAdapter(JsonElement.class);
+    }
+
+    /**
+     * Provides the adapter of a msgtype.
+     * @param msgtype the msgtype
+     * @return the adapter
+     */
+    private TypeAdapter<? extends Message> getAdapter(String msgtype) {
+        Class<? extends Message> messageClass = (null != msgtype) ? mMessageClasses.get(msgtype) : null;
+
+        if ((null == messageClass) || (Message.class == messageClass)) {
+            return mTextAdapter;
+        }
+
+        return mGson.getAdapter(messageClass);
+    }
+
+    @Override
+    public Message read(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+
+        JsonObject bufferedFields = null;
+        String msgtype = null;
+        boolean hasMsgtype = false;
+
+        in.beginObject();
+
+        while (in.hasNext() && !hasMsgtype) {
+            String name = in.nextName();
+
+            if ("msgtype".equals(name)) {
+                msgtype = ModelTypeAdapter.readString(in);
+                hasMsgtype = true;
+            } else {
+                if (null == bufferedFields) {
+                    bufferedFields = new JsonObject();
+                }
+                bufferedFields.add(name, mJsonElementAdapter.read(in));
+            }
+        }
+
+        TypeAdapter<? extends Message> adapter = getAdapter(msgtype);
+        Message message;
+
+        if (adapter instanceof ModelTypeAdapter) {
+            message = readRemainingFields(in, (ModelTypeAdapter<? extends Message>) adapter, bufferedFields);
+        } else {
+            // the application classes are read from a JSON object
+            if (null == bufferedFields) {
+                bufferedFields = new JsonObject();
+            }
+
+            while (in.hasNext()) {
+                bufferedFields.add(in.nextName(), mJsonElementAdapter.read(in));
+            }
+
+            message = adapter.fromJsonTree(bufferedFields);
+        }
+
+        in.endObject();
+
+        if (hasMsgtype) {
+            message.msgtype = msgtype;
+        }
+
+        return message;
+    }
+
+    /**
+     * Read the fields which follow the msgtype into a new message.
+     * @param in the reader, positioned after the msgtype.
+     * @param adapter the streaming adapter of the message class
+     * @param bufferedFields the fields which precede the msgtype, null if there is none.
+     * @return the message
+     * @throws IOException
+     */
+    private static <T extends Message> T readRemainingFields(JsonReader in, ModelTypeAdapter<T> adapter, JsonObject bufferedFields) throws IOException {
+        T message = (null != bufferedFields) ? adapter.fromJsonTree(bufferedFields) : adapter.newInstance();
+
+        while (in.hasNext()) {
+            if (!adapter.readField(in, in.nextName(), message)) {
+                in.skipValue();
+            }
+        }
+
+        return message;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public void write(JsonWriter out, Message message) throws IOException {
+        if ((null == message) || (Message.class == message.getClass())) {
+            mTextAdapter.write(out, message);
+        } else {
+            ((TypeAdapter<Message>) mGson.getAdapter(message.getClass())).write(out, message);
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2015 OpenMarket Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrix.androidsdk.rest.json;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import org.matrix.androidsdk.rest.model.PowerLevels;
+
+import java.io.IOException;
+
+/**
+ * Streaming adapter of the power levels.
+ */
+public class PowerLevelsTypeAdapter extends ModelTypeAdapter<PowerLevels> {
+
+    @Override
+    protected PowerLevels newInstance() {
+        return new PowerLevels();
+    }
+
+    @Override
+    protected boolean readField(JsonReader in, String name, PowerLevels powerLevels) throws IOException {
+        if ("ban".equals(name)) {
+            powerLevels.ban = readInt(in, powerLevels.ban);
+        } else if ("kick".equals(name)) {
+            powerLevels.kick = readInt(in, powerLevels.kick);
+        } else if ("invite".equals(name)) {
+            powerLevels.invite = readInt(in, powerLevels.invite);
+        } else if ("redact".equals(name)) {
+            powerLevels.redact = readInt(in, powerLevels.redact);
+        } else if ("events_default".equals(name)) {
+            powerLevels.eventsDefault = readInt(in, powerLevels.eventsDefault);
+        } else if ("events".equals(name)) {
+            powerLevels.events = readIntegerMap(in);
+        } else if ("users_default".equals(name)) {
+            powerLevels.usersDefault = readInt(in, powerLevels.usersDefault);
+        } else if ("users".equals(name)) {
+            powerLevels.users = readIntegerMap(in);
+        } else if ("state_default".equals(name)) {
+            powerLevels.stateDefault = readInt(in, powerLevels.stateDefault);
+        } else {
+            return false;
+        }
+
+        return true;
+    }
+
+    @Override
+    protected void writeFields(JsonWriter out, PowerLevels powerLevels) throws IOException {
+        writeNumber(out, "ban", powerLevels.ban);
+        writeNumber(out, "kick", powerLevels.kick);
+        writeNumber(out, "invite", powerLevels.invite);
+        writeNumber(out, "redact", powerLevels.redact);
+        writeNumber(out, "events_default", powerLevels.eventsDefault);
+        writeIntegerMap(out, "events", powerLevels.events);
+        writeNumber(out, "users_default", powerLevels.usersDefault);
+        writeIntegerMap(out, "users", powerLevels.users);
+        writeNumber(out, "state_default", powerLevels.stateDefault);
+    }
+}
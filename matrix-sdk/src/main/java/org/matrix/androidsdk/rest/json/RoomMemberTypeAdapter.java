@@ -0,0 +1,65 @@
+/*
+ * Copyright 2015 OpenMarket Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrix.androidsdk.rest.json;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import org.matrix.androidsdk.rest.model.RoomMember;
+import org.matrix.androidsdk.util.IdentifierPool;
+
+import java.io.IOException;
+
+/**
+ * Streaming adapter of the room members.
+ */
+public class RoomMemberTypeAdapter extends ModelTypeAdapter<RoomMember> {
+
+    /**
+     * Constructor
+     * @param identifierPool the pool of the read identifiers, null to not pool them.
+     */
+    public RoomMemberTypeAdapter(IdentifierPool identifierPool) {
+        super(identifierPool);
+    }
+
+    @Override
+    protected RoomMember newInstance() {
+        return new RoomMember();
+    }
+
+    @Override
+    protected boolean readField(JsonReader in, String name, RoomMember member) throws IOException {
+        if ("displayname".equals(name)) {
+            member.displayname = readIdentifier(in);
+        } else if ("avatar_url".equals(name)) {
+            member.avatarUrl = readIdentifier(in);
+        } else if ("membership".equals(name)) {
+            member.membership = readIdentifier(in);
+        } else {
+            return false;
+        }
+
+        return true;
+    }
+
+    @Override
+    protected void writeFields(JsonWriter out, RoomMember member) throws IOException {
+        writeString(out, "displayname", member.displayname);
+        writeString(out, "avatar_url", member.avatarUrl);
+        writeString(out, "membership", member.membership);
+    }
+}
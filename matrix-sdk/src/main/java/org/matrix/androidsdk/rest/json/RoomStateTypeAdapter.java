@@ -0,0 +1,72 @@
+/*
+ * Copyright 2015 OpenMarket Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrix.androidsdk.rest.json;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import org.matrix.androidsdk.data.RoomState;
+
+import java.io.IOException;
+
+/**
+ * Streaming adapter of the room states (e.g. the name, topic, aliases or join rule events contents).
+ * Only the public fields are serialized : the members, the power levels and the token are not.
+ */
+public class RoomStateTypeAdapter extends ModelTypeAdapter<RoomState> {
+
+    @Override
+    protected RoomState newInstance() {
+        return new RoomState();
+    }
+
+    @Override
+    protected boolean readField(JsonReader in, String name, RoomState roomState) throws IOException {
+        if ("room_id".equals(name)) {
+            roomState.roomId = readString(in);
+        } else if ("name".equals(name)) {
+            roomState.name = readString(in);
+        } else if ("topic".equals(name)) {
+            roomState.topic = readString(in);
+        } else if ("room_alias_name".equals(name)) {
+            roomState.roomAliasName = readString(in);
+        } else if ("visibility".equals(name)) {
+            roomState.visibility = readString(in);
+        } else if ("creator".equals(name)) {
+            roomState.creator = readString(in);
+        } else if ("join_rule".equals(name)) {
+            roomState.joinRule = readString(in);
+        } else if ("aliases".equals(name)) {
+            roomState.aliases = readStringList(in);
+        } else {
+            return false;
+        }
+
+        return true;
+    }
+
+    @Override
+    protected void writeFields(JsonWriter out, RoomState roomState) throws IOException {
+        writeString(out, "room_id", roomState.roomId);
+        writeString(out, "name", roomState.name);
+        writeString(out, "topic", roomState.topic);
+        writeString(out, "room_alias_name", roomState.roomAliasName);
+        writeString(out, "visibility", roomState.visibility);
+        writeString(out, "creator", roomState.creator);
+        writeString(out, "join_rule", roomState.joinRule);
+        writeStringList(out, "aliases", roomState.aliases);
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2015 OpenMarket Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrix.androidsdk.rest.json;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import org.matrix.androidsdk.rest.model.User;
+import org.matrix.androidsdk.util.IdentifierPool;
+
+import java.io.IOException;
+
+/**
+ * Streaming adapter of the users (e.g. the presence events contents).
+ * The data handler of the user is never serialized.
+ */
+public class UserTypeAdapter extends ModelTypeAdapter<User> {
+
+    /**
+     * Constructor
+     * @param identifierPool the pool of the read identifiers, null to not pool them.
+     */
+    public UserTypeAdapter(IdentifierPool identifierPool) {
+        super(identifierPool);
+    }
+
+    @Override
+    protected User newInstance() {
+        return new User();
+    }
+
+    @Override
+    protected boolean readField(JsonReader in, String name, User user) throws IOException {
+        if ("user_id".equals(name)) {
+            user.userId = readIdentifier(in);
+        } else if ("displayname".equals(name)) {
+            user.displayname = readIdentifier(in);
+        } else if ("avatar_url".equals(name)) {
+            user.avatarUrl = readIdentifier(in);
+        } else if ("presence".equals(name)) {
+            user.presence = readIdentifier(in);
+        } else if ("last_active_ago".equals(name)) {
+            user.lastActiveAgo = readLong(in);
+        } else if ("status_msg".equals(name)) {
+            user.statusMsg = readString(in);
+        } else {
+            return false;
+        }
+
+        return true;
+    }
+
+    @Override
+    protected void writeFields(JsonWriter out, User user) throws IOException {
+        writeString(out, "user_id", user.userId);
+        writeString(out, "displayname", user.displayname);
+        writeString(out, "avatar_url", user.avatarUrl);
+        writeString(out, "presence", user.presence);
+        writeNumber(out, "last_active_ago", user.lastActiveAgo);
+        writeString(out, "status_msg", user.statusMsg);
+    }
+}
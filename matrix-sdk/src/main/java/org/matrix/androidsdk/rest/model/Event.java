@@ -68,6 +68,17 @@ public class Event implements java.io.Serializable {
     public static final String EVENT_TYPE_CALL_HANGUP = "m.call.hangup";
 
     public String type;
+
+    // the contents are parsed on their first access (see getContent) :
+    // the JSON strings of the stored events are kept until then.
+
+    /**
+     * The event content.
+     * It is filled when the content is parsed : the events read from the store have a null content
+     * until getContent() (or finalizeDeserialization()) is called.
+     * @deprecated use getContent() and setContent() : the memoized message is not updated when the field is set.
+     */
+    @Deprecated
     public transient JsonObject content = null;
     private String contentAsString = null;
 
@@ -79,9 +90,20 @@ public class Event implements java.io.Serializable {
 
     // Specific to state events
     public String stateKey;
+
+    /**
+     * The previous content of a state event.
+     * It is filled when the previous content is parsed : the events read from the store have a null previous content
+     * until getPrevContent() (or finalizeDeserialization()) is called.
+     * @deprecated use getPrevContent() and setPrevContent().
+     */
+    @Deprecated
     public transient JsonObject prevContent = null;
     private String prevContentAsString = null;
 
+    // the message built from the content (see getMessage)
+    private transient Message mMessage = null;
+
     // Specific to redactions
     public String redacts;
 
@@ -244,8 +266,14 @@ public class Event implements java.io.Serializable {
     public Event deepCopy() {
         Event copy = new Event();
         copy.type = type;
-        copy.content = content;
-        copy.contentAsString = contentAsString;
+
+        synchronized (this) {
+            copy.content = content;
+            copy.contentAsString = contentAsString;
+            copy.prevContent = prevContent;
+            copy.prevContentAsString = prevContentAsString;
+            copy.mMessage = mMessage;
+        }
 
         copy.eventId = eventId;
         copy.roomId = roomId;
@@ -255,8 +283,6 @@ public class Event implements java.io.Serializable {
         copy.age = age;
 
         copy.stateKey = stateKey;
-        copy.prevContent = prevContent;
-        copy.prevContentAsString = prevContentAsString;
 
         copy.redacts = redacts;
 
@@ -327,6 +353,8 @@ public class Event implements java.io.Serializable {
 
         text += "  \"content\" {\n";
 
+        JsonObject content = getContent();
+
         if (null != content) {
             if (content.isJsonArray()) {
                 for (JsonElement e : content.getAsJsonArray()) {
@@ -380,7 +408,85 @@ public class Event implements java.io.Serializable {
         return text;
     }
 
-    public void prepareSerialization() {
+    /**
+     * Parse a JSON object.
+     * @param jsonString the JSON string
+     * @return the JSON object, null if the string is not a valid JSON object.
+     */
+    private static JsonObject parseJsonObject(String jsonString) {
+        try {
+            return new JsonParser().parse(jsonString).getAsJsonObject();
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * Provides the event content.
+     * The content of a stored event is parsed on the first call.
+     * @return the content
+     */
+    public synchronized JsonObject getContent() {
+        if ((null == content) && (null != contentAsString)) {
+            content = parseJsonObject(contentAsString);
+            // the parsed content is the reference : it can be updated in place
+            contentAsString = null;
+        }
+
+        return content;
+    }
+
+    /**
+     * Update the event content.
+     * @param aContent the new content
+     */
+    public synchronized void setContent(JsonObject aContent) {
+        content = aContent;
+        contentAsString = null;
+        mMessage = null;
+    }
+
+    /**
+     * Provides the previous content of a state event.
+     * It is parsed on the first call.
+     * @return the previous content
+     */
+    public synchronized JsonObject getPrevContent() {
+        if ((null == prevContent) && (null != prevContentAsString)) {
+            prevContent = parseJsonObject(prevContentAsString);
+            prevContentAsString = null;
+        }
+
+        return prevContent;
+    }
+
+    /**
+     * Update the previous content of a state event.
+     * @param aPrevContent the new previous content
+     */
+    public synchronized void setPrevContent(JsonObject aPrevContent) {
+        prevContent = aPrevContent;
+        prevContentAsString = null;
+    }
+
+    /**
+     * Provides the message of a m.room.message event, built on the first call.
+     * The returned message is shared : it must not be updated (use setContent).
+     * @return the message (the Message subclass matching its msgtype), null if the event has no content.
+     */
+    public synchronized Message getMessage() {
+        if (null == mMessage) {
+            JsonObject content = getContent();
+
+            if (null != content) {
+                mMessage = JsonUtils.toMessage(content);
+            }
+        }
+
+        return mMessage;
+    }
+
+    public synchronized void prepareSerialization() {
         if ((null != content) && (null == contentAsString)) {
             contentAsString = content.toString();
         }
@@ -390,20 +496,51 @@ public class Event implements java.io.Serializable {
         }
     }
 
-    public void finalizeDeserialization() {
+    /**
+     * @return the content as a JSON string (the current content if it has been parsed).
+     */
+    public synchronized String getContentAsString() {
+        return (null != content) ? content.toString() : contentAsString;
+    }
 
-        if ((null != contentAsString) && (null == content)) {
-            try {
-                content = new JsonParser().parse(contentAsString).getAsJsonObject();
-            } catch (Exception e) {
-            }
-        }
+    /**
+     * @return the previous content as a JSON string (the current one if it has been parsed).
+     */
+    public synchronized String getPrevContentAsString() {
+        return (null != prevContent) ? prevContent.toString() : prevContentAsString;
+    }
 
-        if ((null != prevContentAsString) && (null == prevContent)) {
-            try {
-                prevContent = new JsonParser().parse(prevContentAsString).getAsJsonObject();
-            } catch (Exception e) {
-            }
-        }
+    /**
+     * Set the content from its JSON string.
+     * It is parsed on its first access (see getContent).
+     * @param aContentAsString the content
+     */
+    public synchronized void setContentAsString(String aContentAsString) {
+        content = null;
+        contentAsString = aContentAsString;
+        mMessage = null;
+    }
+
+    /**
+     * The contents are parsed on their first access (see getContent and getPrevContent) :
+     * it only parses them now so the deprecated content and prevContent fields are filled.
+     * @deprecated use getContent() and getPrevContent().
+     */
+    @Deprecated
+    public void finalizeDeserialization() {
+        getContent();
+        getPrevContent();
+    }
+
+    /**
+     * Set the contents from their JSON strings.
+     * They are parsed on their first access (see getContent and getPrevContent).
+     * @param aContentAsString the content
+     * @param aPrevContentAsString the previous content
+     */
+    public synchronized void setContentsAsString(String aContentAsString, String aPrevContentAsString) {
+        setContentAsString(aContentAsString);
+        prevContent = null;
+        prevContentAsString = aPrevContentAsString;
     }
 }
@@ -21,7 +21,6 @@ import android.util.EventLog;
 import org.matrix.androidsdk.rest.model.Event;
 import org.matrix.androidsdk.rest.model.Message;
 import org.matrix.androidsdk.util.EventUtils;
-import org.matrix.androidsdk.util.JsonUtils;
 import org.w3c.dom.Text;
 
 import java.util.regex.Pattern;
@@ -36,7 +35,7 @@ public class ContainsDisplayNameCondition extends Condition {
 
     public boolean isSatisfied(Event event, String myDisplayName) {
         if (Event.EVENT_TYPE_MESSAGE.equals(event.type)) {
-            Message msg = JsonUtils.toMessage(event.content);
+            Message msg = event.getMessage();
 
             if (null != msg) {
                 return EventUtils.caseInsensitiveFind(myDisplayName, msg.body);
@@ -37,16 +37,30 @@ public class DefaultEventsThreadListener implements EventsThreadListener {
         mData = data;
     }
 
+    @Override
+    public void onInitialSyncPresences(List<Event> presences) {
+        mData.handleLiveEvents(presences);
+    }
+
+    @Override
+    public void onInitialSyncRoom(RoomResponse roomResponse) {
+        mData.handleInitialRoomResponse(roomResponse);
+    }
+
     @Override
     public void onInitialSyncComplete(InitialSyncResponse response) {
         // sanity check
         if (null != response) {
             // Handle presence events
-            mData.handleLiveEvents(response.presence);
+            if (null != response.presence) {
+                mData.handleLiveEvents(response.presence);
+            }
 
             // Convert rooms from response
-            for (RoomResponse roomResponse : response.rooms) {
-                mData.handleInitialRoomResponse(roomResponse);
+            if (null != response.rooms) {
+                for (RoomResponse roomResponse : response.rooms) {
+                    mData.handleInitialRoomResponse(roomResponse);
+                }
             }
 
             // save the latest token
@@ -96,4 +110,20 @@ public class DefaultEventsThreadListener implements EventsThreadListener {
             }
         }
     }
+
+    @Override
+    public void onCatchupEventsReceived(List<Event> events, String latestToken) {
+        // sanity check
+        if ((null != events) && (0 != events.size())) {
+            for (Event event : events) {
+                event.setMatrixId(mData.getUserId());
+            }
+
+            mData.handleLiveEventsBatch(events);
+
+            mData.getStore().setEventStreamToken(latestToken);
+            Log.d(LOG_TAG, "onCatchupEventsReceived : commit");
+            mData.getStore().commit();
+        }
+    }
 }
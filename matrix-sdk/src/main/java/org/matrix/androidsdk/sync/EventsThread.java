@@ -15,6 +15,7 @@
  */
 package org.matrix.androidsdk.sync;
 
+import android.text.TextUtils;
 import android.util.Log;
 
 import org.matrix.androidsdk.listeners.IMXNetworkEventListener;
@@ -23,35 +24,193 @@ import org.matrix.androidsdk.rest.callback.ApiFailureCallback;
 import org.matrix.androidsdk.rest.callback.RestAdapterCallback;
 import org.matrix.androidsdk.rest.callback.SimpleApiCallback;
 import org.matrix.androidsdk.rest.client.EventsRestClient;
+import org.matrix.androidsdk.rest.json.InitialSyncReader;
 import org.matrix.androidsdk.rest.model.Event;
 import org.matrix.androidsdk.rest.model.InitialSyncResponse;
 import org.matrix.androidsdk.rest.model.MatrixError;
+import org.matrix.androidsdk.rest.model.RoomResponse;
 import org.matrix.androidsdk.rest.model.TokensChunkResponse;
 
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.concurrent.CountDownLatch;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import retrofit.RetrofitError;
 
 /**
  * Thread that continually watches the event stream and sends events to its listener.
+ * The received chunks are processed by a dedicated thread : the next events request is sent
+ * as soon as the previous response is received, while the previous chunk is still processed.
+ *
+ * The requests are sent from an executor : pausing or killing the thread, or losing the network,
+ * cancels the running request at once instead of waiting for the end of the long poll.
  */
 public class EventsThread extends Thread {
     private static final String LOG_TAG = "EventsThread";
 
-    private static final int RETRY_WAIT_TIME_MS = 10000;
+    // the number of messages per room in the initial sync
+    private static final int INITIAL_SYNC_MESSAGES_LIMIT = 10;
+
+    // the number of received chunks waiting to be processed
+    // when it is reached, the events requests are delayed until a chunk is processed.
+    static final int PROCESSING_QUEUE_CAPACITY = 4;
+
+    // the max number of caught up events processed in a single batch
+    static final int MAX_CATCHUP_BATCH_SIZE = 2000;
+
+    // the stream is late when a chunk has at least this number of events :
+    // the next chunks are batched like a catchup until a smaller chunk is received.
+    static final int CATCHUP_MIN_CHUNK_SIZE = 10;
+
+    // the max number of times the events of a chunk are requested again when its processing fails
+    static final int MAX_CHUNK_PROCESSING_ATTEMPTS = 3;
+
+    /**
+     * An events chunk waiting to be processed.
+     */
+    private static class EventsChunk {
+        final List<Event> mEvents;
+        // the token of the request which has received the first event
+        final String mFromToken;
+        final String mToken;
+        // true if the chunk contains the events of several catchup requests
+        final boolean mIsCatchup;
+        // the chunks generation when the first event has been requested (see mChunksGeneration)
+        final int mGeneration;
+
+        EventsChunk(List<Event> events, String fromToken, String token, boolean isCatchup, int generation) {
+            mEvents = events;
+            mFromToken = fromToken;
+            mToken = token;
+            mIsCatchup = isCatchup;
+            mGeneration = generation;
+        }
+    }
+
+    // added after the last chunk to stop the processing thread
+    private static final EventsChunk END_OF_STREAM = new EventsChunk(null, null, null, false, -1);
+
+    /**
+     * The event stream states.
+     */
+    private enum State {
+        // the events are requested
+        RUNNING,
+        // the events are requested once, then the stream is paused
+        CATCHING_UP,
+        // no events request
+        PAUSED,
+        // the stream is permanently stopped
+        KILLED
+    }
+
+    /**
+     * A request sent by the events thread.
+     * Cancelling it also cancels its http request : the events thread does not wait for its end.
+     */
+    private class EventsRequest<T> extends FutureTask<T> {
+        // true if the request is cancelled when the stream is paused
+        final boolean mIsCancelledOnPause;
+        // the thread running the request
+        private volatile Thread mThread = null;
+
+        EventsRequest(Callable<T> callable, boolean isCancelledOnPause) {
+            super(callable);
+            mIsCancelledOnPause = isCancelledOnPause;
+        }
+
+        @Override
+        public void run() {
+            mThread = Thread.currentThread();
+
+            try {
+                super.run();
+            } finally {
+                mThread = null;
+            }
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean isCancelled = super.cancel(mayInterruptIfRunning);
+            Thread thread = mThread;
+
+            if (isCancelled && (null != thread)) {
+                mApiClient.cancelRequests(thread);
+            }
+
+            return isCancelled;
+        }
+    }
 
     private EventsRestClient mApiClient;
     private EventsThreadListener mListener = null;
     private String mCurrentToken = null;
 
     private boolean mInitialSyncDone = false;
-    private boolean mPaused = true;
-    private boolean mIsNetworkSuspended = false;
-    private boolean mIsCatchingUp = false;
-    private boolean mKilling = false;
     private boolean mIsGettingPresences = false;
-    private int mEventRequestTimeout = EventsRestClient.EVENT_STREAM_TIMEOUT_MS;
+
+    // a cancelled initial sync stream could still be reading its response in the requests executor :
+    // its callbacks are only forwarded while its generation is the current one.
+    // they are forwarded with this lock : a new stream cannot start while a previous one is in a callback.
+    private final Object mInitialSyncLock = new Object();
+    private int mInitialSyncGeneration = 0;
+
+    // the state is only updated with the state lock
+    // the events thread waits for the state changes with mStateChanged.
+    private final ReentrantLock mStateLock = new ReentrantLock();
+    private final Condition mStateChanged = mStateLock.newCondition();
+    private State mState = State.PAUSED;
+    private boolean mIsNetworkSuspended = false;
+    // incremented by each state update
+    private int mStateVersion = 0;
+    // true while the events thread is blocked until a state update or a processed chunk
+    // the tests observe it with mEventsThreadWaiting instead of sleeping.
+    private boolean mIsEventsThreadWaiting = false;
+    private final Condition mEventsThreadWaiting = mStateLock.newCondition();
+    private SyncProfile mSyncProfile = SyncProfile.FOREGROUND;
+    private int mEventRequestTimeout = mSyncProfile.getEventsTimeoutMs();
+    // true until the first request after a pause (see unpause and onNetworkAvailable) : its missed events are batched.
+    private boolean mIsResuming = false;
+    private EventsRequest<?> mRunningRequest = null;
+
+    // the delays between the retries of the failed requests
+    private final RetryBackoff mRetryBackoff = new RetryBackoff();
+
+    // the requests are sent from this executor : the events thread can stop waiting for a cancelled request
+    // while its http request is terminating.
+    private final ExecutorService mRequestsExecutor = Executors.newCachedThreadPool();
+
+    private final BlockingQueue<EventsChunk> mProcessingQueue = new ArrayBlockingQueue<EventsChunk>(PROCESSING_QUEUE_CAPACITY);
+    private Thread mProcessingThread = null;
+
+    // the caught up events which are not yet processed, with the token of the latest one
+    private ArrayList<Event> mCatchupEvents = new ArrayList<Event>();
+    private String mCatchupToken = null;
+    // the token and the chunks generation of the request which has received the first caught up event
+    private String mCatchupFromToken = null;
+    private int mCatchupGeneration = 0;
+
+    // when a chunk processing fails, the events thread requests its events again from mRewindToken.
+    // the chunks generation is incremented so the chunks received after the failed one are ignored by the processing thread :
+    // the stream token is only stored when a chunk is processed, so no event is skipped.
+    // both are updated with the state lock.
+    private int mChunksGeneration = 0;
+    private String mRewindToken = null;
+    // the latest failed chunk and its processing attempts (used by the processing thread only)
+    private String mFailedChunkFromToken = null;
+    private int mFailedChunkAttempts = 0;
 
     // Custom Retrofit error callback that will convert Retrofit errors into our own error callback
     private RestAdapterCallback mEventsFailureCallback;
@@ -60,17 +219,14 @@ public class EventsThread extends Thread {
     // avoid restarting the listener if there is no network.
     // wait that there is an available network.
     private NetworkConnectivityReceiver mNetworkConnectivityReceiver;
-    private Boolean mbIsConnected = true;
+    private boolean mbIsConnected = true;
     IMXNetworkEventListener mNetworkListener = new IMXNetworkEventListener() {
         @Override
         public void onNetworkConnectionUpdate(boolean isConnected) {
-            synchronized (this) {
-                mbIsConnected = isConnected;
-            }
-
-            // the thread has been suspended and there is an available network
-            if (isConnected && !mKilling) {
+            if (isConnected) {
                 onNetworkAvailable();
+            } else {
+                onNetworkLost();
             }
         }
     };
@@ -106,42 +262,227 @@ public class EventsThread extends Thread {
         mEventsFailureCallback = new RestAdapterCallback(new SimpleApiCallback(failureCallback));
     }
 
+    /**
+     * @return the retries of the failed requests, with their metrics.
+     */
+    public RetryBackoff getRetryBackoff() {
+        return mRetryBackoff;
+    }
+
+    /**
+     * Update the sync profile.
+     * It is applied from the next events request : a waiting catchup stream is restarted at once.
+     * @param syncProfile the new profile
+     */
+    public void setSyncProfile(SyncProfile syncProfile) {
+        if (null == syncProfile) {
+            return;
+        }
+
+        Log.i(LOG_TAG, "setSyncProfile(" + syncProfile + ")");
+
+        mStateLock.lock();
+
+        try {
+            if (mSyncProfile != syncProfile) {
+                mSyncProfile = syncProfile;
+
+                if (0 != mEventRequestTimeout) {
+                    mEventRequestTimeout = syncProfile.getEventsTimeoutMs();
+                }
+
+                signalStateChanged();
+            }
+        } finally {
+            mStateLock.unlock();
+        }
+    }
+
+    /**
+     * @return the sync profile.
+     */
+    public SyncProfile getSyncProfile() {
+        mStateLock.lock();
+
+        try {
+            return mSyncProfile;
+        } finally {
+            mStateLock.unlock();
+        }
+    }
+
+    /**
+     * Update the stream state.
+     * The running events request is cancelled if the new state does not allow it.
+     * A killed stream cannot be restarted.
+     * @param state the new state
+     */
+    private void setState(State state) {
+        mStateLock.lock();
+
+        try {
+            if (State.KILLED != mState) {
+                mState = state;
+
+                if ((State.PAUSED == state) || (State.KILLED == state)) {
+                    cancelRunningRequest(State.PAUSED == state);
+                }
+
+                signalStateChanged();
+            }
+        } finally {
+            mStateLock.unlock();
+        }
+    }
+
+    /**
+     * Wake up the events thread after a state update.
+     * The state lock must be held.
+     */
+    private void signalStateChanged() {
+        mStateVersion++;
+        // the events thread checks the new state before waiting again
+        mIsEventsThreadWaiting = false;
+        mStateChanged.signalAll();
+    }
+
+    /**
+     * Update the events thread waiting flag.
+     * The state lock must be held.
+     * @param isWaiting true if the events thread starts waiting.
+     */
+    private void setEventsThreadWaiting(boolean isWaiting) {
+        mIsEventsThreadWaiting = isWaiting;
+
+        if (isWaiting) {
+            mEventsThreadWaiting.signalAll();
+        }
+    }
+
+    /**
+     * Wait until the events thread is blocked : it waits for a state update (e.g. it is paused, it has no network,
+     * it waits before a retry or the next catchup) or for the processing of a chunk.
+     * It is used to check the stream behaviour without depending on the timing.
+     * @param timeoutMs the maximum delay to wait.
+     * @return true if the events thread is blocked.
+     * @throws InterruptedException if the calling thread is interrupted.
+     */
+    boolean waitUntilEventsThreadWaits(long timeoutMs) throws InterruptedException {
+        mStateLock.lock();
+
+        try {
+            long remainingNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+
+            while (!mIsEventsThreadWaiting && (remainingNanos > 0)) {
+                remainingNanos = mEventsThreadWaiting.awaitNanos(remainingNanos);
+            }
+
+            return mIsEventsThreadWaiting;
+        } finally {
+            mStateLock.unlock();
+        }
+    }
+
+    /**
+     * Cancel the running request.
+     * The state lock must be held.
+     * @param isPausing true if the request is cancelled because the stream is paused.
+     */
+    private void cancelRunningRequest(boolean isPausing) {
+        if ((null != mRunningRequest) && (!isPausing || mRunningRequest.mIsCancelledOnPause)) {
+            Log.d(LOG_TAG, "Cancel the running request");
+            mRunningRequest.cancel(true);
+            mRunningRequest = null;
+        }
+    }
+
     /**
      * Pause the thread. It will resume where it left off when unpause()d.
+     * The running events request is cancelled.
      */
     public void pause() {
         Log.i(LOG_TAG, "pause()");
-        mPaused = true;
-        mIsCatchingUp = false;
+        setState(State.PAUSED);
     }
 
     /**
      * @return true if the thread is paused.
      */
     public Boolean isPaused() {
-        return mPaused;
+        mStateLock.lock();
+
+        try {
+            return State.PAUSED == mState;
+        } finally {
+            mStateLock.unlock();
+        }
+    }
+
+    /**
+     * @return true if the thread is killed.
+     */
+    private boolean isKilled() {
+        mStateLock.lock();
+
+        try {
+            return State.KILLED == mState;
+        } finally {
+            mStateLock.unlock();
+        }
     }
 
     public void onNetworkAvailable() {
         Log.i(LOG_TAG, "onNetWorkAvailable()");
-        if (mIsNetworkSuspended) {
-            mIsNetworkSuspended = false;
 
-            if (mPaused) {
-                Log.i(LOG_TAG, "the event thread is still suspended");
-            } else {
-                Log.i(LOG_TAG, "Resume the thread");
-                // request the latest events asap
-                mEventRequestTimeout = 0;
-                // cancel any catchup process.
-                mIsCatchingUp = false;
-
-                synchronized (this) {
-                    notify();
+        mStateLock.lock();
+
+        try {
+            mbIsConnected = true;
+
+            // a new network : the failed requests are retried at once.
+            mRetryBackoff.reset();
+
+            if (mIsNetworkSuspended) {
+                mIsNetworkSuspended = false;
+
+                if (State.PAUSED == mState) {
+                    Log.i(LOG_TAG, "the event thread is still suspended");
+                } else if (State.KILLED != mState) {
+                    Log.i(LOG_TAG, "Resume the thread");
+                    // request the latest events asap
+                    mEventRequestTimeout = 0;
+                    mIsResuming = true;
+                    // cancel any catchup process.
+                    mState = State.RUNNING;
                 }
+
+            } else {
+                Log.i(LOG_TAG, "onNetWorkAvailable() : retry any failed request");
             }
-        } else {
-            Log.i(LOG_TAG, "onNetWorkAvailable() : nothing to do");
+
+            signalStateChanged();
+        } finally {
+            mStateLock.unlock();
+        }
+    }
+
+    /**
+     * The network connection is lost : the running request is cancelled
+     * and the stream is suspended until the network comes back.
+     */
+    private void onNetworkLost() {
+        Log.i(LOG_TAG, "onNetworkLost()");
+
+        mStateLock.lock();
+
+        try {
+            mbIsConnected = false;
+            mIsNetworkSuspended = true;
+            cancelRunningRequest(false);
+
+            signalStateChanged();
+        } finally {
+            mStateLock.unlock();
         }
     }
 
@@ -150,52 +491,186 @@ public class EventsThread extends Thread {
      */
     public void unpause() {
         Log.i(LOG_TAG, "unpause()");
-        if (mPaused) {
-            mPaused = false;
-            synchronized (this) {
-                notify();
-            }
-        }
 
-        // request the latest events asap
-        mEventRequestTimeout = 0;
-        // cancel any catchup process.
-        mIsCatchingUp = false;
+        mStateLock.lock();
+
+        try {
+            // request the latest events asap
+            mEventRequestTimeout = 0;
+            mIsResuming = true;
+            // cancel any catchup process.
+            setState(State.RUNNING);
+        } finally {
+            mStateLock.unlock();
+        }
     }
 
     /**
-     * Catchup until some events are retrieved.
+     * Catchup : request the missed events until the stream head is reached, then pause.
+     * The caught up events are processed in a single batch.
      */
     public void catchup() {
         Log.d(LOG_TAG, "catchup()");
-        if (mPaused) {
-            mPaused = false;
-            synchronized (this) {
-                notify();
-            }
-        }
 
-        // request the latest events once
-        // without any delay.
-        mEventRequestTimeout = 0;
-        mIsCatchingUp = true;
+        // the requests are sent without any delay until the stream head is reached.
+        setState(State.CATCHING_UP);
     }
 
     /**
      * Allow the thread to finish its current processing, then permanently stop.
+     * The running request is cancelled.
      */
     public void kill() {
         Log.d(LOG_TAG, "killing ...");
+        setState(State.KILLED);
+    }
+
+    /**
+     * Wait until a request can be sent.
+     * @param isInitialSync true for the initial sync request : it is sent even if the stream is paused.
+     * @return false if the thread is killed.
+     */
+    private boolean waitUntilRequestsAllowed(boolean isInitialSync) {
+        mStateLock.lock();
+
+        try {
+            while (true) {
+                if (State.KILLED == mState) {
+                    return false;
+                }
+
+                if (mIsNetworkSuspended) {
+                    Log.d(LOG_TAG, "Event stream is paused because there is no available network.");
+                } else if (isInitialSync || (State.PAUSED != mState)) {
+                    return true;
+                } else {
+                    Log.d(LOG_TAG, "Event stream is paused. Waiting.");
+                }
 
-        mKilling = true;
+                setEventsThreadWaiting(true);
+                mStateChanged.awaitUninterruptibly();
+                setEventsThreadWaiting(false);
+                Log.d(LOG_TAG, "Event stream woken from pause.");
+            }
+        } finally {
+            mStateLock.unlock();
+        }
+    }
 
-        if (mPaused) {
-            mPaused = false;
-            synchronized (this) {
-                notify();
+    /**
+     * Wait before retrying a failed request.
+     * The delay increases with the consecutive failures, or is the one requested by a rate limit error.
+     * The wait is interrupted by any state update (e.g. a network connection).
+     * @param e the request failure
+     */
+    private void waitBeforeRetrying(Exception e) {
+        MatrixError matrixError = null;
+
+        if ((e instanceof RetrofitError) && !((RetrofitError) e).isNetworkError()) {
+            try {
+                matrixError = (MatrixError) ((RetrofitError) e).getBodyAs(MatrixError.class);
+            } catch (Exception e2) {
+                Log.e(LOG_TAG, "Failed to read the error: " + e2.getMessage());
             }
+        }
 
-            Log.d(LOG_TAG, "Resume the thread to kill it.");
+        long delayMs;
+
+        if ((null != matrixError) && MatrixError.LIMIT_EXCEEDED.equals(matrixError.errcode) && (null != matrixError.retry_after_ms)) {
+            delayMs = mRetryBackoff.nextRateLimitedDelay(matrixError.retry_after_ms);
+        } else {
+            delayMs = mRetryBackoff.nextDelay();
+        }
+
+        Log.i(LOG_TAG, "Retry in " + delayMs + " ms (" + mRetryBackoff + ")");
+        waitForStateUpdate(delayMs);
+    }
+
+    /**
+     * Wait until the state is updated, or until a delay is elapsed.
+     * @param delayMs the max delay
+     */
+    private void waitForStateUpdate(long delayMs) {
+        mStateLock.lock();
+
+        try {
+            int stateVersion = mStateVersion;
+            long remainingNanos = TimeUnit.MILLISECONDS.toNanos(delayMs);
+
+            while ((stateVersion == mStateVersion) && (remainingNanos > 0)) {
+                setEventsThreadWaiting(true);
+                remainingNanos = mStateChanged.awaitNanos(remainingNanos);
+            }
+        } catch (InterruptedException e) {
+            Log.e(LOG_TAG, "Unexpected interruption while waiting: " + e.getMessage());
+        } finally {
+            setEventsThreadWaiting(false);
+            mStateLock.unlock();
+        }
+    }
+
+    /**
+     * Send a request from the requests executor, and wait for its response.
+     * @param callable the request
+     * @param isCancelledOnPause true if the request is cancelled when the stream is paused.
+     * @return the response
+     * @throws CancellationException if the request has been cancelled.
+     * @throws Exception if the request has failed.
+     */
+    private <T> T executeRequest(Callable<T> callable, boolean isCancelledOnPause) throws Exception {
+        EventsRequest<T> request = new EventsRequest<T>(callable, isCancelledOnPause);
+
+        mStateLock.lock();
+
+        try {
+            if (State.KILLED == mState) {
+                throw new CancellationException();
+            }
+
+            mRunningRequest = request;
+            mRequestsExecutor.execute(request);
+        } finally {
+            mStateLock.unlock();
+        }
+
+        try {
+            return request.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+
+            throw (Exception) cause;
+        } finally {
+            mStateLock.lock();
+
+            try {
+                if (mRunningRequest == request) {
+                    mRunningRequest = null;
+                }
+            } finally {
+                mStateLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Report a request failure to the failure callbacks.
+     * @param e the failure
+     */
+    private void onRequestFailure(Exception e) {
+        if (e instanceof RetrofitError) {
+            if (null != mEventsFailureCallback) {
+                mEventsFailureCallback.failure((RetrofitError) e);
+            }
+        } else if (null != mFailureCallback) {
+            if (e instanceof IOException) {
+                mFailureCallback.onNetworkError(e);
+            } else {
+                mFailureCallback.onUnexpectedError(e);
+            }
         }
     }
 
@@ -207,7 +682,22 @@ public class EventsThread extends Thread {
             Log.d(LOG_TAG, "Requesting initial sync...");
         }
 
-        mPaused = false;
+        mStateLock.lock();
+
+        try {
+            if (State.PAUSED == mState) {
+                mState = State.RUNNING;
+            }
+
+            // sanity check
+            if (null != mNetworkConnectivityReceiver) {
+                mNetworkConnectivityReceiver.addEventListener(mNetworkListener);
+                mbIsConnected = mNetworkConnectivityReceiver.isConnected();
+                mIsNetworkSuspended = !mbIsConnected;
+            }
+        } finally {
+            mStateLock.unlock();
+        }
 
         // a start token is provided ?
         if (null != mCurrentToken) {
@@ -257,168 +747,241 @@ public class EventsThread extends Thread {
         }
 
         // Start with initial sync
-        while (!mInitialSyncDone) {
-            final CountDownLatch latch = new CountDownLatch(1);
+        // its response is read as a stream : each room is processed as soon as it is read.
+        // it is not cancelled by a pause.
+        while (!mInitialSyncDone && waitUntilRequestsAllowed(true)) {
+            final int generation;
 
-            // if a start token is provided
-            // get only the user presences.
-            // else starts a sync from scratch
-            mApiClient.initialSyncWithLimit(new SimpleApiCallback<InitialSyncResponse>(mFailureCallback) {
-                @Override
-                public void onSuccess(InitialSyncResponse initialSync) {
-                    Log.i(LOG_TAG, "Received initial sync response.");
-                    mListener.onInitialSyncComplete(initialSync);
-                    mCurrentToken = initialSync.end;
-                    mInitialSyncDone = true;
-                    // unblock the events thread
-                    latch.countDown();
-                }
+            synchronized (mInitialSyncLock) {
+                generation = mInitialSyncGeneration;
+            }
 
-                private void sleepAndUnblock() {
-                    Log.i(LOG_TAG, "Waiting a bit before retrying");
-                    try {
-                        Thread.sleep(RETRY_WAIT_TIME_MS);
-                    } catch (InterruptedException e1) {
-                        Log.e(LOG_TAG, "Unexpected interruption while sleeping: " + e1.getMessage());
-                    }
-                    latch.countDown();
-                }
+            try {
+                String end;
 
-                @Override
-                public void onNetworkError(Exception e) {
-                    if (null != mCurrentToken) {
-                        onSuccess(null);
-                    } else {
-                        super.onNetworkError(e);
-                        sleepAndUnblock();
+                try {
+                    end = executeRequest(new Callable<String>() {
+                        @Override
+                        public String call() throws Exception {
+                            return mApiClient.initialSyncStream(INITIAL_SYNC_MESSAGES_LIMIT, new InitialSyncReader.Listener() {
+                                @Override
+                                public void onPresences(List<Event> presences) {
+                                    synchronized (mInitialSyncLock) {
+                                        if (generation == mInitialSyncGeneration) {
+                                            mListener.onInitialSyncPresences(presences);
+                                        }
+                                    }
+                                }
+
+                                @Override
+                                public void onRoomResponse(RoomResponse roomResponse) {
+                                    synchronized (mInitialSyncLock) {
+                                        if (generation == mInitialSyncGeneration) {
+                                            mListener.onInitialSyncRoom(roomResponse);
+                                        }
+                                    }
+                                }
+                            });
+                        }
+                    }, false);
+                } finally {
+                    // the next callbacks of this stream are ignored, e.g. when it has been cancelled.
+                    // it waits for the end of a running callback so the next attempt is not processed concurrently.
+                    synchronized (mInitialSyncLock) {
+                        mInitialSyncGeneration++;
                     }
                 }
 
-                @Override
-                public void onMatrixError(MatrixError e) {
-                    super.onMatrixError(e);
-                    sleepAndUnblock();
-                }
+                Log.i(LOG_TAG, "Received initial sync response.");
 
-                @Override
-                public void onUnexpectedError(Exception e) {
-                    super.onUnexpectedError(e);
-                    sleepAndUnblock();
-                }
-            }, 10);
+                InitialSyncResponse initialSync = new InitialSyncResponse();
+                initialSync.end = end;
+                mListener.onInitialSyncComplete(initialSync);
+                mCurrentToken = end;
+                mInitialSyncDone = true;
+                mRetryBackoff.reset();
+            } catch (CancellationException e) {
+                // the rooms which have been processed are processed again by the next attempt :
+                // the store replaces the already stored events.
+                Log.d(LOG_TAG, "The initial sync has been cancelled");
+            } catch (Exception e) {
+                Log.e(LOG_TAG, "Initial sync failed : " + e.getMessage());
+                onRequestFailure(e);
 
-            // block until the initial sync callback is invoked.
-            try {
-                latch.await();
-            } catch (InterruptedException e) {
-                Log.e(LOG_TAG, "Interrupted whilst performing initial sync.");
+                waitBeforeRetrying(e);
             }
         }
 
-        Log.d(LOG_TAG, "Starting event stream from token " + mCurrentToken);
-
-        // sanity check
-        if (null != mNetworkConnectivityReceiver) {
-            mNetworkConnectivityReceiver.addEventListener(mNetworkListener);
-            //
-            mbIsConnected = mNetworkConnectivityReceiver.isConnected();
-            mPaused = !mbIsConnected;
+        if (mInitialSyncDone) {
+            Log.d(LOG_TAG, "Starting event stream from token " + mCurrentToken);
+            startProcessingThread();
         }
 
         // Then repeatedly long-poll for events
-        while (!mKilling) {
-            if (mPaused || mIsNetworkSuspended) {
-                if (mIsNetworkSuspended) {
-                    Log.d(LOG_TAG, "Event stream is paused because there is no available network.");
-                } else {
-                    Log.d(LOG_TAG, "Event stream is paused. Waiting.");
-                }
+        while (true) {
+            // a catchup could have been interrupted
+            if (!isBatchingEvents()) {
+                flushCatchupEvents();
+            }
 
-                try {
-                    synchronized (this) {
-                        wait();
-                    }
-                    Log.d(LOG_TAG, "Event stream woken from pause.");
-                } catch (InterruptedException e) {
-                    Log.e(LOG_TAG, "Unexpected interruption while paused: " + e.getMessage());
+            if (!waitUntilRequestsAllowed(false)) {
+                break;
+            }
+
+            final String token;
+            final int timeout;
+            final SyncProfile syncProfile;
+            final int generation;
+            final boolean isResuming;
+
+            mStateLock.lock();
+
+            try {
+                // a chunk processing has failed : its events are requested again
+                if (null != mRewindToken) {
+                    Log.d(LOG_TAG, "Request the events again from " + mRewindToken);
+                    mCurrentToken = mRewindToken;
+                    mRewindToken = null;
+                    mCatchupEvents = new ArrayList<Event>();
                 }
+
+                token = mCurrentToken;
+                generation = mChunksGeneration;
+                isResuming = mIsResuming;
+                mIsResuming = false;
+
+                // no long poll while catching up : the batched events are processed when a request returns a small chunk
+                timeout = ((State.CATCHING_UP == mState) || (mCatchupEvents.size() > 0)) ? 0 : mEventRequestTimeout;
+                syncProfile = mSyncProfile;
+            } finally {
+                mStateLock.unlock();
             }
 
-            // the service could have been killed while being paused.
-            if (!mKilling) {
-                try {
-                    TokensChunkResponse<Event> eventsResponse = mApiClient.events(mCurrentToken, mEventRequestTimeout);
-                    if (null != eventsResponse.chunk) {
-                        Log.d(LOG_TAG, "Got eventsResponse.chunk with " + eventsResponse.chunk.size() + " items");
-                    } else {
-                        Log.d(LOG_TAG, "Got eventsResponse with no chunk");
+            try {
+                TokensChunkResponse<Event> eventsResponse = executeRequest(new Callable<TokensChunkResponse<Event>>() {
+                    @Override
+                    public TokensChunkResponse<Event> call() throws Exception {
+                        return mApiClient.events(token, timeout);
                     }
+                }, true);
 
-                    if (!mKilling) {
-                        // set the dedicated token when they are known.
-                        if ((null != eventsResponse.chunk) && (eventsResponse.chunk.size() > 0)) {
-                            eventsResponse.chunk.get(0).setIntenalPaginationToken(eventsResponse.start);
-                            eventsResponse.chunk.get(eventsResponse.chunk.size() - 1).setIntenalPaginationToken(eventsResponse.end);
-                        }
+                if (null != eventsResponse.chunk) {
+                    Log.d(LOG_TAG, "Got eventsResponse.chunk with " + eventsResponse.chunk.size() + " items");
+                } else {
+                    Log.d(LOG_TAG, "Got eventsResponse with no chunk");
+                }
 
-                        // remove presence events because they will be retrieved by a global request
-                        // same behaviours for the typing events
-                        Boolean isGettingsPresence;
+                // set the dedicated token when they are known.
+                if ((null != eventsResponse.chunk) && (eventsResponse.chunk.size() > 0)) {
+                    eventsResponse.chunk.get(0).setIntenalPaginationToken(eventsResponse.start);
+                    eventsResponse.chunk.get(eventsResponse.chunk.size() - 1).setIntenalPaginationToken(eventsResponse.end);
+                }
 
-                        synchronized (mApiClient) {
-                            isGettingsPresence = mIsGettingPresences;
-                        }
+                // remove presence events because they will be retrieved by a global request
+                // same behaviours for the typing events
+                // they are also ignored when the sync profile does not require them.
+                Boolean isGettingsPresence;
 
-                        if (isGettingsPresence) {
-                            ArrayList<Event> events = new ArrayList<Event>();
+                synchronized (mApiClient) {
+                    isGettingsPresence = mIsGettingPresences;
+                }
 
-                            for(Event event : eventsResponse.chunk) {
-                                if (!Event.EVENT_TYPE_PRESENCE.equals(event.type) && !Event.EVENT_TYPE_TYPING.equals(event.type)) {
-                                    events.add(event);
-                                }
-                            }
+                if ((null != eventsResponse.chunk) && (isGettingsPresence || !syncProfile.withEphemeralEvents())) {
+                    ArrayList<Event> events = new ArrayList<Event>();
 
-                            eventsResponse.chunk = events;
+                    for(Event event : eventsResponse.chunk) {
+                        if (!Event.EVENT_TYPE_PRESENCE.equals(event.type) && !Event.EVENT_TYPE_TYPING.equals(event.type)) {
+                            events.add(event);
                         }
+                    }
 
-                        // the catchup request is done once.
-                        if (mIsCatchingUp) {
-                            Log.e(LOG_TAG, "Stop the catchup");
-                            // stop any catch up
-                            mIsCatchingUp = false;
-                            mPaused = true;
-                        }
+                    eventsResponse.chunk = events;
+                }
+
+                boolean isEmptyChunk = (null == eventsResponse.chunk) || (0 == eventsResponse.chunk.size());
+                // true when the stream is late : it has been paused, or it has received a large chunk
+                boolean isLate = !isEmptyChunk && (isResuming || (eventsResponse.chunk.size() >= CATCHUP_MIN_CHUNK_SIZE));
+                boolean isCatchingUp;
+                // the late events are batched too : the live events are processed one by one
+                boolean isBatched;
+
+                mStateLock.lock();
+
+                try {
+                    isCatchingUp = (State.CATCHING_UP == mState);
 
-                        mListener.onEventsReceived(eventsResponse.chunk, eventsResponse.end);
-                        mCurrentToken = eventsResponse.end;
+                    // the catchup is done when the stream head is reached.
+                    if (isCatchingUp && isEmptyChunk) {
+                        Log.d(LOG_TAG, "Stop the catchup");
+                        mState = State.PAUSED;
+                        mStateVersion++;
                     }
 
+                    isBatched = isCatchingUp || isLate || (mCatchupEvents.size() > 0);
+
                     // reset to the default value
-                    mEventRequestTimeout = EventsRestClient.EVENT_STREAM_TIMEOUT_MS;
+                    mEventRequestTimeout = mSyncProfile.getEventsTimeoutMs();
+                    mRetryBackoff.reset();
+                } finally {
+                    mStateLock.unlock();
+                }
 
-                } catch (Exception e) {
-                    Log.e(LOG_TAG, "Waiting a bit before retrying : " + e.getMessage());
+                if (isBatched) {
+                    // the caught up events are processed together
+                    if (!isEmptyChunk) {
+                        if (0 == mCatchupEvents.size()) {
+                            mCatchupFromToken = token;
+                            mCatchupGeneration = generation;
+                        }
 
-                    if ((mEventsFailureCallback != null) && (e instanceof RetrofitError)) {
-                        mEventsFailureCallback.failure((RetrofitError) e);
+                        mCatchupEvents.addAll(eventsResponse.chunk);
                     }
+                    mCatchupToken = eventsResponse.end;
 
-                    boolean isConnected;
-                    synchronized (this) {
-                        isConnected = mbIsConnected;
+                    // the stream has caught up when its head is reached, or when a small chunk is received while running
+                    if (isEmptyChunk || (mCatchupEvents.size() >= MAX_CATCHUP_BATCH_SIZE)
+                            || (!isCatchingUp && (eventsResponse.chunk.size() < CATCHUP_MIN_CHUNK_SIZE))) {
+                        flushCatchupEvents();
                     }
+                } else {
+                    // the next request is sent while this chunk is processed.
+                    enqueueChunk(new EventsChunk(eventsResponse.chunk, token, eventsResponse.end, false, generation));
+                }
 
-                    // detected if the device is connected before trying again
-                    if (isConnected) {
-                        try {
-                            Thread.sleep(RETRY_WAIT_TIME_MS);
-                        } catch (InterruptedException e1) {
-                            Log.e(LOG_TAG, "Unexpected interruption while sleeping: " + e1.getMessage());
-                        }
-                    } else {
-                        // no network -> wait that a network connection comes back.
+                mCurrentToken = eventsResponse.end;
+
+                // the stream has caught up : wait before the next catchup
+                if ((syncProfile.getCatchupIntervalMs() > 0) && isEmptyChunk) {
+                    Log.d(LOG_TAG, "Next catchup in " + syncProfile.getCatchupIntervalMs() + " ms");
+                    waitForStateUpdate(syncProfile.getCatchupIntervalMs());
+                }
+            } catch (CancellationException e) {
+                Log.d(LOG_TAG, "The events request has been cancelled");
+            } catch (Exception e) {
+                Log.e(LOG_TAG, "Events request failed : " + e.getMessage());
+
+                if ((mEventsFailureCallback != null) && (e instanceof RetrofitError)) {
+                    mEventsFailureCallback.failure((RetrofitError) e);
+                }
+
+                boolean isConnected;
+
+                mStateLock.lock();
+
+                try {
+                    isConnected = mbIsConnected;
+
+                    // no network -> wait that a network connection comes back.
+                    if (!isConnected) {
                         mIsNetworkSuspended = true;
                     }
+                } finally {
+                    mStateLock.unlock();
+                }
+
+                // detected if the device is connected before trying again
+                if (isConnected) {
+                    waitBeforeRetrying(e);
                 }
             }
         }
@@ -426,6 +989,192 @@ public class EventsThread extends Thread {
         if (null != mNetworkConnectivityReceiver) {
             mNetworkConnectivityReceiver.removeEventListener(mNetworkListener);
         }
+
+        mRequestsExecutor.shutdownNow();
+
+        // the received chunks are processed before terminating
+        stopProcessingThread();
+
         Log.d(LOG_TAG, "Event stream terminating.");
     }
+
+    /**
+     * Start the thread which processes the received chunks in their reception order.
+     */
+    private void startProcessingThread() {
+        mProcessingThread = new Thread("Events processing thread") {
+            @Override
+            public void run() {
+                while (true) {
+                    EventsChunk chunk;
+
+                    try {
+                        chunk = mProcessingQueue.take();
+                    } catch (InterruptedException e) {
+                        Log.e(LOG_TAG, "Unexpected interruption while waiting for a chunk: " + e.getMessage());
+                        continue;
+                    }
+
+                    if (END_OF_STREAM == chunk) {
+                        break;
+                    }
+
+                    if (!isCurrentChunkGeneration(chunk)) {
+                        Log.d(LOG_TAG, "Ignore a chunk received after a failed one");
+                        continue;
+                    }
+
+                    try {
+                        if (chunk.mIsCatchup) {
+                            mListener.onCatchupEventsReceived(chunk.mEvents, chunk.mToken);
+                        } else {
+                            mListener.onEventsReceived(chunk.mEvents, chunk.mToken);
+                        }
+
+                        mFailedChunkFromToken = null;
+                    } catch (Exception e) {
+                        Log.e(LOG_TAG, "Failed to process a chunk: " + e.getMessage());
+                        onChunkProcessingFailed(chunk);
+                    }
+                }
+
+                Log.d(LOG_TAG, "Events processing terminating.");
+            }
+        };
+
+        mProcessingThread.start();
+    }
+
+    /**
+     * @param chunk the chunk
+     * @return false if the chunk has been received after a failed chunk : its events are requested again.
+     */
+    private boolean isCurrentChunkGeneration(EventsChunk chunk) {
+        mStateLock.lock();
+
+        try {
+            return chunk.mGeneration == mChunksGeneration;
+        } finally {
+            mStateLock.unlock();
+        }
+    }
+
+    /**
+     * Request the events of a chunk again when its processing has failed.
+     * The next received chunks are ignored until the events are received again.
+     * The chunk is lost after MAX_CHUNK_PROCESSING_ATTEMPTS failures.
+     * @param chunk the failed chunk
+     */
+    private void onChunkProcessingFailed(EventsChunk chunk) {
+        if (TextUtils.equals(chunk.mFromToken, mFailedChunkFromToken)) {
+            mFailedChunkAttempts++;
+        } else {
+            mFailedChunkFromToken = chunk.mFromToken;
+            mFailedChunkAttempts = 1;
+        }
+
+        if ((null == chunk.mFromToken) || (mFailedChunkAttempts >= MAX_CHUNK_PROCESSING_ATTEMPTS)) {
+            // the next chunks are processed.
+            Log.e(LOG_TAG, "The chunk is lost after " + mFailedChunkAttempts + " processing failures");
+            mFailedChunkFromToken = null;
+            return;
+        }
+
+        mStateLock.lock();
+
+        try {
+            mChunksGeneration++;
+            mRewindToken = chunk.mFromToken;
+
+            // the running request would receive ignored events
+            if (null != mRunningRequest) {
+                mRunningRequest.cancel(true);
+                mRunningRequest = null;
+            }
+
+            signalStateChanged();
+        } finally {
+            mStateLock.unlock();
+        }
+    }
+
+    /**
+     * @return true if the stream is catching up, or is running : the batched events are processed when the stream has caught up.
+     */
+    private boolean isBatchingEvents() {
+        mStateLock.lock();
+
+        try {
+            return (State.CATCHING_UP == mState) || ((State.RUNNING == mState) && !mIsNetworkSuspended);
+        } finally {
+            mStateLock.unlock();
+        }
+    }
+
+    /**
+     * Send the caught up events to the processing thread.
+     */
+    private void flushCatchupEvents() {
+        if (mCatchupEvents.size() > 0) {
+            Log.d(LOG_TAG, "Process " + mCatchupEvents.size() + " caught up events");
+            enqueueChunk(new EventsChunk(mCatchupEvents, mCatchupFromToken, mCatchupToken, true, mCatchupGeneration));
+            mCatchupEvents = new ArrayList<Event>();
+        }
+    }
+
+    /**
+     * Add a chunk to the processing queue.
+     * Wait until there is some space in the queue if the processing thread falls behind.
+     * @param chunk the chunk
+     */
+    private void enqueueChunk(EventsChunk chunk) {
+        boolean isQueued = mProcessingQueue.offer(chunk);
+
+        if (isQueued) {
+            return;
+        }
+
+        // the processing thread falls behind
+        mStateLock.lock();
+
+        try {
+            setEventsThreadWaiting(true);
+        } finally {
+            mStateLock.unlock();
+        }
+
+        while (!isQueued) {
+            try {
+                mProcessingQueue.put(chunk);
+                isQueued = true;
+            } catch (InterruptedException e) {
+                Log.e(LOG_TAG, "Unexpected interruption while queueing a chunk: " + e.getMessage());
+            }
+        }
+
+        mStateLock.lock();
+
+        try {
+            setEventsThreadWaiting(false);
+        } finally {
+            mStateLock.unlock();
+        }
+    }
+
+    /**
+     * Stop the processing thread once the queued chunks are processed.
+     */
+    private void stopProcessingThread() {
+        if (null != mProcessingThread) {
+            enqueueChunk(END_OF_STREAM);
+
+            try {
+                mProcessingThread.join();
+            } catch (InterruptedException e) {
+                Log.e(LOG_TAG, "Unexpected interruption while stopping the processing: " + e.getMessage());
+            }
+
+            mProcessingThread = null;
+        }
+    }
 }
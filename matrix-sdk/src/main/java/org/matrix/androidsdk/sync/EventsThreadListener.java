@@ -2,6 +2,7 @@ package org.matrix.androidsdk.sync;
 
 import org.matrix.androidsdk.rest.model.Event;
 import org.matrix.androidsdk.rest.model.InitialSyncResponse;
+import org.matrix.androidsdk.rest.model.RoomResponse;
 
 import java.util.List;
 
@@ -10,8 +11,22 @@ import java.util.List;
  */
 public interface EventsThreadListener {
 
+    /**
+     * Called for each batch of presences read from the initial sync response.
+     * @param presences the presence events
+     */
+    public void onInitialSyncPresences(List<Event> presences);
+
+    /**
+     * Called for each room read from the initial sync response.
+     * @param roomResponse the room
+     */
+    public void onInitialSyncRoom(RoomResponse roomResponse);
+
     /**
      * Called with the response of the initial sync.
+     * When the response is read as a stream, its rooms and its presences have already been provided
+     * by onInitialSyncRoom and onInitialSyncPresences : the response only has its end token.
      * @param response the response (can be null)
      */
     public void onInitialSyncComplete(InitialSyncResponse response);
@@ -24,8 +39,17 @@ public interface EventsThreadListener {
 
     /**
      * Called every time events come down the stream.
+     * The chunks are provided in their reception order, from the events processing thread.
      * @param events the events
      * @param latestToken the token of the latest event
      */
     public void onEventsReceived(List<Event> events, String latestToken);
+
+    /**
+     * Called with the events retrieved by a catchup, which can be many.
+     * They should be processed as a single batch.
+     * @param events the events
+     * @param latestToken the token of the latest event
+     */
+    public void onCatchupEventsReceived(List<Event> events, String latestToken);
 }
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2015 OpenMarket Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrix.androidsdk.sync;
+
+import java.util.Random;
+
+/**
+ * Delays between the retries of a failing request : exponential backoff with decorrelated jitter.
+ * Each delay is randomly picked between the base delay and three times the previous delay, up to a maximum.
+ * The randomness spreads the retries of the clients which have failed together (e.g. while the server was restarting).
+ * It also provides some retry metrics. This class is thread safe.
+ */
+public class RetryBackoff {
+
+    public static final long DEFAULT_BASE_DELAY_MS = 1000;
+    public static final long DEFAULT_MAX_DELAY_MS = 2 * 60 * 1000;
+
+    private final long mBaseDelayMs;
+    private final long mMaxDelayMs;
+    private final Random mRandom;
+
+    // the latest delay since the latest success
+    private long mPreviousDelayMs;
+
+    // metrics
+    private int mRetriesCount = 0;
+    private int mConsecutiveFailuresCount = 0;
+    private int mRateLimitedRetriesCount = 0;
+    private long mLastDelayMs = 0;
+    private long mTotalDelayMs = 0;
+
+    /**
+     * Default constructor.
+     */
+    public RetryBackoff() {
+        this(DEFAULT_BASE_DELAY_MS, DEFAULT_MAX_DELAY_MS, new Random());
+    }
+
+    /**
+     * Constructor.
+     * @param baseDelayMs the minimum delay
+     * @param maxDelayMs the maximum delay
+     * @param random the random generator
+     */
+    RetryBackoff(long baseDelayMs, long maxDelayMs, Random random) {
+        mBaseDelayMs = baseDelayMs;
+        mMaxDelayMs = maxDelayMs;
+        mRandom = random;
+        mPreviousDelayMs = baseDelayMs;
+    }
+
+    /**
+     * Compute the delay before the next retry after a failure.
+     * @return the delay in milliseconds.
+     */
+    public synchronized long nextDelay() {
+        return onRetry(randomDelay());
+    }
+
+    /**
+     * Compute the delay before the next retry after a rate limited failure.
+     * @param retryAfterMs the delay requested by the server.
+     * @return the delay in milliseconds, never less than the requested one.
+     */
+    public synchronized long nextRateLimitedDelay(long retryAfterMs) {
+        mRateLimitedRetriesCount++;
+        return onRetry(Math.max(retryAfterMs, randomDelay()));
+    }
+
+    /**
+     * @return a random delay between the base delay and three times the previous delay.
+     */
+    private long randomDelay() {
+        long upperBound = Math.min(mMaxDelayMs, mPreviousDelayMs * 3);
+        return mBaseDelayMs + (long) (mRandom.nextDouble() * Math.max(0, upperBound - mBaseDelayMs));
+    }
+
+    /**
+     * Update the metrics with a new retry.
+     * @param delay the retry delay
+     * @return the delay
+     */
+    private long onRetry(long delay) {
+        mPreviousDelayMs = delay;
+
+        mRetriesCount++;
+        mConsecutiveFailuresCount++;
+        mLastDelayMs = delay;
+        mTotalDelayMs += delay;
+
+        return delay;
+    }
+
+    /**
+     * The request has succeeded : the next failure is retried after the base delay.
+     */
+    public synchronized void reset() {
+        mPreviousDelayMs = mBaseDelayMs;
+        mConsecutiveFailuresCount = 0;
+    }
+
+    /**
+     * @return the number of retries.
+     */
+    public synchronized int getRetriesCount() {
+        return mRetriesCount;
+    }
+
+    /**
+     * @return the number of failures since the latest success.
+     */
+    public synchronized int getConsecutiveFailuresCount() {
+        return mConsecutiveFailuresCount;
+    }
+
+    /**
+     * @return the number of retries delayed by the server rate limiting.
+     */
+    public synchronized int getRateLimitedRetriesCount() {
+        return mRateLimitedRetriesCount;
+    }
+
+    /**
+     * @return the latest retry delay in milliseconds.
+     */
+    public synchronized long getLastDelayMs() {
+        return mLastDelayMs;
+    }
+
+    /**
+     * @return the sum of the retry delays in milliseconds.
+     */
+    public synchronized long getTotalDelayMs() {
+        return mTotalDelayMs;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "retries : " + mRetriesCount + " (" + mConsecutiveFailuresCount + " consecutive, " + mRateLimitedRetriesCount + " rate limited)" +
+                ", last delay : " + mLastDelayMs + " ms, total delay : " + mTotalDelayMs + " ms";
+    }
+}
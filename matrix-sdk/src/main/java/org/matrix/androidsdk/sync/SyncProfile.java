@@ -0,0 +1,84 @@
+/*
+ * Copyright 2015 OpenMarket Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrix.androidsdk.sync;
+
+/**
+ * How the event stream is requested : the session switches between these profiles
+ * according to the application state.
+ */
+public class SyncProfile {
+
+    /**
+     * The application is displayed : the events are received with a low latency, with the presences and the typing notifications.
+     */
+    public static final SyncProfile FOREGROUND = new SyncProfile("foreground", 15000, true, 0);
+
+    /**
+     * The application is in background : fewer requests, the presences and the typing notifications are ignored.
+     * The timeout must be less than the read timeout of the http client (60s).
+     */
+    public static final SyncProfile BACKGROUND = new SyncProfile("background", 50000, false, 0);
+
+    /**
+     * The device should save its battery : no long poll, the missed events are requested every 5 minutes.
+     */
+    public static final SyncProfile LOW_POWER = new SyncProfile("low power", 0, false, 5 * 60 * 1000);
+
+    private final String mName;
+    private final int mEventsTimeoutMs;
+    private final boolean mWithEphemeralEvents;
+    private final long mCatchupIntervalMs;
+
+    /**
+     * Constructor.
+     * @param name the profile name
+     * @param eventsTimeoutMs the max time the server waits for some events before responding to an events request.
+     * @param withEphemeralEvents true to keep the presence and typing events.
+     * @param catchupIntervalMs if positive, the stream stops when it has caught up, and catches up again after this delay.
+     */
+    public SyncProfile(String name, int eventsTimeoutMs, boolean withEphemeralEvents, long catchupIntervalMs) {
+        mName = name;
+        mEventsTimeoutMs = eventsTimeoutMs;
+        mWithEphemeralEvents = withEphemeralEvents;
+        mCatchupIntervalMs = catchupIntervalMs;
+    }
+
+    /**
+     * @return the max time the server waits for some events before responding to an events request.
+     */
+    public int getEventsTimeoutMs() {
+        return mEventsTimeoutMs;
+    }
+
+    /**
+     * @return true if the presence and typing events are kept.
+     */
+    public boolean withEphemeralEvents() {
+        return mWithEphemeralEvents;
+    }
+
+    /**
+     * @return the delay between two catchups, 0 if the stream is continuous.
+     */
+    public long getCatchupIntervalMs() {
+        return mCatchupIntervalMs;
+    }
+
+    @Override
+    public String toString() {
+        return mName;
+    }
+}
@@ -151,7 +151,7 @@ public class BingRulesManager {
                     // so their ruleId defines the method
                     if (BingRule.RULE_ID_CONTAIN_USER_NAME.equals(bingRule.ruleId) || BingRule.RULE_ID_CONTAIN_DISPLAY_NAME.equals(bingRule.ruleId)) {
                         if (event.EVENT_TYPE_MESSAGE.equals(event.type)) {
-                            Message message = JsonUtils.toMessage(event.content);
+                            Message message = event.getMessage();
                             MyUser myUser =  mSession.getMyUser();
                             String pattern = myUser.displayname;
 
@@ -0,0 +1,264 @@
+/*
+ * Copyright 2015 OpenMarket Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrix.androidsdk.util;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Bytes accounting of a files tree.
+ * The bytes are counted by key (e.g. a room id or a media category) and the counters are updated
+ * when the files are written or deleted, so the disk usage is provided without listing the files.
+ * The counters are saved in a file and they are reconciled with a walk of the files tree from time to time.
+ * This class is thread safe.
+ */
+public class DiskUsageAccount {
+    private static final String LOG_TAG = "DiskUsageAccount";
+
+    // the counters are reconciled with the files tree after this delay
+    public static final long RECONCILIATION_PERIOD_MS = 7L * 24 * 60 * 60 * 1000;
+
+    private static final int FILE_VERSION = 1;
+
+    // the bytes count by key
+    private final HashMap<String, Long> mBytes = new HashMap<String, Long>();
+
+    // the latest reconciliation time, 0 if the counters have never been reconciled
+    private long mReconciliationTime = 0;
+
+    // true when the counters have been updated since the latest save
+    private boolean mHasChanged = false;
+
+    /**
+     * Add some bytes to a counter.
+     * @param key the key
+     * @param delta the bytes count to add (negative when some bytes have been deleted).
+     */
+    public synchronized void add(String key, long delta) {
+        if ((null != key) && (0 != delta)) {
+            set(key, get(key) + delta);
+        }
+    }
+
+    /**
+     * Set a counter.
+     * @param key the key
+     * @param bytes the bytes count
+     */
+    public synchronized void set(String key, long bytes) {
+        if (null == key) {
+            return;
+        }
+
+        bytes = Math.max(bytes, 0);
+
+        if (bytes != get(key)) {
+            if (0 == bytes) {
+                mBytes.remove(key);
+            } else {
+                mBytes.put(key, bytes);
+            }
+
+            mHasChanged = true;
+        }
+    }
+
+    /**
+     * @param key the key
+     * @return the bytes count of a key.
+     */
+    public synchronized long get(String key) {
+        Long bytes = mBytes.get(key);
+        return (null != bytes) ? bytes : 0;
+    }
+
+    /**
+     * @return the bytes count of all the keys.
+     */
+    public synchronized long total() {
+        long total = 0;
+
+        for (Long bytes : mBytes.values()) {
+            total += bytes;
+        }
+
+        return total;
+    }
+
+    /**
+     * Replace all the counters with the ones computed by a walk of the files tree.
+     * @param bytes the bytes count by key
+     */
+    public synchronized void reconcile(Map<String, Long> bytes) {
+        mBytes.clear();
+
+        for (Map.Entry<String, Long> entry : bytes.entrySet()) {
+            if ((null != entry.getValue()) && (entry.getValue() > 0)) {
+                mBytes.put(entry.getKey(), entry.getValue());
+            }
+        }
+
+        mReconciliationTime = System.currentTimeMillis();
+        mHasChanged = true;
+    }
+
+    /**
+     * Remove all the counters (e.g. the files tree has been deleted).
+     */
+    public synchronized void clear() {
+        reconcile(new HashMap<String, Long>());
+    }
+
+    /**
+     * @return true if the counters have never been reconciled or if the latest reconciliation is too old.
+     */
+    public synchronized boolean needsReconciliation() {
+        long now = System.currentTimeMillis();
+        return (0 == mReconciliationTime) || (now < mReconciliationTime) || ((now - mReconciliationTime) > RECONCILIATION_PERIOD_MS);
+    }
+
+    /**
+     * @return true if the counters have been updated since the latest save.
+     */
+    public synchronized boolean hasChanged() {
+        return mHasChanged;
+    }
+
+    /**
+     * Compute the size of a file or a directory.
+     * This walk is the reconciliation pass : it should not be used for each disk usage request.
+     * @param file the file or the directory.
+     * @return the bytes count
+     */
+    public static long walk(File file) {
+        long size = 0;
+
+        if (file.isDirectory()) {
+            File[] files = file.listFiles();
+
+            if (null != files) {
+                for (File child : files) {
+                    size += walk(child);
+                }
+            }
+        } else {
+            size = file.length();
+        }
+
+        return size;
+    }
+
+    /**
+     * Save the counters in a file.
+     * The file is replaced when the new one is completely written.
+     * @param file the file
+     */
+    public void save(File file) {
+        HashMap<String, Long> bytes;
+        long reconciliationTime;
+
+        synchronized (this) {
+            bytes = new HashMap<String, Long>(mBytes);
+            reconciliationTime = mReconciliationTime;
+            mHasChanged = false;
+        }
+
+        File tmpFile = new File(file.getPath() + ".tmp");
+
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+
+            try {
+                out.writeInt(FILE_VERSION);
+                out.writeLong(reconciliationTime);
+                out.writeInt(bytes.size());
+
+                for (Map.Entry<String, Long> entry : bytes.entrySet()) {
+                    out.writeUTF(entry.getKey());
+                    out.writeLong(entry.getValue());
+                }
+            } finally {
+                out.close();
+            }
+
+            if (!tmpFile.renameTo(file)) {
+                file.delete();
+
+                if (!tmpFile.renameTo(file)) {
+                    throw new IOException("Cannot rename " + tmpFile.getName());
+                }
+            }
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "save failed : " + e.getMessage());
+            tmpFile.delete();
+
+            synchronized (this) {
+                mHasChanged = true;
+            }
+        }
+    }
+
+    /**
+     * Load the counters saved with save.
+     * The counters are reset and flagged to be reconciled if the file cannot be read.
+     * @param file the file
+     */
+    public void load(File file) {
+        HashMap<String, Long> bytes = new HashMap<String, Long>();
+        long reconciliationTime = 0;
+
+        if (file.exists()) {
+            try {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+
+                try {
+                    if (FILE_VERSION == in.readInt()) {
+                        reconciliationTime = in.readLong();
+                        int count = in.readInt();
+
+                        for (int i = 0; i < count; i++) {
+                            String key = in.readUTF();
+                            bytes.put(key, in.readLong());
+                        }
+                    }
+                } finally {
+                    in.close();
+                }
+            } catch (Exception e) {
+                Log.e(LOG_TAG, "load failed : " + e.getMessage());
+                bytes.clear();
+                reconciliationTime = 0;
+            }
+        }
+
+        synchronized (this) {
+            mBytes.clear();
+            mBytes.putAll(bytes);
+            mReconciliationTime = reconciliationTime;
+            mHasChanged = false;
+        }
+    }
+}
@@ -82,19 +82,19 @@ public class EventDisplay {
                 }
             }
             else if (Event.EVENT_TYPE_MESSAGE.equals(mEvent.type)) {
-                String msgtype = (null != mEvent.content.get("msgtype")) ? mEvent.content.get("msgtype").getAsString() : "";
+                String msgtype = (null != mEvent.getContent().get("msgtype")) ? mEvent.getContent().get("msgtype").getAsString() : "";
 
                 if (msgtype.equals(Message.MSGTYPE_IMAGE)) {
                     text = mContext.getString(R.string.summary_user_sent_image, userDisplayName);
                 } else {
                     // all m.room.message events should support the 'body' key fallback, so use it.
-                    text = mEvent.content.get("body") == null ? null : mEvent.content.get("body").getAsString();
+                    text = mEvent.getContent().get("body") == null ? null : mEvent.getContent().get("body").getAsString();
 
                     // check for html formatting
-                    if (mEvent.content.has("formatted_body") && mEvent.content.has("format")) {
-                        String format = mEvent.content.getAsJsonPrimitive("format").getAsString();
+                    if (mEvent.getContent().has("formatted_body") && mEvent.getContent().has("format")) {
+                        String format = mEvent.getContent().getAsJsonPrimitive("format").getAsString();
                         if ("org.matrix.custom.html".equals(format)) {
-                            text = Html.fromHtml(mEvent.content.getAsJsonPrimitive("formatted_body").getAsString());
+                            text = Html.fromHtml(mEvent.getContent().getAsJsonPrimitive("formatted_body").getAsString());
                         }
                     }
 
@@ -108,18 +108,18 @@ public class EventDisplay {
             else if (Event.EVENT_TYPE_STATE_ROOM_TOPIC.equals(mEvent.type)) {
                 // pretty print 'XXX changed the topic to YYYY'
                 text = mContext.getString(R.string.notice_topic_changed,
-                        userDisplayName, mEvent.content.getAsJsonPrimitive("topic").getAsString());
+                        userDisplayName, mEvent.getContent().getAsJsonPrimitive("topic").getAsString());
             }
             else if (Event.EVENT_TYPE_STATE_ROOM_NAME.equals(mEvent.type)) {
                 // pretty print 'XXX changed the room name to YYYY'
                 text = mContext.getString(R.string.notice_room_name_changed,
-                        userDisplayName, mEvent.content.getAsJsonPrimitive("name").getAsString());
+                        userDisplayName, mEvent.getContent().getAsJsonPrimitive("name").getAsString());
             }
             else if (Event.EVENT_TYPE_STATE_ROOM_MEMBER.equals(mEvent.type)) {
                 // m.room.member is used to represent at least 3 different changes in state: membership,
                 // avatar pic url and display name. We need to figure out which thing changed to display
                 // the right text.
-                JsonObject prevState = mEvent.prevContent;
+                JsonObject prevState = mEvent.getPrevContent();
                 if (prevState == null) {
                     // if there is no previous state, it has to be an invite or a join as they are the first
                     // m.room.member events for a user.
@@ -154,20 +154,20 @@ public class EventDisplay {
     }
 
     public static String getMembershipNotice(Context context, Event msg, RoomState roomState) {
-        String membership = msg.content.getAsJsonPrimitive("membership").getAsString();
+        String membership = msg.getContent().getAsJsonPrimitive("membership").getAsString();
         String userDisplayName = null;
 
         String prevMembership = null;
 
-        if (null != msg.prevContent) {
-            prevMembership = msg.prevContent.getAsJsonPrimitive("membership").getAsString();
+        if (null != msg.getPrevContent()) {
+            prevMembership = msg.getPrevContent().getAsJsonPrimitive("membership").getAsString();
         }
 
         // the displayname could be defined in the event
         // use it instead of the getUserDisplayName result
         // the user could have joined the before his roomMember has been created.
-        if (msg.content.has("displayname")) {
-            userDisplayName =  msg.content.get("displayname") == JsonNull.INSTANCE ? null : msg.content.get("displayname").getAsString();
+        if (msg.getContent().has("displayname")) {
+            userDisplayName =  msg.getContent().get("displayname") == JsonNull.INSTANCE ? null : msg.getContent().get("displayname").getAsString();
         }
 
         // cannot retrieve the display name from the event
@@ -212,15 +212,15 @@ public class EventDisplay {
     private String getDisplayNameChangeNotice(Event msg) {
         return mContext.getString(R.string.notice_display_name_changed,
                 msg.userId,
-                msg.content.getAsJsonPrimitive("displayname").getAsString()
+                msg.getContent().getAsJsonPrimitive("displayname").getAsString()
         );
     }
 
     private boolean hasStringValueChanged(Event msg, String key) {
-        JsonObject prevContent = msg.prevContent;
-        if (prevContent.has(key) && msg.content.has(key)) {
+        JsonObject prevContent = msg.getPrevContent();
+        if (prevContent.has(key) && msg.getContent().has(key)) {
             String old = prevContent.get(key) == JsonNull.INSTANCE ? null : prevContent.get(key).getAsString();
-            String current = msg.content.get(key) == JsonNull.INSTANCE ? null : msg.content.get(key).getAsString();
+            String current = msg.getContent().get(key) == JsonNull.INSTANCE ? null : msg.getContent().get(key).getAsString();
             if (old == null && current == null) {
                 return false;
             }
@@ -231,7 +231,7 @@ public class EventDisplay {
                 return !current.equals(old);
             }
         }
-        else if (!prevContent.has(key) && !msg.content.has(key)) {
+        else if (!prevContent.has(key) && !msg.getContent().has(key)) {
             return false; // this key isn't in either prev or current
         }
         else {
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2015 OpenMarket Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrix.androidsdk.util;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+import org.matrix.androidsdk.data.RoomState;
+import org.matrix.androidsdk.rest.model.Event;
+import org.matrix.androidsdk.rest.model.RoomMember;
+
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Pool of the identifiers of a session : the event types, the room ids, the user ids,
+ * the memberships, the display names and the avatar urls.
+ *
+ * The same few thousand strings are read again and again from the server responses and from the store,
+ * so the readers replace each read string by its pooled instance and the model objects share them.
+ * The pool only holds weak references : an identifier which is not used anymore is released.
+ * This class is thread safe.
+ */
+public class IdentifierPool {
+
+    // the longer strings are not identifiers (e.g. a message body)
+    private static final int MAX_IDENTIFIER_LENGTH = 256;
+
+    private final Map<String, WeakReference<String>> mIdentifiers = new WeakHashMap<String, WeakReference<String>>();
+
+    /**
+     * Provides the pooled instance of a string.
+     * @param value the string
+     * @return the pooled instance, the string itself if it is not pooled yet or if it is too long.
+     */
+    public String intern(String value) {
+        if ((null == value) || (value.length() > MAX_IDENTIFIER_LENGTH)) {
+            return value;
+        }
+
+        synchronized (mIdentifiers) {
+            WeakReference<String> ref = mIdentifiers.get(value);
+            String pooled = (null != ref) ? ref.get() : null;
+
+            if (null == pooled) {
+                mIdentifiers.put(value, new WeakReference<String>(value));
+                pooled = value;
+            }
+
+            return pooled;
+        }
+    }
+
+    /**
+     * Replace the string values of a content by their pooled instances.
+     * Only the top level values are pooled : e.g. the membership, the display name and the avatar url of a member.
+     * @param content the content
+     */
+    public void internContent(JsonObject content) {
+        if (null == content) {
+            return;
+        }
+
+        for (Map.Entry<String, JsonElement> entry : content.entrySet()) {
+            JsonElement value = entry.getValue();
+
+            if ((value instanceof JsonPrimitive) && ((JsonPrimitive) value).isString()) {
+                String string = value.getAsString();
+                String pooled = intern(string);
+
+                if (pooled != string) {
+                    entry.setValue(new JsonPrimitive(pooled));
+                }
+            }
+        }
+    }
+
+    /**
+     * Replace the identifiers of an event by their pooled instances.
+     * @param event the event
+     */
+    public void internIdentifiers(Event event) {
+        if (null != event) {
+            event.type = intern(event.type);
+            event.roomId = intern(event.roomId);
+            event.userId = intern(event.userId);
+            event.stateKey = intern(event.stateKey);
+            event.setMatrixId(intern(event.getMatrixId()));
+        }
+    }
+
+    /**
+     * Replace the identifiers of a room member by their pooled instances.
+     * @param member the member
+     */
+    public void internIdentifiers(RoomMember member) {
+        if (null != member) {
+            member.setUserId(intern(member.getUserId()));
+            member.displayname = intern(member.displayname);
+            member.avatarUrl = intern(member.avatarUrl);
+            member.membership = intern(member.membership);
+        }
+    }
+
+    /**
+     * Replace the identifiers of the members of a room state by their pooled instances.
+     * @param state the room state
+     */
+    public void internIdentifiers(RoomState state) {
+        if (null != state) {
+            state.roomId = intern(state.roomId);
+
+            for (RoomMember member : state.getMembers()) {
+                internIdentifiers(member);
+            }
+        }
+    }
+
+    /**
+     * @return the number of pooled identifiers.
+     */
+    public int size() {
+        synchronized (mIdentifiers) {
+            return mIdentifiers.size();
+        }
+    }
+}
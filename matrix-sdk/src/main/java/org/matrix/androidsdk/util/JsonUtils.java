@@ -22,6 +22,7 @@ import com.google.gson.JsonObject;
 
 import org.matrix.androidsdk.data.RoomState;
 import org.matrix.androidsdk.rest.json.ConditionDeserializer;
+import org.matrix.androidsdk.rest.json.ModelTypeAdapterFactory;
 import org.matrix.androidsdk.rest.model.ContentResponse;
 import org.matrix.androidsdk.rest.model.Event;
 import org.matrix.androidsdk.rest.model.FileMessage;
@@ -41,26 +42,52 @@ import java.lang.reflect.Modifier;
  */
 public class JsonUtils {
 
-    private static Gson gson = new GsonBuilder()
-            .setFieldNamingPolicy(FieldNamingPolicy.LOWER_CASE_WITH_UNDERSCORES)
-            .excludeFieldsWithModifiers(Modifier.PRIVATE, Modifier.STATIC)
-            .registerTypeAdapter(Condition.class, new ConditionDeserializer())
-            .create();
+    private static Gson gson = createGson(false, null);
 
     // add a call to serializeNulls().
     // by default the null parameters are not sent in the requests.
     // serializeNulls forces to add them.
-    private static Gson gsonWithNullSerialization = new GsonBuilder()
-            .setFieldNamingPolicy(FieldNamingPolicy.LOWER_CASE_WITH_UNDERSCORES)
-            .excludeFieldsWithModifiers(Modifier.PRIVATE, Modifier.STATIC)
-            .serializeNulls()
-            .registerTypeAdapter(Condition.class, new ConditionDeserializer())
-            .create();
+    private static Gson gsonWithNullSerialization = createGson(true, null);
+
+    /**
+     * Create a gson instance.
+     * @param withNullSerialization true to serialize the null fields.
+     * @param identifierPool the pool of the read identifiers, null to not pool them.
+     * @return the gson instance
+     */
+    private static Gson createGson(boolean withNullSerialization, IdentifierPool identifierPool) {
+        GsonBuilder builder = new GsonBuilder()
+                .setFieldNamingPolicy(FieldNamingPolicy.LOWER_CASE_WITH_UNDERSCORES)
+                .excludeFieldsWithModifiers(Modifier.PRIVATE, Modifier.STATIC);
+
+        if (withNullSerialization) {
+            builder.serializeNulls();
+        }
+
+        return builder
+                .registerTypeAdapter(Condition.class, new ConditionDeserializer())
+                .registerTypeAdapterFactory(new ModelTypeAdapterFactory(identifierPool))
+                .create();
+    }
 
     public static Gson getGson(boolean withNullSerialization) {
         return withNullSerialization ? gsonWithNullSerialization : gson;
     }
 
+    /**
+     * Provides a gson instance which pools the read identifiers of a session.
+     * @param withNullSerialization true to serialize the null fields.
+     * @param identifierPool the identifiers pool of the session, null to not pool them.
+     * @return the gson instance
+     */
+    public static Gson getGson(boolean withNullSerialization, IdentifierPool identifierPool) {
+        if (null == identifierPool) {
+            return getGson(withNullSerialization);
+        }
+
+        return createGson(withNullSerialization, identifierPool);
+    }
+
     public static RoomState toRoomState(JsonObject jsonObject) {
         return gson.fromJson(jsonObject, RoomState.class);
     }
@@ -77,29 +104,14 @@ public class JsonUtils {
         return (JsonObject) gson.toJsonTree(roomMember);
     }
 
+    /**
+     * Convert a message content to the Message subclass of its msgtype.
+     * The content is read once : see PolymorphicMessageTypeAdapter to read the custom msgtypes.
+     * @param jsonObject the message content
+     * @return the message
+     */
     public static Message toMessage(JsonObject jsonObject) {
-        Message message = gson.fromJson(jsonObject, Message.class);
-
-        // Try to return the right subclass
-        if (Message.MSGTYPE_IMAGE.equals(message.msgtype)) {
-            return toImageMessage(jsonObject);
-        }
-
-        if (Message.MSGTYPE_VIDEO.equals(message.msgtype)) {
-            return toVideoMessage(jsonObject);
-        }
-
-        if (Message.MSGTYPE_LOCATION.equals(message.msgtype)) {
-            return toLocationMessage(jsonObject);
-        }
-
-        // Try to return the right subclass
-        if (Message.MSGTYPE_FILE.equals(message.msgtype)) {
-            return toFileMessage(jsonObject);
-        }
-
-        // Fall back to the generic Message type
-        return message;
+        return gson.fromJson(jsonObject, Message.class);
     }
 
     public static JsonObject toJson(Message message) {
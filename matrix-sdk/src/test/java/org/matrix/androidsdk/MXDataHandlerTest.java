@@ -0,0 +1,150 @@
+/*
+ * Copyright 2015 OpenMarket Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrix.androidsdk;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.matrix.androidsdk.data.DataRetriever;
+import org.matrix.androidsdk.data.MXMemoryStore;
+import org.matrix.androidsdk.data.Room;
+import org.matrix.androidsdk.data.RoomState;
+import org.matrix.androidsdk.listeners.MXEventListener;
+import org.matrix.androidsdk.rest.model.Event;
+import org.matrix.androidsdk.rest.model.TokensChunkResponse;
+import org.matrix.androidsdk.rest.model.login.Credentials;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Class for unit testing the MXDataHandler.
+ */
+@Config(emulateSdk = 18)
+@RunWith(RobolectricTestRunner.class)
+public class MXDataHandlerTest {
+
+    private static final String USER_ID = "@user:matrix.org";
+    private static final String ROOM_ID = "!room:matrix.org";
+    private static final String OTHER_ROOM_ID = "!otherroom:matrix.org";
+
+    private MXMemoryStore mStore;
+    private MXDataHandler mDataHandler;
+
+    @Before
+    public void setUp() {
+        Credentials credentials = new Credentials();
+        credentials.userId = USER_ID;
+
+        mStore = new MXMemoryStore();
+        mDataHandler = new MXDataHandler(mStore, credentials);
+        mDataHandler.setDataRetriever(new DataRetriever());
+    }
+
+    private static Event buildEvent(String roomId, int index) {
+        JsonObject content = new JsonObject();
+        content.addProperty("msgtype", "m.text");
+        content.addProperty("body", "message " + index);
+
+        Event event = new Event(Event.EVENT_TYPE_MESSAGE, content, USER_ID, roomId);
+        event.eventId = "$event" + index + roomId;
+        return event;
+    }
+
+    @Test
+    public void testLiveEventsBatchReachesTheRoomListener() {
+        // the room is open, with its history
+        Room room = mDataHandler.getRoom(ROOM_ID);
+        room.setReadyState(true);
+
+        TokensChunkResponse<Event> response = new TokensChunkResponse<Event>();
+        response.start = "start";
+        response.end = "end";
+        response.chunk = new ArrayList<Event>();
+        response.chunk.add(buildEvent(ROOM_ID, -1));
+        mStore.storeRoomEvents(ROOM_ID, response, Room.EventDirection.BACKWARDS);
+
+        MXEventListener roomListener = mock(MXEventListener.class);
+        room.addEventListener(roomListener);
+
+        // the batch updates this room and another one
+        ArrayList<Event> events = new ArrayList<Event>();
+
+        for (int index = 0; index < 10; index++) {
+            events.add(buildEvent(ROOM_ID, index));
+            events.add(buildEvent(OTHER_ROOM_ID, index));
+        }
+
+        mDataHandler.handleLiveEventsBatch(events);
+
+        // the listener is warned once for its room, instead of once per event
+        verify(roomListener).onLiveEventsBatchProcessed(Collections.singleton(ROOM_ID));
+        verify(roomListener, never()).onLiveEvent(any(Event.class), any(RoomState.class));
+        verify(roomListener).onLiveEventsChunkProcessed();
+
+        // the messages can be reloaded from the store
+        assertEquals(11, mStore.getRoomMessages(ROOM_ID).size());
+        assertEquals("$event9" + ROOM_ID, mStore.getSummary(ROOM_ID).getLatestEvent().eventId);
+    }
+
+    @Test
+    public void testLiveEventsBatchOfAnotherRoom() {
+        Room room = mDataHandler.getRoom(ROOM_ID);
+        room.setReadyState(true);
+
+        MXEventListener roomListener = mock(MXEventListener.class);
+        room.addEventListener(roomListener);
+
+        ArrayList<Event> events = new ArrayList<Event>();
+        events.add(buildEvent(OTHER_ROOM_ID, 0));
+
+        mDataHandler.handleLiveEventsBatch(events);
+
+        verify(roomListener, never()).onLiveEventsBatchProcessed(anySetOf(String.class));
+    }
+
+    @Test
+    public void testTypingEventsOfABatchAreDispatched() {
+        Room room = mDataHandler.getRoom(ROOM_ID);
+        room.setReadyState(true);
+
+        MXEventListener roomListener = mock(MXEventListener.class);
+        room.addEventListener(roomListener);
+
+        JsonObject content = new JsonObject();
+        content.add("user_ids", new JsonArray());
+        Event typing = new Event(Event.EVENT_TYPE_TYPING, content, null, ROOM_ID);
+
+        ArrayList<Event> events = new ArrayList<Event>();
+        events.add(buildEvent(ROOM_ID, 0));
+        events.add(typing);
+
+        mDataHandler.handleLiveEventsBatch(events);
+
+        // the typing events are not stored : they are dispatched one by one
+        verify(roomListener).onLiveEventsBatchProcessed(Collections.singleton(ROOM_ID));
+        verify(roomListener).onLiveEvent(same(typing), any(RoomState.class));
+        verify(roomListener, times(1)).onLiveEvent(any(Event.class), any(RoomState.class));
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2015 OpenMarket Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrix.androidsdk.data;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.*;
+
+/**
+ * Class for unit testing the CommitScheduler.
+ */
+@Config(emulateSdk = 18)
+@RunWith(RobolectricTestRunner.class)
+public class CommitSchedulerTest {
+
+    private int mCommitsCount;
+    private CommitScheduler mScheduler;
+
+    @Before
+    public void setUp() {
+        mCommitsCount = 0;
+
+        mScheduler = new CommitScheduler(new Runnable() {
+            @Override
+            public void run() {
+                mCommitsCount++;
+            }
+        });
+
+        Robolectric.getUiThreadScheduler().pause();
+    }
+
+    @Test
+    public void testBurstIsCollapsed() {
+        mScheduler.setHandler(new Handler(Looper.getMainLooper()));
+
+        for (int i = 0; i < 10; i++) {
+            mScheduler.schedule();
+        }
+
+        assertTrue(mScheduler.hasPendingCommit());
+        assertEquals(0, mCommitsCount);
+
+        Robolectric.getUiThreadScheduler().advanceBy(CommitScheduler.DEFAULT_MAX_LATENCY_MS * 2);
+
+        assertEquals(1, mCommitsCount);
+        assertFalse(mScheduler.hasPendingCommit());
+    }
+
+    @Test
+    public void testCancel() {
+        mScheduler.setHandler(new Handler(Looper.getMainLooper()));
+        mScheduler.schedule();
+
+        assertTrue(mScheduler.cancel());
+        assertFalse(mScheduler.cancel());
+
+        Robolectric.getUiThreadScheduler().advanceBy(CommitScheduler.DEFAULT_MAX_LATENCY_MS * 2);
+
+        assertEquals(0, mCommitsCount);
+    }
+
+    @Test
+    public void testRequestsBeforeHandler() {
+        mScheduler.schedule();
+        assertTrue(mScheduler.hasPendingCommit());
+
+        mScheduler.setHandler(new Handler(Looper.getMainLooper()));
+        Robolectric.getUiThreadScheduler().advanceBy(CommitScheduler.DEFAULT_MAX_LATENCY_MS * 2);
+
+        assertEquals(1, mCommitsCount);
+    }
+
+    @Test
+    public void testSetDelays() {
+        mScheduler.setDelays(1000, 10);
+
+        // the max latency is never shorter than the debounce delay
+        assertEquals(1000, mScheduler.getDebounceDelay());
+        assertEquals(1000, mScheduler.getMaxLatency());
+
+        mScheduler.setDelays(-1, 50);
+
+        assertEquals(0, mScheduler.getDebounceDelay());
+        assertEquals(50, mScheduler.getMaxLatency());
+    }
+}
@@ -0,0 +1,259 @@
+/*
+ * Copyright 2015 OpenMarket Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrix.androidsdk.data;
+
+import com.google.gson.JsonObject;
+
+import org.junit.Ignore;
+import org.junit.Test;
+import org.matrix.androidsdk.rest.model.Event;
+import org.matrix.androidsdk.rest.model.RoomMember;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.logging.Logger;
+
+/**
+ * Compare the MXFileStoreCodec with the java serialization (ObjectOutputStream + GZIP)
+ * used by the file store version 1 : encoding / decoding throughput and saved size.
+ *
+ * It is ignored by the unit tests : remove the @Ignore annotation to run it.
+ * The measures are reported through the test logger.
+ */
+public class MXFileStoreCodecBenchmark {
+
+    private static final Logger LOGGER = Logger.getLogger(MXFileStoreCodecBenchmark.class.getName());
+
+    private static final int EVENTS_COUNT = 2000;
+    private static final int MEMBERS_COUNT = 1000;
+    private static final int ITERATIONS = 20;
+
+    private interface Task {
+        long run() throws Exception;
+    }
+
+    private static ArrayList<Event> buildEvents() {
+        ArrayList<Event> events = new ArrayList<Event>(EVENTS_COUNT);
+
+        for (int i = 0; i < EVENTS_COUNT; i++) {
+            JsonObject content = new JsonObject();
+            content.addProperty("msgtype", "m.text");
+            content.addProperty("body", "This is the message number " + i + " of the benchmark room");
+
+            Event event = new Event(Event.EVENT_TYPE_MESSAGE, content, "@user" + (i % 20) + ":matrix.org", "!benchmark:matrix.org");
+            event.eventId = "$" + (1430000000000L + i) + "abcdef:matrix.org";
+            event.mSentState = Event.SentState.SENT;
+            event.setMatrixId("@self:matrix.org");
+            event.prepareSerialization();
+            events.add(event);
+        }
+
+        return events;
+    }
+
+    private static RoomState buildRoomState() {
+        RoomState state = new RoomState();
+        state.roomId = "!benchmark:matrix.org";
+        state.name = "Benchmark";
+        state.topic = "The benchmark room";
+        state.setToken("t1234-5678_9");
+
+        for (int i = 0; i < MEMBERS_COUNT; i++) {
+            RoomMember member = new RoomMember();
+            member.displayname = "User number " + i;
+            member.avatarUrl = "mxc://matrix.org/avatar" + i;
+            member.membership = (0 == (i % 10)) ? RoomMember.MEMBERSHIP_LEAVE : RoomMember.MEMBERSHIP_JOIN;
+            state.setMember("@user" + i + ":matrix.org", member);
+        }
+
+        return state;
+    }
+
+    private static void measure(String name, Task task) throws Exception {
+        // warm up
+        task.run();
+
+        long start = System.nanoTime();
+        long size = 0;
+
+        for (int i = 0; i < ITERATIONS; i++) {
+            size = task.run();
+        }
+
+        long duration = (System.nanoTime() - start) / ITERATIONS;
+        LOGGER.info(String.format("%-40s %8d bytes %10.2f ms", name, size, duration / 1000000.0));
+    }
+
+    private static byte[] javaSerialize(Object object) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(new GZIPOutputStream(bos));
+        out.writeObject(object);
+        out.close();
+        return bos.toByteArray();
+    }
+
+    private static Object javaDeserialize(byte[] bytes) throws Exception {
+        ObjectInputStream in = new ObjectInputStream(new GZIPInputStream(new ByteArrayInputStream(bytes)));
+        Object object = in.readObject();
+        in.close();
+        return object;
+    }
+
+    // the events are deflated as a whole like the java serialization stream
+    private static byte[] encodeEvents(ArrayList<Event> events, int level) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        Deflater deflater = new Deflater(level, true);
+        DeflaterOutputStream dos = new DeflaterOutputStream(bos, deflater, 8192);
+        MXFileStoreCodec.Output output = new MXFileStoreCodec.Output(new BufferedOutputStream(dos, 8192), new MXFileStoreCodec.StringTable(), Deflater.NO_COMPRESSION);
+
+        output.writeVarInt(events.size());
+        for (Event event : events) {
+            MXFileStoreCodec.writeEvent(output, event);
+        }
+
+        output.flush();
+        output.release();
+        dos.close();
+        deflater.end();
+        return bos.toByteArray();
+    }
+
+    private static int decodeEvents(byte[] bytes) throws IOException {
+        Inflater inflater = new Inflater(true);
+        MXFileStoreCodec.Input input = new MXFileStoreCodec.Input(new BufferedInputStream(new InflaterInputStream(new ByteArrayInputStream(bytes), inflater, 8192), 8192), new MXFileStoreCodec.StringTable(), MXFileStoreCodec.CODEC_VERSION);
+        int count = input.readVarInt();
+
+        for (int i = 0; i < count; i++) {
+            MXFileStoreCodec.readEvent(input);
+        }
+
+        input.release();
+        inflater.end();
+        return count;
+    }
+
+    @Ignore("benchmark")
+    @Test
+    public void benchmark() throws Exception {
+        final ArrayList<Event> events = buildEvents();
+        final RoomState state = buildRoomState();
+
+        LOGGER.info(EVENTS_COUNT + " events");
+
+        final byte[] javaEvents = javaSerialize(events);
+        measure("java serialization + gzip : encode", new Task() {
+            public long run() throws Exception {
+                return javaSerialize(events).length;
+            }
+        });
+        measure("java serialization + gzip : decode", new Task() {
+            public long run() throws Exception {
+                // javaSerialize has written an ArrayList<Event>
+                @SuppressWarnings("unchecked")
+                ArrayList<Event> decoded = (ArrayList<Event>) javaDeserialize(javaEvents);
+                for (Event event : decoded) {
+                    event.getContent();
+                    event.getPrevContent();
+                }
+                return javaEvents.length;
+            }
+        });
+
+        for (final int level : new int[]{Deflater.NO_COMPRESSION, Deflater.BEST_SPEED, Deflater.BEST_COMPRESSION}) {
+            final byte[] codecEvents = encodeEvents(events, level);
+
+            measure("codec (level " + level + ") : encode", new Task() {
+                public long run() throws Exception {
+                    return encodeEvents(events, level).length;
+                }
+            });
+            measure("codec (level " + level + ") : decode", new Task() {
+                public long run() throws Exception {
+                    decodeEvents(codecEvents);
+                    return codecEvents.length;
+                }
+            });
+        }
+
+        LOGGER.info(MEMBERS_COUNT + " members room state");
+
+        final byte[] javaState = javaSerialize(state);
+        measure("java serialization + gzip : encode", new Task() {
+            public long run() throws Exception {
+                return javaSerialize(state).length;
+            }
+        });
+        measure("java serialization + gzip : decode", new Task() {
+            public long run() throws Exception {
+                javaDeserialize(javaState);
+                return javaState.length;
+            }
+        });
+
+        final File file = File.createTempFile("MXFileStoreCodecBenchmark", null);
+
+        try {
+            for (int level : new int[]{Deflater.NO_COMPRESSION, Deflater.BEST_SPEED, Deflater.BEST_COMPRESSION}) {
+                final MXFileStoreCodec codec = new MXFileStoreCodec();
+                codec.setCompressionLevel(level);
+
+                measure("codec file (level " + level + ") : encode", new Task() {
+                    public long run() throws Exception {
+                        codec.writeRoomStateFile(file, state);
+                        return file.length();
+                    }
+                });
+                measure("codec file (level " + level + ") : decode", new Task() {
+                    public long run() throws Exception {
+                        codec.readRoomStateFile(file);
+                        return file.length();
+                    }
+                });
+            }
+
+            // the java serialization through a file for the same conditions
+            measure("java serialization file + gzip : decode", new Task() {
+                public long run() throws Exception {
+                    FileOutputStream fos = new FileOutputStream(file);
+                    fos.write(javaState);
+                    fos.close();
+
+                    ObjectInputStream in = new ObjectInputStream(new GZIPInputStream(new FileInputStream(file)));
+                    in.readObject();
+                    in.close();
+                    return file.length();
+                }
+            });
+        } finally {
+            file.delete();
+        }
+    }
+}
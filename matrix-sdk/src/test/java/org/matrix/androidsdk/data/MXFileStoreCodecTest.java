@@ -0,0 +1,597 @@
+/*
+ * Copyright 2015 OpenMarket Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrix.androidsdk.data;
+
+import com.google.gson.JsonObject;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.matrix.androidsdk.rest.model.Event;
+import org.matrix.androidsdk.rest.model.MatrixError;
+import org.matrix.androidsdk.rest.model.PowerLevels;
+import org.matrix.androidsdk.rest.model.RoomMember;
+import org.matrix.androidsdk.util.DiskUsageAccount;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+import static org.junit.Assert.*;
+
+/**
+ * Class for unit testing the MXFileStoreCodec.
+ */
+@Config(emulateSdk = 18)
+@RunWith(RobolectricTestRunner.class)
+public class MXFileStoreCodecTest {
+
+    private File mFolder;
+
+    @Before
+    public void setUp() {
+        mFolder = new File(System.getProperty("java.io.tmpdir"), "MXFileStoreCodecTest_" + System.nanoTime());
+        mFolder.mkdirs();
+    }
+
+    @After
+    public void tearDown() {
+        new MXFileStoreRoomLog(new File(mFolder, "log"), new MXFileStoreCodec()).delete();
+
+        String[] filenames = mFolder.list();
+
+        if (null != filenames) {
+            for (String filename : filenames) {
+                new File(mFolder, filename).delete();
+            }
+        }
+
+        mFolder.delete();
+    }
+
+    private static Event buildEvent(int index, int bodyLength) {
+        JsonObject content = new JsonObject();
+        content.addProperty("msgtype", "m.text");
+
+        StringBuilder body = new StringBuilder("message " + index);
+        while (body.length() < bodyLength) {
+            body.append(" lorem ipsum");
+        }
+        content.addProperty("body", body.toString());
+
+        Event event = new Event(Event.EVENT_TYPE_MESSAGE, content, "@user" + (index % 3) + ":matrix.org", "!room:matrix.org");
+        event.eventId = "$event" + index + ":matrix.org";
+        event.age = 1234;
+        event.mToken = (0 == (index % 10)) ? ("token" + index) : null;
+        event.mSentState = Event.SentState.SENT;
+        event.setMatrixId("@self:matrix.org");
+        return event;
+    }
+
+    private static void assertSameEvent(Event expected, Event actual) {
+        assertEquals(expected.type, actual.type);
+        assertEquals(expected.eventId, actual.eventId);
+        assertEquals(expected.roomId, actual.roomId);
+        assertEquals(expected.userId, actual.userId);
+        assertEquals(expected.originServerTs, actual.originServerTs);
+        assertEquals(expected.age, actual.age);
+        assertEquals(expected.stateKey, actual.stateKey);
+        assertEquals(expected.redacts, actual.redacts);
+        assertEquals(expected.getContent(), actual.getContent());
+        assertEquals(expected.getPrevContent(), actual.getPrevContent());
+        assertEquals(expected.mSentState, actual.mSentState);
+        assertEquals(expected.mToken, actual.mToken);
+        assertEquals(expected.getMatrixId(), actual.getMatrixId());
+    }
+
+    @Test
+    public void testEventRoundTrip() throws Exception {
+        MXFileStoreCodec.StringTable writeStrings = new MXFileStoreCodec.StringTable();
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        MXFileStoreCodec.Output output = new MXFileStoreCodec.Output(bos, writeStrings, Deflater.BEST_SPEED);
+
+        ArrayList<Event> events = new ArrayList<Event>();
+
+        for (int i = 0; i < 20; i++) {
+            // some large contents are deflated
+            events.add(buildEvent(i, (0 == (i % 4)) ? 2000 : 20));
+        }
+
+        Event unsent = buildEvent(100, 20);
+        unsent.mSentState = Event.SentState.UNDELIVERABLE;
+        unsent.unsentException = new Exception("network error");
+        unsent.unsentMatrixError = new MatrixError();
+        unsent.unsentMatrixError.errcode = MatrixError.LIMIT_EXCEEDED;
+        unsent.unsentMatrixError.retry_after_ms = 500;
+        events.add(unsent);
+
+        for (Event event : events) {
+            MXFileStoreCodec.writeEvent(output, event);
+        }
+        output.flush();
+        output.release();
+
+        // the room id, the senders and the type are only defined once
+        assertEquals(7, writeStrings.size());
+
+        MXFileStoreCodec.Input input = new MXFileStoreCodec.Input(new ByteArrayInputStream(bos.toByteArray()), new MXFileStoreCodec.StringTable(), MXFileStoreCodec.CODEC_VERSION);
+
+        Event decodedUnsent = null;
+
+        for (Event event : events) {
+            decodedUnsent = MXFileStoreCodec.readEvent(input);
+            assertSameEvent(event, decodedUnsent);
+        }
+        input.release();
+
+        assertEquals("network error", decodedUnsent.unsentException.getMessage());
+        assertEquals(MatrixError.LIMIT_EXCEEDED, decodedUnsent.unsentMatrixError.errcode);
+        assertEquals(Integer.valueOf(500), decodedUnsent.unsentMatrixError.retry_after_ms);
+    }
+
+    @Test
+    public void testRoomStateFile() throws Exception {
+        RoomState state = new RoomState();
+        state.roomId = "!room:matrix.org";
+        state.name = "Room name";
+        state.topic = "Room topic";
+        state.joinRule = "public";
+        state.aliases = Arrays.asList("#room:matrix.org", "#alias:matrix.org");
+        state.setToken("token");
+
+        for (int i = 0; i < 50; i++) {
+            RoomMember member = new RoomMember();
+            member.displayname = "User " + i;
+            member.membership = (0 == (i % 5)) ? RoomMember.MEMBERSHIP_LEAVE : RoomMember.MEMBERSHIP_JOIN;
+            state.setMember("@user" + i + ":matrix.org", member);
+        }
+
+        PowerLevels powerLevels = new PowerLevels();
+        powerLevels.ban = 50;
+        powerLevels.stateDefault = -1;
+        powerLevels.setUserPowerLevel("@user0:matrix.org", 100);
+        powerLevels.events.put(Event.EVENT_TYPE_STATE_ROOM_NAME, 50);
+        state.setPowerLevels(powerLevels);
+
+        MXFileStoreCodec codec = new MXFileStoreCodec();
+        File file = new File(mFolder, "state");
+        codec.writeRoomStateFile(file, state);
+
+        assertTrue(MXFileStoreCodec.isEncodedFile(file));
+
+        RoomState decoded = codec.readRoomStateFile(file);
+        assertEquals(state.roomId, decoded.roomId);
+        assertEquals(state.name, decoded.name);
+        assertEquals(state.topic, decoded.topic);
+        assertEquals(state.joinRule, decoded.joinRule);
+        assertEquals(state.aliases, decoded.aliases);
+        assertEquals(state.getToken(), decoded.getToken());
+        assertEquals(50, decoded.getMembers().size());
+        assertEquals("User 7", decoded.getMember("@user7:matrix.org").displayname);
+        assertEquals(RoomMember.MEMBERSHIP_LEAVE, decoded.getMember("@user5:matrix.org").membership);
+        assertEquals(50, decoded.getPowerLevels().ban);
+        assertEquals(-1, decoded.getPowerLevels().stateDefault);
+        assertEquals(100, decoded.getPowerLevels().getUserPowerLevel("@user0:matrix.org"));
+        assertEquals(Integer.valueOf(50), decoded.getPowerLevels().events.get(Event.EVENT_TYPE_STATE_ROOM_NAME));
+    }
+
+    @Test
+    public void testRoomSummaryFile() throws Exception {
+        RoomSummary summary = new RoomSummary();
+        summary.setRoomId("!room:matrix.org");
+        summary.setName("Room name");
+        summary.setMatrixId("@self:matrix.org");
+        summary.setLatestEvent(buildEvent(1, 20));
+        summary.setInviterUserId("@user1:matrix.org");
+        summary.setHighlighted(true);
+        summary.incrementUnreadMessagesCount();
+        summary.incrementUnreadMessagesCount();
+
+        // uncompressed file
+        MXFileStoreCodec codec = new MXFileStoreCodec();
+        codec.setCompressionLevel(Deflater.NO_COMPRESSION);
+
+        File file = new File(mFolder, "summary");
+        codec.writeRoomSummaryFile(file, summary);
+
+        RoomSummary decoded = codec.readRoomSummaryFile(file);
+        assertEquals(summary.getRoomId(), decoded.getRoomId());
+        assertEquals(summary.getRoomName(), decoded.getRoomName());
+        assertEquals(summary.getMatrixId(), decoded.getMatrixId());
+        assertEquals(summary.getInviterUserId(), decoded.getInviterUserId());
+        assertTrue(decoded.isInvited());
+        assertTrue(decoded.isHighlighted());
+        assertEquals(2, decoded.getUnreadMessagesCount());
+        assertSameEvent(summary.getLatestEvent(), decoded.getLatestEvent());
+    }
+
+    @Test
+    public void testLegacyFileIsDetected() throws Exception {
+        File file = new File(mFolder, "legacy");
+
+        ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(file));
+        out.writeObject(new RoomSummary());
+        out.close();
+
+        assertFalse(MXFileStoreCodec.isEncodedFile(file));
+        assertFalse(MXFileStoreCodec.isEncodedFile(new File(mFolder, "unknown")));
+    }
+
+    @Test
+    public void testRoomLogRoundTrip() throws Exception {
+        MXFileStoreCodec codec = new MXFileStoreCodec();
+        File logFolder = new File(mFolder, "log");
+
+        LinkedHashMap<String, Event> events = new LinkedHashMap<String, Event>();
+
+        for (int i = 0; i < 30; i++) {
+            Event event = buildEvent(i, 500);
+            events.put(event.eventId, event);
+        }
+
+        MXFileStoreRoomLog roomLog = new MXFileStoreRoomLog(logFolder, codec);
+        roomLog.writeSnapshot(events, "token");
+
+        // append in the same segment then from another instance (new segment)
+        ArrayList<MXFileStoreRoomLog.Record> records = new ArrayList<MXFileStoreRoomLog.Record>();
+        Event appended = buildEvent(30, 20);
+        records.add(MXFileStoreRoomLog.Record.append(appended));
+        roomLog.append(records);
+
+        MXFileStoreRoomLog otherLog = new MXFileStoreRoomLog(logFolder, codec);
+        records.clear();
+        records.add(MXFileStoreRoomLog.Record.delete(buildEvent(0, 0).eventId));
+        records.add(MXFileStoreRoomLog.Record.token("newToken"));
+        otherLog.append(records);
+
+        MXFileStoreRoomLog.Content content = new MXFileStoreRoomLog(logFolder, codec).replay();
+
+        assertEquals("newToken", content.mToken);
+        assertEquals(30, content.mEvents.size());
+        assertFalse(content.mEvents.containsKey(buildEvent(0, 0).eventId));
+        assertSameEvent(events.get(buildEvent(15, 0).eventId), content.mEvents.get(buildEvent(15, 0).eventId));
+        assertSameEvent(appended, content.mEvents.get(appended.eventId));
+    }
+
+    @Test
+    public void testRoomLogDiskUsage() throws Exception {
+        MXFileStoreCodec codec = new MXFileStoreCodec();
+        File logFolder = new File(mFolder, "log");
+
+        LinkedHashMap<String, Event> events = new LinkedHashMap<String, Event>();
+
+        for (int i = 0; i < 10; i++) {
+            Event event = buildEvent(i, 200);
+            events.put(event.eventId, event);
+        }
+
+        MXFileStoreRoomLog roomLog = new MXFileStoreRoomLog(logFolder, codec);
+        roomLog.writeSnapshot(events, "token");
+        assertEquals(DiskUsageAccount.walk(logFolder), roomLog.getDiskUsage());
+
+        // the appended bytes are counted without listing the segments
+        ArrayList<MXFileStoreRoomLog.Record> records = new ArrayList<MXFileStoreRoomLog.Record>();
+
+        for (int i = 10; i < 20; i++) {
+            records.add(MXFileStoreRoomLog.Record.append(buildEvent(i, 200)));
+            roomLog.append(records);
+            records.clear();
+        }
+
+        assertEquals(DiskUsageAccount.walk(logFolder), roomLog.getDiskUsage());
+
+        roomLog.delete();
+        assertEquals(0, roomLog.getDiskUsage());
+    }
+
+    /**
+     * Flip a byte of a file.
+     */
+    private static void corruptFile(File file, long position) throws Exception {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+
+        try {
+            raf.seek(position);
+            int value = raf.read();
+            raf.seek(position);
+            raf.write(value ^ 0xFF);
+        } finally {
+            raf.close();
+        }
+    }
+
+    @Test
+    public void testCorruptedFileIsDetected() throws Exception {
+        RoomSummary summary = new RoomSummary();
+        summary.setRoomId("!room:matrix.org");
+        summary.setLatestEvent(buildEvent(1, 20));
+
+        MXFileStoreCodec codec = new MXFileStoreCodec();
+        codec.setCompressionLevel(Deflater.NO_COMPRESSION);
+
+        File file = new File(mFolder, "summary");
+        codec.writeRoomSummaryFile(file, summary);
+
+        // the file is replaced : no temporary file is left
+        assertFalse(new File(mFolder, "summary" + MXFileStoreCodec.TEMPORARY_FILE_SUFFIX).exists());
+
+        corruptFile(file, file.length() / 2);
+
+        try {
+            codec.readRoomSummaryFile(file);
+            fail("the corrupted file should not be read");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testRoomLogTruncatedTailIsIgnored() throws Exception {
+        MXFileStoreCodec codec = new MXFileStoreCodec();
+        File logFolder = new File(mFolder, "log");
+
+        MXFileStoreRoomLog roomLog = new MXFileStoreRoomLog(logFolder, codec);
+        ArrayList<MXFileStoreRoomLog.Record> records = new ArrayList<MXFileStoreRoomLog.Record>();
+
+        for (int i = 0; i < 5; i++) {
+            records.add(MXFileStoreRoomLog.Record.append(buildEvent(i, 20)));
+        }
+        roomLog.append(records);
+
+        records.clear();
+        records.add(MXFileStoreRoomLog.Record.append(buildEvent(5, 200)));
+        roomLog.append(records);
+
+        // the application is killed while writing the latest record
+        File segment = new File(logFolder, "0.log");
+        RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+        raf.setLength(segment.length() - 10);
+        raf.close();
+
+        MXFileStoreRoomLog.Content content = new MXFileStoreRoomLog(logFolder, codec).replay();
+
+        assertEquals(5, content.mEvents.size());
+        assertFalse(content.mEvents.containsKey(buildEvent(5, 0).eventId));
+    }
+
+    @Test
+    public void testRoomLogCorruptedRecordFailsReplay() throws Exception {
+        MXFileStoreCodec codec = new MXFileStoreCodec();
+        File logFolder = new File(mFolder, "log");
+
+        MXFileStoreRoomLog roomLog = new MXFileStoreRoomLog(logFolder, codec);
+        ArrayList<MXFileStoreRoomLog.Record> records = new ArrayList<MXFileStoreRoomLog.Record>();
+
+        for (int i = 0; i < 5; i++) {
+            records.add(MXFileStoreRoomLog.Record.append(buildEvent(i, 200)));
+        }
+        roomLog.append(records);
+
+        // a corrupted record which is not at the end of the log
+        corruptFile(new File(logFolder, "0.log"), MXFileStoreCodec.HEADER_LENGTH + 20);
+
+        try {
+            new MXFileStoreRoomLog(logFolder, codec).replay();
+            fail("the corrupted log should not be replayed");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Build a room state with some members.
+     */
+    private static RoomState buildRoomState(int membersCount) {
+        RoomState state = new RoomState();
+        state.roomId = "!room:matrix.org";
+        state.name = "Room name";
+        state.setToken("token");
+
+        for (int i = 0; i < membersCount; i++) {
+            RoomMember member = new RoomMember();
+            member.displayname = "User " + i;
+            member.membership = RoomMember.MEMBERSHIP_JOIN;
+            state.setMember("@user" + i + ":matrix.org", member);
+        }
+
+        return state;
+    }
+
+    @Test
+    public void testRoomStateDelta() throws Exception {
+        MXFileStoreCodec codec = new MXFileStoreCodec();
+        File snapshotFile = new File(mFolder, "state");
+        File deltaFile = new File(mFolder, "delta");
+
+        RoomState state = buildRoomState(500);
+        state.trackMembersUpdates();
+
+        MXFileStoreRoomStateLog stateLog = new MXFileStoreRoomStateLog(snapshotFile, deltaFile, codec);
+        stateLog.save(state, null);
+
+        long snapshotLength = snapshotFile.length();
+        assertFalse(deltaFile.exists());
+
+        // a member joins, a member leaves and the room is renamed
+        RoomMember member = new RoomMember();
+        member.displayname = "New user";
+        member.membership = RoomMember.MEMBERSHIP_JOIN;
+        state.setMember("@newuser:matrix.org", member);
+        state.removeMember("@user3:matrix.org");
+        stateLog.save(state, state.popUpdatedMemberIds());
+
+        state.name = "New room name";
+        stateLog.save(state, state.popUpdatedMemberIds());
+
+        // the snapshot is not rewritten : only the updates are appended
+        assertEquals(snapshotLength, snapshotFile.length());
+        assertTrue(deltaFile.length() < 200);
+        assertEquals(deltaFile.length(), stateLog.getDeltaSize());
+
+        RoomState decoded = new MXFileStoreRoomStateLog(snapshotFile, deltaFile, codec).load();
+        assertEquals("New room name", decoded.name);
+        assertEquals("token", decoded.getToken());
+        assertEquals(500, decoded.getMembers().size());
+        assertEquals("New user", decoded.getMember("@newuser:matrix.org").displayname);
+        assertNull(decoded.getMember("@user3:matrix.org"));
+        assertEquals("User 7", decoded.getMember("@user7:matrix.org").displayname);
+    }
+
+    @Test
+    public void testRoomStateStaleDeltaIsIgnored() throws Exception {
+        MXFileStoreCodec codec = new MXFileStoreCodec();
+        File snapshotFile = new File(mFolder, "state");
+        File deltaFile = new File(mFolder, "delta");
+
+        RoomState state = buildRoomState(20);
+        MXFileStoreRoomStateLog stateLog = new MXFileStoreRoomStateLog(snapshotFile, deltaFile, codec);
+        stateLog.save(state, null);
+
+        state.trackMembersUpdates();
+        state.removeMember("@user1:matrix.org");
+        stateLog.save(state, state.popUpdatedMemberIds());
+
+        File previousDeltaFile = new File(mFolder, "previous_delta");
+        assertTrue(deltaFile.renameTo(previousDeltaFile));
+
+        // the application is killed after writing a new snapshot but before deleting the delta
+        RoomMember member = new RoomMember();
+        member.displayname = "User 1";
+        member.membership = RoomMember.MEMBERSHIP_JOIN;
+        state.setMember("@user1:matrix.org", member);
+        stateLog.writeSnapshot(state);
+        assertTrue(previousDeltaFile.renameTo(deltaFile));
+
+        RoomState decoded = new MXFileStoreRoomStateLog(snapshotFile, deltaFile, codec).load();
+        assertEquals(20, decoded.getMembers().size());
+        assertNotNull(decoded.getMember("@user1:matrix.org"));
+        assertFalse(deltaFile.exists());
+    }
+
+    /**
+     * Build a room summary.
+     */
+    private static RoomSummary buildRoomSummary(int index) {
+        RoomSummary summary = new RoomSummary();
+        summary.setRoomId("!room" + index + ":matrix.org");
+        summary.setName("Room " + index);
+        summary.setMatrixId("@self:matrix.org");
+        summary.setLatestEvent(buildEvent(index, 20));
+        return summary;
+    }
+
+    @Test
+    public void testSummariesLog() throws Exception {
+        MXFileStoreCodec codec = new MXFileStoreCodec();
+        File snapshotFile = new File(mFolder, "summaries");
+        File deltaFile = new File(mFolder, "summaries_delta");
+
+        LinkedHashMap<String, RoomSummary> summaries = new LinkedHashMap<String, RoomSummary>();
+
+        for (int i = 0; i < 100; i++) {
+            RoomSummary summary = buildRoomSummary(i);
+            summaries.put(summary.getRoomId(), summary);
+        }
+
+        MXFileStoreSummariesLog summariesLog = new MXFileStoreSummariesLog(snapshotFile, deltaFile, codec);
+        assertFalse(summariesLog.exists());
+        summariesLog.writeSnapshot(summaries.values());
+
+        long snapshotLength = snapshotFile.length();
+
+        // a room is renamed, a room is left and a room is joined
+        LinkedHashMap<String, RoomSummary> updates = new LinkedHashMap<String, RoomSummary>();
+
+        summaries.get("!room1:matrix.org").setName("Renamed room");
+        updates.put("!room1:matrix.org", summaries.get("!room1:matrix.org"));
+
+        summaries.remove("!room2:matrix.org");
+        updates.put("!room2:matrix.org", null);
+
+        RoomSummary newSummary = buildRoomSummary(100);
+        summaries.put(newSummary.getRoomId(), newSummary);
+        updates.put(newSummary.getRoomId(), newSummary);
+
+        summariesLog.save(updates, summaries.values());
+
+        // only the updates are appended
+        assertEquals(snapshotLength, snapshotFile.length());
+        assertEquals(deltaFile.length(), summariesLog.getDeltaSize());
+
+        Map<String, RoomSummary> decoded = new MXFileStoreSummariesLog(snapshotFile, deltaFile, codec).load();
+        assertEquals(100, decoded.size());
+        assertEquals("Renamed room", decoded.get("!room1:matrix.org").getRoomName());
+        assertNull(decoded.get("!room2:matrix.org"));
+        assertEquals("Room 100", decoded.get("!room100:matrix.org").getRoomName());
+        assertSameEvent(summaries.get("!room7:matrix.org").getLatestEvent(), decoded.get("!room7:matrix.org").getLatestEvent());
+    }
+
+    @Test
+    public void testMessagesIndexLog() throws Exception {
+        MXFileStoreCodec codec = new MXFileStoreCodec();
+        File snapshotFile = new File(mFolder, "messages_index");
+        File deltaFile = new File(mFolder, "messages_index_delta");
+
+        MessagesIndex index = new MessagesIndex();
+
+        for (int i = 0; i < 50; i++) {
+            Event event = buildEvent(i, 40);
+            event.originServerTs = i;
+            index.indexEvent(event);
+        }
+
+        MXFileStoreMessagesIndexLog indexLog = new MXFileStoreMessagesIndexLog(snapshotFile, deltaFile, codec);
+        assertFalse(indexLog.exists());
+        indexLog.writeSnapshot(index);
+
+        long snapshotLength = snapshotFile.length();
+
+        // a message is redacted and a message is received
+        index.trackChanges();
+        index.updateContent(buildEvent(3, 0).eventId, new JsonObject());
+
+        Event newEvent = buildEvent(50, 0);
+        newEvent.originServerTs = 50;
+        index.indexEvent(newEvent);
+
+        indexLog.save(index.popChanges(), index);
+
+        // only the updates are appended
+        assertEquals(snapshotLength, snapshotFile.length());
+        assertEquals(deltaFile.length(), indexLog.getDeltaSize());
+
+        MessagesIndex loaded = new MessagesIndex();
+        new MXFileStoreMessagesIndexLog(snapshotFile, deltaFile, codec).load(loaded);
+
+        assertEquals(50, loaded.size());
+        assertEquals(Arrays.asList(newEvent.eventId), loaded.search("message 50", null, 10));
+        assertFalse(loaded.search("message 3", null, 100).contains(buildEvent(3, 0).eventId));
+        assertEquals(10, loaded.search("message 3", null, 100).size());
+        assertEquals(index.search("lorem", null, 100), loaded.search("lorem", null, 100));
+    }
+}
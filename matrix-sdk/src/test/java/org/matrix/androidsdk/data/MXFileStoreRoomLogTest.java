@@ -0,0 +1,258 @@
+/*
+ * Copyright 2015 OpenMarket Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrix.androidsdk.data;
+
+import com.google.gson.JsonObject;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.matrix.androidsdk.rest.model.Event;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.Deflater;
+
+import static org.junit.Assert.*;
+
+/**
+ * Class for unit testing the MXFileStoreRoomLog.
+ */
+@Config(emulateSdk = 18)
+@RunWith(RobolectricTestRunner.class)
+public class MXFileStoreRoomLogTest {
+
+    private File mFolder;
+    private MXFileStoreCodec mCodec;
+
+    @Before
+    public void setUp() {
+        mFolder = new File(System.getProperty("java.io.tmpdir"), "MXFileStoreRoomLogTest_" + System.nanoTime());
+        mCodec = new MXFileStoreCodec();
+    }
+
+    @After
+    public void tearDown() {
+        new MXFileStoreRoomLog(mFolder, mCodec).delete();
+    }
+
+    private static Event buildEvent(int index, int bodyLength) {
+        JsonObject content = new JsonObject();
+        content.addProperty("msgtype", "m.text");
+
+        StringBuilder body = new StringBuilder("message " + index);
+        while (body.length() < bodyLength) {
+            body.append(" lorem ipsum");
+        }
+        content.addProperty("body", body.toString());
+
+        Event event = new Event(Event.EVENT_TYPE_MESSAGE, content, "@user:matrix.org", "!room:matrix.org");
+        event.eventId = "$event" + index + ":matrix.org";
+        return event;
+    }
+
+    private static String eventId(int index) {
+        return "$event" + index + ":matrix.org";
+    }
+
+    /**
+     * @return the segment files of the log.
+     */
+    private List<String> segments() {
+        String[] filenames = mFolder.list();
+        return (null != filenames) ? Arrays.asList(filenames) : new ArrayList<String>();
+    }
+
+    @Test
+    public void testAppendAndReplay() throws Exception {
+        MXFileStoreRoomLog roomLog = new MXFileStoreRoomLog(mFolder, mCodec);
+        assertTrue(roomLog.isEmpty());
+
+        ArrayList<MXFileStoreRoomLog.Record> records = new ArrayList<MXFileStoreRoomLog.Record>();
+        records.add(MXFileStoreRoomLog.Record.append(buildEvent(1, 20)));
+        records.add(MXFileStoreRoomLog.Record.append(buildEvent(2, 20)));
+        records.add(MXFileStoreRoomLog.Record.token("token1"));
+        roomLog.append(records);
+
+        // a back paginated event, a redaction and a deletion
+        JsonObject redactedContent = new JsonObject();
+        records.clear();
+        records.add(MXFileStoreRoomLog.Record.prepend(buildEvent(0, 20)));
+        records.add(MXFileStoreRoomLog.Record.append(buildEvent(3, 20)));
+        records.add(MXFileStoreRoomLog.Record.updateContent(eventId(1), redactedContent));
+        records.add(MXFileStoreRoomLog.Record.delete(eventId(2)));
+        roomLog.append(records);
+
+        assertFalse(roomLog.isEmpty());
+
+        MXFileStoreRoomLog.Content content = new MXFileStoreRoomLog(mFolder, mCodec).replay();
+
+        assertEquals("token1", content.mToken);
+        assertEquals(Arrays.asList(eventId(0), eventId(1), eventId(3)), new ArrayList<String>(content.mEvents.keySet()));
+        assertEquals(redactedContent, content.mEvents.get(eventId(1)).getContent());
+    }
+
+    @Test
+    public void testExistingEventKeepsItsPosition() throws Exception {
+        MXFileStoreRoomLog roomLog = new MXFileStoreRoomLog(mFolder, mCodec);
+
+        ArrayList<MXFileStoreRoomLog.Record> records = new ArrayList<MXFileStoreRoomLog.Record>();
+        records.add(MXFileStoreRoomLog.Record.append(buildEvent(1, 20)));
+        records.add(MXFileStoreRoomLog.Record.append(buildEvent(2, 20)));
+        // the same event is received again, e.g. by a back pagination
+        records.add(MXFileStoreRoomLog.Record.prepend(buildEvent(2, 40)));
+        roomLog.append(records);
+
+        MXFileStoreRoomLog.Content content = roomLog.replay();
+
+        assertEquals(Arrays.asList(eventId(1), eventId(2)), new ArrayList<String>(content.mEvents.keySet()));
+
+        // the records which are not yet in the log give the same history
+        content.apply(records);
+        assertEquals(Arrays.asList(eventId(1), eventId(2)), new ArrayList<String>(content.mEvents.keySet()));
+    }
+
+    @Test
+    public void testSegmentRoll() throws Exception {
+        MXFileStoreRoomLog roomLog = new MXFileStoreRoomLog(mFolder, mCodec);
+        mCodec.setCompressionLevel(Deflater.NO_COMPRESSION);
+
+        // about 200 kB of events
+        for (int i = 0; i < 100; i++) {
+            ArrayList<MXFileStoreRoomLog.Record> records = new ArrayList<MXFileStoreRoomLog.Record>();
+            records.add(MXFileStoreRoomLog.Record.append(buildEvent(i, 2000)));
+            roomLog.append(records);
+        }
+
+        // a new segment is started when the current one is full
+        assertTrue(segments().size() > 1);
+
+        MXFileStoreRoomLog.Content content = new MXFileStoreRoomLog(mFolder, mCodec).replay();
+        assertEquals(100, content.mEvents.size());
+
+        int index = 0;
+        for (String key : content.mEvents.keySet()) {
+            assertEquals(eventId(index++), key);
+        }
+    }
+
+    @Test
+    public void testAppendAfterTruncatedTail() throws Exception {
+        MXFileStoreRoomLog roomLog = new MXFileStoreRoomLog(mFolder, mCodec);
+        ArrayList<MXFileStoreRoomLog.Record> records = new ArrayList<MXFileStoreRoomLog.Record>();
+
+        for (int i = 0; i < 5; i++) {
+            records.add(MXFileStoreRoomLog.Record.append(buildEvent(i, 20)));
+        }
+        roomLog.append(records);
+
+        records.clear();
+        records.add(MXFileStoreRoomLog.Record.append(buildEvent(5, 200)));
+        roomLog.append(records);
+
+        // the application is killed while writing the latest record
+        File segment = new File(mFolder, "0.log");
+        RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+        raf.setLength(segment.length() - 10);
+        raf.close();
+
+        MXFileStoreRoomLog reopenedLog = new MXFileStoreRoomLog(mFolder, mCodec);
+        assertEquals(5, reopenedLog.replay().mEvents.size());
+
+        // the next records are not written after the truncated one
+        records.clear();
+        records.add(MXFileStoreRoomLog.Record.append(buildEvent(6, 20)));
+        reopenedLog.append(records);
+        assertEquals(2, segments().size());
+
+        MXFileStoreRoomLog.Content content = new MXFileStoreRoomLog(mFolder, mCodec).replay();
+        assertEquals(6, content.mEvents.size());
+        assertFalse(content.mEvents.containsKey(eventId(5)));
+        assertTrue(content.mEvents.containsKey(eventId(6)));
+    }
+
+    @Test
+    public void testFailedAppendIsRolledBack() throws Exception {
+        MXFileStoreRoomLog roomLog = new MXFileStoreRoomLog(mFolder, mCodec);
+        mCodec.setCompressionLevel(Deflater.NO_COMPRESSION);
+
+        ArrayList<MXFileStoreRoomLog.Record> records = new ArrayList<MXFileStoreRoomLog.Record>();
+        records.add(MXFileStoreRoomLog.Record.append(buildEvent(0, 20)));
+        roomLog.append(records);
+
+        // the first record is written (larger than the output buffer) before the second one fails
+        Event failingEvent = new Event() {
+            @Override
+            public String getContentAsString() {
+                throw new IllegalStateException("failing event");
+            }
+        };
+        failingEvent.eventId = eventId(2);
+
+        records.clear();
+        records.add(MXFileStoreRoomLog.Record.append(buildEvent(1, 20000)));
+        records.add(MXFileStoreRoomLog.Record.append(failingEvent));
+
+        try {
+            roomLog.append(records);
+            fail("the append should fail");
+        } catch (IllegalStateException e) {
+        }
+
+        // the next records are written in a new segment
+        records.clear();
+        records.add(MXFileStoreRoomLog.Record.append(buildEvent(3, 20)));
+        roomLog.append(records);
+        assertEquals(2, segments().size());
+
+        // the first segment does not end with a partial record
+        MXFileStoreRoomLog.Content content = new MXFileStoreRoomLog(mFolder, mCodec).replay();
+        assertEquals(Arrays.asList(eventId(0), eventId(3)), new ArrayList<String>(content.mEvents.keySet()));
+    }
+
+    @Test
+    public void testCompaction() throws Exception {
+        MXFileStoreRoomLog roomLog = new MXFileStoreRoomLog(mFolder, mCodec);
+
+        for (int i = 0; i < 600; i++) {
+            Event event = buildEvent(i, 20);
+            // the trimmed history starts with a pagination token
+            event.mToken = (0 == (i % 100)) ? ("token" + i) : null;
+
+            ArrayList<MXFileStoreRoomLog.Record> records = new ArrayList<MXFileStoreRoomLog.Record>();
+            records.add(MXFileStoreRoomLog.Record.append(event));
+            roomLog.append(records);
+        }
+
+        assertTrue(roomLog.needsCompaction());
+
+        roomLog.compact(new RetentionPolicy(100), "!room:matrix.org");
+
+        // a single snapshot segment with the latest events
+        assertFalse(roomLog.needsCompaction());
+        assertEquals(1, segments().size());
+
+        MXFileStoreRoomLog.Content content = new MXFileStoreRoomLog(mFolder, mCodec).replay();
+        assertEquals(100, content.mEvents.size());
+        assertEquals(eventId(500), content.mEvents.keySet().iterator().next());
+    }
+}
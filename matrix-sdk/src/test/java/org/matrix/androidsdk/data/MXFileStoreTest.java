@@ -0,0 +1,567 @@
+/*
+ * Copyright 2015 OpenMarket Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrix.androidsdk.data;
+
+import android.net.Uri;
+import android.os.Looper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.matrix.androidsdk.HomeserverConnectionConfig;
+import org.matrix.androidsdk.MXDataHandler;
+import org.matrix.androidsdk.rest.model.Event;
+import org.matrix.androidsdk.rest.model.TokensChunkResponse;
+import org.matrix.androidsdk.rest.model.login.Credentials;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Class for unit testing the MXFileStore.
+ */
+@Config(emulateSdk = 18)
+@RunWith(RobolectricTestRunner.class)
+public class MXFileStoreTest {
+
+    private static final String USER_ID = "@user:matrix.org";
+    private static final String ROOM_ID = "!room:matrix.org";
+    private static final String OTHER_ROOM_ID = "!otherroom:matrix.org";
+
+    // the bound of the waits for the store threads
+    private static final long TIMEOUT_MS = 10000;
+
+    private HomeserverConnectionConfig mHsConfig;
+    private MXFileStore mStore;
+
+    @Before
+    public void setUp() {
+        Credentials credentials = new Credentials();
+        credentials.userId = USER_ID;
+        credentials.accessToken = "accessToken";
+        mHsConfig = new HomeserverConnectionConfig(Uri.parse("http://localhost:8008"), credentials);
+
+        mStore = new MXFileStore(mHsConfig, Robolectric.application);
+        assertTrue(mStore.isReady());
+    }
+
+    @After
+    public void tearDown() {
+        runWithStoreThread(new Runnable() {
+            @Override
+            public void run() {
+                mStore.close();
+            }
+        });
+
+        mStore.clear();
+    }
+
+    /**
+     * The loopers of the background threads are not run by Robolectric : run the pending tasks of the store thread.
+     */
+    private void runBackgroundTasks() {
+        Looper looper = mStore.getStoreLooper();
+
+        if (null != looper) {
+            Robolectric.shadowOf(looper).runToEndOfTasks();
+        }
+    }
+
+    /**
+     * Run an operation which waits for the store thread in another thread, and run the store thread tasks until it is done.
+     * @param operation the operation
+     */
+    private void runWithStoreThread(Runnable operation) {
+        Thread thread = new Thread(operation);
+        thread.start();
+
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+
+        try {
+            while (thread.isAlive() && (System.currentTimeMillis() < deadline)) {
+                runBackgroundTasks();
+                thread.join(10);
+            }
+        } catch (InterruptedException e) {
+            fail("runWithStoreThread interrupted");
+        }
+
+        assertFalse(thread.isAlive());
+    }
+
+    /**
+     * Commit the store and wait until the changes are written.
+     */
+    private void commit() {
+        mStore.commit();
+        // the commits are delayed on the UI thread
+        Robolectric.runUiThreadTasksIncludingDelayedTasks();
+
+        runWithStoreThread(new Runnable() {
+            @Override
+            public void run() {
+                mStore.flushAndWait();
+            }
+        });
+    }
+
+    /**
+     * Close the store then open it again.
+     * @param listener the listener of the opened store
+     */
+    private void reopenStore(IMXStore.MXStoreListener listener) {
+        commit();
+
+        runWithStoreThread(new Runnable() {
+            @Override
+            public void run() {
+                mStore.close();
+            }
+        });
+
+        openStore(listener);
+    }
+
+    /**
+     * Open a new store on the same account.
+     * @param listener the listener of the opened store
+     */
+    private void openStore(IMXStore.MXStoreListener listener) {
+        mStore = new MXFileStore(mHsConfig, Robolectric.application);
+        mStore.setMXStoreListener(listener);
+        mStore.open();
+
+        // the store is opened by its background thread
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+
+        while (!mStore.isReady() && (System.currentTimeMillis() < deadline)) {
+            runBackgroundTasks();
+            Thread.yield();
+        }
+
+        assertTrue(mStore.isReady());
+    }
+
+    private static Event buildEvent(String roomId, int index, String token) {
+        Event event = new Event();
+        event.type = Event.EVENT_TYPE_MESSAGE;
+        event.roomId = roomId;
+        event.eventId = "$event" + index + roomId;
+        event.userId = USER_ID;
+        event.mToken = token;
+        return event;
+    }
+
+    /**
+     * Store a room with ten messages and its summary.
+     * @param roomId the room id
+     */
+    private void storeRoom(String roomId) {
+        RoomState state = new RoomState();
+        state.roomId = roomId;
+        state.topic = "topic of " + roomId;
+
+        Room room = new Room();
+        room.setRoomId(roomId);
+        room.setLiveState(state);
+
+        mStore.storeRoom(room);
+        mStore.storeLiveStateForRoom(roomId);
+
+        TokensChunkResponse<Event> response = new TokensChunkResponse<Event>();
+        response.start = "t10";
+        response.end = "t0";
+        response.chunk = new ArrayList<Event>();
+
+        for (int index = 9; index >= 0; index--) {
+            response.chunk.add(buildEvent(roomId, index, (9 == index) ? response.start : ((0 == index) ? response.end : null)));
+        }
+
+        mStore.storeRoomEvents(roomId, response, Room.EventDirection.BACKWARDS);
+        mStore.storeSummary(USER_ID, roomId, response.chunk.get(0), state, USER_ID);
+    }
+
+    /**
+     * The test thread is the UI one : read the room messages from another thread to load the room if it is pending.
+     * @param roomId the room id
+     * @return the room messages
+     */
+    private Collection<Event> getRoomMessagesInBackground(final String roomId) {
+        final AtomicReference<Collection<Event>> messages = new AtomicReference<Collection<Event>>();
+
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                messages.set(mStore.getRoomMessages(roomId));
+            }
+        });
+        thread.start();
+
+        try {
+            thread.join(TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            fail("getRoomMessagesInBackground interrupted");
+        }
+
+        assertFalse(thread.isAlive());
+        return messages.get();
+    }
+
+    /**
+     * @param roomId the room id
+     * @return the room in the listed rooms, without loading it.
+     */
+    private Room listedRoom(String roomId) {
+        for (Room room : mStore.getRooms()) {
+            if (roomId.equals(room.getRoomId())) {
+                return room;
+            }
+        }
+
+        return null;
+    }
+
+    @Test
+    public void testSummariesFirstAndRoomsOnDemand() throws Exception {
+        storeRoom(ROOM_ID);
+        storeRoom(OTHER_ROOM_ID);
+
+        final List<String> steps = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch roomsLatch = new CountDownLatch(1);
+
+        reopenStore(new IMXStore.MXStoreOpenPhaseListener() {
+            @Override
+            public void onStoreOpenPhaseDone(String accountId, IMXStore.OpenPhase phase) {
+                if (IMXStore.OpenPhase.SUMMARIES == phase) {
+                    // the rooms list can be displayed before the rooms are listed
+                    steps.add("summaries:" + mStore.getSummaries().size() + ":" + mStore.getRooms().size());
+                } else {
+                    steps.add("rooms");
+                    roomsLatch.countDown();
+                }
+            }
+
+            @Override
+            public void onStoreReady(String accountId) {
+                // the rooms are listed but not loaded
+                steps.add("ready:" + mStore.isPendingRoom(ROOM_ID) + ":" + mStore.isPendingRoom(OTHER_ROOM_ID));
+
+                // a room timeline is loaded on its first access
+                steps.add("messages:" + getRoomMessagesInBackground(ROOM_ID).size() + ":" + mStore.isPendingRoom(ROOM_ID));
+            }
+
+            @Override
+            public void onStoreCorrupted(String accountId) {
+                steps.add("corrupted");
+            }
+        });
+
+        // the other rooms are loaded in background
+        assertTrue(roomsLatch.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+        assertEquals("summaries:2:0", steps.get(0));
+        assertEquals("ready:true:true", steps.get(1));
+        assertEquals("messages:10:false", steps.get(2));
+        assertEquals("rooms", steps.get(3));
+
+        assertFalse(mStore.isPendingRoom(OTHER_ROOM_ID));
+        assertEquals(10, mStore.getRoomMessages(OTHER_ROOM_ID).size());
+    }
+
+    @Test
+    public void testFailedMessagesAreWrittenByTheNextCommit() throws Exception {
+        storeRoom(ROOM_ID);
+        commit();
+
+        // the event cannot be written until the flag is cleared (e.g. no space left on the device)
+        final AtomicBoolean isWriteFailing = new AtomicBoolean(true);
+
+        Event event = new Event() {
+            @Override
+            public String getMatrixId() {
+                if (isWriteFailing.get()) {
+                    throw new IllegalStateException("write failure");
+                }
+
+                return super.getMatrixId();
+            }
+        };
+        event.type = Event.EVENT_TYPE_MESSAGE;
+        event.roomId = ROOM_ID;
+        event.eventId = "$failing";
+        event.userId = USER_ID;
+
+        mStore.storeLiveRoomEvent(event);
+        mStore.storeLiveRoomEvent(buildEvent(ROOM_ID, 10, null));
+        commit();
+
+        // the records are kept and written in order by the next commit
+        isWriteFailing.set(false);
+        mStore.storeLiveRoomEvent(buildEvent(ROOM_ID, 11, null));
+        commit();
+
+        reopenStore(new IMXStore.MXStoreListener() {
+            @Override
+            public void onStoreReady(String accountId) {
+            }
+
+            @Override
+            public void onStoreCorrupted(String accountId) {
+            }
+        });
+
+        ArrayList<Event> messages = new ArrayList<Event>(getRoomMessagesInBackground(ROOM_ID));
+        assertEquals(13, messages.size());
+        assertEquals("$failing", messages.get(10).eventId);
+        assertEquals("$event10" + ROOM_ID, messages.get(11).eventId);
+        assertEquals("$event11" + ROOM_ID, messages.get(12).eventId);
+    }
+
+    @Test
+    public void testLiveStateFromUiThread() throws Exception {
+        storeRoom(ROOM_ID);
+
+        final List<String> topics = Collections.synchronizedList(new ArrayList<String>());
+
+        reopenStore(new IMXStore.MXStoreListener() {
+            @Override
+            public void onStoreReady(String accountId) {
+                // the test thread is the UI one : a state built from the summary is provided while the room is loaded by its worker
+                Room room = listedRoom(ROOM_ID);
+                topics.add(room.getLiveState().topic);
+            }
+
+            @Override
+            public void onStoreCorrupted(String accountId) {
+            }
+        });
+
+        assertEquals(1, topics.size());
+        assertEquals("topic of " + ROOM_ID, topics.get(0));
+
+        // the live state is loaded by the next non UI access
+        assertEquals(10, getRoomMessagesInBackground(ROOM_ID).size());
+        assertFalse(mStore.isPendingRoom(ROOM_ID));
+        assertEquals("topic of " + ROOM_ID, listedRoom(ROOM_ID).getLiveState().topic);
+    }
+
+    @Test
+    public void testRoomReadsFromUiThread() throws Exception {
+        storeRoom(ROOM_ID);
+
+        final List<String> steps = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch loadedLatch = new CountDownLatch(1);
+
+        MXDataHandler dataHandler = mock(MXDataHandler.class);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                loadedLatch.countDown();
+                return null;
+            }
+        }).when(dataHandler).onRoomInternalUpdate(ROOM_ID);
+
+        final MXDataHandler fDataHandler = dataHandler;
+
+        reopenStore(new IMXStore.MXStoreListener() {
+            @Override
+            public void onStoreReady(String accountId) {
+                listedRoom(ROOM_ID).setDataHandler(fDataHandler);
+
+                // the UI thread does not wait for the room : it is answered from the summary
+                steps.add("messages:" + mStore.getRoomMessages(ROOM_ID));
+                steps.add("latest:" + mStore.getLatestEvent(ROOM_ID).eventId);
+            }
+
+            @Override
+            public void onStoreCorrupted(String accountId) {
+            }
+        });
+
+        assertEquals("messages:null", steps.get(0));
+        assertEquals("latest:$event9" + ROOM_ID, steps.get(1));
+
+        // the room is loaded by its worker, then its listeners are informed on the UI thread
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+
+        while ((loadedLatch.getCount() > 0) && (System.currentTimeMillis() < deadline)) {
+            Robolectric.runUiThreadTasks();
+            loadedLatch.await(10, TimeUnit.MILLISECONDS);
+        }
+
+        verify(dataHandler).onRoomInternalUpdate(ROOM_ID);
+        assertFalse(mStore.isPendingRoom(ROOM_ID));
+        assertEquals(10, mStore.getRoomMessages(ROOM_ID).size());
+    }
+
+    @Test
+    public void testCloseFromUiThread() throws Exception {
+        storeRoom(ROOM_ID);
+        commit();
+
+        // the pending commit is cancelled instead of being waited
+        mStore.storeLiveRoomEvent(buildEvent(ROOM_ID, 10, null));
+        mStore.commit();
+
+        long start = System.currentTimeMillis();
+        mStore.close();
+        assertTrue((System.currentTimeMillis() - start) < mStore.FLUSH_TIMEOUT_MS);
+
+        openStore(new IMXStore.MXStoreListener() {
+            @Override
+            public void onStoreReady(String accountId) {
+            }
+
+            @Override
+            public void onStoreCorrupted(String accountId) {
+            }
+        });
+
+        assertEquals(10, getRoomMessagesInBackground(ROOM_ID).size());
+    }
+
+    @Test
+    public void testMetaDataIsReplaced() throws Exception {
+        mStore.setEventStreamToken("token1");
+        commit();
+        mStore.setEventStreamToken("token2");
+        commit();
+
+        // the metadata are written in a temporary file which replaces the previous one
+        File storeFolder = new File(new File(Robolectric.application.getFilesDir(), mStore.MXFILE_STORE_FOLDER), USER_ID);
+        assertTrue(new File(storeFolder, mStore.MXFILE_STORE_METADATA_FILE_NAME).exists());
+        assertFalse(new File(storeFolder, mStore.MXFILE_STORE_METADATA_FILE_NAME + MXFileStoreCodec.TEMPORARY_FILE_SUFFIX).exists());
+
+        reopenStore(new IMXStore.MXStoreListener() {
+            @Override
+            public void onStoreReady(String accountId) {
+            }
+
+            @Override
+            public void onStoreCorrupted(String accountId) {
+            }
+        });
+
+        assertEquals("token2", mStore.getEventStreamToken());
+    }
+
+    @Test
+    public void testRoomWorkerKeepsTheOrder() throws Exception {
+        final int count = 200;
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+        final List<Thread> threads = Collections.synchronizedList(new ArrayList<Thread>());
+        final CountDownLatch latch = new CountDownLatch(count);
+
+        for (int index = 0; index < count; index++) {
+            final int fIndex = index;
+
+            // the other rooms operations are interleaved
+            mStore.postToRoomWorker(OTHER_ROOM_ID + index, new Runnable() {
+                @Override
+                public void run() {
+                    Thread.yield();
+                }
+            });
+
+            mStore.postToRoomWorker(ROOM_ID, new Runnable() {
+                @Override
+                public void run() {
+                    order.add(fIndex);
+                    threads.add(Thread.currentThread());
+                    latch.countDown();
+                }
+            });
+        }
+
+        assertTrue(latch.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+        // the operations on a room are run one by one, in order, by the same worker
+        for (int index = 0; index < count; index++) {
+            assertEquals(index, (int) order.get(index));
+            assertSame(threads.get(0), threads.get(index));
+        }
+    }
+
+    @Test
+    public void testConcurrentRoomLoads() throws Exception {
+        storeRoom(ROOM_ID);
+
+        final List<Integer> sizes = Collections.synchronizedList(new ArrayList<Integer>());
+
+        reopenStore(new IMXStore.MXStoreListener() {
+            @Override
+            public void onStoreReady(String accountId) {
+                // two threads need the room at the same time : one loads it, the other one waits for the load
+                final CyclicBarrier barrier = new CyclicBarrier(2);
+                ArrayList<Thread> threads = new ArrayList<Thread>();
+
+                for (int index = 0; index < 2; index++) {
+                    Thread thread = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                barrier.await(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                            } catch (Exception e) {
+                                return;
+                            }
+
+                            Collection<Event> messages = mStore.getRoomMessages(ROOM_ID);
+                            sizes.add((null != messages) ? messages.size() : -1);
+                        }
+                    });
+
+                    thread.start();
+                    threads.add(thread);
+                }
+
+                try {
+                    for (Thread thread : threads) {
+                        thread.join(TIMEOUT_MS);
+                    }
+                } catch (InterruptedException e) {
+                }
+            }
+
+            @Override
+            public void onStoreCorrupted(String accountId) {
+            }
+        });
+
+        // no thread gets a partially loaded room
+        assertEquals(2, sizes.size());
+        assertEquals(10, (int) sizes.get(0));
+        assertEquals(10, (int) sizes.get(1));
+        assertFalse(mStore.isPendingRoom(ROOM_ID));
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2015 OpenMarket Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrix.androidsdk.data;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.matrix.androidsdk.rest.model.Event;
+import org.matrix.androidsdk.rest.model.TokensChunkResponse;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+
+import static org.junit.Assert.*;
+
+/**
+ * Class for unit testing the MXMemoryStore timelines.
+ */
+@Config(emulateSdk = 18)
+@RunWith(RobolectricTestRunner.class)
+public class MXMemoryStoreTest {
+
+    private static final String ROOM_ID = "!room:matrix.org";
+
+    private MXMemoryStore mStore;
+
+    @Before
+    public void setUp() {
+        mStore = new MXMemoryStore();
+    }
+
+    private static Event buildEvent(int index, String token) {
+        Event event = new Event();
+        event.type = Event.EVENT_TYPE_MESSAGE;
+        event.roomId = ROOM_ID;
+        event.eventId = "$event" + index;
+        event.mToken = token;
+        return event;
+    }
+
+    /**
+     * Store a chunk like a back pagination response (from the latest to the oldest event).
+     */
+    private void storeBackwards(int from, int to, String start, String end) {
+        TokensChunkResponse<Event> response = new TokensChunkResponse<Event>();
+        response.start = start;
+        response.end = end;
+        response.chunk = new ArrayList<Event>();
+
+        for (int index = from; index >= to; index--) {
+            response.chunk.add(buildEvent(index, (index == from) ? start : ((index == to) ? end : null)));
+        }
+
+        mStore.storeRoomEvents(ROOM_ID, response, Room.EventDirection.BACKWARDS);
+    }
+
+    @Test
+    public void testGetEarlierMessagesFromTokens() {
+        storeBackwards(99, 50, "t100", "t50");
+        storeBackwards(49, 0, "t50b", "t0");
+
+        for (int i = 100; i < 110; i++) {
+            mStore.storeLiveRoomEvent(buildEvent(i, null));
+        }
+
+        // from the latest event : until 20 events and a token
+        TokensChunkResponse<Event> response = mStore.getEarlierMessages(ROOM_ID, null, 20);
+        assertEquals("$event109", response.chunk.get(0).eventId);
+        assertEquals("$event50", response.chunk.get(response.chunk.size() - 1).eventId);
+        assertEquals("t50", response.end);
+
+        // from a token
+        response = mStore.getEarlierMessages(ROOM_ID, "t50", 20);
+        assertEquals("$event49", response.chunk.get(0).eventId);
+        assertEquals("$event0", response.chunk.get(response.chunk.size() - 1).eventId);
+        assertEquals("t50b", response.start);
+        assertEquals("t0", response.end);
+
+        // nothing before the oldest event
+        assertNull(mStore.getEarlierMessages(ROOM_ID, "t0", 20));
+
+        // unknown token
+        assertNull(mStore.getEarlierMessages(ROOM_ID, "unknown", 20));
+    }
+
+    @Test
+    public void testGetEarlierMessagesAfterDeletion() {
+        storeBackwards(9, 0, "t10", "t0");
+
+        mStore.deleteEvent(buildEvent(5, null));
+        mStore.deleteEvent(buildEvent(9, null));
+
+        TokensChunkResponse<Event> response = mStore.getEarlierMessages(ROOM_ID, null, 20);
+        assertEquals(8, response.chunk.size());
+        assertEquals("$event8", response.chunk.get(0).eventId);
+
+        for (Event event : response.chunk) {
+            assertFalse("$event5".equals(event.eventId));
+        }
+
+        // the deleted event token is not known anymore
+        assertNull(mStore.getEarlierMessages(ROOM_ID, "t10", 20));
+    }
+
+    /**
+     * Store 100 events with a token every 10 events.
+     */
+    private void storeHistory(String roomId, int firstIndex) {
+        TokensChunkResponse<Event> response = new TokensChunkResponse<Event>();
+        response.start = "t" + (firstIndex + 100);
+        response.end = "t" + firstIndex;
+        response.chunk = new ArrayList<Event>();
+
+        for (int index = firstIndex + 99; index >= firstIndex; index--) {
+            Event event = buildEvent(index, (0 == (index % 10)) ? ("t" + index) : null);
+            event.roomId = roomId;
+            response.chunk.add(event);
+        }
+
+        mStore.storeRoomEvents(roomId, response, Room.EventDirection.BACKWARDS);
+    }
+
+    @Test
+    public void testMemoryBudget() {
+        String otherRoomId = "!other:matrix.org";
+
+        storeHistory(ROOM_ID, 0);
+        storeHistory(otherRoomId, 1000);
+
+        // the other room is the latest viewed one
+        mStore.getRoomMessages(ROOM_ID);
+        mStore.getRoomMessages(otherRoomId);
+
+        RetentionPolicy policy = new RetentionPolicy(20);
+        policy.setMemoryBudget(1);
+        mStore.setRetentionPolicy(policy);
+        mStore.commit();
+
+        // the least recently viewed room is trimmed from an event with a token
+        assertEquals(20, mStore.getRoomMessages(ROOM_ID).size());
+        assertEquals("$event80", mStore.getOldestEvent(ROOM_ID).eventId);
+        assertEquals(100, mStore.getRoomMessages(otherRoomId).size());
+
+        // the history can be extended from the oldest event
+        TokensChunkResponse<Event> response = mStore.getEarlierMessages(ROOM_ID, null, 50);
+        assertEquals("t80", response.end);
+
+        // a pinned room is never trimmed
+        policy.setMaxEvents(5);
+        policy.pinRoom(ROOM_ID);
+        mStore.getRoomMessages(otherRoomId);
+        mStore.commit();
+        assertEquals(20, mStore.getRoomMessages(ROOM_ID).size());
+    }
+}
@@ -0,0 +1,321 @@
+/*
+ * Copyright 2015 OpenMarket Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrix.androidsdk.data;
+
+import android.net.Uri;
+import android.os.Looper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.matrix.androidsdk.HomeserverConnectionConfig;
+import org.matrix.androidsdk.rest.model.Event;
+import org.matrix.androidsdk.rest.model.TokensChunkResponse;
+import org.matrix.androidsdk.rest.model.login.Credentials;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+
+import static org.junit.Assert.*;
+
+/**
+ * Class for unit testing the MXSQLiteStore.
+ */
+@Config(emulateSdk = 18)
+@RunWith(RobolectricTestRunner.class)
+public class MXSQLiteStoreTest {
+
+    private static final String USER_ID = "@user:matrix.org";
+    private static final String ROOM_ID = "!room:matrix.org";
+
+    private HomeserverConnectionConfig mHsConfig;
+    private MXSQLiteStore mStore;
+
+    @Before
+    public void setUp() {
+        Credentials credentials = new Credentials();
+        credentials.userId = USER_ID;
+        credentials.accessToken = "accessToken";
+        mHsConfig = new HomeserverConnectionConfig(Uri.parse("http://localhost:8008"), credentials);
+
+        newStore();
+    }
+
+    @After
+    public void tearDown() {
+        mStore.close();
+        runBackgroundTasks();
+
+        Robolectric.application.deleteDatabase("MXSQLiteStore_" + USER_ID);
+    }
+
+    /**
+     * Create a store and run its initial writes.
+     */
+    private MXSQLiteStore newStore() {
+        mStore = new MXSQLiteStore(mHsConfig, Robolectric.application);
+        runBackgroundTasks();
+        return mStore;
+    }
+
+    /**
+     * The loopers of the background threads are not run by Robolectric : run the pending tasks of the store thread.
+     */
+    private void runBackgroundTasks() {
+        Looper looper = mStore.getStoreLooper();
+
+        if (null != looper) {
+            Robolectric.shadowOf(looper).runToEndOfTasks();
+        }
+    }
+
+    /**
+     * Commit the store and run the write.
+     */
+    private void commit() {
+        mStore.commit();
+        // the commits are delayed on the UI thread
+        Robolectric.runUiThreadTasksIncludingDelayedTasks();
+        runBackgroundTasks();
+    }
+
+    /**
+     * Close the store then open it again.
+     */
+    private void reopenStore() {
+        commit();
+        mStore.close();
+        runBackgroundTasks();
+
+        newStore();
+        mStore.open();
+        runBackgroundTasks();
+
+        assertTrue(mStore.isReady());
+    }
+
+    private static Event buildEvent(int index, String token) {
+        Event event = new Event();
+        event.type = Event.EVENT_TYPE_MESSAGE;
+        event.roomId = ROOM_ID;
+        event.eventId = "$event" + index;
+        event.userId = USER_ID;
+        event.mToken = token;
+        return event;
+    }
+
+    /**
+     * Store a room with a live state.
+     */
+    private void storeRoom() {
+        RoomState state = new RoomState();
+        state.roomId = ROOM_ID;
+
+        Room room = new Room();
+        room.setRoomId(ROOM_ID);
+        room.setLiveState(state);
+
+        mStore.storeRoom(room);
+        mStore.storeLiveStateForRoom(ROOM_ID);
+    }
+
+    /**
+     * Store a chunk like a back pagination response (from the latest to the oldest event).
+     */
+    private void storeBackwards(int from, int to, String start, String end) {
+        TokensChunkResponse<Event> response = new TokensChunkResponse<Event>();
+        response.start = start;
+        response.end = end;
+        response.chunk = new ArrayList<Event>();
+
+        for (int index = from; index >= to; index--) {
+            response.chunk.add(buildEvent(index, (index == from) ? start : ((index == to) ? end : null)));
+        }
+
+        mStore.storeRoomEvents(ROOM_ID, response, Room.EventDirection.BACKWARDS);
+    }
+
+    /**
+     * @return the event ids of the room messages
+     */
+    private ArrayList<String> roomMessagesIds() {
+        ArrayList<String> eventIds = new ArrayList<String>();
+
+        for (Event event : mStore.getRoomMessages(ROOM_ID)) {
+            eventIds.add(event.eventId);
+        }
+
+        return eventIds;
+    }
+
+    @Test
+    public void testStoreAndLoadEvents() {
+        assertTrue(mStore.isReady());
+
+        storeRoom();
+        storeBackwards(9, 0, "t10", "t0");
+
+        for (int i = 10; i < 15; i++) {
+            mStore.storeLiveRoomEvent(buildEvent(i, null));
+        }
+
+        mStore.setEventStreamToken("s1");
+
+        assertEquals(15, mStore.getRoomMessages(ROOM_ID).size());
+        assertEquals("$event0", mStore.getOldestEvent(ROOM_ID).eventId);
+        assertEquals("$event14", mStore.getLatestEvent(ROOM_ID).eventId);
+
+        // the timeline, the state and the metadata are loaded when the store is reopened
+        reopenStore();
+
+        assertEquals("s1", mStore.getEventStreamToken());
+        assertNotNull(mStore.getRoom(ROOM_ID));
+
+        ArrayList<String> eventIds = roomMessagesIds();
+        assertEquals(15, eventIds.size());
+
+        for (int i = 0; i < 15; i++) {
+            assertEquals("$event" + i, eventIds.get(i));
+        }
+
+        // the events are appended after the loaded ones
+        mStore.storeLiveRoomEvent(buildEvent(15, null));
+        assertEquals("$event15", mStore.getLatestEvent(ROOM_ID).eventId);
+    }
+
+    @Test
+    public void testAlreadyStoredEventKeepsItsPosition() {
+        storeRoom();
+        storeBackwards(9, 0, "t10", "t0");
+
+        // a live event which has also been back paginated
+        mStore.storeLiveRoomEvent(buildEvent(5, null));
+
+        ArrayList<String> eventIds = roomMessagesIds();
+        assertEquals(10, eventIds.size());
+        assertEquals("$event5", eventIds.get(5));
+    }
+
+    @Test
+    public void testGetEarlierMessagesFromTokens() {
+        storeRoom();
+        storeBackwards(99, 50, "t100", "t50");
+        storeBackwards(49, 0, "t50b", "t0");
+
+        for (int i = 100; i < 110; i++) {
+            mStore.storeLiveRoomEvent(buildEvent(i, null));
+        }
+
+        // from the latest event : until 20 events and a token
+        TokensChunkResponse<Event> response = mStore.getEarlierMessages(ROOM_ID, null, 20);
+        assertEquals("$event109", response.chunk.get(0).eventId);
+        assertEquals("$event50", response.chunk.get(response.chunk.size() - 1).eventId);
+        assertEquals("t50", response.end);
+
+        // from a token : the paging goes on from the indexed token
+        response = mStore.getEarlierMessages(ROOM_ID, "t50", 20);
+        assertEquals("$event49", response.chunk.get(0).eventId);
+        assertEquals("$event0", response.chunk.get(response.chunk.size() - 1).eventId);
+        assertEquals("t50b", response.start);
+        assertEquals("t0", response.end);
+
+        // nothing before the oldest event
+        assertNull(mStore.getEarlierMessages(ROOM_ID, "t0", 20));
+
+        // unknown token
+        assertNull(mStore.getEarlierMessages(ROOM_ID, "unknown", 20));
+
+        // the tokens are still indexed after a reopen
+        reopenStore();
+
+        response = mStore.getEarlierMessages(ROOM_ID, "t50", 20);
+        assertEquals("$event49", response.chunk.get(0).eventId);
+        assertEquals("t0", response.end);
+    }
+
+    @Test
+    public void testDeleteEvent() {
+        storeRoom();
+        storeBackwards(9, 0, "t10", "t0");
+
+        mStore.deleteEvent(buildEvent(5, null));
+        mStore.deleteEvent(buildEvent(9, null));
+
+        TokensChunkResponse<Event> response = mStore.getEarlierMessages(ROOM_ID, null, 20);
+        assertEquals(8, response.chunk.size());
+        assertEquals("$event8", response.chunk.get(0).eventId);
+
+        for (Event event : response.chunk) {
+            assertFalse("$event5".equals(event.eventId));
+        }
+
+        // the deleted event token is not known anymore
+        assertNull(mStore.getEarlierMessages(ROOM_ID, "t10", 20));
+    }
+
+    @Test
+    public void testSummaries() {
+        storeRoom();
+        storeBackwards(9, 0, "t10", "t0");
+
+        mStore.storeSummary(USER_ID, ROOM_ID, buildEvent(9, null), mStore.getRoom(ROOM_ID).getLiveState(), USER_ID);
+        commit();
+
+        reopenStore();
+
+        RoomSummary summary = mStore.getSummary(ROOM_ID);
+        assertNotNull(summary);
+        assertEquals(ROOM_ID, summary.getRoomId());
+        assertEquals("$event9", summary.getLatestEvent().eventId);
+    }
+
+    @Test
+    public void testDeleteRoom() {
+        storeRoom();
+        storeBackwards(9, 0, "t10", "t0");
+        mStore.storeSummary(USER_ID, ROOM_ID, buildEvent(9, null), mStore.getRoom(ROOM_ID).getLiveState(), USER_ID);
+        commit();
+
+        mStore.deleteRoom(ROOM_ID);
+
+        assertNull(mStore.getRoom(ROOM_ID));
+        assertNull(mStore.getRoomMessages(ROOM_ID));
+        assertNull(mStore.getSummary(ROOM_ID));
+
+        // the room is not loaded again
+        reopenStore();
+
+        assertNull(mStore.getRoom(ROOM_ID));
+        assertNull(mStore.getRoomMessages(ROOM_ID));
+        assertNull(mStore.getSummary(ROOM_ID));
+    }
+
+    @Test
+    public void testClosedStoreIsNotUpdated() {
+        storeRoom();
+        storeBackwards(9, 0, "t10", "t0");
+        reopenStore();
+
+        mStore.close();
+
+        // the updates after close are ignored
+        mStore.storeLiveRoomEvent(buildEvent(10, null));
+        assertNull(mStore.getRoomMessages(ROOM_ID));
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2015 OpenMarket Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrix.androidsdk.data;
+
+import com.google.gson.JsonObject;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.matrix.androidsdk.rest.model.Event;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Class for unit testing the MessagesIndex.
+ */
+@Config(emulateSdk = 18)
+@RunWith(RobolectricTestRunner.class)
+public class MessagesIndexTest {
+
+    private static Event buildMessage(String eventId, String roomId, long ts, String body) {
+        JsonObject content = new JsonObject();
+        content.addProperty("msgtype", "m.text");
+        content.addProperty("body", body);
+
+        Event event = new Event(Event.EVENT_TYPE_MESSAGE, content, "@user:matrix.org", roomId);
+        event.eventId = eventId;
+        event.originServerTs = ts;
+        event.mSentState = Event.SentState.SENT;
+        return event;
+    }
+
+    @Test
+    public void testTokenize() {
+        assertEquals(Arrays.asList("hello", "matrix", "sdk", "42"), MessagesIndex.tokenize("Hello, Matrix-SDK! hello 42 (.*)"));
+        assertEquals(0, MessagesIndex.tokenize(" .* ").size());
+        assertEquals(0, MessagesIndex.tokenize(null).size());
+    }
+
+    @Test
+    public void testPrefixSearchByRecency() {
+        MessagesIndex index = new MessagesIndex();
+
+        index.indexEvent(buildMessage("$1", "!room1:matrix.org", 1000, "The Matrix SDK"));
+        index.indexEvent(buildMessage("$2", "!room2:matrix.org", 3000, "matrix rocks"));
+        index.indexEvent(buildMessage("$3", "!room1:matrix.org", 2000, "an android sdk"));
+
+        assertEquals(Arrays.asList("$2", "$1"), index.search("mat", null, 10));
+        assertEquals(Arrays.asList("$1"), index.search("MAT sdk", null, 10));
+        assertEquals(Arrays.asList("$3", "$1"), index.search("sdk", "!room1:matrix.org", 10));
+        assertEquals(Arrays.asList("$3"), index.search("sdk", null, 1));
+
+        // the pattern is not a regular expression
+        assertEquals(0, index.search(".*", null, 10).size());
+        assertEquals(0, index.search("atrix", null, 10).size());
+    }
+
+    @Test
+    public void testUpdates() {
+        MessagesIndex index = new MessagesIndex();
+        index.trackChanges();
+
+        index.indexEvent(buildMessage("$1", "!room1:matrix.org", 1000, "first message"));
+        index.indexEvent(buildMessage("$2", "!room1:matrix.org", 2000, "second message"));
+        index.indexEvent(buildMessage("$3", "!room2:matrix.org", 3000, "third message"));
+
+        // the unsent messages are not indexed
+        Event unsent = buildMessage("$4", "!room2:matrix.org", 4000, "unsent message");
+        unsent.mSentState = Event.SentState.SENDING;
+        index.indexEvent(unsent);
+
+        assertEquals(3, index.popChanges().size());
+        assertEquals(0, index.popChanges().size());
+
+        // a redaction prunes the body
+        index.updateContent("$1", new JsonObject());
+        assertEquals(Arrays.asList("$3", "$2"), index.search("message", null, 10));
+
+        index.removeRoom("!room2:matrix.org");
+        assertEquals(Arrays.asList("$2"), index.search("message", null, 10));
+
+        Map<String, MessagesIndex.Entry> changes = index.popChanges();
+        assertEquals(2, changes.size());
+        assertTrue(changes.containsKey("$1"));
+        assertNull(changes.get("$3"));
+
+        // the oldest messages are removed when the index is full
+        index.indexEvent(buildMessage("$5", "!room1:matrix.org", 5000, "fifth message"));
+        index.setMaxEntries(1);
+        assertEquals(Arrays.asList("$5"), index.search("message", null, 10));
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2015 OpenMarket Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrix.androidsdk.data;
+
+import com.google.gson.JsonObject;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.matrix.androidsdk.rest.model.Event;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+
+import static org.junit.Assert.*;
+
+/**
+ * Class for unit testing the RetentionPolicy.
+ */
+@Config(emulateSdk = 18)
+@RunWith(RobolectricTestRunner.class)
+public class RetentionPolicyTest {
+
+    private static final String ROOM_ID = "!room:matrix.org";
+    private static final long NOW = 1430000000000L;
+    private static final long MINUTE = 60 * 1000;
+
+    /**
+     * Build a history of one event per minute, the latest one is sent now.
+     * @param count the events count
+     * @param tokenPeriod an event out of tokenPeriod has a token
+     */
+    private static ArrayList<Event> buildHistory(int count, int tokenPeriod) {
+        ArrayList<Event> events = new ArrayList<Event>();
+
+        for (int index = 0; index < count; index++) {
+            JsonObject content = new JsonObject();
+            content.addProperty("msgtype", "m.text");
+            content.addProperty("body", "message " + index);
+
+            Event event = new Event(Event.EVENT_TYPE_MESSAGE, content, "@user:matrix.org", ROOM_ID);
+            event.eventId = "$event" + index;
+            event.originServerTs = NOW - ((count - 1 - index) * MINUTE);
+
+            if (0 == (index % tokenPeriod)) {
+                event.mToken = "t" + index;
+                event.mIsInternalPaginationToken = false;
+            }
+
+            events.add(event);
+        }
+
+        return events;
+    }
+
+    @Test
+    public void testUnlimited() {
+        assertEquals(0, new RetentionPolicy().trimmedHistoryStartIndex(ROOM_ID, buildHistory(500, 10), NOW));
+    }
+
+    @Test
+    public void testMaxEvents() {
+        RetentionPolicy policy = new RetentionPolicy(50);
+
+        // 50 events then back to the first token
+        assertEquals(450, policy.trimmedHistoryStartIndex(ROOM_ID, buildHistory(500, 10), NOW));
+        assertEquals(440, policy.trimmedHistoryStartIndex(ROOM_ID, buildHistory(495, 10), NOW));
+
+        assertEquals(400, policy.trimmedHistoryStartIndex(ROOM_ID, buildHistory(500, 200), NOW));
+        // the previous token is too far : start from the next token
+        assertEquals(480, policy.trimmedHistoryStartIndex(ROOM_ID, buildHistory(500, 240), NOW));
+
+        // no more token : keep the whole history
+        assertEquals(0, policy.trimmedHistoryStartIndex(ROOM_ID, buildHistory(300, 1000), NOW));
+
+        assertFalse(policy.isHistoryFull(ROOM_ID, 49, 0));
+        assertTrue(policy.isHistoryFull(ROOM_ID, 50, 0));
+    }
+
+    @Test
+    public void testMaxAge() {
+        RetentionPolicy policy = new RetentionPolicy();
+        policy.setMaxAge(100 * MINUTE);
+
+        assertEquals(390, policy.trimmedHistoryStartIndex(ROOM_ID, buildHistory(500, 10), NOW));
+        assertTrue(policy.exceeds(ROOM_ID, 500, 0, NOW - (499 * MINUTE), NOW));
+        assertFalse(policy.exceeds(ROOM_ID, 500, 0, NOW - (50 * MINUTE), NOW));
+
+        // the latest event is always kept
+        assertEquals(490, policy.trimmedHistoryStartIndex(ROOM_ID, buildHistory(500, 10), NOW + (1000 * MINUTE)));
+    }
+
+    @Test
+    public void testMaxBytes() {
+        ArrayList<Event> events = buildHistory(500, 10);
+        long eventSize = RetentionPolicy.estimateSize(events.get(250));
+
+        RetentionPolicy policy = new RetentionPolicy();
+        policy.setMaxBytes(eventSize * 30);
+
+        int startIndex = policy.trimmedHistoryStartIndex(ROOM_ID, events, NOW);
+        assertEquals(0, startIndex % 10);
+        assertTrue((500 - startIndex) >= 25);
+        assertTrue((500 - startIndex) <= 45);
+    }
+
+    @Test
+    public void testPinnedRoom() {
+        RetentionPolicy policy = new RetentionPolicy(50);
+        policy.pinRoom(ROOM_ID);
+
+        assertEquals(0, policy.trimmedHistoryStartIndex(ROOM_ID, buildHistory(500, 10), NOW));
+        assertFalse(policy.isHistoryFull(ROOM_ID, 1000, 0));
+
+        policy.unpinRoom(ROOM_ID);
+        assertEquals(450, policy.trimmedHistoryStartIndex(ROOM_ID, buildHistory(500, 10), NOW));
+    }
+}
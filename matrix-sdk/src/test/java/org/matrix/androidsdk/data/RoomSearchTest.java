@@ -0,0 +1,186 @@
+/*
+ * Copyright 2015 OpenMarket Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrix.androidsdk.data;
+
+import com.google.gson.JsonObject;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.matrix.androidsdk.MXDataHandler;
+import org.matrix.androidsdk.rest.callback.SimpleApiCallback;
+import org.matrix.androidsdk.rest.model.Event;
+import org.matrix.androidsdk.rest.model.TokensChunkResponse;
+import org.matrix.androidsdk.rest.model.login.Credentials;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Class for unit testing the room messages search.
+ */
+@Config(emulateSdk = 18)
+@RunWith(RobolectricTestRunner.class)
+public class RoomSearchTest {
+
+    private static final String ROOM_ID = "!room:matrix.org";
+    private static final int MESSAGES_COUNT = 50;
+
+    private Room mRoom;
+
+    /**
+     * Collect the search results.
+     */
+    private static class ResultsCollector implements Room.MessagesSearchListener {
+        final List<List<Room.SnapshotedEvent>> mBatches = new ArrayList<List<Room.SnapshotedEvent>>();
+        boolean mIsComplete = false;
+
+        @Override
+        public void onSearchResults(List<Room.SnapshotedEvent> snapshotedEvents) {
+            mBatches.add(snapshotedEvents);
+        }
+
+        @Override
+        public void onSearchComplete() {
+            mIsComplete = true;
+        }
+
+        List<String> getEventIds() {
+            ArrayList<String> eventIds = new ArrayList<String>();
+
+            for (List<Room.SnapshotedEvent> batch : mBatches) {
+                for (Room.SnapshotedEvent snapshotedEvent : batch) {
+                    eventIds.add(snapshotedEvent.mEvent.eventId);
+                }
+            }
+
+            return eventIds;
+        }
+    }
+
+    @Before
+    public void setUp() {
+        MXMemoryStore store = new MXMemoryStore();
+
+        // the chunk is ordered from the latest to the oldest event
+        TokensChunkResponse<Event> response = new TokensChunkResponse<Event>();
+        response.start = "start";
+        response.end = "end";
+        response.chunk = new ArrayList<Event>();
+
+        for (int index = MESSAGES_COUNT - 1; index >= 0; index--) {
+            JsonObject content = new JsonObject();
+            content.addProperty("msgtype", "m.text");
+            content.addProperty("body", ((0 == (index % 2)) ? "hello " : "world ") + index);
+
+            Event event = new Event(Event.EVENT_TYPE_MESSAGE, content, "@user:matrix.org", ROOM_ID);
+            event.eventId = "$" + index;
+            event.originServerTs = 1000 + index;
+            event.mSentState = Event.SentState.SENT;
+            response.chunk.add(event);
+        }
+
+        store.storeRoomEvents(ROOM_ID, response, Room.EventDirection.BACKWARDS);
+
+        Credentials credentials = new Credentials();
+        credentials.userId = "@user:matrix.org";
+
+        DataRetriever dataRetriever = new DataRetriever();
+        dataRetriever.setStore(store);
+
+        mRoom = new Room();
+        mRoom.setRoomId(ROOM_ID);
+        mRoom.setDataRetriever(dataRetriever);
+        mRoom.setDataHandler(new MXDataHandler(store, credentials));
+    }
+
+    /**
+     * Run the UI thread tasks until the search is complete.
+     */
+    private static void waitForCompletion(ResultsCollector collector) throws Exception {
+        long timeout = System.currentTimeMillis() + 10000;
+
+        while (!collector.mIsComplete && (System.currentTimeMillis() < timeout)) {
+            Thread.sleep(10);
+            Robolectric.runUiThreadTasksIncludingDelayedTasks();
+        }
+
+        assertTrue(collector.mIsComplete);
+    }
+
+    @Test
+    public void testBatchesFromTheLatestMessage() throws Exception {
+        ResultsCollector collector = new ResultsCollector();
+        mRoom.searchMessages("hello", collector);
+        waitForCompletion(collector);
+
+        List<String> eventIds = collector.getEventIds();
+        assertEquals(MESSAGES_COUNT / 2, eventIds.size());
+        assertEquals("$48", eventIds.get(0));
+        assertEquals("$0", eventIds.get(eventIds.size() - 1));
+
+        for (List<Room.SnapshotedEvent> batch : collector.mBatches) {
+            assertTrue(batch.size() <= 20);
+        }
+
+        // the legacy callback provides the chronological order
+        final ArrayList<Room.SnapshotedEvent> matchedEvents = new ArrayList<Room.SnapshotedEvent>();
+        final ResultsCollector completion = new ResultsCollector();
+
+        mRoom.getMessagesWithPattern("world 4", new SimpleApiCallback<ArrayList<Room.SnapshotedEvent>>() {
+            @Override
+            public void onSuccess(ArrayList<Room.SnapshotedEvent> snapshotedEvents) {
+                matchedEvents.addAll(snapshotedEvents);
+                completion.onSearchComplete();
+            }
+        });
+        waitForCompletion(completion);
+
+        assertEquals(5, matchedEvents.size());
+        assertEquals("$41", matchedEvents.get(0).mEvent.eventId);
+        assertEquals("$49", matchedEvents.get(4).mEvent.eventId);
+    }
+
+    @Test
+    public void testNewSearchSupersedesThePreviousOne() throws Exception {
+        ResultsCollector first = new ResultsCollector();
+        ResultsCollector second = new ResultsCollector();
+
+        mRoom.searchMessages("hello", first);
+        mRoom.searchMessages("world", second);
+        waitForCompletion(second);
+
+        assertFalse(first.mIsComplete);
+        assertEquals(0, first.mBatches.size());
+        assertEquals(MESSAGES_COUNT / 2, second.getEventIds().size());
+
+        // a cancelled search delivers nothing
+        ResultsCollector cancelled = new ResultsCollector();
+        mRoom.searchMessages("hello", cancelled);
+        mRoom.cancelMessagesSearch();
+
+        Thread.sleep(200);
+        Robolectric.runUiThreadTasksIncludingDelayedTasks();
+
+        assertFalse(cancelled.mIsComplete);
+        assertEquals(0, cancelled.mBatches.size());
+    }
+}
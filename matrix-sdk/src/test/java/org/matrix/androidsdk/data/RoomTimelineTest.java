@@ -0,0 +1,198 @@
+/*
+ * Copyright 2015 OpenMarket Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrix.androidsdk.data;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.matrix.androidsdk.rest.model.Event;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+
+import static org.junit.Assert.*;
+
+/**
+ * Class for unit testing the RoomTimeline.
+ */
+@Config(emulateSdk = 18)
+@RunWith(RobolectricTestRunner.class)
+public class RoomTimelineTest {
+
+    private static Event buildEvent(int index) {
+        Event event = new Event();
+        event.type = Event.EVENT_TYPE_MESSAGE;
+        event.roomId = "!room:matrix.org";
+        event.eventId = "$event" + index;
+        return event;
+    }
+
+    /**
+     * @return the events from -> to (to could be lower than from).
+     */
+    private static ArrayList<Event> buildEvents(int from, int to) {
+        ArrayList<Event> events = new ArrayList<Event>();
+        int step = (from <= to) ? 1 : -1;
+
+        for (int index = from; index != (to + step); index += step) {
+            events.add(buildEvent(index));
+        }
+
+        return events;
+    }
+
+    private static void assertOrdered(ArrayList<Event> events, int from, int to) {
+        assertEquals(to - from + 1, events.size());
+
+        for (int index = from; index <= to; index++) {
+            assertEquals("$event" + index, events.get(index - from).eventId);
+        }
+    }
+
+    @Test
+    public void testAppendAndPrependAcrossChunks() {
+        RoomTimeline timeline = new RoomTimeline(buildEvents(1000, 1009));
+
+        // the back paginations fill chunks with negative positions
+        timeline.prependAll(buildEvents(999, 500));
+        timeline.prependAll(buildEvents(499, 0));
+
+        for (int index = 1010; index < 1300; index++) {
+            timeline.append(buildEvent(index));
+        }
+
+        assertEquals(1300, timeline.size());
+        assertEquals("$event0", timeline.getOldestEvent().eventId);
+        assertEquals("$event1299", timeline.getLatestEvent().eventId);
+        assertEquals("$event777", timeline.getEvent("$event777").eventId);
+        assertNull(timeline.getEvent("$unknown"));
+        assertOrdered(timeline.getEvents(), 0, 1299);
+
+        RoomTimeline.Snapshot snapshot = timeline.snapshot();
+        assertEquals(1299, snapshot.getTail() - snapshot.getHead());
+        assertEquals("$event0", snapshot.get(snapshot.getHead()).eventId);
+    }
+
+    @Test
+    public void testReplaceKeepsPosition() {
+        RoomTimeline timeline = new RoomTimeline(buildEvents(0, 99));
+        RoomTimeline.Snapshot before = timeline.snapshot();
+
+        // a local echo replaced by the server event
+        Event replacement = buildEvent(50);
+        replacement.mSentState = Event.SentState.SENT;
+        timeline.append(replacement);
+
+        assertEquals(100, timeline.size());
+        assertSame(replacement, timeline.getEvent("$event50"));
+        assertSame(replacement, timeline.getEvents().get(50));
+        assertEquals("$event99", timeline.getLatestEvent().eventId);
+
+        // the previous snapshot is unchanged
+        assertNotSame(replacement, before.getEvent("$event50"));
+        assertEquals("$event50", before.getEvent("$event50").eventId);
+    }
+
+    @Test
+    public void testRemove() {
+        RoomTimeline timeline = new RoomTimeline(buildEvents(0, 9));
+        RoomTimeline.Snapshot before = timeline.snapshot();
+
+        assertTrue(timeline.remove("$event5"));
+        assertFalse(timeline.remove("$event5"));
+        assertTrue(timeline.remove("$event0"));
+        assertTrue(timeline.remove("$event9"));
+
+        assertEquals(7, timeline.size());
+        assertEquals("$event1", timeline.getOldestEvent().eventId);
+        assertEquals("$event8", timeline.getLatestEvent().eventId);
+        assertNull(timeline.getEvent("$event5"));
+
+        // the previous snapshot still sees the removed events
+        assertEquals(10, before.size());
+        assertEquals("$event5", before.getEvent("$event5").eventId);
+        assertEquals(10, before.getEvents().size());
+
+        // the removed event can be added again
+        timeline.append(buildEvent(5));
+        assertEquals("$event5", timeline.getLatestEvent().eventId);
+        assertEquals(8, timeline.size());
+
+        // an emptied timeline
+        for (Event event : timeline.getEvents()) {
+            timeline.remove(event.eventId);
+        }
+        assertEquals(0, timeline.size());
+        assertNull(timeline.getOldestEvent());
+        assertNull(timeline.getLatestEvent());
+
+        timeline.append(buildEvent(42));
+        assertEquals("$event42", timeline.getOldestEvent().eventId);
+        assertEquals("$event42", timeline.getLatestEvent().eventId);
+    }
+
+    @Test
+    public void testCompactionAfterManyRemovals() {
+        RoomTimeline timeline = new RoomTimeline(buildEvents(0, 999));
+
+        // keep one event out of ten
+        for (int index = 0; index < 1000; index++) {
+            if (0 != (index % 10)) {
+                timeline.remove("$event" + index);
+            }
+        }
+
+        assertEquals(100, timeline.size());
+
+        RoomTimeline.Snapshot snapshot = timeline.snapshot();
+        // the tombstones have been dropped
+        assertTrue((snapshot.getTail() - snapshot.getHead() + 1) < 300);
+
+        ArrayList<Event> events = timeline.getEvents();
+        for (int index = 0; index < 100; index++) {
+            assertEquals("$event" + (index * 10), events.get(index).eventId);
+            assertSame(events.get(index), timeline.getEvent("$event" + (index * 10)));
+        }
+    }
+
+    @Test
+    public void testGetEarlierEvents() {
+        ArrayList<Event> events = buildEvents(0, 99);
+        events.get(0).mToken = "t0";
+        events.get(50).mToken = "t50";
+        events.get(99).mToken = "t100";
+
+        RoomTimeline timeline = new RoomTimeline(events);
+
+        // at least 10 events, until an event with a token
+        ArrayList<Event> earlier = timeline.getEarlierEvents(null, 10);
+        assertEquals(50, earlier.size());
+        assertEquals("$event99", earlier.get(0).eventId);
+        assertEquals("$event50", earlier.get(49).eventId);
+
+        earlier = timeline.getEarlierEvents("t50", 10);
+        assertEquals(50, earlier.size());
+        assertEquals("$event49", earlier.get(0).eventId);
+        assertEquals("$event0", earlier.get(49).eventId);
+
+        assertEquals(0, timeline.getEarlierEvents("t0", 10).size());
+        assertNull(timeline.getEarlierEvents("unknown", 10));
+
+        // the token of a removed event is forgotten
+        timeline.remove("$event50");
+        assertNull(timeline.getEarlierEvents("t50", 10));
+    }
+}
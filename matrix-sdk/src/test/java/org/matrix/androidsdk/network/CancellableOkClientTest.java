@@ -0,0 +1,113 @@
+/*
+ * Copyright 2015 OpenMarket Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrix.androidsdk.network;
+
+import com.squareup.okhttp.OkHttpClient;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import retrofit.client.Header;
+import retrofit.client.Request;
+
+import static org.junit.Assert.*;
+
+/**
+ * Class for unit testing the CancellableOkClient.
+ */
+@Config(emulateSdk = 18)
+@RunWith(RobolectricTestRunner.class)
+public class CancellableOkClientTest {
+
+    // accepts the connections but never responds, as a long poll
+    private ServerSocket mServerSocket;
+    private final ArrayList<Socket> mSockets = new ArrayList<Socket>();
+
+    @Before
+    public void setUp() throws IOException {
+        mServerSocket = new ServerSocket(0);
+
+        new Thread() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        Socket socket = mServerSocket.accept();
+
+                        synchronized (mSockets) {
+                            mSockets.add(socket);
+                        }
+                    }
+                } catch (IOException e) {
+                    // closed
+                }
+            }
+        }.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mServerSocket.close();
+
+        synchronized (mSockets) {
+            for (Socket socket : mSockets) {
+                socket.close();
+            }
+        }
+    }
+
+    @Test
+    public void testCancel() throws Exception {
+        final CancellableOkClient client = new CancellableOkClient(new OkHttpClient());
+        final Request request = new Request("GET", "http://127.0.0.1:" + mServerSocket.getLocalPort() + "/events", new ArrayList<Header>(), null);
+        final CountDownLatch failedRequests = new CountDownLatch(1);
+
+        Thread requestThread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    client.execute(request);
+                } catch (IOException e) {
+                    failedRequests.countDown();
+                }
+            }
+        };
+        requestThread.start();
+
+        // wait for the connection
+        Thread.sleep(300);
+
+        // the requests of the other threads are not cancelled
+        client.cancel(Thread.currentThread());
+        assertFalse(failedRequests.await(200, TimeUnit.MILLISECONDS));
+
+        long cancelTime = System.currentTimeMillis();
+        client.cancel(requestThread);
+        assertTrue(failedRequests.await(500, TimeUnit.MILLISECONDS));
+        assertTrue(System.currentTimeMillis() - cancelTime < 500);
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2015 OpenMarket Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrix.androidsdk.rest.json;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.matrix.androidsdk.rest.model.Event;
+import org.matrix.androidsdk.rest.model.RoomResponse;
+import org.matrix.androidsdk.util.JsonUtils;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Class for unit testing the InitialSyncReader.
+ */
+@Config(emulateSdk = 18)
+@RunWith(RobolectricTestRunner.class)
+public class InitialSyncReaderTest {
+
+    private final InitialSyncReader mReader = new InitialSyncReader(JsonUtils.getGson(false));
+
+    /**
+     * Keep the read parts in the read order.
+     */
+    private static class RecordingListener implements InitialSyncReader.Listener {
+        final List<Object> mParts = new ArrayList<Object>();
+
+        @Override
+        public void onPresences(List<Event> presences) {
+            mParts.add(presences);
+        }
+
+        @Override
+        public void onRoomResponse(RoomResponse roomResponse) {
+            mParts.add(roomResponse);
+        }
+    }
+
+    private static String room(int index) {
+        return "{'room_id': '!room" + index + ":matrix.org', 'membership': 'join', 'receipts': {'a': [1, 2]}, " +
+                "'state': [{'type': 'm.room.name', 'state_key': '', 'content': {'name': 'Room " + index + "'}}], " +
+                "'messages': {'start': 't1', 'end': 't2', 'chunk': [{'type': 'm.room.message', 'event_id': '$" + index + "', 'content': {'body': 'hi'}}]}}";
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testRead() throws IOException {
+        StringBuilder json = new StringBuilder("{'rooms': [" + room(0) + ", " + room(1) + "], 'receipts': [], 'presence': [");
+
+        int presencesCount = InitialSyncReader.PRESENCES_BATCH_SIZE + 10;
+        for (int i = 0; i < presencesCount; i++) {
+            json.append((i > 0) ? ", " : "").append("{'type': 'm.presence', 'content': {'user_id': '@user").append(i).append(":matrix.org'}}");
+        }
+
+        // the end token is after the rooms
+        json.append("], 'end': 's1_2_3'}");
+
+        RecordingListener listener = new RecordingListener();
+        assertEquals("s1_2_3", mReader.read(new StringReader(json.toString()), listener));
+
+        // the rooms, then the presences by batches
+        assertEquals(4, listener.mParts.size());
+
+        RoomResponse room = (RoomResponse) listener.mParts.get(0);
+        assertEquals("!room0:matrix.org", room.roomId);
+        assertEquals("Room 0", room.state.get(0).getContent().get("name").getAsString());
+        assertEquals("$0", room.messages.chunk.get(0).eventId);
+        assertEquals("!room1:matrix.org", ((RoomResponse) listener.mParts.get(1)).roomId);
+
+        List<Event> presences = (List<Event>) listener.mParts.get(2);
+        assertEquals(InitialSyncReader.PRESENCES_BATCH_SIZE, presences.size());
+        assertEquals("@user0:matrix.org", presences.get(0).getContent().get("user_id").getAsString());
+        assertEquals(10, ((List<Event>) listener.mParts.get(3)).size());
+    }
+
+    @Test
+    public void testEmptyResponse() throws IOException {
+        RecordingListener listener = new RecordingListener();
+
+        assertEquals("s1", mReader.read(new StringReader("{'end': 's1', 'presence': null, 'rooms': []}"), listener));
+        assertTrue(listener.mParts.isEmpty());
+    }
+
+    @Test
+    public void testTruncatedResponse() {
+        RecordingListener listener = new RecordingListener();
+
+        try {
+            mReader.read(new StringReader("{'end': 's1', 'rooms': [" + room(0) + ", " + room(1).substring(0, 40)), listener);
+            fail("a truncated response must not be read");
+        } catch (Exception e) {
+            // the rooms read before the error are provided
+            assertEquals(1, listener.mParts.size());
+        }
+    }
+}
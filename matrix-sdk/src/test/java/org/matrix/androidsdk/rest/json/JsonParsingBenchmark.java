@@ -0,0 +1,213 @@
+/*
+ * Copyright 2015 OpenMarket Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrix.androidsdk.rest.json;
+
+import com.google.gson.FieldNamingPolicy;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.reflect.TypeToken;
+
+import org.junit.Ignore;
+import org.junit.Test;
+import org.matrix.androidsdk.rest.model.Event;
+import org.matrix.androidsdk.rest.model.InitialSyncResponse;
+import org.matrix.androidsdk.rest.model.Message;
+import org.matrix.androidsdk.rest.model.RoomMember;
+import org.matrix.androidsdk.rest.model.RoomResponse;
+import org.matrix.androidsdk.rest.model.TokensChunkResponse;
+import org.matrix.androidsdk.util.JsonUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Type;
+import java.util.logging.Logger;
+
+/**
+ * Compare the streaming adapters of JsonUtils with the reflection based adapters :
+ * parsing throughput of /events and /initialSync responses, read from their bytes like
+ * the rest clients converter does. The message and member contents are also converted
+ * to their model classes, as the data handler does for each event.
+ *
+ * It is ignored by the unit tests : remove the @Ignore annotation to run it.
+ * The measures are reported through the test logger.
+ */
+public class JsonParsingBenchmark {
+
+    private static final Logger LOGGER = Logger.getLogger(JsonParsingBenchmark.class.getName());
+
+    private static final int ROOMS_COUNT = 50;
+    private static final int MEMBERS_PER_ROOM = 100;
+    private static final int MESSAGES_PER_ROOM = 60;
+    private static final int EVENTS_COUNT = 500;
+    private static final int ITERATIONS = 30;
+
+    private static final Type EVENTS_RESPONSE_TYPE = new TypeToken<TokensChunkResponse<Event>>(){}.getType();
+
+    private interface Task {
+        void run() throws Exception;
+    }
+
+    private static String messageEvent(int index, String roomId) {
+        return "{\"type\":\"m.room.message\",\"event_id\":\"$" + (1430000000000L + index) + "abcdef:matrix.org\"," +
+                "\"room_id\":\"" + roomId + "\",\"user_id\":\"@user" + (index % 20) + ":matrix.org\"," +
+                "\"origin_server_ts\":" + (1430000000000L + index) + ",\"age\":" + (1000 + index) + "," +
+                "\"content\":{\"msgtype\":\"m.text\",\"body\":\"This is the message number " + index + " of the benchmark, with some words\"}}";
+    }
+
+    private static String memberEvent(int index, String roomId) {
+        return "{\"type\":\"m.room.member\",\"event_id\":\"$" + (1420000000000L + index) + "member:matrix.org\"," +
+                "\"room_id\":\"" + roomId + "\",\"user_id\":\"@user" + index + ":matrix.org\",\"state_key\":\"@user" + index + ":matrix.org\"," +
+                "\"origin_server_ts\":" + (1420000000000L + index) + ",\"age\":" + (100000 + index) + "," +
+                "\"content\":{\"membership\":\"join\",\"displayname\":\"User number " + index + "\",\"avatar_url\":\"mxc://matrix.org/avatar" + index + "\"}," +
+                "\"prev_content\":{\"membership\":\"invite\"}}";
+    }
+
+    private static String presenceEvent(int index) {
+        return "{\"type\":\"m.presence\",\"content\":{\"user_id\":\"@user" + index + ":matrix.org\",\"presence\":\"online\"," +
+                "\"last_active_ago\":" + (index * 1000) + ",\"displayname\":\"User number " + index + "\"}}";
+    }
+
+    /**
+     * @return a /events response : messages with a few presence and typing events.
+     */
+    private static String buildEventsResponse() {
+        StringBuilder builder = new StringBuilder("{\"start\":\"s1_2_3\",\"end\":\"s4_5_6\",\"chunk\":[");
+
+        for (int i = 0; i < EVENTS_COUNT; i++) {
+            if (i > 0) {
+                builder.append(',');
+            }
+
+            if (0 == (i % 10)) {
+                builder.append(presenceEvent(i));
+            } else if (0 == (i % 25)) {
+                builder.append("{\"type\":\"m.typing\",\"room_id\":\"!room0:matrix.org\",\"content\":{\"user_ids\":[\"@user1:matrix.org\"]}}");
+            } else {
+                builder.append(messageEvent(i, "!room" + (i % ROOMS_COUNT) + ":matrix.org"));
+            }
+        }
+
+        return builder.append("]}").toString();
+    }
+
+    /**
+     * @return an /initialSync response : rooms with their members and their latest messages.
+     */
+    private static String buildInitialSyncResponse() {
+        StringBuilder builder = new StringBuilder("{\"end\":\"s1_2_3\",\"presence\":[");
+
+        for (int i = 0; i < MEMBERS_PER_ROOM; i++) {
+            builder.append((i > 0) ? "," : "").append(presenceEvent(i));
+        }
+
+        builder.append("],\"rooms\":[");
+
+        for (int room = 0; room < ROOMS_COUNT; room++) {
+            String roomId = "!room" + room + ":matrix.org";
+
+            builder.append((room > 0) ? "," : "");
+            builder.append("{\"room_id\":\"").append(roomId).append("\",\"membership\":\"join\",\"visibility\":\"private\",\"state\":[");
+            builder.append("{\"type\":\"m.room.name\",\"room_id\":\"").append(roomId).append("\",\"state_key\":\"\",\"content\":{\"name\":\"Room ").append(room).append("\"}}");
+
+            for (int i = 0; i < MEMBERS_PER_ROOM; i++) {
+                builder.append(',').append(memberEvent(i, roomId));
+            }
+
+            builder.append("],\"messages\":{\"start\":\"t1\",\"end\":\"t2\",\"chunk\":[");
+
+            for (int i = 0; i < MESSAGES_PER_ROOM; i++) {
+                builder.append((i > 0) ? "," : "").append(messageEvent(i, roomId));
+            }
+
+            builder.append("]}}");
+        }
+
+        return builder.append("]}").toString();
+    }
+
+    /**
+     * Convert the events contents as the data handler does.
+     */
+    private static void convertContents(Gson gson, Iterable<Event> events) {
+        for (Event event : events) {
+            if (Event.EVENT_TYPE_MESSAGE.equals(event.type)) {
+                gson.fromJson(event.getContent(), Message.class);
+            } else if (Event.EVENT_TYPE_STATE_ROOM_MEMBER.equals(event.type)) {
+                gson.fromJson(event.getContent(), RoomMember.class);
+            }
+        }
+    }
+
+    private static void measure(String name, int bytesCount, Task task) throws Exception {
+        // warm up
+        for (int i = 0; i < 5; i++) {
+            task.run();
+        }
+
+        long start = System.nanoTime();
+
+        for (int i = 0; i < ITERATIONS; i++) {
+            task.run();
+        }
+
+        double duration = (System.nanoTime() - start) / (double) ITERATIONS;
+        LOGGER.info(String.format("%-40s %10.2f ms %10.2f MB/s", name, duration / 1000000.0, bytesCount * 1000.0 / duration));
+    }
+
+    private static void compare(final String name, final byte[] bytes, final Type type) throws Exception {
+        final Gson reflectionGson = new GsonBuilder()
+                .setFieldNamingPolicy(FieldNamingPolicy.LOWER_CASE_WITH_UNDERSCORES)
+                .excludeFieldsWithModifiers(Modifier.PRIVATE, Modifier.STATIC)
+                .create();
+        final Gson streamingGson = JsonUtils.getGson(false);
+
+        for (final Gson gson : new Gson[] {reflectionGson, streamingGson}) {
+            String adapters = (gson == reflectionGson) ? "reflection" : "streaming";
+
+            measure(name + " : " + adapters, bytes.length, new Task() {
+                @Override
+                public void run() throws Exception {
+                    Object response = gson.fromJson(new InputStreamReader(new ByteArrayInputStream(bytes), "UTF-8"), type);
+
+                    if (response instanceof InitialSyncResponse) {
+                        for (RoomResponse room : ((InitialSyncResponse) response).rooms) {
+                            convertContents(gson, room.state);
+                            convertContents(gson, room.messages.chunk);
+                        }
+                    } else {
+                        // the events responses are parsed with a TokensChunkResponse<Event> type
+                        @SuppressWarnings("unchecked")
+                        TokensChunkResponse<Event> eventsResponse = (TokensChunkResponse<Event>) response;
+                        convertContents(gson, eventsResponse.chunk);
+                    }
+                }
+            });
+        }
+    }
+
+    @Ignore("benchmark")
+    @Test
+    public void benchmark() throws Exception {
+        byte[] events = buildEventsResponse().getBytes("UTF-8");
+        byte[] initialSync = buildInitialSyncResponse().getBytes("UTF-8");
+
+        LOGGER.info("/events : " + events.length + " bytes, /initialSync : " + initialSync.length + " bytes");
+
+        compare("/events", events, EVENTS_RESPONSE_TYPE);
+        compare("/initialSync", initialSync, InitialSyncResponse.class);
+    }
+}
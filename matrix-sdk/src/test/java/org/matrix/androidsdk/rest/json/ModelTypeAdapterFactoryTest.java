@@ -0,0 +1,203 @@
+/*
+ * Copyright 2015 OpenMarket Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrix.androidsdk.rest.json;
+
+import com.google.gson.FieldNamingPolicy;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.matrix.androidsdk.data.RoomState;
+import org.matrix.androidsdk.rest.model.Event;
+import org.matrix.androidsdk.rest.model.FileMessage;
+import org.matrix.androidsdk.rest.model.ImageMessage;
+import org.matrix.androidsdk.rest.model.LocationMessage;
+import org.matrix.androidsdk.rest.model.Message;
+import org.matrix.androidsdk.rest.model.PowerLevels;
+import org.matrix.androidsdk.rest.model.RoomMember;
+import org.matrix.androidsdk.rest.model.User;
+import org.matrix.androidsdk.rest.model.VideoMessage;
+import org.matrix.androidsdk.util.JsonUtils;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.lang.reflect.Modifier;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Class for unit testing the streaming adapters : they must match the reflection based adapters.
+ */
+@Config(emulateSdk = 18)
+@RunWith(RobolectricTestRunner.class)
+public class ModelTypeAdapterFactoryTest {
+
+    private static final String EVENT_JSON = "{'type': 'm.room.member', 'event_id': '$1430000000000abc:matrix.org', " +
+            "'room_id': '!room:matrix.org', 'user_id': '@bob:matrix.org', 'origin_server_ts': 1430000000000, 'age': 1234, " +
+            "'state_key': '@bob:matrix.org', 'content': {'membership': 'join', 'displayname': 'Bob', 'avatar_url': null}, " +
+            "'prev_content': {'membership': 'invite'}, 'unsigned': {'age': 1234}, 'redacts': null}";
+
+    private static final String IMAGE_JSON = "{'msgtype': 'm.image', 'body': 'cat.png', 'url': 'mxc://matrix.org/cat', " +
+            "'info': {'mimetype': 'image/png', 'w': 640, 'h': 480, 'size': 123456}, " +
+            "'thumbnail_url': 'mxc://matrix.org/thumb', 'thumbnail_info': {'mimetype': 'image/jpeg', 'w': 320, 'h': 240}}";
+
+    private static final String POWER_LEVELS_JSON = "{'ban': 50, 'kick': 50, 'redact': 50, 'events_default': 0, " +
+            "'events': {'m.room.name': 100, 'm.room.power_levels': 100}, 'users_default': 0, " +
+            "'users': {'@alice:matrix.org': 100}, 'state_default': 50}";
+
+    /**
+     * A message class of the application.
+     */
+    public static class PollMessage extends Message {
+        public String question;
+        public List<String> answers;
+    }
+
+    // the reflection based adapters
+    private final Gson mReflectionGson = new GsonBuilder()
+            .setFieldNamingPolicy(FieldNamingPolicy.LOWER_CASE_WITH_UNDERSCORES)
+            .excludeFieldsWithModifiers(Modifier.PRIVATE, Modifier.STATIC)
+            .create();
+
+    private final Gson mGson = JsonUtils.getGson(false);
+
+    private static JsonObject parse(String json) {
+        return new JsonParser().parse(json).getAsJsonObject();
+    }
+
+    /**
+     * Check that a JSON object is read then written as the reflection based adapters do.
+     */
+    private <T> T checkRoundTrip(String json, Class<T> type) {
+        T value = mGson.fromJson(parse(json), type);
+        T reflectionValue = mReflectionGson.fromJson(parse(json), type);
+
+        JsonElement tree = mGson.toJsonTree(value);
+        assertEquals(mReflectionGson.toJsonTree(reflectionValue), tree);
+
+        // the string parser provides the same values
+        assertEquals(tree, mGson.toJsonTree(mGson.fromJson(json, type)));
+
+        return value;
+    }
+
+    @Test
+    public void testEvent() {
+        Event event = checkRoundTrip(EVENT_JSON, Event.class);
+
+        assertEquals("$1430000000000abc:matrix.org", event.eventId);
+        assertEquals(1430000000000L, event.originServerTs);
+        assertEquals(1234, event.age);
+        assertEquals("Bob", event.getContent().get("displayname").getAsString());
+        assertEquals("invite", event.getPrevContent().get("membership").getAsString());
+        assertNull(event.redacts);
+        assertEquals(Event.SentState.SENT, event.mSentState);
+
+        // a locally built event
+        Event local = new Event(Event.EVENT_TYPE_MESSAGE, parse("{'msgtype': 'm.text', 'body': 'hello'}"), "@bob:matrix.org", "!room:matrix.org");
+        local.mToken = "t12-34";
+        assertEquals(mReflectionGson.toJsonTree(local), mGson.toJsonTree(local));
+        assertEquals(Event.SentState.SENDING, mGson.fromJson(mGson.toJsonTree(local), Event.class).mSentState);
+    }
+
+    @Test
+    public void testMessages() {
+        ImageMessage imageMessage = checkRoundTrip(IMAGE_JSON, ImageMessage.class);
+        assertEquals(Integer.valueOf(640), imageMessage.info.w);
+        assertEquals("image/jpeg", imageMessage.thumbnailInfo.mimetype);
+
+        checkRoundTrip("{'msgtype': 'm.text', 'body': 'hello', 'format': 'org.matrix.custom.html'}", Message.class);
+        checkRoundTrip("{'msgtype': 'm.video', 'body': 'video', 'url': 'mxc://matrix.org/video', 'info': {'duration': 1000, 'thumbnail_url': 'mxc://matrix.org/t'}}", VideoMessage.class);
+        checkRoundTrip("{'msgtype': 'm.location', 'body': 'here', 'geo_uri': 'geo:1,2', 'thumbnail_info': {'w': 10}}", LocationMessage.class);
+
+        // the default msgtype is kept
+        assertEquals(Message.MSGTYPE_IMAGE, mGson.fromJson("{'body': 'image'}", ImageMessage.class).msgtype);
+
+        // the null values are serialized on demand
+        Message message = new Message();
+        message.msgtype = Message.MSGTYPE_TEXT;
+        assertFalse(mGson.toJsonTree(message).getAsJsonObject().has("body"));
+        assertTrue(JsonUtils.getGson(true).toJsonTree(message).getAsJsonObject().has("body"));
+    }
+
+    @Test
+    public void testStateContents() {
+        PowerLevels powerLevels = checkRoundTrip(POWER_LEVELS_JSON, PowerLevels.class);
+        assertEquals(100, (int) powerLevels.users.get("@alice:matrix.org"));
+        assertEquals(0, powerLevels.invite);
+
+        RoomMember member = checkRoundTrip("{'membership': 'join', 'displayname': 'Bob', 'avatar_url': 'mxc://matrix.org/bob'}", RoomMember.class);
+        assertEquals("mxc://matrix.org/bob", member.avatarUrl);
+
+        RoomState roomState = checkRoundTrip("{'aliases': ['#matrix:matrix.org', '#sdk:matrix.org'], 'join_rule': 'public', 'name': 'Matrix'}", RoomState.class);
+        assertEquals(2, roomState.aliases.size());
+        assertEquals("public", roomState.joinRule);
+
+        User user = checkRoundTrip("{'user_id': '@bob:matrix.org', 'presence': 'online', 'last_active_ago': 5000, 'status_msg': 'busy'}", User.class);
+        assertEquals(Long.valueOf(5000), user.lastActiveAgo);
+    }
+
+    @Test
+    public void testPolymorphicMessages() {
+        // the msgtype selects the class, wherever it is
+        Message message = JsonUtils.toMessage(parse(IMAGE_JSON));
+        assertTrue(message instanceof ImageMessage);
+        assertEquals("mxc://matrix.org/thumb", ((ImageMessage) message).thumbnailUrl);
+
+        message = JsonUtils.toMessage(parse("{'body': 'a file', 'info': {'size': 12}, 'msgtype': 'm.file', 'url': 'mxc://matrix.org/file'}"));
+        assertTrue(message instanceof FileMessage);
+        assertEquals("a file", message.body);
+        assertEquals(Long.valueOf(12), ((FileMessage) message).info.size);
+        assertEquals("mxc://matrix.org/file", ((FileMessage) message).url);
+
+        message = mGson.fromJson("{'msgtype': 'm.video', 'url': 'mxc://matrix.org/video', 'body': 'video'}", Message.class);
+        assertTrue(message instanceof VideoMessage);
+        assertEquals("video", message.body);
+
+        // the other msgtypes are generic messages
+        message = JsonUtils.toMessage(parse("{'body': 'hello', 'msgtype': 'm.emote', 'format': 'html'}"));
+        assertEquals(Message.class, message.getClass());
+        assertEquals(Message.MSGTYPE_EMOTE, message.msgtype);
+        assertEquals(Message.class, JsonUtils.toMessage(parse("{'body': 'no type'}")).getClass());
+        assertNull(JsonUtils.toMessage(null));
+
+        // the messages are written with their class
+        assertEquals(parse(IMAGE_JSON), mGson.toJsonTree(JsonUtils.toMessage(parse(IMAGE_JSON)), Message.class));
+
+        // the application msgtypes
+        String pollJson = "{'question': 'Lunch?', 'msgtype': 'org.example.poll', 'body': 'Lunch?', 'answers': ['yes', 'no']}";
+        assertEquals(Message.class, JsonUtils.toMessage(parse(pollJson)).getClass());
+
+        PolymorphicMessageTypeAdapter.registerMessageClass("org.example.poll", PollMessage.class);
+
+        try {
+            message = JsonUtils.toMessage(parse(pollJson));
+            assertTrue(message instanceof PollMessage);
+            assertEquals("Lunch?", ((PollMessage) message).question);
+            assertEquals(2, ((PollMessage) message).answers.size());
+            assertEquals("org.example.poll", message.msgtype);
+        } finally {
+            PolymorphicMessageTypeAdapter.registerMessageClass("org.example.poll", null);
+        }
+
+        assertEquals(Message.class, JsonUtils.toMessage(parse(pollJson)).getClass());
+    }
+}
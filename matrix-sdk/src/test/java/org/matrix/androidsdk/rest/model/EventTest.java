@@ -0,0 +1,100 @@
+/*
+ * Copyright 2015 OpenMarket Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrix.androidsdk.rest.model;
+
+import com.google.gson.JsonObject;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.matrix.androidsdk.util.JsonUtils;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.*;
+
+/**
+ * Class for unit testing the Event contents.
+ */
+@Config(emulateSdk = 18)
+@RunWith(RobolectricTestRunner.class)
+public class EventTest {
+
+    private static final String IMAGE_CONTENT = "{\"msgtype\":\"m.image\",\"body\":\"a cat\",\"url\":\"mxc://matrix.org/cat\"}";
+
+    @Test
+    public void testLazyContents() {
+        Event event = new Event();
+        event.type = Event.EVENT_TYPE_MESSAGE;
+        event.setContentsAsString(IMAGE_CONTENT, null);
+
+        // the stored string is provided without being parsed
+        assertNull(event.content);
+        assertEquals(IMAGE_CONTENT, event.getContentAsString());
+
+        JsonObject content = event.getContent();
+        assertEquals("a cat", content.get("body").getAsString());
+        assertSame(content, event.getContent());
+        assertNull(event.getPrevContent());
+
+        // an invalid content is ignored
+        event.setContentsAsString("{", "{\"membership\":\"join\"}");
+        assertNull(event.getContent());
+        assertEquals("join", event.getPrevContent().get("membership").getAsString());
+
+        // the serialization parses the contents
+        event.setContentAsString(IMAGE_CONTENT);
+        assertEquals("a cat", JsonUtils.toJson(event).getAsJsonObject("content").get("body").getAsString());
+    }
+
+    @Test
+    public void testDeprecatedFieldsAreFilled() {
+        Event event = new Event();
+        event.type = Event.EVENT_TYPE_STATE_ROOM_MEMBER;
+        event.setContentsAsString("{\"membership\":\"leave\"}", "{\"membership\":\"join\"}");
+        assertNull(event.content);
+        assertNull(event.prevContent);
+
+        // the former callers parse the contents before reading the fields
+        event.finalizeDeserialization();
+        assertEquals("leave", event.content.get("membership").getAsString());
+        assertEquals("join", event.prevContent.get("membership").getAsString());
+        assertSame(event.content, event.getContent());
+    }
+
+    @Test
+    public void testMessageIsMemoized() {
+        Event event = new Event();
+        event.type = Event.EVENT_TYPE_MESSAGE;
+        event.setContentsAsString(IMAGE_CONTENT, null);
+
+        Message message = event.getMessage();
+        assertTrue(message instanceof ImageMessage);
+        assertEquals("mxc://matrix.org/cat", ((ImageMessage) message).url);
+        assertSame(message, event.getMessage());
+
+        // the copy shares the parsed message
+        assertSame(message, event.deepCopy().getMessage());
+
+        // a new content resets the message
+        Message text = new Message();
+        text.msgtype = Message.MSGTYPE_TEXT;
+        text.body = "hello";
+        event.setContent(JsonUtils.toJson(text));
+
+        assertNotSame(message, event.getMessage());
+        assertEquals("hello", event.getMessage().body);
+    }
+}
@@ -44,7 +44,7 @@ public class ContainsDisplayNameConditionTest {
 
     private void setEventMessage(String type, String rest) {
         String contentJson = "{'msgtype': '" + type + "', " + rest + "}";
-        event.content = (JsonObject) new JsonParser().parse(contentJson);
+        event.setContent((JsonObject) new JsonParser().parse(contentJson));
     }
 
     private void setEventTextMessageBody(String body) {
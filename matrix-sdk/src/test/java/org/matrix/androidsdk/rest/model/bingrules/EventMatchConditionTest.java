@@ -43,7 +43,7 @@ public class EventMatchConditionTest {
         event.roomId = TEST_ROOM_ID;
         event.userId = TEST_USER_ID;
         String contentJson = "{'msgtype': 'm.text', 'body': 'Nice body!', 'other_field': 'other_value'}";
-        event.content = (JsonObject) new JsonParser().parse(contentJson);
+        event.setContent((JsonObject) new JsonParser().parse(contentJson));
     }
 
     @Test
@@ -19,12 +19,15 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
-import org.matrix.androidsdk.rest.callback.ApiCallback;
 import org.matrix.androidsdk.rest.callback.ApiFailureCallback;
 import org.matrix.androidsdk.rest.client.EventsRestClient;
+import org.matrix.androidsdk.rest.json.InitialSyncReader;
 import org.matrix.androidsdk.rest.model.Event;
 import org.matrix.androidsdk.rest.model.InitialSyncResponse;
+import org.matrix.androidsdk.rest.model.MatrixError;
+import org.matrix.androidsdk.rest.model.RoomResponse;
 import org.matrix.androidsdk.rest.model.TokensChunkResponse;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 import org.mockito.invocation.InvocationOnMock;
@@ -32,7 +35,13 @@ import org.mockito.stubbing.Answer;
 import org.robolectric.RobolectricTestRunner;
 import org.robolectric.annotation.Config;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import retrofit.RetrofitError;
 
@@ -46,6 +55,9 @@ import static org.mockito.Mockito.*;
 @RunWith(RobolectricTestRunner.class)
 public class EventsThreadTest {
 
+    // the bound of the waits for the events thread : the tests do not depend on the timing
+    private static final long TIMEOUT_MS = 5000;
+
     // The events thread we're testing
     private EventsThread eventsThread;
 
@@ -67,15 +79,8 @@ public class EventsThreadTest {
     /**
      * Set up normal behavior from initial sync.
      */
-    private void setUpNormalInitialSync() {
-        doAnswer(new Answer<Object>() {
-            @Override
-            public Object answer(InvocationOnMock invocation) throws Throwable {
-                ApiCallback callback = (ApiCallback) invocation.getArguments()[0];
-                callback.onSuccess(new InitialSyncResponse());
-                return "onSuccess";
-            }
-        }).when(mockRestClient).initialSyncWithLimit(any(ApiCallback.class), anyInt());
+    private void setUpNormalInitialSync() throws IOException {
+        when(mockRestClient.initialSyncStream(anyInt(), any(InitialSyncReader.Listener.class))).thenReturn("s1_2_3");
     }
 
     /**
@@ -89,7 +94,7 @@ public class EventsThreadTest {
      * Test the normal flow: initial sync + multiple events calls.
      */
     @Test
-    public void testNormalFlow() {
+    public void testNormalFlow() throws Exception {
         setUpNormalInitialSync();
         setUpNormalEvents();
 
@@ -97,43 +102,33 @@ public class EventsThreadTest {
         eventsThread.start();
 
         // Verify the call to the rest client
-        verify(mockRestClient, timeout(1000)).initialSyncWithLimit(any(ApiCallback.class), anyInt());
+        verify(mockRestClient, timeout(1000)).initialSyncStream(anyInt(), any(InitialSyncReader.Listener.class));
         // Verify that the listener got notified for the initial sync
         verify(mockListener, timeout(1000)).onInitialSyncComplete(any(InitialSyncResponse.class));
 
         // Verify the call to the rest client
         verify(mockRestClient, timeout(1000).atLeast(2)).events(anyString(), anyInt());
         // Verify that the listener got notified with events at least a couple of times
-        verify(mockListener, timeout(1000).atLeast(2)).onEventsReceived(any(List.class), anyString());
+        verify(mockListener, timeout(1000).atLeast(2)).onEventsReceived(anyListOf(Event.class), anyString());
     }
 
     /**
      * Set up an initial sync that triggers a network error.
      */
-    private void setUpNetworkErrorInitialSync() {
+    private void setUpNetworkErrorInitialSync() throws IOException {
         // First invoke a network error, then success
-        doAnswer(new Answer<Object>() {
-            @Override
-            public Object answer(InvocationOnMock invocation) throws Throwable {
-                ApiCallback callback = (ApiCallback) invocation.getArguments()[0];
-                callback.onNetworkError(new Exception());
-                return "onNetworkError";
-            }
-        }).doAnswer(new Answer<Object>() {
-            @Override
-            public Object answer(InvocationOnMock invocation) throws Throwable {
-                ApiCallback callback = (ApiCallback) invocation.getArguments()[0];
-                callback.onSuccess(new InitialSyncResponse());
-                return "onSuccess";
-            }
-        }).when(mockRestClient).initialSyncWithLimit(any(ApiCallback.class), anyInt());
+        RetrofitError mockNetworkError = mock(RetrofitError.class);
+        when(mockNetworkError.isNetworkError()).thenReturn(true);
+        when(mockRestClient.initialSyncStream(anyInt(), any(InitialSyncReader.Listener.class)))
+                .thenThrow(mockNetworkError)
+                .thenReturn("s1_2_3");
     }
 
     /**
      * Test getting a network error during the initial sync.
      */
     @Test
-    public void testInitialSyncNetworkError() {
+    public void testInitialSyncNetworkError() throws Exception {
         setUpNetworkErrorInitialSync();
 
         eventsThread = new EventsThread(mockRestClient, mockListener, null);
@@ -147,7 +142,7 @@ public class EventsThreadTest {
      * Test getting a network error during the initial sync, having specified a failure callback.
      */
     @Test
-    public void testInitialSyncNetworkErrorWithErrorListener() {
+    public void testInitialSyncNetworkErrorWithErrorListener() throws Exception {
         setUpNetworkErrorInitialSync();
 
         eventsThread = new EventsThread(mockRestClient, mockListener, null);
@@ -163,6 +158,71 @@ public class EventsThreadTest {
         verify(mockFailureCallback).onNetworkError(any(Exception.class));
     }
 
+    /**
+     * Test that the callbacks of a cancelled initial sync stream are ignored once the stream is retried.
+     */
+    @Test
+    public void testCancelledInitialSyncIsIgnored() throws Exception {
+        setUpNormalEvents();
+
+        final RoomResponse staleRoom = new RoomResponse();
+        final RoomResponse room = new RoomResponse();
+
+        final CountDownLatch firstStreamStarted = new CountDownLatch(1);
+        final CountDownLatch firstStreamReleased = new CountDownLatch(1);
+        final CountDownLatch firstStreamDone = new CountDownLatch(1);
+
+        // the first stream is still read after its cancellation
+        when(mockRestClient.initialSyncStream(anyInt(), any(InitialSyncReader.Listener.class)))
+                .thenAnswer(new Answer<String>() {
+                    @Override
+                    public String answer(InvocationOnMock invocation) {
+                        InitialSyncReader.Listener listener = (InitialSyncReader.Listener) invocation.getArguments()[1];
+                        firstStreamStarted.countDown();
+
+                        while (true) {
+                            try {
+                                firstStreamReleased.await();
+                                break;
+                            } catch (InterruptedException e) {
+                                // the cancellation does not stop the reader
+                            }
+                        }
+
+                        listener.onRoomResponse(staleRoom);
+                        firstStreamDone.countDown();
+                        return "s_stale";
+                    }
+                })
+                .thenAnswer(new Answer<String>() {
+                    @Override
+                    public String answer(InvocationOnMock invocation) {
+                        ((InitialSyncReader.Listener) invocation.getArguments()[1]).onRoomResponse(room);
+                        return "s1";
+                    }
+                });
+
+        eventsThread = new EventsThread(mockRestClient, mockListener, null);
+        eventsThread.start();
+
+        assertTrue(firstStreamStarted.await(1000, TimeUnit.MILLISECONDS));
+
+        // the network loss cancels the stream, its return retries it
+        eventsThread.mNetworkListener.onNetworkConnectionUpdate(false);
+        eventsThread.mNetworkListener.onNetworkConnectionUpdate(true);
+
+        ArgumentCaptor<InitialSyncResponse> responseCaptor = ArgumentCaptor.forClass(InitialSyncResponse.class);
+        verify(mockListener, timeout(1000)).onInitialSyncComplete(responseCaptor.capture());
+        assertEquals("s1", responseCaptor.getValue().end);
+
+        // the cancelled stream reads a room after the retry
+        firstStreamReleased.countDown();
+        assertTrue(firstStreamDone.await(1000, TimeUnit.MILLISECONDS));
+
+        verify(mockListener).onInitialSyncRoom(room);
+        verify(mockListener, never()).onInitialSyncRoom(staleRoom);
+    }
+
     /**
      * Set up the mock rest client to trigger a network error on the events call.
      */
@@ -178,7 +238,7 @@ public class EventsThreadTest {
      * Test getting a network error during the events call.
      */
     @Test
-    public void testEventsNetworkError() {
+    public void testEventsNetworkError() throws Exception {
         setUpNormalInitialSync();
         setUpNetworkErrorEvents();
 
@@ -186,14 +246,14 @@ public class EventsThreadTest {
         eventsThread.start();
 
         // Verify that we get events after the waiting period
-        verify(mockListener, timeout(11000).atLeastOnce()).onEventsReceived(any(List.class), anyString());
+        verify(mockListener, timeout(11000).atLeastOnce()).onEventsReceived(anyListOf(Event.class), anyString());
     }
 
     /**
      * Test getting a network error during the events call, having specified a failure callback.
      */
     @Test
-    public void testEventsNetworkErrorWithErrorListener() {
+    public void testEventsNetworkErrorWithErrorListener() throws Exception {
         setUpNormalInitialSync();
         setUpNetworkErrorEvents();
 
@@ -207,56 +267,560 @@ public class EventsThreadTest {
         // --> the error callback is only triggered after 3 mins.
         //verify(mockFailureCallback, timeout(1000)).onNetworkError(any(Exception.class));
         // Verify that we get events after the waiting period
-        verify(mockListener, timeout(11000).atLeastOnce()).onEventsReceived(any(List.class), anyString());
+        verify(mockListener, timeout(11000).atLeastOnce()).onEventsReceived(anyListOf(Event.class), anyString());
     }
 
     /**
      * Test pausing and resuming the thread.
-     * @throws InterruptedException if Thread.sleep() does
      */
     @Test
-    public void testPauseResume() throws InterruptedException {
+    public void testPauseResume() throws Exception {
         setUpNormalInitialSync();
         setUpNormalEvents();
 
         eventsThread = new EventsThread(mockRestClient, mockListener, null);
         eventsThread.start();
 
-        // Wait a second, then pause
-        Thread.sleep(1000);
+        verify(mockRestClient, timeout(TIMEOUT_MS).atLeast(2)).events(anyString(), anyInt());
+
+        // the events thread waits once it is paused
         eventsThread.pause();
-        // Wait a little more while it pauses
-        Thread.sleep(100);
+        assertTrue(eventsThread.waitUntilEventsThreadWaits(TIMEOUT_MS));
+        assertTrue(eventsThread.isPaused());
 
+        // no new request while paused
         reset(mockRestClient);
-
-        // Wait a second and then verify that no events have come in.
-        Thread.sleep(1000);
-        verifyZeroInteractions(mockRestClient);
+        setUpNormalEvents();
+        assertTrue(eventsThread.waitUntilEventsThreadWaits(TIMEOUT_MS));
+        verify(mockRestClient, never()).events(anyString(), anyInt());
 
         // Unpause and verify that events come in again
         eventsThread.unpause();
-        verify(mockRestClient, timeout(1000).atLeastOnce()).events(anyString(), anyInt());
+        verify(mockRestClient, timeout(TIMEOUT_MS).atLeastOnce()).events(anyString(), anyInt());
     }
 
     /**
      * Test killing the thread.
-     * @throws InterruptedException if Thread.sleep() does
      */
     @Test
-    public void testKill() throws InterruptedException {
+    public void testKill() throws Exception {
         setUpNormalInitialSync();
         setUpNormalEvents();
 
         eventsThread = new EventsThread(mockRestClient, mockListener, null);
         eventsThread.start();
 
-        // Wait a second, then kill
-        Thread.sleep(1000);
+        verify(mockRestClient, timeout(TIMEOUT_MS).atLeastOnce()).events(anyString(), anyInt());
+
         eventsThread.kill();
-        // Wait a little more while it finishes
-        Thread.sleep(100);
+        eventsThread.join(TIMEOUT_MS);
 
         assertFalse(eventsThread.isAlive());
     }
+
+    /**
+     * Test that the events requests are not delayed by the processing of the previous chunks,
+     * and that they are delayed when too many chunks are waiting to be processed.
+     */
+    @Test
+    public void testPipelinedProcessing() throws Exception {
+        setUpNormalInitialSync();
+
+        // each response has its own token
+        final AtomicInteger requestsCount = new AtomicInteger();
+        when(mockRestClient.events(anyString(), anyInt())).thenAnswer(new Answer<TokensChunkResponse<Event>>() {
+            @Override
+            public TokensChunkResponse<Event> answer(InvocationOnMock invocation) {
+                TokensChunkResponse<Event> response = new TokensChunkResponse<Event>();
+                response.chunk = new ArrayList<Event>();
+                response.end = "t" + requestsCount.incrementAndGet();
+                return response;
+            }
+        });
+
+        // the processing is blocked until the latch is released
+        final CountDownLatch processingStarted = new CountDownLatch(1);
+        final CountDownLatch processingLatch = new CountDownLatch(1);
+        final List<String> processedTokens = Collections.synchronizedList(new ArrayList<String>());
+
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                processingStarted.countDown();
+                processingLatch.await(10, TimeUnit.SECONDS);
+                processedTokens.add((String) invocation.getArguments()[1]);
+                return null;
+            }
+        }).when(mockListener).onEventsReceived(anyListOf(Event.class), anyString());
+
+        eventsThread = new EventsThread(mockRestClient, mockListener, null);
+        eventsThread.start();
+
+        // the next requests are sent while the first chunk is processed
+        assertTrue(processingStarted.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        verify(mockRestClient, timeout(TIMEOUT_MS).times(EventsThread.PROCESSING_QUEUE_CAPACITY + 2)).events(anyString(), anyInt());
+
+        // but the network stage waits for the processing when the queue is full :
+        // one chunk is processed, the queue is full and one chunk waits to be queued.
+        assertTrue(eventsThread.waitUntilEventsThreadWaits(TIMEOUT_MS));
+        assertEquals(EventsThread.PROCESSING_QUEUE_CAPACITY + 2, requestsCount.get());
+        assertTrue(processedTokens.isEmpty());
+
+        processingLatch.countDown();
+        verify(mockRestClient, timeout(TIMEOUT_MS).atLeast(EventsThread.PROCESSING_QUEUE_CAPACITY + 10)).events(anyString(), anyInt());
+
+        eventsThread.kill();
+        eventsThread.join(TIMEOUT_MS);
+
+        // the chunks are processed in their reception order
+        synchronized (processedTokens) {
+            assertFalse(processedTokens.isEmpty());
+
+            for (int i = 0; i < processedTokens.size(); i++) {
+                assertEquals("t" + (i + 1), processedTokens.get(i));
+            }
+        }
+    }
+
+    /**
+     * Set up events requests which are blocked until they are cancelled.
+     * @param cancelledRequests counted down each time a request is cancelled
+     */
+    private void setUpBlockingEvents(final CountDownLatch cancelledRequests) {
+        when(mockRestClient.events(anyString(), anyInt())).thenAnswer(new Answer<TokensChunkResponse<Event>>() {
+            @Override
+            public TokensChunkResponse<Event> answer(InvocationOnMock invocation) {
+                try {
+                    Thread.sleep(EventsRestClient.EVENT_STREAM_TIMEOUT_MS);
+                } catch (InterruptedException e) {
+                    cancelledRequests.countDown();
+                }
+                return new TokensChunkResponse<Event>();
+            }
+        });
+    }
+
+    /**
+     * Test that killing the thread does not wait for the end of the running events request.
+     */
+    @Test
+    public void testKillCancelsRequest() throws Exception {
+        setUpNormalInitialSync();
+
+        // the request ignores the interruption : it only ends when the latch is released
+        final CountDownLatch requestLatch = new CountDownLatch(1);
+        final CountDownLatch requestDone = new CountDownLatch(1);
+
+        when(mockRestClient.events(anyString(), anyInt())).thenAnswer(new Answer<TokensChunkResponse<Event>>() {
+            @Override
+            public TokensChunkResponse<Event> answer(InvocationOnMock invocation) {
+                while (true) {
+                    try {
+                        requestLatch.await();
+                        break;
+                    } catch (InterruptedException e) {
+                        // ignored
+                    }
+                }
+
+                requestDone.countDown();
+                return new TokensChunkResponse<Event>();
+            }
+        });
+
+        eventsThread = new EventsThread(mockRestClient, mockListener, null);
+        eventsThread.start();
+
+        verify(mockRestClient, timeout(TIMEOUT_MS)).events(anyString(), anyInt());
+
+        try {
+            eventsThread.kill();
+            eventsThread.join(TIMEOUT_MS);
+
+            // the thread is stopped while the request is still running
+            assertFalse(eventsThread.isAlive());
+            assertEquals(1, requestDone.getCount());
+            verify(mockRestClient).cancelRequests(any(Thread.class));
+        } finally {
+            requestLatch.countDown();
+        }
+    }
+
+    /**
+     * Test that pausing the thread cancels the running events request.
+     */
+    @Test
+    public void testPauseCancelsRequest() throws Exception {
+        setUpNormalInitialSync();
+        CountDownLatch cancelledRequests = new CountDownLatch(1);
+        setUpBlockingEvents(cancelledRequests);
+
+        eventsThread = new EventsThread(mockRestClient, mockListener, null);
+        eventsThread.start();
+
+        verify(mockRestClient, timeout(TIMEOUT_MS)).events(anyString(), anyInt());
+
+        eventsThread.pause();
+        assertTrue(cancelledRequests.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+        // no new request while paused
+        assertTrue(eventsThread.waitUntilEventsThreadWaits(TIMEOUT_MS));
+        verify(mockRestClient, times(1)).events(anyString(), anyInt());
+        assertTrue(eventsThread.isPaused());
+
+        // the stream restarts
+        eventsThread.unpause();
+        verify(mockRestClient, timeout(TIMEOUT_MS).times(2)).events(anyString(), anyInt());
+    }
+
+    /**
+     * Test that losing the network cancels the running events request
+     * and that the stream restarts when the network comes back.
+     */
+    @Test
+    public void testNetworkLossCancelsRequest() throws Exception {
+        setUpNormalInitialSync();
+        CountDownLatch cancelledRequests = new CountDownLatch(1);
+        setUpBlockingEvents(cancelledRequests);
+
+        eventsThread = new EventsThread(mockRestClient, mockListener, null);
+        eventsThread.start();
+
+        verify(mockRestClient, timeout(TIMEOUT_MS)).events(anyString(), anyInt());
+
+        eventsThread.mNetworkListener.onNetworkConnectionUpdate(false);
+        assertTrue(cancelledRequests.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+        // no new request without network
+        assertTrue(eventsThread.waitUntilEventsThreadWaits(TIMEOUT_MS));
+        verify(mockRestClient, times(1)).events(anyString(), anyInt());
+
+        eventsThread.mNetworkListener.onNetworkConnectionUpdate(true);
+        verify(mockRestClient, timeout(TIMEOUT_MS).times(2)).events(anyString(), anyInt());
+    }
+
+    /**
+     * Test that a rate limited events request is retried after the requested delay.
+     */
+    @Test
+    public void testRateLimitedEvents() throws Exception {
+        setUpNormalInitialSync();
+
+        MatrixError matrixError = new MatrixError();
+        matrixError.errcode = MatrixError.LIMIT_EXCEEDED;
+        matrixError.retry_after_ms = 4000;
+
+        RetrofitError mockRateLimitError = mock(RetrofitError.class);
+        when(mockRateLimitError.getBodyAs(MatrixError.class)).thenReturn(matrixError);
+        when(mockRestClient.events(anyString(), anyInt()))
+                .thenThrow(mockRateLimitError)
+                .thenReturn(new TokensChunkResponse<Event>());
+
+        eventsThread = new EventsThread(mockRestClient, mockListener, null);
+        eventsThread.start();
+
+        verify(mockRestClient, timeout(TIMEOUT_MS)).events(anyString(), anyInt());
+
+        // the retry waits for the requested delay, which is longer than the backoff one
+        assertTrue(eventsThread.waitUntilEventsThreadWaits(TIMEOUT_MS));
+        verify(mockRestClient, times(1)).events(anyString(), anyInt());
+        assertEquals(1, eventsThread.getRetryBackoff().getRateLimitedRetriesCount());
+        assertTrue(eventsThread.getRetryBackoff().getLastDelayMs() >= 4000);
+
+        verify(mockListener, timeout(4000 + TIMEOUT_MS).atLeastOnce()).onEventsReceived(anyListOf(Event.class), anyString());
+        // reset by the success
+        assertEquals(0, eventsThread.getRetryBackoff().getConsecutiveFailuresCount());
+    }
+
+    /**
+     * Test that a failed events request is retried as soon as a network connection is established.
+     */
+    @Test
+    public void testRetryOnNetworkConnection() throws Exception {
+        setUpNormalInitialSync();
+
+        when(mockRestClient.events(anyString(), anyInt()))
+                .thenThrow(mock(RetrofitError.class))
+                .thenReturn(new TokensChunkResponse<Event>());
+
+        eventsThread = new EventsThread(mockRestClient, mockListener, null);
+        eventsThread.start();
+
+        verify(mockRestClient, timeout(TIMEOUT_MS)).events(anyString(), anyInt());
+
+        // the events thread waits before retrying
+        assertTrue(eventsThread.waitUntilEventsThreadWaits(TIMEOUT_MS));
+        verify(mockRestClient, times(1)).events(anyString(), anyInt());
+        assertEquals(1, eventsThread.getRetryBackoff().getRetriesCount());
+
+        // the retry is sent without waiting for the end of the delay
+        eventsThread.mNetworkListener.onNetworkConnectionUpdate(true);
+        verify(mockRestClient, timeout(TIMEOUT_MS).atLeast(2)).events(anyString(), anyInt());
+    }
+
+    /**
+     * Test that the background profile uses a long timeout and ignores the ephemeral events.
+     */
+    @Test
+    public void testBackgroundProfile() throws Exception {
+        setUpNormalInitialSync();
+
+        when(mockRestClient.events(anyString(), anyInt())).thenAnswer(new Answer<TokensChunkResponse<Event>>() {
+            @Override
+            public TokensChunkResponse<Event> answer(InvocationOnMock invocation) {
+                Event typing = new Event();
+                typing.type = Event.EVENT_TYPE_TYPING;
+                Event message = new Event();
+                message.type = Event.EVENT_TYPE_MESSAGE;
+
+                TokensChunkResponse<Event> response = new TokensChunkResponse<Event>();
+                response.chunk = new ArrayList<Event>();
+                response.chunk.add(typing);
+                response.chunk.add(message);
+                response.end = "t1";
+                return response;
+            }
+        });
+
+        eventsThread = new EventsThread(mockRestClient, mockListener, null);
+        eventsThread.setSyncProfile(SyncProfile.BACKGROUND);
+        eventsThread.start();
+
+        verify(mockRestClient, timeout(1000).atLeastOnce()).events(anyString(), eq(SyncProfile.BACKGROUND.getEventsTimeoutMs()));
+
+        ArgumentCaptor<List<Event>> eventsCaptor = newEventsCaptor();
+        verify(mockListener, timeout(1000).atLeastOnce()).onEventsReceived(eventsCaptor.capture(), anyString());
+
+        List<Event> events = eventsCaptor.getValue();
+        assertEquals(1, events.size());
+        assertEquals(Event.EVENT_TYPE_MESSAGE, events.get(0).type);
+    }
+
+    /**
+     * Test that a catchup profile waits between the catchups, and that switching to the foreground profile restarts the stream.
+     */
+    @Test
+    public void testCatchupProfile() throws Exception {
+        setUpNormalInitialSync();
+        setUpNormalEvents();
+
+        eventsThread = new EventsThread(mockRestClient, mockListener, null);
+        eventsThread.setSyncProfile(new SyncProfile("test", 0, false, 60000));
+        eventsThread.start();
+
+        // no long poll
+        verify(mockRestClient, timeout(TIMEOUT_MS)).events(anyString(), eq(0));
+
+        // the stream has caught up : it waits for the next catchup
+        assertTrue(eventsThread.waitUntilEventsThreadWaits(TIMEOUT_MS));
+        verify(mockRestClient, times(1)).events(anyString(), anyInt());
+
+        eventsThread.setSyncProfile(SyncProfile.FOREGROUND);
+        verify(mockRestClient, timeout(TIMEOUT_MS).atLeast(2)).events(anyString(), anyInt());
+        verify(mockRestClient, timeout(TIMEOUT_MS).atLeastOnce()).events(anyString(), eq(SyncProfile.FOREGROUND.getEventsTimeoutMs()));
+    }
+
+    /**
+     * @return a captor of the events lists given to the listener.
+     */
+    @SuppressWarnings("unchecked")
+    private static ArgumentCaptor<List<Event>> newEventsCaptor() {
+        // a class literal cannot be generic : List.class is cast to the captured type
+        return ArgumentCaptor.forClass((Class<List<Event>>) (Class<?>) List.class);
+    }
+
+    /**
+     * Set up an events stream returning chunks of the given sizes, then empty chunks : "t1", "t2"... are the ends of the chunks.
+     * @param sizes the chunks sizes
+     */
+    private void setUpEventsChunks(final int... sizes) {
+        final AtomicInteger requestsCount = new AtomicInteger();
+
+        when(mockRestClient.events(anyString(), anyInt())).thenAnswer(new Answer<TokensChunkResponse<Event>>() {
+            @Override
+            public TokensChunkResponse<Event> answer(InvocationOnMock invocation) {
+                int count = requestsCount.incrementAndGet();
+                TokensChunkResponse<Event> response = new TokensChunkResponse<Event>();
+                response.chunk = new ArrayList<Event>();
+                response.end = "t" + count;
+
+                if (count <= sizes.length) {
+                    for (int index = 0; index < sizes[count - 1]; index++) {
+                        response.chunk.add(new Event());
+                    }
+                }
+                return response;
+            }
+        });
+    }
+
+    /**
+     * Test that the small polls of a catchup profile are processed one by one.
+     */
+    @Test
+    public void testCatchupProfileProcessesEachChunk() throws Exception {
+        setUpNormalInitialSync();
+        setUpEventsChunks(2, 2, 2);
+
+        eventsThread = new EventsThread(mockRestClient, mockListener, null);
+        eventsThread.setSyncProfile(SyncProfile.LOW_POWER);
+        eventsThread.start();
+
+        verify(mockListener, timeout(TIMEOUT_MS)).onEventsReceived(anyListOf(Event.class), eq("t1"));
+        verify(mockListener, timeout(TIMEOUT_MS)).onEventsReceived(anyListOf(Event.class), eq("t2"));
+        verify(mockListener, timeout(TIMEOUT_MS)).onEventsReceived(anyListOf(Event.class), eq("t3"));
+
+        // the stream waits for the next catchup
+        assertTrue(eventsThread.waitUntilEventsThreadWaits(TIMEOUT_MS));
+        assertFalse(eventsThread.isPaused());
+        verify(mockRestClient, times(4)).events(anyString(), eq(0));
+        verify(mockListener, never()).onCatchupEventsReceived(anyListOf(Event.class), anyString());
+    }
+
+    /**
+     * Test that a late stream is batched until a small chunk is received.
+     */
+    @Test
+    public void testLateStreamIsBatched() throws Exception {
+        setUpNormalInitialSync();
+        setUpEventsChunks(EventsThread.CATCHUP_MIN_CHUNK_SIZE, EventsThread.CATCHUP_MIN_CHUNK_SIZE, 2, 1);
+
+        eventsThread = new EventsThread(mockRestClient, mockListener, null);
+        eventsThread.start();
+
+        ArgumentCaptor<List<Event>> eventsCaptor = newEventsCaptor();
+        verify(mockListener, timeout(TIMEOUT_MS)).onCatchupEventsReceived(eventsCaptor.capture(), eq("t3"));
+        assertEquals(2 * EventsThread.CATCHUP_MIN_CHUNK_SIZE + 2, eventsCaptor.getValue().size());
+
+        // no long poll while batching, then the live events are processed one by one
+        verify(mockListener, timeout(TIMEOUT_MS)).onEventsReceived(anyListOf(Event.class), eq("t4"));
+        verify(mockRestClient).events(eq("t1"), eq(0));
+        verify(mockRestClient).events(eq("t2"), eq(0));
+        verify(mockRestClient).events(eq("t3"), eq(SyncProfile.FOREGROUND.getEventsTimeoutMs()));
+        verify(mockListener, times(1)).onCatchupEventsReceived(anyListOf(Event.class), anyString());
+    }
+
+    /**
+     * Test that the events missed during a pause are batched.
+     */
+    @Test
+    public void testResumedStreamIsBatched() throws Exception {
+        setUpNormalInitialSync();
+        setUpNormalEvents();
+
+        eventsThread = new EventsThread(mockRestClient, mockListener, null);
+        eventsThread.start();
+
+        verify(mockRestClient, timeout(TIMEOUT_MS).atLeastOnce()).events(anyString(), anyInt());
+        eventsThread.pause();
+        assertTrue(eventsThread.waitUntilEventsThreadWaits(TIMEOUT_MS));
+
+        reset(mockRestClient);
+        setUpEventsChunks(2);
+        eventsThread.unpause();
+
+        ArgumentCaptor<List<Event>> eventsCaptor = newEventsCaptor();
+        verify(mockListener, timeout(TIMEOUT_MS)).onCatchupEventsReceived(eventsCaptor.capture(), eq("t1"));
+        assertEquals(2, eventsCaptor.getValue().size());
+    }
+
+    /**
+     * Test that the events of a chunk whose processing fails are requested again, and that the next chunks are processed after them.
+     */
+    @Test
+    public void testFailedChunkIsRequestedAgain() throws Exception {
+        setUpNormalInitialSync();
+
+        // each request returns an event and the next token : "t1", "t2"...
+        when(mockRestClient.events(anyString(), anyInt())).thenAnswer(new Answer<TokensChunkResponse<Event>>() {
+            @Override
+            public TokensChunkResponse<Event> answer(InvocationOnMock invocation) {
+                String token = (String) invocation.getArguments()[0];
+                int index = token.startsWith("t") ? Integer.parseInt(token.substring(1)) : 0;
+
+                TokensChunkResponse<Event> response = new TokensChunkResponse<Event>();
+                response.chunk = new ArrayList<Event>();
+                response.chunk.add(new Event());
+                response.end = "t" + (index + 1);
+                return response;
+            }
+        });
+
+        // the chunk ending with "t2" fails once
+        final List<String> processedTokens = Collections.synchronizedList(new ArrayList<String>());
+        final AtomicInteger failuresCount = new AtomicInteger();
+
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                String token = (String) invocation.getArguments()[1];
+                processedTokens.add(token);
+
+                if ("t2".equals(token) && (0 == failuresCount.getAndIncrement())) {
+                    throw new IllegalStateException("processing failure");
+                }
+                return null;
+            }
+        }).when(mockListener).onEventsReceived(anyListOf(Event.class), anyString());
+
+        eventsThread = new EventsThread(mockRestClient, mockListener, null);
+        eventsThread.start();
+
+        verify(mockListener, timeout(TIMEOUT_MS).atLeastOnce()).onEventsReceived(anyListOf(Event.class), eq("t3"));
+        verify(mockRestClient, atLeast(2)).events(eq("t1"), anyInt());
+
+        // the chunks received after the failed one are ignored until its events are received again
+        assertEquals("t1", processedTokens.get(0));
+        assertEquals("t2", processedTokens.get(1));
+        assertEquals("t2", processedTokens.get(2));
+        assertEquals("t3", processedTokens.get(3));
+    }
+
+    /**
+     * Test that a catchup drains the stream until its head, and that the caught up events are processed in a single batch.
+     */
+    @Test
+    public void testCatchup() throws Exception {
+        setUpNormalInitialSync();
+        setUpNormalEvents();
+
+        eventsThread = new EventsThread(mockRestClient, mockListener, null);
+        eventsThread.start();
+
+        verify(mockRestClient, timeout(TIMEOUT_MS).atLeastOnce()).events(anyString(), anyInt());
+        eventsThread.pause();
+        assertTrue(eventsThread.waitUntilEventsThreadWaits(TIMEOUT_MS));
+
+        // three chunks of two events, then the stream head
+        reset(mockRestClient);
+        final AtomicInteger requestsCount = new AtomicInteger();
+        when(mockRestClient.events(anyString(), anyInt())).thenAnswer(new Answer<TokensChunkResponse<Event>>() {
+            @Override
+            public TokensChunkResponse<Event> answer(InvocationOnMock invocation) {
+                int count = requestsCount.incrementAndGet();
+                TokensChunkResponse<Event> response = new TokensChunkResponse<Event>();
+                response.chunk = new ArrayList<Event>();
+                response.end = "t" + count;
+
+                if (count <= 3) {
+                    response.chunk.add(new Event());
+                    response.chunk.add(new Event());
+                }
+                return response;
+            }
+        });
+
+        eventsThread.catchup();
+
+        ArgumentCaptor<List<Event>> eventsCaptor = newEventsCaptor();
+        verify(mockListener, timeout(TIMEOUT_MS)).onCatchupEventsReceived(eventsCaptor.capture(), eq("t4"));
+        assertEquals(6, eventsCaptor.getValue().size());
+
+        // no long poll, and the thread is paused at the stream head
+        assertTrue(eventsThread.waitUntilEventsThreadWaits(TIMEOUT_MS));
+        assertTrue(eventsThread.isPaused());
+        verify(mockRestClient, times(4)).events(anyString(), eq(0));
+        verify(mockRestClient, times(4)).events(anyString(), anyInt());
+        verify(mockListener, times(1)).onCatchupEventsReceived(anyListOf(Event.class), anyString());
+    }
 }
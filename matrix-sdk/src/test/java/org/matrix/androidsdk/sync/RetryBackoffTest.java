@@ -0,0 +1,87 @@
+/*
+ * Copyright 2015 OpenMarket Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrix.androidsdk.sync;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Class for unit testing the RetryBackoff.
+ */
+@Config(emulateSdk = 18)
+@RunWith(RobolectricTestRunner.class)
+public class RetryBackoffTest {
+
+    @Test
+    public void testDelays() {
+        RetryBackoff backoff = new RetryBackoff(1000, 60000, new Random(42));
+
+        long previousDelay = 1000;
+        long maxDelay = 0;
+
+        for (int i = 0; i < 50; i++) {
+            long delay = backoff.nextDelay();
+
+            // between the base delay and three times the previous one, up to the maximum
+            assertTrue(delay >= 1000);
+            assertTrue(delay <= Math.min(60000, previousDelay * 3));
+
+            previousDelay = delay;
+            maxDelay = Math.max(maxDelay, delay);
+        }
+
+        // the delays grow with the failures
+        assertTrue(maxDelay > 20000);
+
+        assertEquals(50, backoff.getRetriesCount());
+        assertEquals(50, backoff.getConsecutiveFailuresCount());
+        assertEquals(previousDelay, backoff.getLastDelayMs());
+
+        // a success restarts from the base delay
+        backoff.reset();
+        assertEquals(0, backoff.getConsecutiveFailuresCount());
+        assertTrue(backoff.nextDelay() <= 3000);
+        assertEquals(51, backoff.getRetriesCount());
+    }
+
+    @Test
+    public void testJitter() {
+        // the clients which fail together do not retry together
+        long delay1 = new RetryBackoff(1000, 60000, new Random(1)).nextDelay();
+        long delay2 = new RetryBackoff(1000, 60000, new Random(2)).nextDelay();
+
+        assertNotEquals(delay1, delay2);
+    }
+
+    @Test
+    public void testRateLimitedDelays() {
+        RetryBackoff backoff = new RetryBackoff(1000, 60000, new Random(42));
+
+        assertTrue(backoff.nextRateLimitedDelay(5000) >= 5000);
+        // a retry delay shorter than the backoff one is not applied
+        assertTrue(backoff.nextRateLimitedDelay(10) >= 1000);
+
+        assertEquals(2, backoff.getRateLimitedRetriesCount());
+        assertEquals(2, backoff.getRetriesCount());
+        assertTrue(backoff.getTotalDelayMs() - backoff.getLastDelayMs() >= 5000);
+    }
+}
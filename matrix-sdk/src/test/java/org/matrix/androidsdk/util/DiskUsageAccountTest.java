@@ -0,0 +1,120 @@
+/*
+ * Copyright 2015 OpenMarket Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrix.androidsdk.util;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.HashMap;
+
+import static org.junit.Assert.*;
+
+/**
+ * Class for unit testing the DiskUsageAccount.
+ */
+@Config(emulateSdk = 18)
+@RunWith(RobolectricTestRunner.class)
+public class DiskUsageAccountTest {
+
+    private File mFolder;
+
+    @Before
+    public void setUp() {
+        mFolder = new File(System.getProperty("java.io.tmpdir"), "DiskUsageAccountTest_" + System.nanoTime());
+        mFolder.mkdirs();
+    }
+
+    @After
+    public void tearDown() {
+        ContentUtils.deleteDirectory(mFolder);
+    }
+
+    private static void writeFile(File file, int length) throws Exception {
+        FileOutputStream fos = new FileOutputStream(file);
+
+        try {
+            fos.write(new byte[length]);
+        } finally {
+            fos.close();
+        }
+    }
+
+    @Test
+    public void testCounters() {
+        DiskUsageAccount account = new DiskUsageAccount();
+
+        // never reconciled
+        assertTrue(account.needsReconciliation());
+
+        account.add("!room1:matrix.org", 100);
+        account.add("!room1:matrix.org", 50);
+        account.set("!room2:matrix.org", 30);
+        account.add(null, 1000);
+
+        assertEquals(150, account.get("!room1:matrix.org"));
+        assertEquals(180, account.total());
+        assertTrue(account.hasChanged());
+
+        // the counters are never negative
+        account.add("!room2:matrix.org", -100);
+        assertEquals(0, account.get("!room2:matrix.org"));
+        assertEquals(150, account.total());
+    }
+
+    @Test
+    public void testReconcileAndSave() throws Exception {
+        File roomFolder = new File(mFolder, "room");
+        roomFolder.mkdirs();
+        writeFile(new File(roomFolder, "0"), 100);
+        writeFile(new File(roomFolder, "1"), 20);
+        writeFile(new File(mFolder, "summaries"), 7);
+
+        assertEquals(127, DiskUsageAccount.walk(mFolder));
+
+        DiskUsageAccount account = new DiskUsageAccount();
+        HashMap<String, Long> bytes = new HashMap<String, Long>();
+        bytes.put("room", DiskUsageAccount.walk(roomFolder));
+        bytes.put("summaries", 7L);
+        account.reconcile(bytes);
+
+        assertFalse(account.needsReconciliation());
+        assertEquals(127, account.total());
+
+        File file = new File(mFolder, "disk_usage");
+        account.save(file);
+        assertFalse(account.hasChanged());
+
+        DiskUsageAccount loaded = new DiskUsageAccount();
+        loaded.load(file);
+
+        assertFalse(loaded.needsReconciliation());
+        assertEquals(120, loaded.get("room"));
+        assertEquals(127, loaded.total());
+
+        // an unreadable file is reconciled again
+        writeFile(file, 3);
+        loaded.load(file);
+
+        assertTrue(loaded.needsReconciliation());
+        assertEquals(0, loaded.total());
+    }
+}
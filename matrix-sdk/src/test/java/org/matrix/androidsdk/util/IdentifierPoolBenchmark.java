@@ -0,0 +1,157 @@
+/*
+ * Copyright 2015 OpenMarket Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrix.androidsdk.util;
+
+import com.google.gson.Gson;
+
+import org.junit.Ignore;
+import org.junit.Test;
+import org.matrix.androidsdk.rest.model.Event;
+import org.matrix.androidsdk.rest.model.InitialSyncResponse;
+import org.matrix.androidsdk.rest.model.RoomMember;
+import org.matrix.androidsdk.rest.model.RoomResponse;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.logging.Logger;
+
+/**
+ * Measure the heap retained by the /initialSync response of a large account, with and without
+ * the identifiers pool : the events and the members built from the state events (as a room state does) are kept.
+ *
+ * It is ignored by the unit tests : remove the @Ignore annotation to run it.
+ * The measures are reported through the test logger.
+ */
+public class IdentifierPoolBenchmark {
+
+    private static final Logger LOGGER = Logger.getLogger(IdentifierPoolBenchmark.class.getName());
+
+    private static final int ROOMS_COUNT = 100;
+    private static final int USERS_COUNT = 2000;
+    private static final int MEMBERS_PER_ROOM = 200;
+    private static final int MESSAGES_PER_ROOM = 100;
+
+    /**
+     * @return the /initialSync response of an account : the members of the rooms are picked in a set of users.
+     */
+    private static String buildInitialSyncResponse() {
+        Random random = new Random(42);
+        StringBuilder builder = new StringBuilder("{\"end\":\"s1_2_3\",\"presence\":[");
+
+        for (int user = 0; user < USERS_COUNT; user++) {
+            builder.append((user > 0) ? "," : "");
+            builder.append("{\"type\":\"m.presence\",\"content\":{\"user_id\":\"@user").append(user).append(":matrix.org\",")
+                    .append("\"presence\":\"online\",\"displayname\":\"User number ").append(user).append("\"}}");
+        }
+
+        builder.append("],\"rooms\":[");
+
+        for (int room = 0; room < ROOMS_COUNT; room++) {
+            String roomId = "!room" + room + ":matrix.org";
+            int[] members = new int[MEMBERS_PER_ROOM];
+
+            builder.append((room > 0) ? "," : "");
+            builder.append("{\"room_id\":\"").append(roomId).append("\",\"membership\":\"join\",\"state\":[");
+
+            for (int i = 0; i < MEMBERS_PER_ROOM; i++) {
+                members[i] = random.nextInt(USERS_COUNT);
+                String userId = "@user" + members[i] + ":matrix.org";
+
+                builder.append((i > 0) ? "," : "");
+                builder.append("{\"type\":\"m.room.member\",\"event_id\":\"$m").append(room).append('_').append(i).append(":matrix.org\",")
+                        .append("\"room_id\":\"").append(roomId).append("\",\"user_id\":\"").append(userId).append("\",")
+                        .append("\"state_key\":\"").append(userId).append("\",\"origin_server_ts\":1420000000000,")
+                        .append("\"content\":{\"membership\":\"join\",\"displayname\":\"User number ").append(members[i]).append("\",")
+                        .append("\"avatar_url\":\"mxc://matrix.org/avatar").append(members[i]).append("\"}}");
+            }
+
+            builder.append("],\"messages\":{\"start\":\"t1\",\"end\":\"t2\",\"chunk\":[");
+
+            for (int i = 0; i < MESSAGES_PER_ROOM; i++) {
+                builder.append((i > 0) ? "," : "");
+                builder.append("{\"type\":\"m.room.message\",\"event_id\":\"$e").append(room).append('_').append(i).append(":matrix.org\",")
+                        .append("\"room_id\":\"").append(roomId).append("\",\"user_id\":\"@user").append(members[random.nextInt(MEMBERS_PER_ROOM)]).append(":matrix.org\",")
+                        .append("\"origin_server_ts\":").append(1430000000000L + i).append(",")
+                        .append("\"content\":{\"msgtype\":\"m.text\",\"body\":\"Message ").append(i).append(" of the room ").append(room).append("\"}}");
+            }
+
+            builder.append("]}}");
+        }
+
+        return builder.append("]}").toString();
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+
+        for (int i = 0; i < 4; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * Parse the response and build the members as the room states do.
+     * @return the retained objects
+     */
+    private static List<Object> load(String json, boolean withPool) {
+        IdentifierPool pool = withPool ? new IdentifierPool() : null;
+        Gson gson = JsonUtils.getGson(false, pool);
+
+        InitialSyncResponse response = gson.fromJson(json, InitialSyncResponse.class);
+        List<Object> retained = new ArrayList<Object>();
+        retained.add(response);
+        retained.add(pool);
+
+        for (RoomResponse room : response.rooms) {
+            for (Event event : room.state) {
+                RoomMember member = JsonUtils.toRoomMember(event.getContent());
+                member.setUserId(event.stateKey);
+                retained.add(member);
+            }
+
+            for (Event event : room.messages.chunk) {
+                event.getContent();
+            }
+        }
+
+        return retained;
+    }
+
+    @Ignore("benchmark")
+    @Test
+    public void benchmark() throws Exception {
+        String json = buildInitialSyncResponse();
+        LOGGER.info("/initialSync : " + json.length() + " chars, " + ROOMS_COUNT + " rooms, " +
+                (ROOMS_COUNT * MEMBERS_PER_ROOM) + " members, " + (ROOMS_COUNT * MESSAGES_PER_ROOM) + " messages");
+
+        // warm up
+        load(json, true);
+        load(json, false);
+
+        for (boolean withPool : new boolean[] {false, true}) {
+            long before = usedHeap();
+            List<Object> retained = load(json, withPool);
+            long after = usedHeap();
+
+            LOGGER.info(String.format("%-20s %8d KB retained (%d objects)", withPool ? "with the pool" : "without the pool",
+                    (after - before) / 1024, retained.size()));
+        }
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2015 OpenMarket Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrix.androidsdk.util;
+
+import com.google.gson.Gson;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.matrix.androidsdk.data.MXFileStoreCodec;
+import org.matrix.androidsdk.rest.model.Event;
+import org.matrix.androidsdk.rest.model.RoomMember;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.zip.Deflater;
+
+import static org.junit.Assert.*;
+
+/**
+ * Class for unit testing the IdentifierPool.
+ */
+@Config(emulateSdk = 18)
+@RunWith(RobolectricTestRunner.class)
+public class IdentifierPoolTest {
+
+    private static final String MEMBER_EVENT = "{'type': 'm.room.member', 'room_id': '!room:matrix.org', 'user_id': '@bob:matrix.org', " +
+            "'state_key': '@bob:matrix.org', 'event_id': '$%d:matrix.org', 'content': {'membership': 'join', 'displayname': 'Bob'}}";
+
+    @Test
+    public void testIntern() {
+        IdentifierPool pool = new IdentifierPool();
+
+        String userId = new String("@bob:matrix.org");
+        assertSame(userId, pool.intern(userId));
+        assertSame(userId, pool.intern(new String("@bob:matrix.org")));
+        assertNull(pool.intern(null));
+        assertEquals(1, pool.size());
+
+        // the long strings are not pooled
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 300; i++) {
+            builder.append('a');
+        }
+        String body = builder.toString();
+        assertNotSame(body, pool.intern(new String(body)));
+        assertEquals(1, pool.size());
+    }
+
+    @Test
+    public void testNetworkEvents() {
+        IdentifierPool pool = new IdentifierPool();
+        Gson gson = JsonUtils.getGson(false, pool);
+
+        Event event1 = gson.fromJson(String.format(MEMBER_EVENT, 1), Event.class);
+        Event event2 = gson.fromJson(String.format(MEMBER_EVENT, 2), Event.class);
+
+        assertSame(event1.type, event2.type);
+        assertSame(event1.roomId, event2.roomId);
+        assertSame(event1.userId, event2.stateKey);
+
+        // the members read from the contents share the pooled strings
+        RoomMember member1 = JsonUtils.toRoomMember(event1.getContent());
+        RoomMember member2 = JsonUtils.toRoomMember(event2.getContent());
+        assertSame(member1.displayname, member2.displayname);
+        assertSame(member1.membership, member2.membership);
+
+        // the default gson does not pool
+        Event event3 = JsonUtils.getGson(false).fromJson(String.format(MEMBER_EVENT, 3), Event.class);
+        assertNotSame(event1.userId, event3.userId);
+        assertEquals(event1.userId, event3.userId);
+    }
+
+    @Test
+    public void testStoredMembers() throws Exception {
+        RoomMember member = new RoomMember();
+        member.setUserId("@bob:matrix.org");
+        member.displayname = "Bob";
+        member.avatarUrl = "mxc://matrix.org/bob";
+        member.membership = RoomMember.MEMBERSHIP_JOIN;
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        MXFileStoreCodec.Output output = new MXFileStoreCodec.Output(bos, new MXFileStoreCodec.StringTable(), Deflater.NO_COMPRESSION);
+        MXFileStoreCodec.writeRoomMember(output, member);
+        output.flush();
+        output.release();
+
+        MXFileStoreCodec codec = new MXFileStoreCodec();
+        codec.setIdentifierPool(new IdentifierPool());
+
+        // two files define the same strings
+        RoomMember[] members = new RoomMember[2];
+        for (int i = 0; i < members.length; i++) {
+            MXFileStoreCodec.Input input = codec.newInput(new ByteArrayInputStream(bos.toByteArray()), new MXFileStoreCodec.StringTable(), MXFileStoreCodec.CODEC_VERSION);
+            members[i] = MXFileStoreCodec.readRoomMember(input);
+            input.release();
+        }
+
+        assertEquals("@bob:matrix.org", members[0].getUserId());
+        assertSame(members[0].getUserId(), members[1].getUserId());
+        assertSame(members[0].displayname, members[1].displayname);
+        assertSame(members[0].avatarUrl, members[1].avatarUrl);
+    }
+}